@@ -0,0 +1,119 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.nuxeo.runtime.api.Framework;
+
+import nuxeo.powerpoint.utils.service.PowerPointEngine;
+
+/**
+ * The Apache POI engine of the {@link nuxeo.powerpoint.utils.service.PowerPointService}. It owns what the
+ * {@link PowerPointUtilsWithApachePOI} of the calls share:
+ * <ul>
+ * <li>The pool of threads rendering the slides when {@link PowerPointUtilsWithApachePOI#THUMBNAILS_WORKERS_PROPERTY}
+ * is more than 1, instead of a pool created for each call (see {@link #RENDERING_POOL_SIZE_PROPERTY})</li>
+ * <li>The result cache, see {@link ResultCache}</li>
+ * <li>The fonts, registered when the engine starts rather than by the first call (see {@link FontRegistry})</li>
+ * </ul>
+ * The decks read by the calls are released when the engine stops, see {@link DeckCache}.
+ *
+ * @since 2023.2
+ */
+public class ApachePOIEngine implements PowerPointEngine {
+
+    /**
+     * Configuration property: number of threads rendering the slides, for all the calls of the node. Default is the
+     * number of processors, 0 creates a pool for each call (see
+     * {@link PowerPointUtilsWithApachePOI#THUMBNAILS_WORKERS_PROPERTY}).
+     */
+    public static final String RENDERING_POOL_SIZE_PROPERTY = "nuxeo.powerpoint.rendering.poolSize";
+
+    protected ExecutorService renderingExecutor;
+
+    protected volatile ResultCache resultCache;
+
+    protected volatile boolean resultCacheInitialized;
+
+    @Override
+    public void start() {
+
+        int poolSize = NumberUtils.toInt(Framework.getProperty(RENDERING_POOL_SIZE_PROPERTY),
+                Runtime.getRuntime().availableProcessors());
+        if (poolSize > 0) {
+            AtomicInteger count = new AtomicInteger();
+            renderingExecutor = Executors.newFixedThreadPool(poolSize, runnable -> {
+                Thread thread = new Thread(runnable, "powerpoint-rendering-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        FontRegistry.getShared();
+    }
+
+    @Override
+    public void stop() {
+
+        if (renderingExecutor != null) {
+            renderingExecutor.shutdownNow();
+            renderingExecutor = null;
+        }
+        resultCache = null;
+        resultCacheInitialized = false;
+        DeckCache deckCache = DeckCache.getShared();
+        if (deckCache != null) {
+            deckCache.clear();
+        }
+    }
+
+    @Override
+    public PowerPointUtilsWithApachePOI newInstance() {
+
+        PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI(getResultCache());
+        pptUtils.setRenderingExecutor(renderingExecutor);
+        return pptUtils;
+    }
+
+    /**
+     * @return the pool rendering the slides, null if each call creates its own
+     */
+    public ExecutorService getRenderingExecutor() {
+        return renderingExecutor;
+    }
+
+    /*
+     * Created on the first call rather than in start(), the transient stores may not be started yet
+     */
+    protected ResultCache getResultCache() {
+
+        if (!resultCacheInitialized) {
+            synchronized (this) {
+                if (!resultCacheInitialized) {
+                    resultCache = ResultCache.fromConfiguration();
+                    resultCacheInitialized = true;
+                }
+            }
+        }
+        return resultCache;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.poi.common.usermodel.fonts.FontCharset;
+import org.apache.poi.common.usermodel.fonts.FontInfo;
+import org.apache.poi.sl.draw.DrawFontManagerDefault;
+import org.apache.poi.util.StringUtil;
+
+/**
+ * The POI <code>DrawFontManager</code> used to draw the slides (set as the
+ * {@link org.apache.poi.sl.draw.Drawable#FONT_HANDLER} hint by {@link ThumbnailRenderContext}). Same fonts as the
+ * default POI manager, without looking them up again for each text run:
+ * <ul>
+ * <li>The AWT fonts are created once per typeface, style and size, and kept for all the renders. A cached font keeps
+ * the JDK font it resolved to, and so the glyph metrics the JDK computed for it.</li>
+ * <li>The list of the installed font families is read once (POI reads it for each run of a symbol font), and again
+ * only when fonts are registered, see {@link FontRegistry}.</li>
+ * </ul>
+ * Thread safe, one instance is shared by all the threads.
+ *
+ * @since 2023.2
+ */
+public class CachingFontManager extends DrawFontManagerDefault {
+
+    // Enough for any realistic set of decks. Beyond, the cache is cleared
+    protected static final int MAX_FONTS = 1024;
+
+    protected static final CachingFontManager INSTANCE = new CachingFontManager();
+
+    // Exact names (same check as POI), and lower case names
+    protected static volatile Set<String> families;
+
+    protected static volatile Set<String> lowerCaseFamilies;
+
+    protected final Map<FontKey, Font> fonts = new ConcurrentHashMap<>();
+
+    public static CachingFontManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param family
+     * @return <code>true</code> if the font family is installed or registered (case insensitive)
+     */
+    public static boolean isAvailable(String family) {
+
+        if (lowerCaseFamilies == null) {
+            refreshFamilies();
+        }
+        return family != null && lowerCaseFamilies.contains(family.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Reads the installed font families again. To be called after registering fonts.
+     */
+    public static synchronized void refreshFamilies() {
+
+        String[] names = GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames();
+        Set<String> lowerCase = new HashSet<>();
+        for (String name : names) {
+            lowerCase.add(name.toLowerCase(Locale.ROOT));
+        }
+        families = new HashSet<>(Arrays.asList(names));
+        lowerCaseFamilies = lowerCase;
+    }
+
+    @Override
+    public String mapFontCharset(Graphics2D graphics, FontInfo fontInfo, String text) {
+
+        if (fontInfo == null || text == null || text.isEmpty()) {
+            return text;
+        }
+        String typeface = fontInfo.getTypeface();
+        if (fontInfo.getCharset() == FontCharset.SYMBOL || knownSymbolFonts.contains(typeface)) {
+            // Same as POI, with the cached families
+            int[] cps = text.codePoints().map(CachingFontManager::mapSymbolChar).toArray();
+            String mapped = new String(cps, 0, cps.length);
+            if (families == null) {
+                refreshFamilies();
+            }
+            return families.contains(typeface) ? mapped : StringUtil.mapMsCodepointString(mapped);
+        }
+        return text;
+    }
+
+    @Override
+    public Font createAWTFont(Graphics2D graphics, FontInfo fontInfo, double fontSize, boolean bold, boolean italic) {
+
+        FontKey key = new FontKey(fontInfo.getTypeface(), (bold ? Font.BOLD : 0) | (italic ? Font.ITALIC : 0),
+                (float) fontSize);
+        Font font = fonts.get(key);
+        if (font == null) {
+            if (fonts.size() >= MAX_FONTS) {
+                fonts.clear();
+            }
+            font = super.createAWTFont(graphics, fontInfo, fontSize, bold, italic);
+            fonts.put(key, font);
+        }
+        return font;
+    }
+
+    /**
+     * Forgets the AWT fonts (after registering new fonts, for example: a typeface may now resolve to another font)
+     */
+    public void clear() {
+        fonts.clear();
+    }
+
+    protected static int mapSymbolChar(int cp) {
+        return ((0x20 <= cp && cp <= 0x7f) || (0xa0 <= cp && cp <= 0xff)) ? cp | 0xf000 : cp;
+    }
+
+    protected static class FontKey {
+
+        protected final String typeface;
+
+        protected final int style;
+
+        protected final float size;
+
+        protected FontKey(String typeface, int style, float size) {
+            this.typeface = typeface;
+            this.style = style;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof FontKey)) {
+                return false;
+            }
+            FontKey other = (FontKey) obj;
+            return Objects.equals(typeface, other.typeface) && style == other.style
+                    && Float.compare(size, other.size) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(typeface, style, size);
+        }
+    }
+}
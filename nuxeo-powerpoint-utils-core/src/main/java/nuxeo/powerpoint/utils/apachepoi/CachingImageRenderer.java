@@ -0,0 +1,228 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.awt.AlphaComposite;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Insets;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.poi.sl.draw.BitmapImageRenderer;
+import org.apache.poi.sl.draw.ImageRenderer;
+
+/**
+ * The POI <code>ImageRenderer</code> used when a {@link PictureCache} is set on the {@link ThumbnailRenderContext}:
+ * the picture is looked up in the cache before being decoded.
+ * <p>
+ * When the slide is not rotated, the picture is cached at the size it is displayed at (device pixels), so drawing it
+ * again is a plain copy. Downscaling is done by halving the image, which also looks better than the single
+ * bicubic/bilinear pass of Java2D for big ratios. Else, the picture is cached at its own size.
+ * <p>
+ * Bitmaps are decoded here (subsampled with {@link RenderingQuality#DRAFT}, see {@link DraftImageRenderer}). Vector
+ * pictures (EMF, WMF, ...) are drawn by the POI renderer for their type, directly at the displayed size, and cached as
+ * bitmaps.
+ * <p>
+ * Not thread safe: use one instance per <code>Graphics2D</code> (set as the
+ * {@link org.apache.poi.sl.draw.Drawable#IMAGE_RENDERER} hint). The cache itself can be shared.
+ *
+ * @since 2023.2
+ */
+public class CachingImageRenderer extends DraftImageRenderer {
+
+    // Beyond, the picture is cached at its own size (a slide exported at a huge size, for example)
+    protected static final int MAX_SCALED_SIZE = 4096;
+
+    // Content type => a POI renderer can draw it (checked once, the ServiceLoader is slow)
+    protected static final Map<String, Boolean> VECTOR_TYPES = new ConcurrentHashMap<>();
+
+    protected final PictureCache cache;
+
+    protected RenderingQuality quality = RenderingQuality.HIGH;
+
+    public CachingImageRenderer(PictureCache cache) {
+        this.cache = cache;
+    }
+
+    public PictureCache getCache() {
+        return cache;
+    }
+
+    public void setQuality(RenderingQuality quality) {
+        this.quality = quality;
+    }
+
+    @Override
+    public boolean canRender(String contentType) {
+
+        if (super.canRender(contentType)) {
+            return true;
+        }
+        return contentType != null
+                && VECTOR_TYPES.computeIfAbsent(contentType, ct -> newVectorRenderer(ct) != null);
+    }
+
+    @Override
+    public void loadImage(InputStream data, String contentType) throws IOException {
+        loadImage(IOUtils.toByteArray(data), contentType);
+    }
+
+    @Override
+    public boolean drawImage(Graphics2D graphics, Rectangle2D anchor, Insets clip) {
+
+        if (img == null && data != null) {
+            Dimension size = getDisplayedSize(graphics, anchor, clip);
+            PictureCache.Key key = size == null ? new PictureCache.Key(data, 0, 0, quality)
+                    : new PictureCache.Key(data, size.width, size.height, quality);
+            img = cache.get(key);
+            if (img == null) {
+                img = decode(graphics, anchor, clip, size);
+                if (img == null) {
+                    return false;
+                }
+                cache.put(key, img);
+            }
+        }
+        return super.drawImage(graphics, anchor, clip);
+    }
+
+    /*
+     * Size of the whole picture (clipped parts included) in device pixels, or null if the picture must be cached at
+     * its own size
+     */
+    protected Dimension getDisplayedSize(Graphics2D graphics, Rectangle2D anchor, Insets clip) {
+
+        AffineTransform tx = graphics.getTransform();
+        if (tx.getShearX() != 0 || tx.getShearY() != 0 || tx.getScaleX() <= 0 || tx.getScaleY() <= 0) {
+            return null;
+        }
+        double cw = clip == null ? 1 : (100000 - clip.left - clip.right) / 100000.0;
+        double ch = clip == null ? 1 : (100000 - clip.top - clip.bottom) / 100000.0;
+        long width = Math.round(anchor.getWidth() * tx.getScaleX() / cw);
+        long height = Math.round(anchor.getHeight() * tx.getScaleY() / ch);
+        if (width < 1 || height < 1 || width > MAX_SCALED_SIZE || height > MAX_SCALED_SIZE) {
+            return null;
+        }
+        return new Dimension((int) width, (int) height);
+    }
+
+    protected BufferedImage decode(Graphics2D graphics, Rectangle2D anchor, Insets clip, Dimension size) {
+
+        if (!super.canRender(contentType)) {
+            ImageRenderer vector = newVectorRenderer(contentType);
+            if (vector == null) {
+                return null;
+            }
+            try {
+                vector.loadImage(data, contentType);
+            } catch (IOException e) {
+                // Same as POI: an invalid picture is not drawn
+                return null;
+            }
+            return size == null ? vector.getImage() : vector.getImage(size);
+        }
+
+        BufferedImage decoded = null;
+        if (quality.isDraft()) {
+            int subsampling = getSubsampling(graphics, anchor, clip);
+            if (subsampling > 1) {
+                decoded = readSubsampled(subsampling);
+            }
+        }
+        if (decoded == null) {
+            loadFully();
+            decoded = img;
+            img = null;
+        }
+        if (decoded == null || size == null) {
+            return decoded;
+        }
+        return scale(decoded, size.width, size.height);
+    }
+
+    /*
+     * Alpha is kept (logos, icons, ...)
+     */
+    protected BufferedImage scale(BufferedImage image, int width, int height) {
+
+        BufferedImage result = image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        if (w == width && h == height) {
+            return image;
+        }
+        // Halving (bilinear) until the next step would be smaller than the target
+        if (!quality.isDraft()) {
+            while (w / 2 >= width && h / 2 >= height) {
+                w /= 2;
+                h /= 2;
+                result = drawScaled(result, w, h, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            }
+        }
+        return drawScaled(result, width, height, quality.hints.get(RenderingHints.KEY_INTERPOLATION));
+    }
+
+    protected BufferedImage drawScaled(BufferedImage image, int width, int height, Object interpolation) {
+
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = result.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+
+        return result;
+    }
+
+    /*
+     * A new POI renderer for the type (they are stateful), or null. BitmapImageRenderer is excluded: bitmaps are
+     * decoded here
+     */
+    protected static ImageRenderer newVectorRenderer(String contentType) {
+
+        ServiceLoader<ImageRenderer> loader = ServiceLoader.load(ImageRenderer.class,
+                ImageRenderer.class.getClassLoader());
+        Iterator<ImageRenderer> it = loader.iterator();
+        while (true) {
+            try {
+                if (!it.hasNext()) {
+                    return null;
+                }
+                ImageRenderer renderer = it.next();
+                if (!(renderer instanceof BitmapImageRenderer) && renderer.canRender(contentType)) {
+                    return renderer;
+                }
+            } catch (Exception | ServiceConfigurationError e) {
+                // Same as POI: a renderer that cannot be loaded (missing dependency, ...) is skipped
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import org.apache.poi.sl.draw.DrawFactory;
+import org.apache.poi.sl.draw.DrawTextParagraph;
+import org.apache.poi.sl.draw.Drawable;
+import org.apache.poi.sl.usermodel.Shape;
+import org.apache.poi.sl.usermodel.TextParagraph;
+
+/**
+ * The POI <code>DrawFactory</code> used by {@link ThumbnailRenderContext}: POI asks it for the drawer of each shape
+ * (children of groups included) and of each text paragraph, so it checks there that the deadline is not passed, and
+ * throws a {@link SlideRenderTimeoutException} if it is. Rendering a slide can then be stopped between two shapes (or
+ * two paragraphs), but a single shape is always drawn to the end: a huge EMF picture, for example, cannot be
+ * interrupted.
+ * <p>
+ * Not thread safe: use one instance per <code>Graphics2D</code> (set as the
+ * {@link org.apache.poi.sl.draw.Drawable#DRAW_FACTORY} hint).
+ *
+ * @since 2023.2
+ */
+public class CancellableDrawFactory extends DrawFactory {
+
+    // System.nanoTime() value, 0 for no deadline
+    protected long deadline;
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @param deadline, a <code>System.nanoTime()</code> value, or 0 for no deadline
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return true if a deadline is set and passed
+     */
+    public boolean isDeadlinePassed() {
+        return deadline != 0 && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * @throws SlideRenderTimeoutException if the deadline is passed
+     */
+    public void checkDeadline() {
+        if (isDeadlinePassed()) {
+            throw new SlideRenderTimeoutException();
+        }
+    }
+
+    @Override
+    public Drawable getDrawable(Shape<?, ?> shape) {
+        checkDeadline();
+        return super.getDrawable(shape);
+    }
+
+    @Override
+    public DrawTextParagraph getDrawable(TextParagraph<?, ?, ?> paragraph) {
+        checkDeadline();
+        return super.getDrawable(paragraph);
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a palette of at most 256 colors for an image, to write it as an indexed-color PNG.
+ * <p>
+ * Most slides are text and flat shapes: they often have less than 256 colors, and the palette is then exact (the PNG
+ * is lossless). Else, the palette is computed with the median cut algorithm on a 5 bits/channel histogram, and each
+ * color is replaced with the average color of its box. There is no dithering: it would add noise to the flat areas,
+ * which is exactly what makes an indexed PNG small.
+ *
+ * @since 2023.2
+ */
+public class ColorQuantizer {
+
+    public static final int MAX_COLORS = 256;
+
+    // 5 bits/channel
+    protected static final int BINS = 32 * 32 * 32;
+
+    protected final int[] palette;
+
+    // Exact palette: RGB => index
+    protected final Map<Integer, Integer> exactIndexes;
+
+    // Median cut: 15 bits color => index + 1 (0 means not computed yet)
+    protected final int[] binIndexes;
+
+    protected int lastRgb = -1;
+
+    protected int lastIndex = -1;
+
+    protected ColorQuantizer(int[] palette, Map<Integer, Integer> exactIndexes, int[] binIndexes) {
+        this.palette = palette;
+        this.exactIndexes = exactIndexes;
+        this.binIndexes = binIndexes;
+    }
+
+    /**
+     * @param image
+     * @return the quantizer for this image
+     */
+    public static ColorQuantizer create(BufferedImage image) {
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = new int[width];
+
+        Map<Integer, Integer> colors = new HashMap<>();
+        int[] counts = new int[BINS];
+        long[] sums = new long[BINS * 3];
+        int last = -1;
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, pixels, 0, width);
+            for (int x = 0; x < width; x++) {
+                int rgb = pixels[x] & 0xffffff;
+                int bin = toBin(rgb);
+                counts[bin] += 1;
+                sums[bin * 3] += rgb >> 16;
+                sums[bin * 3 + 1] += (rgb >> 8) & 0xff;
+                sums[bin * 3 + 2] += rgb & 0xff;
+                // Flat areas: same color as the previous pixel most of the time
+                if (rgb != last && colors != null) {
+                    colors.putIfAbsent(rgb, colors.size());
+                    if (colors.size() > MAX_COLORS) {
+                        colors = null;
+                    }
+                }
+                last = rgb;
+            }
+        }
+
+        if (colors != null) {
+            int[] palette = new int[colors.size()];
+            colors.forEach((rgb, index) -> palette[index] = rgb);
+            return new ColorQuantizer(palette, colors, null);
+        }
+
+        return medianCut(counts, sums);
+    }
+
+    /**
+     * @return the colors, RGB
+     */
+    public int[] getPalette() {
+        return palette;
+    }
+
+    /**
+     * @param rgb
+     * @return the index of the color in the palette (the closest color if the palette is not exact)
+     */
+    public int getIndex(int rgb) {
+
+        rgb &= 0xffffff;
+        if (rgb == lastRgb) {
+            return lastIndex;
+        }
+
+        int index;
+        if (exactIndexes != null) {
+            Integer exact = exactIndexes.get(rgb);
+            index = exact == null ? getClosest(rgb) : exact;
+        } else {
+            int bin = toBin(rgb);
+            if (binIndexes[bin] == 0) {
+                // Not in the image the palette was built from
+                binIndexes[bin] = getClosest(rgb) + 1;
+            }
+            index = binIndexes[bin] - 1;
+        }
+
+        lastRgb = rgb;
+        lastIndex = index;
+        return index;
+    }
+
+    protected int getClosest(int rgb) {
+
+        int r = rgb >> 16;
+        int g = (rgb >> 8) & 0xff;
+        int b = rgb & 0xff;
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < palette.length; i++) {
+            int dr = r - (palette[i] >> 16);
+            int dg = g - ((palette[i] >> 8) & 0xff);
+            int db = b - (palette[i] & 0xff);
+            int distance = dr * dr + dg * dg + db * db;
+            if (distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    protected static int toBin(int rgb) {
+        return ((rgb >> 19) & 0x1f) << 10 | ((rgb >> 11) & 0x1f) << 5 | ((rgb >> 3) & 0x1f);
+    }
+
+    // ============================================================
+    // MEDIAN CUT
+    // ============================================================
+    protected static ColorQuantizer medianCut(int[] counts, long[] sums) {
+
+        List<Box> boxes = new ArrayList<>();
+        Box all = new Box(new int[] { 0, 0, 0 }, new int[] { 31, 31, 31 });
+        all.shrink(counts);
+        boxes.add(all);
+
+        // Always split the most populated box that can still be split
+        while (boxes.size() < MAX_COLORS) {
+            Box toSplit = null;
+            for (Box box : boxes) {
+                if (box.canSplit() && (toSplit == null || box.population > toSplit.population)) {
+                    toSplit = box;
+                }
+            }
+            if (toSplit == null) {
+                break;
+            }
+            boxes.add(toSplit.split(counts));
+        }
+
+        int[] palette = new int[boxes.size()];
+        int[] binIndexes = new int[BINS];
+        for (int i = 0; i < boxes.size(); i++) {
+            Box box = boxes.get(i);
+            long r = 0, g = 0, b = 0;
+            for (int bin : box.bins()) {
+                if (counts[bin] > 0) {
+                    r += sums[bin * 3];
+                    g += sums[bin * 3 + 1];
+                    b += sums[bin * 3 + 2];
+                    binIndexes[bin] = i + 1;
+                }
+            }
+            palette[i] = (int) (r / box.population) << 16 | (int) (g / box.population) << 8
+                    | (int) (b / box.population);
+        }
+
+        return new ColorQuantizer(palette, null, binIndexes);
+    }
+
+    /*
+     * A box of the 5 bits/channel color space, bounds included
+     */
+    protected static class Box {
+
+        protected final int[] min;
+
+        protected final int[] max;
+
+        protected long population;
+
+        protected Box(int[] min, int[] max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        protected boolean canSplit() {
+            return min[0] != max[0] || min[1] != max[1] || min[2] != max[2];
+        }
+
+        protected int[] bins() {
+
+            int[] bins = new int[(max[0] - min[0] + 1) * (max[1] - min[1] + 1) * (max[2] - min[2] + 1)];
+            int i = 0;
+            for (int r = min[0]; r <= max[0]; r++) {
+                for (int g = min[1]; g <= max[1]; g++) {
+                    for (int b = min[2]; b <= max[2]; b++) {
+                        bins[i++] = r << 10 | g << 5 | b;
+                    }
+                }
+            }
+            return bins;
+        }
+
+        /*
+         * Reduces the box to the bins actually used, and computes its population
+         */
+        protected void shrink(int[] counts) {
+
+            int[] newMin = { 31, 31, 31 };
+            int[] newMax = { 0, 0, 0 };
+            population = 0;
+            for (int bin : bins()) {
+                if (counts[bin] > 0) {
+                    int[] c = { bin >> 10, (bin >> 5) & 0x1f, bin & 0x1f };
+                    for (int axis = 0; axis < 3; axis++) {
+                        newMin[axis] = Math.min(newMin[axis], c[axis]);
+                        newMax[axis] = Math.max(newMax[axis], c[axis]);
+                    }
+                    population += counts[bin];
+                }
+            }
+            System.arraycopy(newMin, 0, min, 0, 3);
+            System.arraycopy(newMax, 0, max, 0, 3);
+        }
+
+        /*
+         * Splits the box in two along its longest axis, at the median. This box keeps the lower half, the upper half
+         * is returned
+         */
+        protected Box split(int[] counts) {
+
+            int axis = 0;
+            for (int i = 1; i < 3; i++) {
+                if (max[i] - min[i] > max[axis] - min[axis]) {
+                    axis = i;
+                }
+            }
+
+            // Population of each plane along the axis
+            long[] planes = new long[32];
+            for (int bin : bins()) {
+                int c = axis == 0 ? bin >> 10 : axis == 1 ? (bin >> 5) & 0x1f : bin & 0x1f;
+                planes[c] += counts[bin];
+            }
+            long half = population / 2;
+            long cumulated = 0;
+            int median = min[axis];
+            for (int c = min[axis]; c < max[axis]; c++) {
+                cumulated += planes[c];
+                median = c;
+                if (cumulated >= half) {
+                    break;
+                }
+            }
+
+            int[] upperMin = Arrays.copyOf(min, 3);
+            int[] upperMax = Arrays.copyOf(max, 3);
+            upperMin[axis] = median + 1;
+            max[axis] = median;
+
+            Box upper = new Box(upperMin, upperMax);
+            upper.shrink(counts);
+            shrink(counts);
+            return upper;
+        }
+    }
+}
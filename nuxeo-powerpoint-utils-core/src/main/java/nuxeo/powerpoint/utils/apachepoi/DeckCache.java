@@ -0,0 +1,201 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * The {@link ParsedDeck}s of the node, by digest of the blob. A chain of operations on the same blob (get the
+ * properties, then the thumbnails, then split it, ...) reads the package only once.
+ * <p>
+ * The cache is bounded by the weight of the decks (see {@link ParsedDeck#getWeight()}): the least recently used ones
+ * are evicted first. A deck is also evicted once its time to live is passed (counted from its creation), so a cache
+ * does not keep a deck forever when it is used all the time.
+ * <p>
+ * Thread safe.
+ *
+ * @since 2023.2
+ */
+public class DeckCache {
+
+    /**
+     * Configuration property, maximum size of the cache, in MB. Default is {@link #DEFAULT_MAX_SIZE_MB}, 0 disables
+     * the cache
+     */
+    public static final String MAX_SIZE_PROPERTY = "nuxeo.powerpoint.deckCache.maxSizeMB";
+
+    /**
+     * Configuration property, time to live of a deck, in seconds. Default is {@link #DEFAULT_TTL_SECONDS}
+     */
+    public static final String TTL_PROPERTY = "nuxeo.powerpoint.deckCache.ttlSeconds";
+
+    public static final int DEFAULT_MAX_SIZE_MB = 16;
+
+    public static final int DEFAULT_TTL_SECONDS = 600;
+
+    protected static DeckCache shared;
+
+    protected final long maxBytes;
+
+    protected final long ttlNanos;
+
+    protected final LinkedHashMap<String, Entry> decks = new LinkedHashMap<>(16, 0.75f, true);
+
+    protected long bytes = 0;
+
+    protected long hits = 0;
+
+    protected long misses = 0;
+
+    protected static class Entry {
+
+        protected final ParsedDeck deck;
+
+        // System.nanoTime()
+        protected final long expires;
+
+        protected Entry(ParsedDeck deck, long expires) {
+            this.deck = deck;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param maxBytes, maximum weight of the decks
+     * @param ttlMillis, time to live of a deck
+     */
+    public DeckCache(long maxBytes, long ttlMillis) {
+        this.maxBytes = maxBytes;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * @return the cache of the node, created with the size and time to live set in the configuration, or null if the
+     *         cache is disabled
+     */
+    public static synchronized DeckCache getShared() {
+
+        long maxBytes = getConfiguredMaxBytes();
+        if (maxBytes <= 0) {
+            return null;
+        }
+        if (shared == null) {
+            long ttl = NumberUtils.toLong(Framework.getProperty(TTL_PROPERTY), DEFAULT_TTL_SECONDS);
+            shared = new DeckCache(maxBytes, TimeUnit.SECONDS.toMillis(ttl));
+        }
+        return shared;
+    }
+
+    /**
+     * @return the size set in the configuration, in bytes
+     */
+    public static long getConfiguredMaxBytes() {
+        return NumberUtils.toLong(Framework.getProperty(MAX_SIZE_PROPERTY), DEFAULT_MAX_SIZE_MB) * 1024 * 1024;
+    }
+
+    /**
+     * @param digest, the digest of the blob
+     * @return the deck of the blob. A new (empty) one, added to the cache, if the blob is not in the cache or its
+     *         deck expired
+     */
+    public synchronized ParsedDeck get(String digest) {
+
+        long now = System.nanoTime();
+        Entry entry = decks.get(digest);
+        if (entry != null && now - entry.expires >= 0) {
+            decks.remove(digest);
+            bytes -= entry.deck.getWeight();
+            entry = null;
+        }
+        if (entry == null) {
+            misses += 1;
+            entry = new Entry(new ParsedDeck(this), now + ttlNanos);
+            decks.put(digest, entry);
+        } else {
+            hits += 1;
+        }
+        return entry.deck;
+    }
+
+    /**
+     * Evicts the expired decks, then the least recently used ones until the cache is not bigger than its maximum size.
+     * Called by the decks when they read something.
+     */
+    public synchronized void trim() {
+
+        long now = System.nanoTime();
+        bytes = 0;
+        Iterator<Entry> it = decks.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (now - entry.expires >= 0) {
+                it.remove();
+            } else {
+                bytes += entry.deck.getWeight();
+            }
+        }
+        it = decks.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().deck.getWeight();
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        decks.clear();
+        bytes = 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getTtlMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getCount() {
+        return decks.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @param digest
+     * @return true if the blob is in the cache (expired or not). Does not change the order of the decks
+     */
+    public synchronized boolean contains(String digest) {
+        return decks.containsKey(digest);
+    }
+}
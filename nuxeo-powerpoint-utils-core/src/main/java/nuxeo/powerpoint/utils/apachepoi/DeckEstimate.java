@@ -0,0 +1,262 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.poi.util.Units;
+
+/**
+ * What processing (part of) a presentation is expected to cost, computed before loading it: number of slides, size of
+ * the media, vector images, largest picture and the heap POI needs to render the slides.
+ * <p>
+ * Only the index of the package is used (zip central directory, relationships, content types and
+ * <code>presentation.xml</code>, see {@link PresentationPackage}), plus the headers of the biggest raster pictures
+ * (their dimensions). No slide is parsed and no picture is decoded.
+ * <p>
+ * The expected heap is a rough upper bound of what one copy of the presentation uses while rendering a slide: the XML
+ * parts in the POI user model ({@link #XML_HEAP_FACTOR} * their size), the biggest picture (encoded and decoded) and
+ * the canvas of a slide at 1:1. Videos, sounds and embedded objects are not loaded to render, they only count in
+ * {@link #getMediaBytes()}.
+ * <p>
+ * Immutable.
+ *
+ * @since 2023.2
+ */
+public class DeckEstimate {
+
+    /**
+     * Heap used by a XML part in the POI user model, as a factor of its size
+     */
+    public static final int XML_HEAP_FACTOR = 10;
+
+    // Bounds the cost of the estimate: the largest pictures are usually the biggest files
+    protected static final int MAX_PICTURE_HEADERS = 32;
+
+    protected static final Set<String> VECTOR_CONTENT_TYPES = new HashSet<>(
+            Arrays.asList("image/x-emf", "image/x-wmf", "image/svg+xml", "image/emf", "image/wmf"));
+
+    protected int slidesCount;
+
+    protected long xmlBytes;
+
+    protected long mediaBytes;
+
+    protected int pictureCount;
+
+    protected long pictureBytes;
+
+    protected long largestPictureBytes;
+
+    protected int vectorImageCount;
+
+    protected int largestPictureWidth;
+
+    protected int largestPictureHeight;
+
+    // In points, as the POI page size
+    protected int slideWidth;
+
+    protected int slideHeight;
+
+    protected DeckEstimate() {
+    }
+
+    /**
+     * @param zip, the presentation
+     * @param pkg, the index of <code>zip</code>
+     * @param partNames, the parts to count: all of them for the whole presentation, or the parts of some slides (see
+     *            {@link PresentationPackage#getPartsForSlide(String)})
+     * @param slidesCount, the number of slides in these parts
+     * @return the estimate
+     */
+    public static DeckEstimate read(ZipFile zip, PresentationPackage pkg, Collection<String> partNames,
+            int slidesCount) {
+
+        DeckEstimate estimate = new DeckEstimate();
+        estimate.slidesCount = slidesCount;
+        estimate.slideWidth = (int) Math.round(Units.toPoints(pkg.getSlideWidth()));
+        estimate.slideHeight = (int) Math.round(Units.toPoints(pkg.getSlideHeight()));
+
+        List<ZipArchiveEntry> rasterPictures = new ArrayList<>();
+        for (String partName : partNames) {
+            ZipArchiveEntry entry = pkg.getEntry(partName);
+            if (entry == null) {
+                continue;
+            }
+            long size = getSize(entry);
+            String contentType = pkg.getContentType(partName);
+            contentType = contentType == null ? "" : contentType.toLowerCase();
+            if (contentType.endsWith("xml")) {
+                estimate.xmlBytes += size;
+            } else if (contentType.startsWith("image/")) {
+                estimate.mediaBytes += size;
+                estimate.pictureCount += 1;
+                estimate.pictureBytes += size;
+                estimate.largestPictureBytes = Math.max(estimate.largestPictureBytes, size);
+                if (VECTOR_CONTENT_TYPES.contains(contentType)) {
+                    estimate.vectorImageCount += 1;
+                } else {
+                    rasterPictures.add(entry);
+                }
+            } else {
+                // Videos, sounds, embedded objects and fonts, ...
+                estimate.mediaBytes += size;
+            }
+        }
+
+        rasterPictures.sort(Comparator.comparingLong(DeckEstimate::getSize).reversed());
+        for (ZipArchiveEntry entry : rasterPictures.subList(0, Math.min(MAX_PICTURE_HEADERS, rasterPictures.size()))) {
+            int[] dimensions = readDimensions(zip, entry);
+            if (dimensions != null && (long) dimensions[0] * dimensions[1] > estimate.getLargestPicturePixels()) {
+                estimate.largestPictureWidth = dimensions[0];
+                estimate.largestPictureHeight = dimensions[1];
+            }
+        }
+
+        return estimate;
+    }
+
+    public int getSlidesCount() {
+        return slidesCount;
+    }
+
+    /**
+     * @return the size of the XML parts (slides, layouts, masters, themes, charts, ...), uncompressed
+     */
+    public long getXmlBytes() {
+        return xmlBytes;
+    }
+
+    /**
+     * @return the size of the binary parts (pictures, videos, sounds, embedded objects, ...), uncompressed
+     */
+    public long getMediaBytes() {
+        return mediaBytes;
+    }
+
+    public int getPictureCount() {
+        return pictureCount;
+    }
+
+    public long getPictureBytes() {
+        return pictureBytes;
+    }
+
+    /**
+     * @return the number of EMF, WMF and SVG pictures (drawn shape by shape, slower to render than raster ones)
+     */
+    public int getVectorImageCount() {
+        return vectorImageCount;
+    }
+
+    /**
+     * @return the width of the largest raster picture, in pixels. 0 if there is none
+     */
+    public int getLargestPictureWidth() {
+        return largestPictureWidth;
+    }
+
+    /**
+     * @return the height of the largest raster picture, in pixels. 0 if there is none
+     */
+    public int getLargestPictureHeight() {
+        return largestPictureHeight;
+    }
+
+    public long getLargestPicturePixels() {
+        return (long) largestPictureWidth * largestPictureHeight;
+    }
+
+    /**
+     * @return the width of the slides, in points
+     */
+    public int getSlideWidth() {
+        return slideWidth;
+    }
+
+    /**
+     * @return the height of the slides, in points
+     */
+    public int getSlideHeight() {
+        return slideHeight;
+    }
+
+    /**
+     * @return the heap one copy of the presentation is expected to use while rendering, in bytes
+     */
+    public long getExpectedHeapBytes() {
+        return xmlBytes * XML_HEAP_FACTOR + largestPictureBytes + 4 * getLargestPicturePixels()
+                + 4L * slideWidth * slideHeight;
+    }
+
+    @Override
+    public String toString() {
+        return "DeckEstimate [slides=" + slidesCount + ", xmlBytes=" + xmlBytes + ", mediaBytes=" + mediaBytes
+                + ", pictures=" + pictureCount + ", vectorImages=" + vectorImageCount + ", largestPicture="
+                + largestPictureWidth + "x" + largestPictureHeight + ", expectedHeapBytes=" + getExpectedHeapBytes()
+                + "]";
+    }
+
+    /*
+     * Uncompressed size, or the compressed one if not set in the central directory
+     */
+    protected static long getSize(ZipArchiveEntry entry) {
+        return Math.max(0, entry.getSize() >= 0 ? entry.getSize() : entry.getCompressedSize());
+    }
+
+    /*
+     * Only the header is read. null if the format is unknown or the header is invalid
+     */
+    protected static int[] readDimensions(ZipFile zip, ZipArchiveEntry entry) {
+
+        try (InputStream in = zip.getInputStream(entry);
+                ImageInputStream iis = new MemoryCacheImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new int[] { reader.getWidth(0), reader.getHeight(0) };
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.io.IOException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CloseableFile;
+import org.nuxeo.runtime.api.Framework;
+
+import nuxeo.powerpoint.utils.service.Lane;
+
+/**
+ * Pre-flight of the calls: estimates what a presentation costs (see {@link DeckEstimate}) before it is processed, and
+ * decides from it:
+ * <ul>
+ * <li>The lane of the call (see {@link Lane}): a light presentation (expected heap up to {@link #LIGHT_PROPERTY}) is
+ * processed as an interactive call, even by a batch operation, so small decks are not stuck behind big ones. A heavy
+ * one (expected heap from {@link #HEAVY_PROPERTY}) is processed as a batch call, even by an interactive
+ * operation</li>
+ * <li>The rendering strategy: several copies of the presentation are loaded in memory to render the slides in
+ * parallel only if they fit in {@link #HEAVY_PROPERTY}. A heavy presentation is rendered by one worker, slide after
+ * slide (see {@link #getWorkers(DeckEstimate, int)})</li>
+ * </ul>
+ * The estimate of a whole presentation is kept in its {@link ParsedDeck}, so the call reuses it.
+ * <p>
+ * Thread safe.
+ *
+ * @since 2023.2
+ */
+public class DeckEstimator {
+
+    /**
+     * Configuration property, expected heap of a light presentation, in MB. Default is {@link #DEFAULT_LIGHT_MB}
+     */
+    public static final String LIGHT_PROPERTY = "nuxeo.powerpoint.estimate.lightMB";
+
+    /**
+     * Configuration property, expected heap of a heavy presentation, in MB. Default is {@link #DEFAULT_HEAVY_MB}
+     */
+    public static final String HEAVY_PROPERTY = "nuxeo.powerpoint.estimate.heavyMB";
+
+    public static final int DEFAULT_LIGHT_MB = 32;
+
+    public static final int DEFAULT_HEAVY_MB = 256;
+
+    protected static DeckEstimator shared;
+
+    protected final long lightBytes;
+
+    protected final long heavyBytes;
+
+    /**
+     * @param lightBytes, expected heap up to which a presentation is light
+     * @param heavyBytes, expected heap from which a presentation is heavy
+     */
+    public DeckEstimator(long lightBytes, long heavyBytes) {
+        this.lightBytes = lightBytes;
+        this.heavyBytes = heavyBytes;
+    }
+
+    /**
+     * @return the estimator of the node, with the thresholds set in the configuration
+     */
+    public static synchronized DeckEstimator getShared() {
+
+        if (shared == null) {
+            long light = NumberUtils.toLong(Framework.getProperty(LIGHT_PROPERTY), DEFAULT_LIGHT_MB);
+            long heavy = NumberUtils.toLong(Framework.getProperty(HEAVY_PROPERTY), DEFAULT_HEAVY_MB);
+            shared = new DeckEstimator(light * 1024 * 1024, heavy * 1024 * 1024);
+        }
+        return shared;
+    }
+
+    /**
+     * @param blob, the presentation
+     * @return the estimate of the whole presentation, or null if it cannot be estimated (not a .pptx, invalid
+     *         package, ...): the call will fail or use another engine, it is not for the pre-flight to tell
+     */
+    public DeckEstimate estimate(Blob blob) {
+        return estimate(blob, -1);
+    }
+
+    /**
+     * Same as {@link #estimate(Blob)}, for a presentation containing only the slide
+     *
+     * @param slideNumber, zero-based. -1 for the whole presentation
+     */
+    public DeckEstimate estimate(Blob blob, int slideNumber) {
+
+        if (blob == null) {
+            return null;
+        }
+        try (CloseableFile source = blob.getCloseableFile(".pptx")) {
+            ParsedDeck deck = getDeck(blob);
+            return slideNumber < 0 ? deck.getEstimate(source.getFile())
+                    : deck.getEstimate(source.getFile(), slideNumber);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param estimate, can be null
+     * @param defaultLane, the lane of the operation
+     * @return the lane of the call
+     */
+    public Lane getLane(DeckEstimate estimate, Lane defaultLane) {
+
+        if (estimate == null) {
+            return defaultLane;
+        }
+        long heap = estimate.getExpectedHeapBytes();
+        if (heap >= heavyBytes) {
+            return Lane.BATCH;
+        }
+        if (heap <= lightBytes) {
+            return Lane.INTERACTIVE;
+        }
+        return defaultLane;
+    }
+
+    /**
+     * @param estimate, can be null
+     * @return true if the presentation is heavy
+     */
+    public boolean isHeavy(DeckEstimate estimate) {
+        return estimate != null && estimate.getExpectedHeapBytes() >= heavyBytes;
+    }
+
+    /**
+     * Each worker rendering slides loads its own copy of the presentation: there are only as many as copies fitting in
+     * the heavy threshold
+     *
+     * @param estimate, can be null
+     * @param workers, the workers configured
+     * @return the workers to use, at least 1
+     */
+    public int getWorkers(DeckEstimate estimate, int workers) {
+
+        if (estimate == null || workers <= 1) {
+            return Math.max(1, workers);
+        }
+        long heap = Math.max(1, estimate.getExpectedHeapBytes());
+        return (int) Math.max(1, Math.min(workers, heavyBytes / heap));
+    }
+
+    public long getLightBytes() {
+        return lightBytes;
+    }
+
+    public long getHeavyBytes() {
+        return heavyBytes;
+    }
+
+    /*
+     * Same as PowerPointUtilsWithApachePOI#getDeck(): the deck of the call, by digest
+     */
+    protected ParsedDeck getDeck(Blob blob) {
+
+        DeckCache cache = DeckCache.getShared();
+        String digest = blob.getDigest();
+        if (cache == null || StringUtils.isBlank(digest)) {
+            return new ParsedDeck();
+        }
+        return cache.get(digest);
+    }
+}
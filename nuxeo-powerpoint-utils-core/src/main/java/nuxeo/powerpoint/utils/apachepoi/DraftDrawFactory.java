@@ -0,0 +1,114 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.util.Collection;
+
+import org.apache.poi.sl.draw.DrawConnectorShape;
+import org.apache.poi.sl.draw.DrawFreeformShape;
+import org.apache.poi.sl.draw.DrawPaint;
+import org.apache.poi.sl.draw.DrawPictureShape;
+import org.apache.poi.sl.draw.DrawTextBox;
+import org.apache.poi.sl.draw.DrawTextShape;
+import org.apache.poi.sl.draw.geom.Outline;
+import org.apache.poi.sl.usermodel.ColorStyle;
+import org.apache.poi.sl.usermodel.ConnectorShape;
+import org.apache.poi.sl.usermodel.FreeformShape;
+import org.apache.poi.sl.usermodel.PaintStyle.GradientPaint;
+import org.apache.poi.sl.usermodel.PictureShape;
+import org.apache.poi.sl.usermodel.PlaceableShape;
+import org.apache.poi.sl.usermodel.TextBox;
+import org.apache.poi.sl.usermodel.TextShape;
+
+/**
+ * The POI <code>DrawFactory</code> used for {@link RenderingQuality#DRAFT}: shadows are not drawn, and gradients are
+ * drawn as a solid color (the color in the middle of the gradient). Set it as the {@link
+ * org.apache.poi.sl.draw.Drawable#DRAW_FACTORY} hint. As any {@link CancellableDrawFactory}, it stops drawing the
+ * slide once the deadline is passed.
+ *
+ * @since 2023.2
+ */
+public class DraftDrawFactory extends CancellableDrawFactory {
+
+    @Override
+    public DrawTextBox getDrawable(TextBox<?, ?> shape) {
+        return new DrawTextBox(shape) {
+            @Override
+            protected void drawShadow(Graphics2D graphics, Collection<Outline> outlines, Paint fill, Paint line) {
+                // Skipped in draft
+            }
+        };
+    }
+
+    @Override
+    public DrawFreeformShape getDrawable(FreeformShape<?, ?> shape) {
+        return new DrawFreeformShape(shape) {
+            @Override
+            protected void drawShadow(Graphics2D graphics, Collection<Outline> outlines, Paint fill, Paint line) {
+                // Skipped in draft
+            }
+        };
+    }
+
+    @Override
+    public DrawConnectorShape getDrawable(ConnectorShape<?, ?> shape) {
+        return new DrawConnectorShape(shape) {
+            @Override
+            protected void drawShadow(Graphics2D graphics, Collection<Outline> outlines, Paint fill, Paint line) {
+                // Skipped in draft
+            }
+        };
+    }
+
+    @Override
+    public DrawTextShape getDrawable(TextShape<?, ?> shape) {
+        return new DrawTextShape(shape) {
+            @Override
+            protected void drawShadow(Graphics2D graphics, Collection<Outline> outlines, Paint fill, Paint line) {
+                // Skipped in draft
+            }
+        };
+    }
+
+    @Override
+    public DrawPictureShape getDrawable(PictureShape<?, ?> shape) {
+        return new DrawPictureShape(shape) {
+            @Override
+            protected void drawShadow(Graphics2D graphics, Collection<Outline> outlines, Paint fill, Paint line) {
+                // Skipped in draft
+            }
+        };
+    }
+
+    @Override
+    public DrawPaint getPaint(PlaceableShape<?, ?> shape) {
+        return new DrawPaint(shape) {
+            @Override
+            protected Paint getGradientPaint(GradientPaint fill, Graphics2D graphics) {
+                ColorStyle[] colors = fill.getGradientColors();
+                if (colors == null || colors.length == 0) {
+                    return super.getGradientPaint(fill, graphics);
+                }
+                return DrawPaint.applyColorTransform(colors[colors.length / 2]);
+            }
+        };
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Insets;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Dimension2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.apache.poi.sl.draw.BitmapImageRenderer;
+
+/**
+ * The POI <code>ImageRenderer</code> used for {@link RenderingQuality#DRAFT}: pictures are decoded at (about) the
+ * size they are displayed, reading only 1 pixel every n pixels (nearest neighbor). A 4000px wide photo shown in a
+ * 200px thumbnail is then decoded as a 200-400px image, which is most of the time spent in drawing such a slide.
+ * <p>
+ * The decoding is done when the picture is drawn, since the displayed size is not known before. If the picture is
+ * not bigger than the displayed size, or cannot be subsampled, it is decoded as usual by
+ * <code>BitmapImageRenderer</code>.
+ * <p>
+ * Not thread safe: use one instance per <code>Graphics2D</code> (set as the
+ * {@link org.apache.poi.sl.draw.Drawable#IMAGE_RENDERER} hint).
+ *
+ * @since 2023.2
+ */
+public class DraftImageRenderer extends BitmapImageRenderer {
+
+    protected byte[] data;
+
+    protected String contentType;
+
+    @Override
+    public void loadImage(byte[] data, String contentType) throws IOException {
+
+        this.data = data;
+        this.contentType = contentType;
+        img = null;
+    }
+
+    @Override
+    public boolean drawImage(Graphics2D graphics, Rectangle2D anchor, Insets clip) {
+
+        if (img == null && data != null) {
+            int subsampling = getSubsampling(graphics, anchor, clip);
+            if (subsampling > 1) {
+                img = readSubsampled(subsampling);
+            }
+            if (img == null) {
+                loadFully();
+            }
+        }
+        return super.drawImage(graphics, anchor, clip);
+    }
+
+    @Override
+    public Dimension2D getDimension() {
+        loadFully();
+        return super.getDimension();
+    }
+
+    @Override
+    public BufferedImage getImage() {
+        loadFully();
+        return super.getImage();
+    }
+
+    @Override
+    public BufferedImage getImage(Dimension2D dim) {
+        loadFully();
+        return super.getImage(dim);
+    }
+
+    protected void loadFully() {
+
+        if (img == null && data != null) {
+            try {
+                super.loadImage(data, contentType);
+            } catch (IOException e) {
+                // Same as POI: an invalid picture is not drawn
+                img = null;
+            }
+        }
+    }
+
+    /*
+     * Ratio between the size of the picture and the size it is displayed at (in device pixels). 1 if the picture
+     * must be decoded as is.
+     */
+    protected int getSubsampling(Graphics2D graphics, Rectangle2D anchor, Insets clip) {
+
+        Dimension size = readSize();
+        if (size == null) {
+            return 1;
+        }
+
+        AffineTransform tx = graphics.getTransform();
+        double scaleX = Math.hypot(tx.getScaleX(), tx.getShearY());
+        double scaleY = Math.hypot(tx.getShearX(), tx.getScaleY());
+        // Size of the whole picture, clipped parts included
+        double cw = clip == null ? 1 : (100000 - clip.left - clip.right) / 100000.0;
+        double ch = clip == null ? 1 : (100000 - clip.top - clip.bottom) / 100000.0;
+        double displayedWidth = anchor.getWidth() * scaleX / cw;
+        double displayedHeight = anchor.getHeight() * scaleY / ch;
+        if (displayedWidth < 1 || displayedHeight < 1) {
+            return 1;
+        }
+
+        return (int) Math.max(1, Math.min(size.width / displayedWidth, size.height / displayedHeight));
+    }
+
+    protected Dimension readSize() {
+
+        try (ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Returns null if the picture could not be decoded this way (the caller then uses the default decoding, which
+     * handles the invalid pictures)
+     */
+    protected BufferedImage readSubsampled(int subsampling) {
+
+        try (ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+}
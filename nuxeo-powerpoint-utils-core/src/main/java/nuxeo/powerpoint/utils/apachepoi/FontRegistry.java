@@ -0,0 +1,367 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.awt.Font;
+import java.awt.FontFormatException;
+import java.awt.GraphicsEnvironment;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.poi.common.usermodel.fonts.FontFacet;
+import org.apache.poi.xslf.usermodel.XMLSlideShow;
+import org.apache.poi.xslf.usermodel.XSLFFontData;
+import org.apache.poi.xslf.usermodel.XSLFFontInfo;
+import org.apache.poi.xslf.usermodel.XSLFSlideMaster;
+import org.apache.poi.xslf.usermodel.XSLFTheme;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.api.Framework;
+import org.openxmlformats.schemas.drawingml.x2006.main.CTFontCollection;
+import org.openxmlformats.schemas.drawingml.x2006.main.CTFontScheme;
+import org.openxmlformats.schemas.drawingml.x2006.main.CTTextFont;
+
+/**
+ * The fonts used to draw the slides, on top of the fonts installed on the server:
+ * <ul>
+ * <li>The fonts of a directory (.ttf, .otf, .ttc), registered once, when the registry is created</li>
+ * <li>Only if enabled ({@link #EMBEDDED_PROPERTY}), the fonts embedded in the presentations, registered the first time
+ * a presentation using them is rendered. Only the full fonts are registered: PowerPoint usually embeds only the
+ * characters used in the presentation, and such a subset would miss characters in the other presentations. Compressed
+ * (MicroType Express) fonts are ignored too. A registered font is never unregistered, and is used by all the
+ * presentations: the first presentation embedding a font decides how this font is drawn in the others, so enable it
+ * only when the presentations come from trusted sources.</li>
+ * <li>Substitutions, applied to the major/minor fonts of the themes once per presentation when the font of the theme
+ * is not available ("Calibri=Carlito", for example). The text using the theme fonts is then drawn with the substitute
+ * instead of the JDK default font.</li>
+ * </ul>
+ * Registered fonts are available to the whole JVM (see
+ * {@link GraphicsEnvironment#registerFont(Font)}), a font with the same name as an installed font is ignored.
+ * <p>
+ * Use {@link #getShared()} to get the registry created with the configuration properties. Thread safe.
+ *
+ * @since 2023.2
+ */
+public class FontRegistry {
+
+    /**
+     * Configuration property, directory of fonts to register. Default is none
+     */
+    public static final String DIRECTORY_PROPERTY = "nuxeo.powerpoint.fonts.directory";
+
+    /**
+     * Configuration property, substitutions for the theme fonts: "Font=Substitute" pairs, separated by commas
+     * ("Calibri=Carlito,Calibri Light=Carlito,Cambria=Caladea"). Default is none
+     */
+    public static final String SUBSTITUTIONS_PROPERTY = "nuxeo.powerpoint.fonts.substitutions";
+
+    /**
+     * Configuration property, <code>true</code> to register the fonts embedded in the presentations, for the whole JVM
+     * and all the presentations (see the class javadoc). Default is false
+     */
+    public static final String EMBEDDED_PROPERTY = "nuxeo.powerpoint.fonts.embedded";
+
+    protected static final List<String> FONT_EXTENSIONS = Arrays.asList(".ttf", ".otf", ".ttc");
+
+    // EOT flags
+    protected static final int TTEMBED_SUBSET = 0x1;
+
+    protected static final int TTEMBED_TTCOMPRESSED = 0x4;
+
+    protected static final int TTEMBED_XORENCRYPTDATA = 0x10000000;
+
+    protected static FontRegistry shared;
+
+    // Lower case font => substitute
+    protected final Map<String, String> substitutions;
+
+    protected final boolean registerEmbedded;
+
+    // Checksums of the embedded fonts already handled (registered or not)
+    protected final Set<Long> embeddedFonts = Collections.synchronizedSet(new HashSet<>());
+
+    /**
+     * @param substitutions, font => substitute. Can be empty
+     * @param registerEmbedded, <code>true</code> to register the fonts embedded in the presentations
+     */
+    public FontRegistry(Map<String, String> substitutions, boolean registerEmbedded) {
+
+        this.substitutions = new HashMap<>();
+        substitutions.forEach((font, substitute) -> this.substitutions.put(font.toLowerCase(Locale.ROOT), substitute));
+        this.registerEmbedded = registerEmbedded;
+    }
+
+    /**
+     * @return the registry created with the configuration properties, the fonts of the directory being registered
+     */
+    public static synchronized FontRegistry getShared() {
+
+        if (shared == null) {
+            FontRegistry registry = new FontRegistry(parseSubstitutions(Framework.getProperty(SUBSTITUTIONS_PROPERTY)),
+                    "true".equals(Framework.getProperty(EMBEDDED_PROPERTY)));
+            String directory = Framework.getProperty(DIRECTORY_PROPERTY);
+            if (StringUtils.isNotBlank(directory)) {
+                registry.registerDirectory(new File(directory.trim()));
+            }
+            shared = registry;
+        }
+        return shared;
+    }
+
+    /**
+     * @param value, "Font=Substitute" pairs, separated by commas
+     * @return the substitutions
+     */
+    public static Map<String, String> parseSubstitutions(String value) {
+
+        Map<String, String> result = new HashMap<>();
+        if (StringUtils.isBlank(value)) {
+            return result;
+        }
+        for (String pair : value.split(",")) {
+            String[] fonts = pair.split("=");
+            if (fonts.length != 2 || StringUtils.isAnyBlank(fonts)) {
+                throw new NuxeoException("Invalid font substitution: " + pair + " (expected Font=Substitute)");
+            }
+            result.put(fonts[0].trim(), fonts[1].trim());
+        }
+        return result;
+    }
+
+    /**
+     * Registers the fonts of the directory and its sub-directories. Files that are not valid fonts are ignored.
+     *
+     * @param directory
+     * @return the number of fonts registered
+     */
+    public int registerDirectory(File directory) {
+
+        if (!directory.isDirectory()) {
+            throw new NuxeoException("Not a directory: " + directory);
+        }
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            files = paths.filter(path -> isFontFile(path.getFileName().toString())).collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new NuxeoException("Failed to read the fonts directory " + directory, e);
+        }
+
+        int count = 0;
+        GraphicsEnvironment ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
+        for (Path path : files) {
+            try {
+                for (Font font : Font.createFonts(path.toFile())) {
+                    if (ge.registerFont(font)) {
+                        count += 1;
+                    }
+                }
+            } catch (FontFormatException | IOException e) {
+                // Not a font, or not supported by the JDK: same as a missing font
+            }
+        }
+        fontsChanged();
+
+        return count;
+    }
+
+    /**
+     * @return <code>true</code> if the fonts embedded in the presentations are registered
+     */
+    public boolean isRegisterEmbedded() {
+        return registerEmbedded;
+    }
+
+    /**
+     * Prepares the presentation for rendering, to be called once after opening it: registers its embedded fonts, and
+     * applies the substitutions to the fonts of its themes. The presentation must not be saved after (the themes may
+     * have been modified).
+     *
+     * @param ppt
+     */
+    public void prepare(XMLSlideShow ppt) {
+
+        if (registerEmbedded) {
+            registerEmbeddedFonts(ppt);
+        }
+        if (!substitutions.isEmpty()) {
+            mapThemeFonts(ppt);
+        }
+    }
+
+    /**
+     * Registers the full (not subset, not compressed) fonts embedded in the presentation
+     *
+     * @param ppt
+     * @return the number of fonts registered
+     */
+    public int registerEmbeddedFonts(XMLSlideShow ppt) {
+
+        int count = 0;
+        GraphicsEnvironment ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
+        for (XSLFFontInfo fontInfo : XSLFFontInfo.getFonts(ppt)) {
+            if (CachingFontManager.isAvailable(fontInfo.getTypeface())) {
+                continue;
+            }
+            for (FontFacet facet : fontInfo.getFacets()) {
+                byte[] data;
+                try (InputStream in = ((XSLFFontData) facet.getFontData()).getInputStream()) {
+                    data = IOUtils.toByteArray(in);
+                } catch (IOException | RuntimeException e) {
+                    // Missing or invalid part: the font is not drawn, same as without the registry
+                    continue;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                if (!embeddedFonts.add(crc.getValue())) {
+                    continue;
+                }
+                byte[] font = decodeEmbeddedFont(data);
+                if (font == null) {
+                    continue;
+                }
+                try {
+                    if (ge.registerFont(Font.createFont(Font.TRUETYPE_FONT, new ByteArrayInputStream(font)))) {
+                        count += 1;
+                    }
+                } catch (FontFormatException | IOException e) {
+                    // Not supported by the JDK
+                }
+            }
+        }
+        if (count > 0) {
+            fontsChanged();
+        }
+
+        return count;
+    }
+
+    /**
+     * Replaces the major/minor fonts of the themes that are not available with their substitute (if it is available)
+     *
+     * @param ppt
+     * @return the number of fonts replaced
+     */
+    public int mapThemeFonts(XMLSlideShow ppt) {
+
+        int count = 0;
+        for (XSLFSlideMaster master : ppt.getSlideMasters()) {
+            XSLFTheme theme = master.getTheme();
+            if (theme == null || theme.getXmlObject().getThemeElements() == null) {
+                continue;
+            }
+            CTFontScheme scheme = theme.getXmlObject().getThemeElements().getFontScheme();
+            if (scheme == null) {
+                continue;
+            }
+            for (CTFontCollection fonts : new CTFontCollection[] { scheme.getMajorFont(), scheme.getMinorFont() }) {
+                if (fonts == null) {
+                    continue;
+                }
+                for (CTTextFont font : new CTTextFont[] { fonts.getLatin(), fonts.getEa(), fonts.getCs() }) {
+                    String substitute = font == null ? null : getSubstitute(font.getTypeface());
+                    if (substitute != null) {
+                        font.setTypeface(substitute);
+                        count += 1;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param typeface
+     * @return the substitute of the font if the font is not available and the substitute is, else <code>null</code>
+     */
+    public String getSubstitute(String typeface) {
+
+        if (StringUtils.isBlank(typeface) || CachingFontManager.isAvailable(typeface)) {
+            return null;
+        }
+        String substitute = substitutions.get(typeface.toLowerCase(Locale.ROOT));
+        return substitute != null && CachingFontManager.isAvailable(substitute) ? substitute : null;
+    }
+
+    /**
+     * The font file of an embedded font. PowerPoint embeds fonts as Embedded OpenType (EOT): a header, followed by the
+     * font data, possibly obfuscated (XOR).
+     *
+     * @param data, the embedded font part (EOT, or a plain font file)
+     * @return the TrueType/OpenType font, or <code>null</code> if the font is a subset, compressed or invalid
+     */
+    public static byte[] decodeEmbeddedFont(byte[] data) {
+
+        if (data.length < 16) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int tag = buffer.getInt(0);
+        // Plain font files: 0x00010000, "OTTO", "true" (read little endian)
+        if (tag == 0x00000100 || tag == 0x4f54544f || tag == 0x65757274) {
+            return data;
+        }
+
+        int eotSize = buffer.getInt(0);
+        int fontDataSize = buffer.getInt(4);
+        int flags = buffer.getInt(12);
+        if (eotSize != data.length || fontDataSize <= 0 || fontDataSize > eotSize - 16) {
+            return null;
+        }
+        if ((flags & (TTEMBED_SUBSET | TTEMBED_TTCOMPRESSED)) != 0) {
+            return null;
+        }
+        // The font data is always at the end
+        byte[] font = Arrays.copyOfRange(data, eotSize - fontDataSize, eotSize);
+        if ((flags & TTEMBED_XORENCRYPTDATA) != 0) {
+            for (int i = 0; i < font.length; i++) {
+                font[i] ^= 0x50;
+            }
+        }
+        return font;
+    }
+
+    protected static boolean isFontFile(String fileName) {
+
+        String lowerCase = fileName.toLowerCase(Locale.ROOT);
+        return FONT_EXTENSIONS.stream().anyMatch(lowerCase::endsWith);
+    }
+
+    protected static void fontsChanged() {
+        CachingFontManager.refreshFamilies();
+        CachingFontManager.getInstance().clear();
+    }
+}
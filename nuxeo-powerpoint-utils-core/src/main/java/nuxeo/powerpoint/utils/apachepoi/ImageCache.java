@@ -0,0 +1,147 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * A cache of images, bounded by their size (4 bytes/pixel): the least recently used images are evicted first. An
+ * image bigger than the cache is never cached. See {@link PictureCache} and {@link MasterLayerCache}.
+ * <p>
+ * Thread safe.
+ *
+ * @param <K> the key of the images
+ * @since 2023.2
+ */
+public class ImageCache<K> {
+
+    public enum Scope {
+        /** No cache, everything is drawn every time */
+        NONE,
+        /** One cache/call */
+        DECK,
+        /** One cache for all the calls */
+        SHARED;
+
+        public static Scope fromString(String value) {
+
+            if (StringUtils.isBlank(value)) {
+                return DECK;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new NuxeoException(value + " is not a supported cache scope (only deck, shared or none)");
+            }
+        }
+    }
+
+    protected final long maxBytes;
+
+    protected final LinkedHashMap<K, BufferedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+
+    protected long bytes = 0;
+
+    protected long hits = 0;
+
+    protected long misses = 0;
+
+    /**
+     * @param maxBytes, maximum size of the images
+     */
+    public ImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param key
+     * @return the image, or null if not in the cache
+     */
+    public synchronized BufferedImage get(K key) {
+
+        BufferedImage image = images.get(key);
+        if (image == null) {
+            misses += 1;
+        } else {
+            hits += 1;
+        }
+        return image;
+    }
+
+    /**
+     * Adds the image, evicting the least recently used ones if needed. The image must not be modified after.
+     *
+     * @param key
+     * @param image
+     */
+    public synchronized void put(K key, BufferedImage image) {
+
+        long size = sizeOf(image);
+        if (size > maxBytes) {
+            return;
+        }
+
+        BufferedImage previous = images.put(key, image);
+        if (previous != null) {
+            bytes -= sizeOf(previous);
+        }
+        bytes += size;
+
+        Iterator<Map.Entry<K, BufferedImage>> it = images.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= sizeOf(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        images.clear();
+        bytes = 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getCount() {
+        return images.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    protected static long sizeOf(BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.util.Objects;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * The master layer of the slides, already drawn: the background, and the shapes of the slide master and of the
+ * layout (see {@link MasterLayerRenderer}). Most slides of a deck use a couple of layouts, and thousands of decks
+ * use the same corporate template: with the cache, this layer is drawn once per layout and size, then copied under
+ * the shapes of each slide.
+ * <p>
+ * Layers are identified by the content of the layout, of its master and of their theme and pictures, so the same
+ * template is found whatever the deck. The cache is bounded by the size of the layers, see {@link ImageCache}.
+ * <p>
+ * By default, a cache is created for each call (one deck), and forgotten after. It can be shared by all the calls
+ * (see {@link Scope}).
+ * <p>
+ * Thread safe.
+ *
+ * @since 2023.2
+ */
+public class MasterLayerCache extends ImageCache<MasterLayerCache.Key> {
+
+    /**
+     * Configuration property, {@link Scope} of the cache: "deck" (default), "shared" or "none"
+     */
+    public static final String SCOPE_PROPERTY = "nuxeo.powerpoint.masterLayerCache.scope";
+
+    /**
+     * Configuration property, maximum size of the cache, in MB. Default is {@link #DEFAULT_MAX_SIZE_MB}
+     */
+    public static final String MAX_SIZE_PROPERTY = "nuxeo.powerpoint.masterLayerCache.maxSizeMB";
+
+    public static final int DEFAULT_MAX_SIZE_MB = 64;
+
+    protected static MasterLayerCache shared;
+
+    /**
+     * @param maxBytes, maximum size of the layers
+     */
+    public MasterLayerCache(long maxBytes) {
+        super(maxBytes);
+    }
+
+    /**
+     * @return the cache shared by all the calls, created with the size set in the configuration
+     */
+    public static synchronized MasterLayerCache getShared() {
+
+        if (shared == null) {
+            shared = new MasterLayerCache(getConfiguredMaxBytes());
+        }
+        return shared;
+    }
+
+    /**
+     * @return the size set in the configuration, in bytes
+     */
+    public static long getConfiguredMaxBytes() {
+        return NumberUtils.toLong(Framework.getProperty(MAX_SIZE_PROPERTY), DEFAULT_MAX_SIZE_MB) * 1024 * 1024;
+    }
+
+    // ============================================================
+    // KEY
+    // ============================================================
+    /**
+     * A layout (its content), drawn at a given size and quality
+     */
+    public static class Key {
+
+        protected final String digest;
+
+        protected final boolean masterShapes;
+
+        protected final int width;
+
+        protected final int height;
+
+        protected final float scale;
+
+        protected final RenderingQuality quality;
+
+        protected final boolean cachedPictures;
+
+        /**
+         * @param digest, of the layout content, see {@link MasterLayerRenderer#getDigest}
+         * @param masterShapes, <code>true</code> if the shapes of the master and layout are drawn (else, only the
+         *            background)
+         * @param width, of the image
+         * @param height
+         * @param scale, applied to the slide
+         * @param quality
+         * @param cachedPictures, <code>true</code> if the pictures are drawn by a {@link CachingImageRenderer}
+         */
+        public Key(String digest, boolean masterShapes, int width, int height, float scale,
+                RenderingQuality quality, boolean cachedPictures) {
+            this.digest = digest;
+            this.masterShapes = masterShapes;
+            this.width = width;
+            this.height = height;
+            this.scale = scale;
+            this.quality = quality;
+            this.cachedPictures = cachedPictures;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return digest.equals(other.digest) && masterShapes == other.masterShapes && width == other.width
+                    && height == other.height && Float.compare(scale, other.scale) == 0 && quality == other.quality
+                    && cachedPictures == other.cachedPictures;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(digest, masterShapes, width, height, scale, quality, cachedPictures);
+        }
+    }
+}
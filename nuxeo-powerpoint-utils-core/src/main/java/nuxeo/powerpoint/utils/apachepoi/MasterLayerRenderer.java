@@ -0,0 +1,266 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.poi.ooxml.POIXMLDocumentPart;
+import org.apache.poi.ooxml.POIXMLDocumentPart.RelationPart;
+import org.apache.poi.sl.draw.DrawFactory;
+import org.apache.poi.sl.draw.DrawSlide;
+import org.apache.poi.sl.draw.Drawable;
+import org.apache.poi.sl.usermodel.Shape;
+import org.apache.poi.xslf.usermodel.XSLFPictureData;
+import org.apache.poi.xslf.usermodel.XSLFShape;
+import org.apache.poi.xslf.usermodel.XSLFSheet;
+import org.apache.poi.xslf.usermodel.XSLFSimpleShape;
+import org.apache.poi.xslf.usermodel.XSLFSlide;
+import org.apache.poi.xslf.usermodel.XSLFSlideLayout;
+import org.apache.poi.xslf.usermodel.XSLFTheme;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * Draws a slide in two layers: the master layer (the background, and the shapes of the slide master and of the
+ * layout), taken from a {@link MasterLayerCache}, then the shapes of the slide. Drawing the master layer again for
+ * each slide is most of the work for slides with little content on a rich template (pictures, gradients, shadows,
+ * ...): with the cache, it is a copy of the pixels.
+ * <p>
+ * The layer is drawn exactly as POI would draw it (same <code>Graphics2D</code> state, same hints), in a raster of
+ * the size of the image, so the result is the same pixels. The slide is drawn by POI as usual (no cache) when:
+ * <ul>
+ * <li>It has its own background</li>
+ * <li>The master or the layout has a shape depending on the slide or on the time (slide number and date fields,
+ * displayed placeholders)</li>
+ * </ul>
+ * Not thread safe: use one instance per thread (see {@link ThumbnailRenderContext}). The cache itself can be shared.
+ *
+ * @since 2023.2
+ */
+public class MasterLayerRenderer {
+
+    protected static final String FIELD_PATH = "declare namespace a='"
+            + "http://schemas.openxmlformats.org/drawingml/2006/main' .//a:fld";
+
+    // Same as DrawSheet
+    protected static final Color TRANSPARENT_WHITE = new Color(1f, 1f, 1f, 0f);
+
+    // In the digests map, for the layouts that can't be cached
+    protected static final String NOT_CACHEABLE = "";
+
+    protected final MasterLayerCache cache;
+
+    // The digest is computed once per layout. Weak keys: forgotten with the deck
+    protected final Map<XSLFSlideLayout, String> digests = new WeakHashMap<>();
+
+    public MasterLayerRenderer(MasterLayerCache cache) {
+        this.cache = cache;
+    }
+
+    public MasterLayerCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Draws the slide in image, using the cached master layer when possible
+     *
+     * @param slide
+     * @param image, <code>TYPE_INT_RGB</code>, black
+     * @param graphics, of image, with the hints set and scaled
+     * @param scale, applied to graphics
+     * @param quality, the hints set on graphics
+     */
+    public void draw(XSLFSlide slide, BufferedImage image, Graphics2D graphics, float scale,
+            RenderingQuality quality) {
+
+        String digest = isCacheable(slide) ? getDigest(slide.getSlideLayout()) : NOT_CACHEABLE;
+        if (NOT_CACHEABLE.equals(digest)) {
+            slide.draw(graphics);
+            return;
+        }
+
+        boolean cachedPictures = graphics.getRenderingHint(Drawable.IMAGE_RENDERER) instanceof CachingImageRenderer;
+        MasterLayerCache.Key key = new MasterLayerCache.Key(digest, slide.getFollowMasterGraphics(), image.getWidth(),
+                image.getHeight(), scale, quality, cachedPictures);
+        BufferedImage layer = cache.get(key);
+        if (layer == null) {
+            layer = drawMasterLayer(slide, image, graphics);
+            cache.put(key, layer);
+        }
+        image.getRaster().setDataElements(0, 0, layer.getRaster());
+
+        new SlideShapesDrawer(slide).draw(graphics);
+    }
+
+    /*
+     * No own background, and nothing in the master layer depending on the slide
+     */
+    protected boolean isCacheable(XSLFSlide slide) {
+
+        if (slide.getXmlObject().getCSld().getBg() != null) {
+            return false;
+        }
+        if (!slide.getFollowMasterGraphics()) {
+            return true;
+        }
+        XSLFSlideLayout layout = slide.getSlideLayout();
+        List<XSLFShape> shapes = new ArrayList<>(layout.getShapes());
+        if (layout.getFollowMasterGraphics()) {
+            shapes.addAll(layout.getSlideMaster().getShapes());
+        }
+        for (XSLFShape shape : shapes) {
+            if (isPlaceholder(shape) && slide.getDisplayPlaceholder((XSLFSimpleShape) shape)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * The master layer, drawn in a new raster with the same state as graphics
+     */
+    protected BufferedImage drawMasterLayer(XSLFSlide slide, BufferedImage image, Graphics2D graphics) {
+
+        BufferedImage layer = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = layer.createGraphics();
+        try {
+            g.setRenderingHints(graphics.getRenderingHints());
+            g.setTransform(graphics.getTransform());
+            new MasterLayerDrawer(slide).draw(g);
+        } finally {
+            g.dispose();
+        }
+        return layer;
+    }
+
+    /**
+     * The digest of what is drawn in the master layer: the XML of the layout and of its master, their theme and
+     * pictures, and the page size. {@link #NOT_CACHEABLE} if a shape of the layout or of the master has a field
+     * (slide number, date, ...).
+     *
+     * @param layout
+     * @return the digest, Base64
+     */
+    protected String getDigest(XSLFSlideLayout layout) {
+        return digests.computeIfAbsent(layout, this::computeDigest);
+    }
+
+    protected String computeDigest(XSLFSlideLayout layout) {
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new NuxeoException(e);
+        }
+        Dimension pageSize = layout.getSlideShow().getPageSize();
+        update(digest, pageSize.width + "x" + pageSize.height);
+
+        for (XSLFSheet sheet : new XSLFSheet[] { layout, layout.getSlideMaster() }) {
+            for (XSLFShape shape : sheet.getShapes()) {
+                if (!isPlaceholder(shape) && shape.getXmlObject().selectPath(FIELD_PATH).length > 0) {
+                    return NOT_CACHEABLE;
+                }
+            }
+            update(digest, sheet.getXmlObject().xmlText());
+            for (RelationPart rel : sheet.getRelationParts()) {
+                POIXMLDocumentPart part = rel.getDocumentPart();
+                if (part instanceof XSLFPictureData) {
+                    update(digest, rel.getRelationship().getId());
+                    digest.update(((XSLFPictureData) part).getChecksum());
+                } else if (part instanceof XSLFTheme) {
+                    update(digest, rel.getRelationship().getId());
+                    update(digest, ((XSLFTheme) part).getXmlObject().xmlText());
+                }
+            }
+        }
+
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    protected static boolean isPlaceholder(XSLFShape shape) {
+        return shape instanceof XSLFSimpleShape && ((XSLFSimpleShape) shape).getPlaceholder() != null;
+    }
+
+    protected static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    // ============================================================
+    // DRAWERS
+    // ============================================================
+    /*
+     * Same as DrawSlide, without the shapes of the slide
+     */
+    protected static class MasterLayerDrawer extends DrawSlide {
+
+        protected MasterLayerDrawer(XSLFSlide slide) {
+            super(slide);
+        }
+
+        @Override
+        protected boolean canDraw(Graphics2D graphics, Shape<?, ?> shape) {
+            return false;
+        }
+    }
+
+    /*
+     * Same as DrawSlide, only the shapes of the slide (the background and the master are in the layer)
+     */
+    protected static class SlideShapesDrawer extends DrawSlide {
+
+        protected SlideShapesDrawer(XSLFSlide slide) {
+            super(slide);
+        }
+
+        @Override
+        public void draw(Graphics2D graphics) {
+
+            graphics.setRenderingHint(Drawable.CURRENT_SLIDE, sheet);
+            // State left by DrawSheet before drawing the master
+            graphics.setColor(TRANSPARENT_WHITE);
+
+            DrawFactory drawFact = DrawFactory.getInstance(graphics);
+            graphics.setRenderingHint(Drawable.GROUP_TRANSFORM, new AffineTransform());
+            for (Shape<?, ?> shape : sheet.getShapes()) {
+                AffineTransform at = graphics.getTransform();
+                graphics.setRenderingHint(Drawable.GSAVE, true);
+                Drawable drawer = drawFact.getDrawable(shape);
+                drawer.applyTransform(graphics);
+                drawer.draw(graphics);
+                graphics.setTransform(at);
+                graphics.setRenderingHint(Drawable.GRESTORE, true);
+            }
+
+            graphics.setRenderingHint(Drawable.CURRENT_SLIDE, null);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+/**
+ * Writes an OOXML package (a zip) part by part. Parts that did not change are copied from the source package as
+ * their raw, still compressed, bytes: no inflate/deflate, no CRC computation. Only the parts passed to
+ * {@link #writePart(String, PartContent)} are encoded.
+ * <p>
+ * Media (pictures, videos, embedded documents) are usually most of a presentation and are never modified by this
+ * plugin, so copying them raw saves most of the CPU spent in writing a package.
+ * <p>
+ * Writing <code>[Content_Types].xml</code> and keeping the package consistent is the responsibility of the caller.
+ * The writer does not close the underlying stream, but must be closed to release its deflater (native memory).
+ *
+ * @since 2023.2
+ */
+public class PackageWriter implements Closeable {
+
+    /**
+     * Writes the content of a part
+     */
+    @FunctionalInterface
+    public interface PartContent {
+        void write(OutputStream out) throws IOException;
+    }
+
+    protected final ZipArchiveOutputStream zos;
+
+    public PackageWriter(OutputStream out) {
+        zos = new ZipArchiveOutputStream(CloseShieldOutputStream.wrap(out));
+    }
+
+    /**
+     * Copies the entry as is, still compressed, from <code>source</code>
+     *
+     * @param source
+     * @param entry, an entry of <code>source</code>
+     * @throws IOException
+     */
+    public void copyRaw(ZipFile source, ZipArchiveEntry entry) throws IOException {
+
+        try (InputStream in = source.getRawInputStream(entry)) {
+            zos.addRawArchiveEntry(entry, in);
+        }
+    }
+
+    /**
+     * Adds a new part, deflated.
+     *
+     * @param partName, the part name, with or without the leading "/"
+     * @param content
+     * @throws IOException
+     */
+    public void writePart(String partName, PartContent content) throws IOException {
+
+        String entryName = partName.startsWith("/") ? partName.substring(1) : partName;
+        zos.putArchiveEntry(new ZipArchiveEntry(entryName));
+        content.write(zos);
+        zos.closeArchiveEntry();
+    }
+
+    /**
+     * Writes the central directory. Must be called once all the parts are written. Does not close the underlying
+     * stream.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        zos.finish();
+    }
+
+    /**
+     * Releases the deflater, writing the central directory first if {@link #finish()} was not called. Does not close
+     * the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        zos.close();
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.poi.openxml4j.util.ZipSecureFile;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import nuxeo.powerpoint.utils.apachepoi.PresentationPackage.SlideRef;
+
+/**
+ * What is read from a presentation and can be reused by the next calls on the same presentation (same bytes): the
+ * index of the package (see {@link PresentationPackage}), the properties (see {@link PresentationPropertiesReader}),
+ * the hidden slides and the cost estimate (see {@link DeckEstimate}). Each of them is read the first time it is
+ * needed, then kept. See {@link DeckCache}.
+ * <p>
+ * Everything kept is immutable: a deck can be used by several calls at the same time. The file is never kept, each
+ * method is passed the copy of the presentation of the call.
+ * <p>
+ * Thread safe.
+ *
+ * @since 2023.2
+ */
+public class ParsedDeck {
+
+    // Rough sizes in the heap, see getWeight()
+    protected static final int ENTRY_WEIGHT = 256;
+
+    protected static final int RELATIONSHIP_WEIGHT = 192;
+
+    protected static final int SLIDE_WEIGHT = 64;
+
+    protected static final int ESTIMATE_WEIGHT = 128;
+
+    // The cache this deck is in, or null
+    protected final DeckCache cache;
+
+    protected PresentationPackage pkg;
+
+    // JSON
+    protected String properties;
+
+    // Zero-based, sorted
+    protected Set<Integer> hiddenSlides;
+
+    protected DeckEstimate estimate;
+
+    protected volatile long weight;
+
+    /**
+     * A deck not in a cache, for one call
+     */
+    public ParsedDeck() {
+        this(null);
+    }
+
+    /**
+     * @param cache, the cache the deck is in, updated with its weight when something is read. Can be null
+     */
+    public ParsedDeck(DeckCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @param zip, the presentation
+     * @return the index of the package, to use with <code>zip</code>
+     * @throws IOException
+     */
+    public PresentationPackage getPackage(ZipFile zip) throws IOException {
+
+        synchronized (this) {
+            if (pkg != null) {
+                return pkg.forZip(zip);
+            }
+            pkg = PresentationPackage.read(zip);
+            updateWeight();
+        }
+        trimCache();
+        return pkg;
+    }
+
+    /**
+     * @param file, the presentation
+     * @return the properties, see {@link nuxeo.powerpoint.utils.api.PowerPointUtils#getProperties}. A new object for
+     *         each call
+     * @throws IOException
+     * @throws JSONException
+     */
+    public JSONObject getProperties(File file) throws IOException, JSONException {
+
+        synchronized (this) {
+            if (properties != null) {
+                return new JSONObject(properties);
+            }
+            try (PresentationPropertiesReader reader = new PresentationPropertiesReader(file)) {
+                properties = reader.getProperties().toString();
+            }
+            updateWeight();
+        }
+        trimCache();
+        return new JSONObject(properties);
+    }
+
+    /**
+     * @param file, the presentation
+     * @return the number of slides
+     * @throws IOException
+     */
+    public int getSlidesCount(File file) throws IOException {
+
+        try (ZipFile zip = new ZipSecureFile(file)) {
+            return getPackage(zip).getSlidesCount();
+        }
+    }
+
+    /**
+     * @param file, the presentation
+     * @param onlyVisible, if true, the hidden slides are not returned
+     * @return the zero-based numbers of the slides, in the presentation order
+     * @throws IOException
+     */
+    public List<Integer> getSlideNumbers(File file, boolean onlyVisible) throws IOException {
+
+        Set<Integer> hidden = Collections.emptySet();
+        int count;
+        try (ZipFile zip = new ZipSecureFile(file)) {
+            PresentationPackage zipPkg = getPackage(zip);
+            count = zipPkg.getSlidesCount();
+            if (onlyVisible) {
+                hidden = getHiddenSlides(zip, zipPkg);
+            }
+        }
+
+        List<Integer> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (!hidden.contains(i)) {
+                result.add(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param file, the presentation
+     * @return the cost estimate of the whole presentation
+     * @throws IOException
+     * @since 2023.2
+     */
+    public DeckEstimate getEstimate(File file) throws IOException {
+
+        synchronized (this) {
+            if (estimate != null) {
+                return estimate;
+            }
+        }
+        // Not while holding the lock: getPackage() trims the cache
+        DeckEstimate read;
+        try (ZipFile zip = new ZipSecureFile(file)) {
+            PresentationPackage zipPkg = getPackage(zip);
+            read = DeckEstimate.read(zip, zipPkg, zipPkg.getPartNames(), zipPkg.getSlidesCount());
+        }
+        synchronized (this) {
+            if (estimate == null) {
+                estimate = read;
+                updateWeight();
+            }
+            read = estimate;
+        }
+        trimCache();
+        return read;
+    }
+
+    /**
+     * The estimate of a presentation containing only the slide (see {@link SlidesExtractor}). Not kept.
+     *
+     * @param file, the presentation
+     * @param slideNumber, zero-based
+     * @return the cost estimate of the slide, with its layout, master, media, ...
+     * @throws IOException
+     * @since 2023.2
+     */
+    public DeckEstimate getEstimate(File file, int slideNumber) throws IOException {
+
+        try (ZipFile zip = new ZipSecureFile(file)) {
+            PresentationPackage zipPkg = getPackage(zip);
+            if (slideNumber < 0 || slideNumber >= zipPkg.getSlidesCount()) {
+                throw new NuxeoException("Invalid slide number: " + slideNumber);
+            }
+            String partName = zipPkg.getSlides().get(slideNumber).getPartName();
+            return DeckEstimate.read(zip, zipPkg, zipPkg.getPartsForSlide(partName), 1);
+        }
+    }
+
+    /**
+     * @return an estimation of the size in the heap of what the deck keeps, in bytes
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    /*
+     * As POI (XSLFSlide#isHidden): the show attribute of the slide. Only the start of each slide is read
+     */
+    protected Set<Integer> getHiddenSlides(ZipFile zip, PresentationPackage zipPkg) throws IOException {
+
+        synchronized (this) {
+            if (hiddenSlides != null) {
+                return hiddenSlides;
+            }
+            Set<Integer> hidden = new TreeSet<>();
+            List<SlideRef> slides = zipPkg.getSlides();
+            for (int i = 0; i < slides.size(); i++) {
+                if (isHidden(zip, zipPkg.getEntry(slides.get(i).getPartName()))) {
+                    hidden.add(i);
+                }
+            }
+            hiddenSlides = Collections.unmodifiableSet(hidden);
+            updateWeight();
+        }
+        trimCache();
+        return hiddenSlides;
+    }
+
+    protected static boolean isHidden(ZipFile zip, ZipArchiveEntry entry) throws IOException {
+
+        if (entry == null) {
+            return false;
+        }
+        try (InputStream in = zip.getInputStream(entry)) {
+            XMLStreamReader reader = PresentationPropertiesReader.XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                if (!PresentationPropertiesReader.nextElement(reader)) {
+                    return false;
+                }
+                String show = reader.getAttributeValue(null, "show");
+                return show != null && ("false".equals(show.trim()) || "0".equals(show.trim()));
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid XML in " + entry.getName(), e);
+        }
+    }
+
+    protected synchronized void updateWeight() {
+
+        long w = 0;
+        if (pkg != null) {
+            for (String partName : pkg.getPartNames()) {
+                w += ENTRY_WEIGHT + RELATIONSHIP_WEIGHT * pkg.getRelationships(partName).size();
+            }
+            w += RELATIONSHIP_WEIGHT * pkg.getRelationships(PresentationPackage.PACKAGE_ROOT).size();
+            w += SLIDE_WEIGHT * pkg.getSlidesCount();
+        }
+        if (properties != null) {
+            w += 2L * properties.length();
+        }
+        if (hiddenSlides != null) {
+            w += 48L * hiddenSlides.size();
+        }
+        if (estimate != null) {
+            w += ESTIMATE_WEIGHT;
+        }
+        weight = w;
+    }
+
+    /*
+     * Not while holding the lock of the deck: the cache reads the weight of its decks
+     */
+    protected void trimCache() {
+
+        if (cache != null) {
+            cache.trim();
+        }
+    }
+}
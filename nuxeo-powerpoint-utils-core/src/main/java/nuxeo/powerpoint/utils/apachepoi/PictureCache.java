@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Decoded pictures, ready to be drawn (see {@link CachingImageRenderer}). The same logo, background or icon is
+ * usually on every slide of a deck, and POI decodes it again for each slide. With the cache, it is decoded (and
+ * scaled to the size it is displayed at) once.
+ * <p>
+ * Pictures are identified by their content (CRC32 and length of the bytes), so the same picture is found whatever
+ * the slide, the deck or the part name. The cache is bounded by the size of the decoded images, see
+ * {@link ImageCache}.
+ * <p>
+ * By default, a cache is created for each call (one deck), and forgotten after. It can be shared by all the calls
+ * (see {@link Scope}), which is useful when the decks use the same corporate template.
+ * <p>
+ * Thread safe.
+ *
+ * @since 2023.2
+ */
+public class PictureCache extends ImageCache<PictureCache.Key> {
+
+    /**
+     * Configuration property, {@link Scope} of the cache: "deck" (default), "shared" or "none"
+     */
+    public static final String SCOPE_PROPERTY = "nuxeo.powerpoint.pictureCache.scope";
+
+    /**
+     * Configuration property, maximum size of the cache, in MB. Default is {@link #DEFAULT_MAX_SIZE_MB}
+     */
+    public static final String MAX_SIZE_PROPERTY = "nuxeo.powerpoint.pictureCache.maxSizeMB";
+
+    public static final int DEFAULT_MAX_SIZE_MB = 64;
+
+    protected static PictureCache shared;
+
+    /**
+     * @param maxBytes, maximum size of the decoded images
+     */
+    public PictureCache(long maxBytes) {
+        super(maxBytes);
+    }
+
+    /**
+     * @return the cache shared by all the calls, created with the size set in the configuration
+     */
+    public static synchronized PictureCache getShared() {
+
+        if (shared == null) {
+            shared = new PictureCache(getConfiguredMaxBytes());
+        }
+        return shared;
+    }
+
+    /**
+     * @return the size set in the configuration, in bytes
+     */
+    public static long getConfiguredMaxBytes() {
+        return NumberUtils.toLong(Framework.getProperty(MAX_SIZE_PROPERTY), DEFAULT_MAX_SIZE_MB) * 1024 * 1024;
+    }
+
+    // ============================================================
+    // KEY
+    // ============================================================
+    /**
+     * A picture (its content), at a given size and quality
+     */
+    public static class Key {
+
+        protected final long checksum;
+
+        protected final int length;
+
+        protected final int width;
+
+        protected final int height;
+
+        protected final RenderingQuality quality;
+
+        /**
+         * @param data, the bytes of the picture
+         * @param width, the size the picture is decoded at, or 0 for its own size
+         * @param height
+         * @param quality
+         */
+        public Key(byte[] data, int width, int height, RenderingQuality quality) {
+
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            checksum = crc.getValue();
+            length = data.length;
+            this.width = width;
+            this.height = height;
+            this.quality = quality;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return checksum == other.checksum && length == other.length && width == other.width
+                    && height == other.height && quality == other.quality;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(checksum, length, width, height, quality);
+        }
+    }
+}
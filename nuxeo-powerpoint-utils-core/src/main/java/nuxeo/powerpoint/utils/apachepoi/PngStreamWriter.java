@@ -0,0 +1,358 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * Writes a PNG (8 bits RGB, no alpha) row by row, so an image can be encoded while it is drawn band by band: the
+ * whole raster never has to be in memory, nor the encoded image. Only the previous row (for the filters) and a
+ * deflater are kept.
+ * <p>
+ * By default, rows are filtered with the usual heuristic (for each row, the filter giving the minimum sum of absolute
+ * differences), see the PNG specification. A single filter can be forced instead, see {@link Filter}.
+ * <p>
+ * When a {@link ColorQuantizer} is passed, the PNG is an 8 bits indexed-color image (one byte/pixel instead of 3),
+ * each pixel being replaced by the index of its color in the palette.
+ *
+ * @since 2023.2
+ */
+public class PngStreamWriter {
+
+    protected static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+    protected static final int IDAT_SIZE = 64 * 1024;
+
+    /**
+     * Filter applied to the rows. The ordinal of NONE...PAETH is the PNG filter type.
+     *
+     * @since 2023.2
+     */
+    public enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH,
+        /** The filter giving the minimum sum of absolute differences, row by row */
+        ADAPTIVE
+    }
+
+    protected final DataOutputStream out;
+
+    protected final int width;
+
+    protected final int height;
+
+    protected final Deflater deflater;
+
+    protected final DeflaterOutputStream idat;
+
+    protected final Filter filter;
+
+    // null for RGB
+    protected final ColorQuantizer quantizer;
+
+    // Bytes/pixel: 3 for RGB, 1 for indexed
+    protected final int bpp;
+
+    protected int rowsWritten = 0;
+
+    // Current and previous rows, unfiltered. One byte/sample
+    protected byte[] row;
+
+    protected byte[] previousRow;
+
+    // One buffer/filter type, each starting with the filter type byte
+    protected final byte[][] filtered = new byte[5][];
+
+    /**
+     * Writes the PNG header. Caller must then write exactly <code>height</code> rows, then call {@link #finish()}
+     *
+     * @param out, not closed by the writer
+     * @param width
+     * @param height
+     * @param compressionLevel, 0-9, or -1 for the default level
+     * @throws IOException
+     */
+    public PngStreamWriter(OutputStream out, int width, int height, int compressionLevel) throws IOException {
+        this(out, width, height, compressionLevel, Filter.ADAPTIVE, null);
+    }
+
+    /**
+     * Writes the PNG header. Caller must then write exactly <code>height</code> rows, then call {@link #finish()}
+     *
+     * @param out, not closed by the writer
+     * @param width
+     * @param height
+     * @param compressionLevel, 0-9, or -1 for the default level
+     * @param filter
+     * @param quantizer, to write an indexed-color PNG. <code>null</code> for RGB
+     * @throws IOException
+     * @since 2023.2
+     */
+    public PngStreamWriter(OutputStream out, int width, int height, int compressionLevel, Filter filter,
+            ColorQuantizer quantizer) throws IOException {
+
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.filter = filter == null ? Filter.ADAPTIVE : filter;
+        this.quantizer = quantizer;
+        bpp = quantizer == null ? 3 : 1;
+
+        int rowSize = width * bpp;
+        row = new byte[rowSize];
+        previousRow = new byte[rowSize];
+        for (int i = 0; i < filtered.length; i++) {
+            filtered[i] = new byte[rowSize + 1];
+            filtered[i][0] = (byte) i;
+        }
+
+        this.out.write(SIGNATURE);
+
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+        DataOutputStream data = new DataOutputStream(ihdr);
+        data.writeInt(width);
+        data.writeInt(height);
+        data.writeByte(8); // Bit depth
+        data.writeByte(quantizer == null ? 2 : 3); // Color type: RGB or indexed
+        data.writeByte(0); // Compression: deflate
+        data.writeByte(0); // Filter method: adaptive
+        data.writeByte(0); // No interlace
+        writeChunk("IHDR", ihdr.toByteArray(), ihdr.size());
+
+        if (quantizer != null) {
+            int[] palette = quantizer.getPalette();
+            byte[] plte = new byte[palette.length * 3];
+            for (int i = 0, j = 0; i < palette.length; i++) {
+                plte[j++] = (byte) (palette[i] >> 16);
+                plte[j++] = (byte) (palette[i] >> 8);
+                plte[j++] = (byte) palette[i];
+            }
+            writeChunk("PLTE", plte, plte.length);
+        }
+
+        deflater = new Deflater(compressionLevel);
+        idat = new DeflaterOutputStream(new IdatOutputStream(), deflater, IDAT_SIZE);
+    }
+
+    /**
+     * Writes the <code>rows</code> first rows of the image (<code>TYPE_INT_RGB</code>, same width as the PNG).
+     *
+     * @param image
+     * @param rows
+     * @throws IOException
+     */
+    public void writeRows(BufferedImage image, int rows) throws IOException {
+
+        if (rowsWritten + rows > height) {
+            throw new NuxeoException("Too many rows: " + (rowsWritten + rows) + ", height is " + height);
+        }
+
+        int[] pixels = new int[width];
+        // No color conversion for an INT_RGB raster, which is what we draw in
+        boolean intRgb = image.getType() == BufferedImage.TYPE_INT_RGB;
+        for (int y = 0; y < rows; y++) {
+            if (intRgb) {
+                image.getRaster().getDataElements(0, y, width, 1, pixels);
+            } else {
+                image.getRGB(0, y, width, 1, pixels, 0, width);
+            }
+            if (quantizer == null) {
+                for (int x = 0, i = 0; x < width; x++) {
+                    int rgb = pixels[x];
+                    row[i++] = (byte) (rgb >> 16);
+                    row[i++] = (byte) (rgb >> 8);
+                    row[i++] = (byte) rgb;
+                }
+            } else {
+                for (int x = 0; x < width; x++) {
+                    row[x] = (byte) quantizer.getIndex(pixels[x]);
+                }
+            }
+            byte[] best = filterRow();
+            idat.write(best, 0, best.length);
+
+            byte[] tmp = previousRow;
+            previousRow = row;
+            row = tmp;
+            rowsWritten += 1;
+        }
+    }
+
+    /**
+     * Writes the remaining image data and the end of the PNG. Does not close the underlying stream.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+
+        if (rowsWritten != height) {
+            throw new NuxeoException("Missing rows: " + rowsWritten + " written, height is " + height);
+        }
+        try {
+            idat.finish();
+        } finally {
+            deflater.end();
+        }
+        writeChunk("IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    // ============================================================
+    // FILTERS AND CHUNKS
+    // ============================================================
+    /*
+     * Returns the filtered row: with the minimum sum of absolute differences when ADAPTIVE, else with the filter
+     */
+    protected byte[] filterRow() {
+
+        if (filter != Filter.ADAPTIVE) {
+            return filterRow(filter.ordinal());
+        }
+
+        int length = row.length;
+        byte[] none = filtered[0];
+        byte[] sub = filtered[1];
+        byte[] up = filtered[2];
+        byte[] average = filtered[3];
+        byte[] paeth = filtered[4];
+        long[] sums = new long[5];
+
+        for (int i = 0; i < length; i++) {
+            int x = row[i] & 0xff;
+            int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+            int b = previousRow[i] & 0xff;
+            int c = i >= bpp ? previousRow[i - bpp] & 0xff : 0;
+
+            byte vNone = (byte) x;
+            byte vSub = (byte) (x - a);
+            byte vUp = (byte) (x - b);
+            byte vAverage = (byte) (x - ((a + b) >> 1));
+            byte vPaeth = (byte) (x - paethPredictor(a, b, c));
+
+            none[i + 1] = vNone;
+            sub[i + 1] = vSub;
+            up[i + 1] = vUp;
+            average[i + 1] = vAverage;
+            paeth[i + 1] = vPaeth;
+
+            // Bytes are seen as signed values for the heuristic
+            sums[0] += Math.abs(vNone);
+            sums[1] += Math.abs(vSub);
+            sums[2] += Math.abs(vUp);
+            sums[3] += Math.abs(vAverage);
+            sums[4] += Math.abs(vPaeth);
+        }
+
+        int best = 0;
+        for (int i = 1; i < sums.length; i++) {
+            if (sums[i] < sums[best]) {
+                best = i;
+            }
+        }
+        return filtered[best];
+    }
+
+    protected byte[] filterRow(int type) {
+
+        byte[] result = filtered[type];
+        for (int i = 0; i < row.length; i++) {
+            int x = row[i] & 0xff;
+            int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+            int b = previousRow[i] & 0xff;
+            int c = i >= bpp ? previousRow[i - bpp] & 0xff : 0;
+            switch (type) {
+            case 1:
+                result[i + 1] = (byte) (x - a);
+                break;
+            case 2:
+                result[i + 1] = (byte) (x - b);
+                break;
+            case 3:
+                result[i + 1] = (byte) (x - ((a + b) >> 1));
+                break;
+            case 4:
+                result[i + 1] = (byte) (x - paethPredictor(a, b, c));
+                break;
+            default:
+                result[i + 1] = (byte) x;
+            }
+        }
+        return result;
+    }
+
+    protected static int paethPredictor(int a, int b, int c) {
+
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    protected void writeChunk(String type, byte[] data, int length) throws IOException {
+
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /*
+     * Receives the deflated data and writes it as IDAT chunks
+     */
+    protected class IdatOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+
+            if (len == 0) {
+                return;
+            }
+            if (off == 0) {
+                writeChunk("IDAT", b, len);
+            } else {
+                byte[] data = new byte[len];
+                System.arraycopy(b, off, data, 0, len);
+                writeChunk("IDAT", data, len);
+            }
+        }
+    }
+}
@@ -19,26 +19,45 @@
 package nuxeo.powerpoint.utils.apachepoi;
 
 import java.awt.Dimension;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import javax.xml.namespace.QName;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.poi.ooxml.POIXMLProperties;
-import org.apache.poi.ooxml.POIXMLProperties.CoreProperties;
-import org.apache.poi.ooxml.POIXMLProperties.ExtendedProperties;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.poi.ooxml.POIXMLTypeLoader;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.util.ZipSecureFile;
 import org.apache.poi.sl.usermodel.PaintStyle;
 import org.apache.poi.sl.usermodel.TextParagraph.FontAlign;
 import org.apache.poi.sl.usermodel.TextParagraph.TextAlign;
@@ -50,8 +69,7 @@ import org.apache.poi.xslf.usermodel.XSLFSlideMaster;
 import org.apache.poi.xslf.usermodel.XSLFTextParagraph;
 import org.apache.poi.xslf.usermodel.XSLFTextRun;
 import org.apache.poi.xslf.usermodel.XSLFTextShape;
-import org.apache.poi.xslf.usermodel.XSLFTheme;
-import org.json.JSONArray;
+import org.apache.xmlbeans.XmlOptions;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.nuxeo.ecm.automation.OperationContext;
@@ -60,139 +78,418 @@ import org.nuxeo.ecm.automation.core.rendering.RenderingService;
 import org.nuxeo.ecm.automation.core.util.BlobList;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CloseableFile;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.platform.rendering.api.RenderingException;
-import org.openxmlformats.schemas.presentationml.x2006.main.CTEmbeddedFontList;
-import org.openxmlformats.schemas.presentationml.x2006.main.CTEmbeddedFontListEntry;
+import org.nuxeo.runtime.api.Framework;
 
 import freemarker.template.TemplateException;
+import nuxeo.powerpoint.utils.apachepoi.RequestCoalescer.SharedResult;
 import nuxeo.powerpoint.utils.api.PowerPointUtils;
+import nuxeo.powerpoint.utils.service.AdmissionController;
+import nuxeo.powerpoint.utils.service.AdmissionController.Checkpoint;
 
 /**
  * @since 10.10
  */
 public class PowerPointUtilsWithApachePOI implements PowerPointUtils {
 
+    /**
+     * Configuration property: number of threads rendering the slides in
+     * {@link #getThumbnails(Blob, int, String, boolean)}. Default is 1, the slides are rendered on the calling thread.
+     *
+     * @since 2023.2
+     */
+    public static final String THUMBNAILS_WORKERS_PROPERTY = "nuxeo.powerpoint.thumbnails.workers";
+
+    /**
+     * Configuration property: height, in pixels, of the bands used by
+     * {@link #exportSlide(Blob, int, int, String)} to render big PNG images. Default is
+     * {@link #DEFAULT_EXPORT_BAND_HEIGHT}.
+     *
+     * @since 2023.2
+     */
+    public static final String EXPORT_BAND_HEIGHT_PROPERTY = "nuxeo.powerpoint.export.bandHeight";
+
+    /**
+     * @since 2023.2
+     */
+    public static final int DEFAULT_EXPORT_BAND_HEIGHT = 512;
+
+    /**
+     * Configuration property: default {@link RenderingQuality} of the thumbnails and exports, "draft", "standard" or
+     * "high". Default is "high".
+     *
+     * @since 2023.2
+     */
+    public static final String RENDERING_QUALITY_PROPERTY = "nuxeo.powerpoint.rendering.quality";
+
+    /**
+     * Configuration property: time budget, in milliseconds, to draw one slide (thumbnails and exports). A slide not
+     * drawn in time is replaced by a placeholder, see {@link #getTimedOutSlides()}. Default is 0, no limit.
+     *
+     * @since 2023.2
+     */
+    public static final String SLIDE_TIMEOUT_PROPERTY = "nuxeo.powerpoint.rendering.slideTimeoutMs";
+
+    /**
+     * Configuration property: time budget, in milliseconds, to draw all the slides of a call (thumbnails and exports).
+     * Once spent, the slides not drawn yet are replaced by placeholders, see {@link #getTimedOutSlides()}. Default is
+     * 0, no limit.
+     *
+     * @since 2023.2
+     */
+    public static final String REQUEST_TIMEOUT_PROPERTY = "nuxeo.powerpoint.rendering.requestTimeoutMs";
+
+    protected int thumbnailsWorkers;
+
+    protected int exportBandHeight;
+
+    protected RenderingQuality renderingQuality;
+
+    protected ThumbnailEncoder encoder;
+
+    protected PictureCache.Scope pictureCacheScope;
+
+    protected MasterLayerCache.Scope masterLayerCacheScope;
+
+    protected FontRegistry fontRegistry;
+
+    protected DeckCache deckCache;
+
+    protected ResultCache resultCache;
+
+    protected RequestCoalescer coalescer;
+
+    protected DeckEstimator estimator;
+
+    protected ExecutorService renderingExecutor;
+
+    protected long slideTimeoutMs;
+
+    protected long requestTimeoutMs;
+
+    // System.nanoTime() value of the end of the budget of the current call, 0 for no limit
+    protected long requestDeadline;
+
+    // Zero-based numbers of the slides replaced by a placeholder in the last call. Added by the workers
+    protected final Set<Integer> timedOutSlides = Collections.synchronizedSet(new TreeSet<>());
+
     public PowerPointUtilsWithApachePOI() {
+        this(ResultCache.fromConfiguration());
+    }
+
+    /**
+     * @param resultCache, see {@link #setResultCache(ResultCache)}
+     * @since 2023.2
+     */
+    public PowerPointUtilsWithApachePOI(ResultCache resultCache) {
+
+        thumbnailsWorkers = NumberUtils.toInt(Framework.getProperty(THUMBNAILS_WORKERS_PROPERTY), 1);
+        exportBandHeight = NumberUtils.toInt(Framework.getProperty(EXPORT_BAND_HEIGHT_PROPERTY),
+                DEFAULT_EXPORT_BAND_HEIGHT);
+        renderingQuality = RenderingQuality.fromString(Framework.getProperty(RENDERING_QUALITY_PROPERTY));
+        encoder = ThumbnailEncoder.fromConfiguration();
+        pictureCacheScope = PictureCache.Scope.fromString(Framework.getProperty(PictureCache.SCOPE_PROPERTY));
+        masterLayerCacheScope = MasterLayerCache.Scope.fromString(
+                Framework.getProperty(MasterLayerCache.SCOPE_PROPERTY));
+        fontRegistry = FontRegistry.getShared();
+        deckCache = DeckCache.getShared();
+        this.resultCache = resultCache;
+        coalescer = RequestCoalescer.getShared();
+        estimator = DeckEstimator.getShared();
+        slideTimeoutMs = NumberUtils.toLong(Framework.getProperty(SLIDE_TIMEOUT_PROPERTY), 0);
+        requestTimeoutMs = NumberUtils.toLong(Framework.getProperty(REQUEST_TIMEOUT_PROPERTY), 0);
+    }
+
+    /**
+     * @since 2023.2
+     */
+    public int getThumbnailsWorkers() {
+        return thumbnailsWorkers;
+    }
+
+    /**
+     * Sets the number of threads rendering the slides in {@link #getThumbnails(Blob, int, String, boolean)}. A value
+     * <= 1 renders them on the calling thread.
+     *
+     * @since 2023.2
+     */
+    public void setThumbnailsWorkers(int thumbnailsWorkers) {
+        this.thumbnailsWorkers = thumbnailsWorkers;
+    }
+
+    /**
+     * @since 2023.2
+     */
+    public int getExportBandHeight() {
+        return exportBandHeight;
+    }
+
+    /**
+     * Sets the height, in pixels, of the bands used by {@link #exportSlide(Blob, int, int, String)} to render big PNG
+     * images. The memory used for the raster is width * bandHeight * 4 bytes.
+     *
+     * @since 2023.2
+     */
+    public void setExportBandHeight(int exportBandHeight) {
+        this.exportBandHeight = exportBandHeight;
+    }
+
+    /**
+     * @since 2023.2
+     */
+    public RenderingQuality getRenderingQuality() {
+        return renderingQuality;
+    }
+
+    /**
+     * Sets the quality profile used to draw the slides (thumbnails and exports). <code>null</code> means
+     * {@link RenderingQuality#HIGH}.
+     *
+     * @since 2023.2
+     */
+    public void setRenderingQuality(RenderingQuality renderingQuality) {
+        this.renderingQuality = renderingQuality == null ? RenderingQuality.HIGH : renderingQuality;
+    }
+
+    /**
+     * The encoder of the thumbnails and exports: settings of the JPEG/PNG encoders, and stats (images encoded,
+     * encoding time, bytes written)
+     *
+     * @since 2023.2
+     */
+    public ThumbnailEncoder getEncoder() {
+        return encoder;
+    }
+
+    /**
+     * @since 2023.2
+     */
+    public void setEncoder(ThumbnailEncoder encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * @since 2023.2
+     */
+    public PictureCache.Scope getPictureCacheScope() {
+        return pictureCacheScope;
+    }
+
+    /**
+     * Sets the scope of the cache of the decoded pictures used when rendering thumbnails and exports: one cache per
+     * call (default), one shared by all the calls, or no cache. See {@link PictureCache}.
+     *
+     * @since 2023.2
+     */
+    public void setPictureCacheScope(PictureCache.Scope pictureCacheScope) {
+        this.pictureCacheScope = pictureCacheScope == null ? PictureCache.Scope.DECK : pictureCacheScope;
+    }
+
+    /**
+     * @since 2023.2
+     */
+    public MasterLayerCache.Scope getMasterLayerCacheScope() {
+        return masterLayerCacheScope;
+    }
+
+    /**
+     * Sets the scope of the cache of the master layers (background, shapes of the master and of the layout) used when
+     * rendering thumbnails and exports: one cache per call (default), one shared by all the calls, or no cache. See
+     * {@link MasterLayerCache}.
+     *
+     * @since 2023.2
+     */
+    public void setMasterLayerCacheScope(MasterLayerCache.Scope masterLayerCacheScope) {
+        this.masterLayerCacheScope = masterLayerCacheScope == null ? MasterLayerCache.Scope.DECK
+                : masterLayerCacheScope;
+    }
+
+    /**
+     * @since 2023.2
+     */
+    public FontRegistry getFontRegistry() {
+        return fontRegistry;
+    }
+
+    /**
+     * Sets the registry preparing the fonts of the presentations before rendering them (embedded fonts, theme fonts
+     * substitutions). Default is {@link FontRegistry#getShared()}, <code>null</code> to use the installed fonts only.
+     *
+     * @since 2023.2
+     */
+    public void setFontRegistry(FontRegistry fontRegistry) {
+        this.fontRegistry = fontRegistry;
+    }
+
+    /**
+     * @since 2023.2
+     */
+    public DeckCache getDeckCache() {
+        return deckCache;
+    }
+
+    /**
+     * The presentations read by this engine are looked up in (and added to) the cache, by digest. null disables the
+     * cache (the default when the configured size is 0, see {@link DeckCache#MAX_SIZE_PROPERTY}).
+     *
+     * @since 2023.2
+     */
+    public void setDeckCache(DeckCache deckCache) {
+        this.deckCache = deckCache;
+    }
+
+    /**
+     * @since 2023.2
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * The results of this engine (properties, slides, thumbnails) are looked up in (and added to) the cache, by digest
+     * of the presentation, operation and parameters. null disables the cache (the default, see
+     * {@link ResultCache#ENABLED_PROPERTY}). Results with slides replaced by a placeholder are never cached.
+     *
+     * @since 2023.2
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * @since 2023.2
+     */
+    public RequestCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * The calls of this engine are coalesced with the same calls (same presentation, operation and parameters) running
+     * at the same time, see {@link RequestCoalescer}. Default is {@link RequestCoalescer#getShared()}, null computes
+     * each call.
+     *
+     * @since 2023.2
+     */
+    public void setCoalescer(RequestCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * @since 2023.2
+     */
+    public DeckEstimator getEstimator() {
+        return estimator;
+    }
+
+    /**
+     * The slides of a heavy presentation are rendered by less workers than {@link #setThumbnailsWorkers(int)}, see
+     * {@link DeckEstimator#getWorkers(DeckEstimate, int)}. Default is {@link DeckEstimator#getShared()}, null always
+     * uses the configured workers.
+     *
+     * @since 2023.2
+     */
+    public void setEstimator(DeckEstimator estimator) {
+        this.estimator = estimator;
+    }
+
+    /**
+     * @since 2023.2
+     */
+    public ExecutorService getRenderingExecutor() {
+        return renderingExecutor;
+    }
+
+    /**
+     * The slides rendered by several workers (see {@link #setThumbnailsWorkers(int)}) are rendered in this pool,
+     * shared by the calls (see {@link ApachePOIEngine}), the calling thread being one of the workers. null (the
+     * default) creates a pool for each call.
+     *
+     * @since 2023.2
+     */
+    public void setRenderingExecutor(ExecutorService renderingExecutor) {
+        this.renderingExecutor = renderingExecutor;
+    }
+
+    /**
+     * @since 2023.2
+     */
+    public long getSlideTimeoutMs() {
+        return slideTimeoutMs;
+    }
+
+    /**
+     * Sets the time budget to draw one slide, in milliseconds. A slide not drawn in time is replaced by a placeholder
+     * (a light gray slide crossed out). Drawing is stopped between two shapes or two paragraphs, so a single shape
+     * taking longer (a huge EMF picture, for example) is still drawn to the end. A value <= 0 means no limit.
+     *
+     * @since 2023.2
+     */
+    public void setSlideTimeoutMs(long slideTimeoutMs) {
+        this.slideTimeoutMs = slideTimeoutMs;
+    }
+
+    /**
+     * @since 2023.2
+     */
+    public long getRequestTimeoutMs() {
+        return requestTimeoutMs;
+    }
+
+    /**
+     * Sets the time budget to draw all the slides of a call (opening the presentation included), in milliseconds.
+     * Once spent, the slides not drawn yet are replaced by placeholders. A value <= 0 means no limit.
+     *
+     * @since 2023.2
+     */
+    public void setRequestTimeoutMs(long requestTimeoutMs) {
+        this.requestTimeoutMs = requestTimeoutMs;
+    }
 
+    /**
+     * @return the zero-based numbers of the slides replaced by a placeholder in the last call rendering slides
+     *         (thumbnails or export), sorted. Empty if all the slides were drawn.
+     * @since 2023.2
+     */
+    public List<Integer> getTimedOutSlides() {
+        synchronized (timedOutSlides) {
+            return new ArrayList<>(timedOutSlides);
+        }
     }
 
     // ============================================================
     // PROPERTIES
     // ============================================================
+    /**
+     * The presentation is not loaded: the parts holding the properties are read with StAX, directly from the package
+     * (see {@link PresentationPropertiesReader}), so memory and time do not depend on the pictures and shapes of the
+     * deck.
+     */
     @Override
     public JSONObject getProperties(Blob blob) {
 
-        JSONObject obj = new JSONObject();
-
-        try (XMLSlideShow ppt = new XMLSlideShow(blob.getStream())) {
-            Dimension dim = ppt.getPageSize();
-            obj.put("Width", dim.width);
-            obj.put("Height", dim.height);
-
-            obj.put("AutoCompressPictures", ppt.getCTPresentation().getAutoCompressPictures());
-            obj.put("CompatMode", ppt.getCTPresentation().getCompatMode());
-
-            // ================================== Properties
-            POIXMLProperties props = ppt.getProperties();
-            CoreProperties coreProps = props.getCoreProperties();
-            obj.put("Category", coreProps.getCategory());
-            obj.put("ContentStatus", coreProps.getContentStatus());
-            obj.put("ContentType", coreProps.getContentType());
-            obj.put("Created", DATE_FORMAT.format(coreProps.getCreated()));
-            obj.put("Creator", coreProps.getCreator());
-            obj.put("Description", coreProps.getDescription());
-            obj.put("Identifier", coreProps.getIdentifier());
-            obj.put("Keywords", coreProps.getKeywords());
-            obj.put("LastModifiedByUser", coreProps.getLastModifiedByUser());
-            obj.put("LastPrinted", DATE_FORMAT.format(coreProps.getLastPrinted()));
-            obj.put("Modified", DATE_FORMAT.format(coreProps.getModified()));
-            obj.put("Revision", coreProps.getRevision());
-            obj.put("Subject", coreProps.getSubject());
-            obj.put("Title", coreProps.getTitle());
-
-            ExtendedProperties extProps = props.getExtendedProperties();
-            obj.put("CountCharacters", extProps.getCharacters());
-            obj.put("CountHiddenSlides", extProps.getHiddenSlides());
-            obj.put("CountLines", extProps.getLines());
-            obj.put("CountMMClips", extProps.getMMClips());
-            obj.put("CountNotes", extProps.getNotes());
-            obj.put("CountPages", extProps.getPages());
-            obj.put("CountParagraphs", extProps.getParagraphs());
-            obj.put("CountSlides", ppt.getSlides().size());
-            obj.put("CountTotalTime", extProps.getTotalTime());
-            obj.put("CountWords", extProps.getWords());
-            // ----------------------------
-            obj.put("Application", extProps.getApplication());
-            obj.put("AppVersion", extProps.getAppVersion());
-            obj.put("Company", extProps.getCompany());
-            obj.put("HyperlinkBase", extProps.getHyperlinkBase());
-            obj.put("Manager", extProps.getManager());
-            obj.put("PresentationFormat", extProps.getPresentationFormat());
-            obj.put("Template", extProps.getTemplate());
-
-            // ================================== Objects and slides
-            // Slides: Misc. info (title, master, theme, ...)
-            JSONArray arr = new JSONArray();
-            for (XSLFSlide slide : ppt.getSlides()) {
-                JSONObject slideInfo = new JSONObject();
-                slideInfo.put("SlideNumber", slide.getSlideNumber());
-                slideInfo.put("Title", slide.getTitle() == null ? "" : slide.getTitle());
-                slideInfo.put("Theme", slide.getTheme().getName());
-                slideInfo.put("Master", slide.getSlideLayout().getName());
-                arr.put(slideInfo);
-            }
-            obj.put("Slidesinfo", arr);
-
-            // Master slides (array of themes, for each them, list of layouts)
-            arr = new JSONArray();
-            for (XSLFSlideMaster master : ppt.getSlideMasters()) {
-                XSLFTheme masterThemeObj = master.getTheme();
-                String masterTheme = masterThemeObj.getName();
-                JSONArray arrLayouts = new JSONArray();
-                for (XSLFSlideLayout layout : master.getSlideLayouts()) {
-                    arrLayouts.put(layout.getName());
+        try {
+            String json = getResult(blob, "properties", new Object[0], () -> {
+                try (CloseableFile source = blob.getCloseableFile(".pptx")) {
+                    return getDeck(blob).getProperties(source.getFile()).toString();
                 }
-                JSONObject oneTheme = new JSONObject();
-                oneTheme.put("Name", masterTheme);
-                oneTheme.put("Layouts", arrLayouts);
-                oneTheme.put("MasterFont", masterThemeObj.getMajorFont());
-                oneTheme.put("MinorFont", masterThemeObj.getMinorFont());
-                arr.put(oneTheme);
-            }
-            obj.put("MasterSlides", arr);
-
-            // Embedded Fonts
-            CTEmbeddedFontList fontList = ppt.getCTPresentation().getEmbeddedFontLst();
-            arr = new JSONArray();
-            if (fontList != null) {
-                for (CTEmbeddedFontListEntry entry : fontList.getEmbeddedFontList()) {
-                    arr.put(entry.getFont().getTypeface());
-                }
-            }
-            obj.put("EmbeddedFonts", arr);
-
-            // Nop easy way to get fonts with Apache POI 3.17
-            // TODO: get fonts when switching to a higher version, if available
-            arr = new JSONArray();
-            obj.put("Fonts", arr);
-
+            });
+            return new JSONObject(json);
         } catch (IOException | JSONException e) {
             throw new NuxeoException("Failed to get slides deck properties", e);
         }
-
-        return obj;
     }
 
     // ============================================================
     // SPLIT
     // ============================================================
     /*
-     * <b>IMPORTANT</b>
-     * See {@link #getSlide()} for limitation and potential slowness. Basically, for each slide, we delete all the other
-     * slides. This is surely a slow operation using CPU and i/o.
+     * The presentation is read and indexed only once, then each slide is written by copying the parts it needs at the
+     * package level (see getSlide() and SlidesExtractor). This avoids the N full parse/remove/write cycles of
+     * extracting the slides one by one.
      */
     @Override
     public BlobList splitPresentation(Blob blob) throws IOException {
@@ -203,15 +500,14 @@ public class PowerPointUtilsWithApachePOI implements PowerPointUtils {
             return result;
         }
 
-        try (XMLSlideShow ppt = new XMLSlideShow(blob.getStream())) {
-
-            int slidesCount = ppt.getSlides().size();
-            for (int i = 0; i < slidesCount; i++) {
-
-                Blob oneSlidePres = getSlide(blob, i);
-                result.add(oneSlidePres);
+        String pptMimeType = PowerPointUtils.getBlobMimeType(blob);
+        Object[] parameters = { blob.getFilename(), pptMimeType };
+        result.addAll(getResults(blob, "split", parameters, () -> {
+            try (CloseableFile source = blob.getCloseableFile(".pptx");
+                    SlidesExtractor extractor = new SlidesExtractor(source.getFile(), getDeck(blob))) {
+                return extractor.split(blob.getFilename(), pptMimeType);
             }
-        }
+        }, () -> true));
 
         return result;
     }
@@ -249,11 +545,12 @@ public class PowerPointUtilsWithApachePOI implements PowerPointUtils {
     // GET SLIDE
     // ============================================================
     /*
-     * As of today (Apache POI 4.1.1, January 2020), it is very very difficult to extract a slide. There is no API for
-     * this. Getting the master, the layout, getting the related/embedded images, graphs etc. is super cumbersome, and
-     * for once, the Internet is not helping. It confirms it's extremely hard to make sure you extract a slide with all
-     * its dependencies (master, layouts, images, videos, ...) so we are doing it in a different way: basically, for
-     * each slide, we delete all the other slides. This is surely a slow operation using CPU and i/o.
+     * As of today (Apache POI 4.1.1, January 2020), there is no API for extracting a slide with all its dependencies
+     * (master, layouts, images, videos, ...). The first implementation was duplicating the presentation and deleting
+     * all the other slides, loading all of them in the POI user model only to throw them away.
+     * We now work on the package relationships graph instead: starting from the slide part, we follow the
+     * relationships to the layout, master, theme, media, charts, embeddings, ... and copy only these parts, plus a
+     * rewritten presentation.xml (see SlidesExtractor)
      */
     @Override
     public Blob getSlide(Blob blob, int slideNumber) throws IOException {
@@ -265,51 +562,13 @@ public class PowerPointUtilsWithApachePOI implements PowerPointUtils {
         }
 
         String pptMimeType = PowerPointUtils.getBlobMimeType(blob);
-        File originalFile = blob.getFile();
-
-        try (XMLSlideShow ppt = new XMLSlideShow(blob.getStream())) {
-
-            // Sanity check
-            if (slideNumber < 0 || slideNumber >= ppt.getSlides().size()) {
-                throw new NuxeoException("Invalid slide number: " + slideNumber);
+        Object[] parameters = { slideNumber, blob.getFilename(), pptMimeType };
+        result = getResults(blob, "slide", parameters, () -> {
+            try (CloseableFile source = blob.getCloseableFile(".pptx");
+                    SlidesExtractor extractor = new SlidesExtractor(source.getFile(), getDeck(blob))) {
+                return Collections.singletonList(extractor.getSlide(slideNumber, blob.getFilename(), pptMimeType));
             }
-
-            // 1. Duplicate the original presentation
-            result = Blobs.createBlobWithExtension(".pptx");
-            File newFile = result.getFile();
-            FileUtils.copyFile(originalFile, newFile);
-
-            // 2. Remove slides in the copy
-            try (InputStream is = new FileInputStream(newFile)) {
-                try (XMLSlideShow copy = new XMLSlideShow(is)) {
-
-                    // Remove slide(s) before
-                    for (int iBefore = 0; iBefore < slideNumber; iBefore++) {
-                        copy.removeSlide(0);
-                    }
-
-                    // Now, our slide is the first one
-                    int tempSlidesCount = copy.getSlides().size();
-                    for (int iAfter = 1; iAfter < tempSlidesCount; iAfter++) {
-                        copy.removeSlide(1);
-                    }
-
-                    // Flush
-                    try (FileOutputStream out = new FileOutputStream(newFile)) {
-                        copy.write(out);
-                    }
-
-                    // Update blob info
-                    result.setMimeType(pptMimeType);
-                    String fileNameBase = blob.getFilename();
-                    fileNameBase = FilenameUtils.getBaseName(fileNameBase);
-                    fileNameBase = StringUtils.appendIfMissing(fileNameBase, "-");
-                    // See interface: the file name must be 1-based, not zero-based
-                    result.setFilename(fileNameBase + (slideNumber + 1) + ".pptx");
-                }
-            }
-
-        }
+        }, () -> true).get(0);
 
         return result;
 
@@ -331,23 +590,16 @@ public class PowerPointUtilsWithApachePOI implements PowerPointUtils {
         if (blob == null) {
             return null;
         }
-
-        try (XMLSlideShow ppt = new XMLSlideShow(blob.getStream())) {
-            for (XSLFSlide slide : ppt.getSlides()) {
-
-                if (onlyVisible) {
-                    // TODO This comes from Apache POI 4.n. directly use slide.isHidden() once Nuxeo platform has been
-                    // upgraded
-                    // (and this plugin also upgraded)
-                    if (slide.getXmlObject().isSetShow() && !slide.getXmlObject().getShow()) {
-                        continue;
-                    }
-                }
-
-                Blob thumb = getThumbnail(slide, maxWidth, format);
-                result.add(thumb);
+        startRendering();
+
+        Object[] parameters = { maxWidth, getThumbnailFormat(format), onlyVisible, getRenderingSettings() };
+        result.addAll(getResults(blob, "thumbnails", parameters, () -> {
+            try (CloseableFile source = blob.getCloseableFile(".pptx")) {
+                ParsedDeck deck = getDeck(blob);
+                List<Integer> slideNumbers = deck.getSlideNumbers(source.getFile(), onlyVisible);
+                return getThumbnails(source.getFile(), deck, slideNumbers, maxWidth, format);
             }
-        }
+        }, timedOutSlides::isEmpty));
 
         return result;
     }
@@ -365,6 +617,97 @@ public class PowerPointUtilsWithApachePOI implements PowerPointUtils {
         return blobs;
     }
 
+    /*
+     * Each slide is drawn only once, see getThumbnails(XSLFSlide, List, String)
+     */
+    @Override
+    public Map<Integer, BlobList> getMultiSizeThumbnails(Blob blob, List<Integer> maxWidths, String format,
+            boolean onlyVisible) throws IOException {
+
+        Map<Integer, BlobList> result = new LinkedHashMap<>();
+
+        if (blob == null) {
+            return null;
+        }
+        if (maxWidths == null || maxWidths.isEmpty()) {
+            throw new NuxeoException("At least one width is required");
+        }
+        // Ignore duplicates (and keep the order)
+        List<Integer> widths = new ArrayList<>(new LinkedHashSet<>(maxWidths));
+        for (int maxWidth : widths) {
+            result.put(maxWidth, new BlobList());
+        }
+        startRendering();
+
+        // Cached as one list: the thumbnails of the first slide (in the order of widths), then of the second, ...
+        Object[] parameters = { widths, getThumbnailFormat(format), onlyVisible, getRenderingSettings() };
+        List<Blob> thumbs = getResults(blob, "multiSizeThumbnails", parameters, () -> {
+            try (CloseableFile source = blob.getCloseableFile(".pptx")) {
+                ParsedDeck deck = getDeck(blob);
+                List<Integer> slideNumbers = deck.getSlideNumbers(source.getFile(), onlyVisible);
+                List<Blob> all = new ArrayList<>();
+                for (List<Blob> slideThumbs : renderSlides(source.getFile(), deck, slideNumbers,
+                        slide -> getThumbnails(slide, widths, format))) {
+                    all.addAll(slideThumbs);
+                }
+                return all;
+            }
+        }, timedOutSlides::isEmpty);
+        for (int i = 0; i < thumbs.size(); i++) {
+            result.get(widths.get(i % widths.size())).add(thumbs.get(i));
+        }
+
+        return result;
+    }
+
+    @Override
+    public Map<Integer, BlobList> getMultiSizeThumbnails(DocumentModel doc, String xpath, List<Integer> maxWidths,
+            String format, boolean onlyVisible) throws IOException {
+
+        return getMultiSizeThumbnails(PowerPointUtils.getBlob(doc, xpath), maxWidths, format, onlyVisible);
+    }
+
+    @Override
+    public BlobList getThumbnails(Blob blob, List<Integer> slideNumbers, int maxWidth, String format)
+            throws IOException {
+
+        BlobList result = new BlobList();
+
+        if (blob == null) {
+            return null;
+        }
+        startRendering();
+
+        Object[] parameters = { slideNumbers, maxWidth, getThumbnailFormat(format), getRenderingSettings() };
+        result.addAll(getResults(blob, "slidesThumbnails", parameters, () -> {
+            try (CloseableFile source = blob.getCloseableFile(".pptx")) {
+                ParsedDeck deck = getDeck(blob);
+                int slidesCount = deck.getSlidesCount(source.getFile());
+                for (int slideNumber : slideNumbers) {
+                    if (slideNumber < 0 || slideNumber >= slidesCount) {
+                        throw new NuxeoException("Invalid slide number: " + slideNumber);
+                    }
+                }
+                return getThumbnails(source.getFile(), deck, slideNumbers, maxWidth, format);
+            }
+        }, timedOutSlides::isEmpty));
+
+        return result;
+    }
+
+    @Override
+    public BlobList getThumbnails(DocumentModel doc, String xpath, List<Integer> slideNumbers, int maxWidth,
+            String format) throws IOException {
+
+        return getThumbnails(PowerPointUtils.getBlob(doc, xpath), slideNumbers, maxWidth, format);
+    }
+
+    /*
+     * We don't load the whole presentation for one slide: the slide and its dependencies (layout, master, theme,
+     * media, ...) are first extracted at the package level (see SlidesExtractor#writeSlideForRendering), then only
+     * this small package is loaded and the slide is drawn. So the time to get one thumbnail does not depend on the
+     * number of slides in the presentation.
+     */
     @Override
     public Blob getThumbnail(Blob blob, int slideNumber, int maxWidth, String format) throws IOException {
         Blob result = null;
@@ -372,10 +715,12 @@ public class PowerPointUtilsWithApachePOI implements PowerPointUtils {
         if (blob == null) {
             return result;
         }
+        startRendering();
 
-        try (XMLSlideShow ppt = new XMLSlideShow(blob.getStream())) {
-            result = getThumbnail(ppt.getSlides().get(slideNumber), maxWidth, format);
-        }
+        Object[] parameters = { slideNumber, maxWidth, getThumbnailFormat(format), getRenderingSettings() };
+        result = getResults(blob, "thumbnail", parameters,
+                () -> Collections.singletonList(renderThumbnail(blob, slideNumber, maxWidth, format)),
+                timedOutSlides::isEmpty).get(0);
 
         return result;
     }
@@ -387,6 +732,102 @@ public class PowerPointUtilsWithApachePOI implements PowerPointUtils {
         return getThumbnail(PowerPointUtils.getBlob(doc, xpath), slideNumber, maxWidth, format);
     }
 
+    /**
+     * Renders the slide at exactly <code>width</code> pixels, which can be bigger than the slide (poster exports, for
+     * example). File name is "Slide {slideNumber + 1}.{format}".
+     * <p>
+     * For PNG, an image taller than the export band height (see {@link #setExportBandHeight(int)}) is drawn band by
+     * band, each band being encoded right away to the blob file (see {@link PngStreamWriter}). So the memory used
+     * does not depend on the size of the image, at the cost of drawing the slide once/band. JPEG images are always
+     * rendered in one full raster, the JDK JPEG encoder needing the whole image. A PNG drawn by band is always RGB,
+     * even when the encoder is set to write indexed PNGs.
+     *
+     * @param blob, the PowerPoint presentation
+     * @param slideNumber, zero-based
+     * @param width, in pixels
+     * @param format, "jpg", "jpeg" or "png" only
+     * @return the image
+     * @throws IOException
+     * @since 2023.2
+     */
+    public Blob exportSlide(Blob blob, int slideNumber, int width, String format) throws IOException {
+
+        Blob result = null;
+
+        if (blob == null) {
+            return result;
+        }
+        if (width <= 0) {
+            throw new NuxeoException("Invalid width: " + width);
+        }
+        String imageFormat = getThumbnailFormat(format);
+        startRendering();
+
+        Object[] parameters = { slideNumber, width, imageFormat, exportBandHeight, getRenderingSettings() };
+        result = getResults(blob, "export", parameters,
+                () -> Collections.singletonList(renderExport(blob, slideNumber, width, imageFormat)),
+                timedOutSlides::isEmpty).get(0);
+
+        return result;
+    }
+
+    /*
+     * See exportSlide(). imageFormat is "png" or "jpg"
+     */
+    protected Blob renderExport(Blob blob, int slideNumber, int width, String imageFormat) throws IOException {
+
+        Blob result = null;
+
+        Blob slidePackage = Blobs.createBlobWithExtension(".pptx");
+        try (CloseableFile source = blob.getCloseableFile(".pptx")) {
+            try (SlidesExtractor extractor = new SlidesExtractor(source.getFile(), getDeck(blob));
+                    OutputStream out = new FileOutputStream(slidePackage.getFile())) {
+                extractor.writeSlideForRendering(slideNumber, out);
+            }
+            ThumbnailRenderContext context = ThumbnailRenderContext.get();
+            try (XMLSlideShow ppt = openSlideShowForRendering(slidePackage.getFile())) {
+                // Each band draws the whole slide, pictures included
+                context.setPictureCache(newPictureCache());
+                context.setMasterLayerCache(newMasterLayerCache());
+                XSLFSlide slide = ppt.getSlides().get(slideNumber);
+                Dimension pgsize = ppt.getPageSize();
+                float scale = (float) width / (float) pgsize.width;
+                int height = (int) (pgsize.height * scale);
+                String fileName = "Slide " + slide.getSlideNumber() + "." + imageFormat;
+
+                if ("png".equals(imageFormat) && exportBandHeight > 0 && height > exportBandHeight) {
+                    result = Blobs.createBlobWithExtension(".png");
+                    long encodeNanos;
+                    context.setDeadline(getSlideDeadline());
+                    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(result.getFile()))) {
+                        encodeNanos = writeBands(slide, width, height, scale, out);
+                    }
+                    // The deadline being passed, the bands are all placeholders this time (and quickly drawn)
+                    if (context.isTimedOut()) {
+                        timedOutSlides.add(slideNumber);
+                        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(result.getFile()))) {
+                            encodeNanos = writeBands(slide, width, height, scale, out);
+                        }
+                    }
+                    encoder.getStats().add(encodeNanos, result.getFile().length());
+                    result.setMimeType("image/png");
+                    result.setFilename(fileName);
+                } else {
+                    BufferedImage img = renderSlide(slide, width, height, scale);
+                    result = writeThumbnail(img, imageFormat, fileName);
+                }
+            } finally {
+                context.setPictureCache(null);
+                context.setMasterLayerCache(null);
+                context.setDeadline(0);
+            }
+        } finally {
+            slidePackage.getFile().delete();
+        }
+
+        return result;
+    }
+
     // ============================================================
     // OTHERS
     // ============================================================
@@ -415,15 +856,16 @@ public class PowerPointUtilsWithApachePOI implements PowerPointUtils {
 
         Blob result = null;
 
-        File templateFile = template.getFile();
-
         result = Blobs.createBlobWithExtension(".pptx");
         File resultFile = result.getFile();
 
-        try (InputStream is = new FileInputStream(templateFile.getAbsolutePath());
+        try (CloseableFile source = template.getCloseableFile(".pptx");
                 OutputStream os = new FileOutputStream(resultFile.getAbsolutePath())) {
 
-            try (XMLSlideShow ppt = new XMLSlideShow(is)) {
+            File templateFile = source.getFile();
+            try (XMLSlideShow ppt = openSlideShow(templateFile)) {
+                // Only the slides we change are re-encoded when saving, see writeModifiedSlides()
+                List<XSLFSlide> modifiedSlides = new ArrayList<>();
                 for (XSLFSlide slide : ppt.getSlides()) {
                     for (XSLFShape shape : slide.getShapes()) {
                         if (shape instanceof XSLFTextShape) {
@@ -461,6 +903,9 @@ public class PowerPointUtilsWithApachePOI implements PowerPointUtils {
                                 // System.out.println("replacedText: " + replacedText);
 
                                 if (!replacedText.equals(finalAccumulated)) {
+                                    if (!modifiedSlides.contains(slide)) {
+                                        modifiedSlides.add(slide);
+                                    }
                                     // Now distribute the replaced text back to the involved runs
                                     int textStart = 0;
                                     int remainingLength = replacedText.length(); // Length of the remaining part of the
@@ -524,7 +969,7 @@ public class PowerPointUtilsWithApachePOI implements PowerPointUtils {
                     }
                 }
 
-                ppt.write(os);
+                writeModifiedSlides(templateFile, modifiedSlides, os);
 
             } catch (IOException e) {
                 throw new NuxeoException(e);
@@ -561,6 +1006,325 @@ public class PowerPointUtilsWithApachePOI implements PowerPointUtils {
     // ============================================================
     // PROTECTED AND SPECIFICS
     // ============================================================
+    /*
+     * See getThumbnail(Blob, int, int, String)
+     */
+    protected Blob renderThumbnail(Blob blob, int slideNumber, int maxWidth, String format) throws IOException {
+
+        Blob slidePackage = Blobs.createBlobWithExtension(".pptx");
+        try (CloseableFile source = blob.getCloseableFile(".pptx")) {
+            try (SlidesExtractor extractor = new SlidesExtractor(source.getFile(), getDeck(blob));
+                    OutputStream out = new FileOutputStream(slidePackage.getFile())) {
+                extractor.writeSlideForRendering(slideNumber, out);
+            }
+            try (XMLSlideShow ppt = openSlideShowForRendering(slidePackage.getFile())) {
+                return getThumbnail(ppt.getSlides().get(slideNumber), maxWidth, format);
+            }
+        } finally {
+            slidePackage.getFile().delete();
+        }
+    }
+
+    /*
+     * Renders the slides of the presentation, on the calling thread or in parallel depending on thumbnailsWorkers.
+     * Thumbnails are returned in the order of slideNumbers.
+     */
+    protected List<Blob> getThumbnails(File file, ParsedDeck deck, List<Integer> slideNumbers, int maxWidth,
+            String format) throws IOException {
+
+        return renderSlides(file, deck, slideNumbers, slide -> getThumbnail(slide, maxWidth, format));
+    }
+
+    /**
+     * Renders a slide, see {@link PowerPointUtilsWithApachePOI#renderSlides(File, ParsedDeck, List, SlideRenderer)}
+     *
+     * @since 2023.2
+     */
+    @FunctionalInterface
+    protected interface SlideRenderer<T> {
+        T render(XSLFSlide slide) throws IOException;
+    }
+
+    /*
+     * Calls renderer for each slide of the presentation, on the calling thread or in parallel depending on
+     * thumbnailsWorkers. Results are returned in the order of slideNumbers. The decoded pictures and the master
+     * layers are cached for all the slides, see pictureCacheScope and masterLayerCacheScope. The presentation is
+     * loaded by the calling thread, or by each worker: never by both. The admission checkpoint of the call is reached
+     * before each slide, so a batch call gives way to the interactive ones (see AdmissionController). A heavy deck is
+     * rendered by less workers, or one, each worker loading its own copy (see estimator), and there are no more copies
+     * than the memory reserved for the call allows (see AdmissionController#getReservedBytes).
+     */
+    protected <T> List<T> renderSlides(File file, ParsedDeck deck, List<Integer> slideNumbers,
+            SlideRenderer<T> renderer) throws IOException {
+
+        // Shared by the workers: the caches are thread safe
+        PictureCache cache = newPictureCache();
+        MasterLayerCache layerCache = newMasterLayerCache();
+        Checkpoint checkpoint = AdmissionController.getCheckpoint();
+        int workers = Math.min(thumbnailsWorkers, slideNumbers.size());
+        if (workers > 1 && estimator != null) {
+            workers = estimator.getWorkers(deck.getEstimate(file), workers);
+        }
+        long reservedBytes = AdmissionController.getReservedBytes();
+        if (workers > 1 && reservedBytes >= 0) {
+            long heap = Math.max(1, deck.getEstimate(file).getExpectedHeapBytes());
+            workers = (int) Math.max(1, Math.min(workers, reservedBytes / heap));
+        }
+        if (workers > 1) {
+            return renderSlidesInParallel(file, slideNumbers, workers, cache, layerCache, checkpoint, renderer);
+        }
+
+        List<T> result = new ArrayList<>();
+        ThumbnailRenderContext context = ThumbnailRenderContext.get();
+        context.setPictureCache(cache);
+        context.setMasterLayerCache(layerCache);
+        try (XMLSlideShow ppt = openSlideShowForRendering(file)) {
+            List<XSLFSlide> slides = ppt.getSlides();
+            for (int slideNumber : slideNumbers) {
+                checkpoint.reached();
+                result.add(renderer.render(slides.get(slideNumber)));
+            }
+        } finally {
+            context.setPictureCache(null);
+            context.setMasterLayerCache(null);
+        }
+        return result;
+    }
+
+    /*
+     * XSLF objects are not thread safe: each worker opens its own XMLSlideShow on the (read only) file, then renders
+     * the next slide to render until there is none left. Results are returned in the order of slideNumbers.
+     */
+    protected <T> List<T> renderSlidesInParallel(File file, List<Integer> slideNumbers, int workers,
+            PictureCache cache, MasterLayerCache layerCache, Checkpoint checkpoint, SlideRenderer<T> renderer)
+            throws IOException {
+
+        Object[] results = new Object[slideNumbers.size()];
+        AtomicInteger next = new AtomicInteger();
+        Callable<Void> worker = () -> {
+            ThumbnailRenderContext context = ThumbnailRenderContext.get();
+            context.setPictureCache(cache);
+            context.setMasterLayerCache(layerCache);
+            try (XMLSlideShow ppt = openSlideShowForRendering(file)) {
+                List<XSLFSlide> slides = ppt.getSlides();
+                int i;
+                while ((i = next.getAndIncrement()) < results.length) {
+                    checkpoint.reached();
+                    results[i] = renderer.render(slides.get(slideNumbers.get(i)));
+                }
+            } finally {
+                context.setPictureCache(null);
+                context.setMasterLayerCache(null);
+            }
+            return null;
+        };
+
+        // The calling thread is a worker too, so the call goes on even when all the threads of a shared pool are busy
+        ExecutorService executor = renderingExecutor != null ? renderingExecutor
+                : Executors.newFixedThreadPool(workers - 1);
+        // A worker runs only if it starts before the calling thread is done. If not, it has no slide left to render
+        List<AtomicBoolean> started = new ArrayList<>();
+        List<Future<Void>> futures = new ArrayList<>();
+        try {
+            for (int i = 1; i < workers; i++) {
+                AtomicBoolean start = new AtomicBoolean();
+                started.add(start);
+                futures.add(executor.submit(() -> start.compareAndSet(false, true) ? worker.call() : null));
+            }
+            worker.call();
+            for (int i = 0; i < futures.size(); i++) {
+                if (!started.get(i).compareAndSet(false, true)) {
+                    futures.get(i).get();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new NuxeoException(cause);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new NuxeoException(e);
+        } finally {
+            // On failure, the other workers stop after their current slide. Whatever the result, none of them is left
+            // reading the file (deleted by the caller) or writing the results once the call returns
+            next.set(results.length);
+            if (executor != renderingExecutor) {
+                executor.shutdownNow();
+            }
+            awaitStartedWorkers(started, futures);
+        }
+
+        @SuppressWarnings("unchecked")
+        List<T> list = (List<T>) Arrays.asList(results);
+        return list;
+    }
+
+    /*
+     * Waits for the workers which started, ignoring their failures (the first one is reported by the caller). The
+     * others are claimed, so they never run
+     */
+    protected static void awaitStartedWorkers(List<AtomicBoolean> started, List<Future<Void>> futures) {
+
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            if (started.get(i).compareAndSet(false, true)) {
+                continue;
+            }
+            while (true) {
+                try {
+                    futures.get(i).get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException | CancellationException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * The blobs computed for the operation and parameters, from the result cache if enabled (see resultCache). They
+     * are stored only if cacheable returns true once computed. If the same call is running (see coalescer), we get a
+     * copy of its blobs, and its timed out slides
+     */
+    protected List<Blob> getResults(Blob blob, String operation, Object[] parameters,
+            ResultCache.Computation<List<Blob>> computation, BooleanSupplier cacheable) throws IOException {
+
+        String key = ResultCache.getKey(blob, operation, parameters);
+        ResultCache.Computation<List<Blob>> cachedComputation = resultCache == null ? computation
+                : () -> resultCache.getBlobs(key, operation, computation, cacheable);
+        if (coalescer == null) {
+            return cachedComputation.compute();
+        }
+        SharedResult result = coalescer.execute(key, operation,
+                () -> new SharedResult(cachedComputation.compute(), getTimedOutSlides()), SharedResult::copy);
+        timedOutSlides.addAll(result.getTimedOutSlides());
+        return result.getBlobs();
+    }
+
+    /*
+     * Same as getResults(), for a JSON string
+     */
+    protected String getResult(Blob blob, String operation, Object[] parameters,
+            ResultCache.Computation<String> computation) throws IOException {
+
+        String key = ResultCache.getKey(blob, operation, parameters);
+        ResultCache.Computation<String> cachedComputation = resultCache == null ? computation
+                : () -> resultCache.getJSON(key, operation, computation);
+        if (coalescer == null) {
+            return cachedComputation.compute();
+        }
+        // Strings are immutable, no copy
+        return coalescer.execute(key, operation, cachedComputation, json -> json);
+    }
+
+    /*
+     * Everything, besides the parameters of the call, changing the pixels or the bytes of the images
+     */
+    protected String getRenderingSettings() {
+
+        return renderingQuality + "," + (fontRegistry != null) + ","
+                + (fontRegistry != null && fontRegistry.isRegisterEmbedded()) + "," + encoder.getJpegQuality() + ","
+                + encoder.getJpegChromaSubsampling() + "," + encoder.getPngCompressionLevel() + ","
+                + encoder.getPngFilter() + "," + encoder.isPngPalette();
+    }
+
+    /*
+     * What was already read from the blob, by digest (see deckCache). A new deck if the cache is disabled or the blob
+     * has no digest
+     */
+    protected ParsedDeck getDeck(Blob blob) {
+
+        String digest = blob.getDigest();
+        if (deckCache == null || StringUtils.isBlank(digest)) {
+            return new ParsedDeck();
+        }
+        return deckCache.get(digest);
+    }
+
+    /*
+     * Opens the presentation read only, from its file. POI then reads the parts on demand from the zip (random access),
+     * instead of inflating and buffering the whole package in the heap as it does when reading from a stream. Callers
+     * get the file with blob.getCloseableFile(), which spools the blob to a temp file only if it has no backing file.
+     * Nothing is ever saved to the source file: results are written with PackageWriter.
+     */
+    protected XMLSlideShow openSlideShow(File file) throws IOException {
+
+        OPCPackage pkg;
+        try {
+            pkg = OPCPackage.open(file, PackageAccess.READ);
+        } catch (InvalidFormatException e) {
+            throw new IOException("Not a valid PowerPoint presentation: " + file.getName(), e);
+        }
+        try {
+            return new XMLSlideShow(pkg);
+        } catch (RuntimeException e) {
+            pkg.revert();
+            throw e;
+        }
+    }
+
+    /*
+     * Same as openSlideShow, plus the fonts of the presentation, see fontRegistry. Not to be used if the presentation
+     * is saved after: the theme fonts may be replaced
+     */
+    protected XMLSlideShow openSlideShowForRendering(File file) throws IOException {
+
+        XMLSlideShow ppt = openSlideShow(file);
+        if (fontRegistry != null) {
+            try {
+                fontRegistry.prepare(ppt);
+            } catch (RuntimeException e) {
+                ppt.close();
+                throw e;
+            }
+        }
+        return ppt;
+    }
+
+    /*
+     * Writes the source package to os, replacing only the XML of the modified slides. Everything else (media, layouts,
+     * other slides, ...) is copied as is, still compressed, so we don't pay for inflating/deflating the whole
+     * presentation (as XMLSlideShow#write does) when only a few text runs changed.
+     */
+    protected void writeModifiedSlides(File source, List<XSLFSlide> modifiedSlides, OutputStream os)
+            throws IOException {
+
+        // Part names are case insensitive
+        Map<String, XSLFSlide> modifiedParts = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (XSLFSlide slide : modifiedSlides) {
+            modifiedParts.put(slide.getPackagePart().getPartName().getName().substring(1), slide);
+        }
+
+        XmlOptions xmlOptions = new XmlOptions(POIXMLTypeLoader.DEFAULT_XML_OPTIONS);
+        xmlOptions.setSaveSyntheticDocumentElement(new QName(PresentationPackage.NS_PRESENTATIONML, "sld"));
+
+        try (ZipFile zip = new ZipSecureFile(source); PackageWriter writer = new PackageWriter(os)) {
+            for (ZipArchiveEntry entry : Collections.list(zip.getEntriesInPhysicalOrder())) {
+                XSLFSlide slide = modifiedParts.get(entry.getName());
+                if (slide == null) {
+                    writer.copyRaw(zip, entry);
+                } else {
+                    writer.writePart(entry.getName(), out -> slide.getXmlObject().save(out, xmlOptions));
+                }
+            }
+            writer.finish();
+        }
+    }
+
     protected Blob getThumbnail(XSLFSlide slide, int maxWidth, String format) throws IOException {
 
         Blob result = null;
@@ -569,61 +1333,210 @@ public class PowerPointUtilsWithApachePOI implements PowerPointUtils {
             return null;
         }
 
+        format = getThumbnailFormat(format);
+
+        Dimension pgsize = slide.getSlideShow().getPageSize();
+        Dimension size = getThumbnailSize(pgsize, maxWidth);
+        float scale = (float) size.width / (float) pgsize.width;
+
+        // Thanks to Apache example, PPTX2PNG
+        BufferedImage img = renderSlide(slide, size.width, size.height, scale);
+
+        // getSlideNumber() returns a number starting at 1 (as expected by a user)
+        result = writeThumbnail(img, format, "Slide " + slide.getSlideNumber() + "." + format);
+
+        return result;
+    }
+
+    /*
+     * Draws the slide only once, at the biggest size, then downscales the image for the other sizes. Returns the
+     * thumbnails in the order of maxWidths, named "Slide {slideNumber}-{width}.{format}"
+     */
+    protected List<Blob> getThumbnails(XSLFSlide slide, List<Integer> maxWidths, String format) throws IOException {
+
+        format = getThumbnailFormat(format);
+
+        Dimension pgsize = slide.getSlideShow().getPageSize();
+        List<Dimension> sizes = new ArrayList<>();
+        Dimension biggest = null;
+        for (int maxWidth : maxWidths) {
+            Dimension size = getThumbnailSize(pgsize, maxWidth);
+            sizes.add(size);
+            if (biggest == null || size.width > biggest.width) {
+                biggest = size;
+            }
+        }
+
+        float scale = (float) biggest.width / (float) pgsize.width;
+        BufferedImage img = renderSlide(slide, biggest.width, biggest.height, scale);
+
+        // From the biggest to the smallest, each size is downscaled from the previous one (cheaper)
+        List<Integer> bySize = new ArrayList<>();
+        for (int i = 0; i < sizes.size(); i++) {
+            bySize.add(i);
+        }
+        bySize.sort((i1, i2) -> sizes.get(i2).width - sizes.get(i1).width);
+
+        Blob[] thumbs = new Blob[sizes.size()];
+        BufferedImage previous = img;
+        for (int i : bySize) {
+            Dimension size = sizes.get(i);
+            if (previous.getWidth() != size.width || previous.getHeight() != size.height) {
+                previous = ThumbnailRenderContext.downscale(previous, size.width, size.height);
+            }
+            thumbs[i] = writeThumbnail(previous, format,
+                    "Slide " + slide.getSlideNumber() + "-" + size.width + "." + format);
+        }
+
+        return Arrays.asList(thumbs);
+    }
+
+    /*
+     * Draws the slide with the context of the current thread (the raster and the Graphics2D are reused from one slide
+     * to the next), within the time budget. The image is valid until the next rendering on this thread
+     */
+    protected BufferedImage renderSlide(XSLFSlide slide, int width, int height, float scale) {
+
+        ThumbnailRenderContext context = ThumbnailRenderContext.get();
+        context.setDeadline(getSlideDeadline());
+        try {
+            BufferedImage img = context.render(slide, width, height, scale, renderingQuality);
+            if (context.isTimedOut()) {
+                timedOutSlides.add(slide.getSlideNumber() - 1);
+            }
+            return img;
+        } finally {
+            context.setDeadline(0);
+        }
+    }
+
+    /*
+     * Called at the beginning of each call rendering slides: starts the request budget, forgets the slides timed out
+     * in the previous call
+     */
+    protected void startRendering() {
+
+        timedOutSlides.clear();
+        requestDeadline = requestTimeoutMs > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(requestTimeoutMs)
+                : 0;
+    }
+
+    /*
+     * Deadline to draw a slide starting now (System.nanoTime() value): the slide budget, capped by the request budget.
+     * 0 for no limit
+     */
+    protected long getSlideDeadline() {
+
+        long deadline = slideTimeoutMs > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(slideTimeoutMs) : 0;
+        if (requestDeadline != 0 && (deadline == 0 || requestDeadline - deadline < 0)) {
+            deadline = requestDeadline;
+        }
+        return deadline;
+    }
+
+    /*
+     * Returns "png" (default, if format is blank) or "jpg". Throws an exception for any other format.
+     */
+    protected String getThumbnailFormat(String format) {
+
         if (StringUtils.isBlank(format)) {
-            format = "png";
+            return "png";
         }
 
-        String mimeType;
         switch (format.toLowerCase()) {
         case "jpg":
         case "jpeg":
-            format = "jpg";
-            mimeType = "image/jpeg";
-            break;
+            return "jpg";
 
         case "png":
-            mimeType = "image/png";
-            break;
+            return "png";
 
         default:
             throw new NuxeoException(format + " is no a supported formats (only jpg or png)");
         }
+    }
+
+    /*
+     * maxWidth <= 0 or bigger than the slides: original dimension
+     */
+    protected Dimension getThumbnailSize(Dimension pgsize, int maxWidth) {
 
-        Dimension pgsize = slide.getSlideShow().getPageSize();
         int width = pgsize.width;
         int height = pgsize.height;
 
-        float scale = 1;
         if (maxWidth > 0 && maxWidth < width) {
-            scale = (float) maxWidth / (float) width;
+            float scale = (float) maxWidth / (float) width;
             width = maxWidth;
             height = (int) (height * scale);
         }
 
-        // Thanks to Apache example, PPTX2PNG
-        // BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        Graphics2D graphics = img.createGraphics();
-
-        /*
-         * graphics.setPaint(Color.white);
-         * graphics.fill(new Rectangle2D.Float(0, 0, width, height));
-         */
-
-        // default rendering options
-        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-        graphics.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
-
-        graphics.scale(scale, scale);
-        slide.draw(graphics);
-
-        result = Blobs.createBlobWithExtension("." + format);
-        javax.imageio.ImageIO.write(img, format, result.getFile());
-        result.setMimeType(mimeType);
-        // getSlideNumber() returns a number starting at 1 (as expected by a user)
-        result.setFilename("Slide " + slide.getSlideNumber() + "." + format);
+        return new Dimension(width, height);
+    }
+
+    /*
+     * The cache of the decoded pictures for one call, depending on the scope. null if disabled
+     */
+    protected PictureCache newPictureCache() {
+
+        switch (pictureCacheScope) {
+        case NONE:
+            return null;
+        case SHARED:
+            return PictureCache.getShared();
+        default:
+            return new PictureCache(PictureCache.getConfiguredMaxBytes());
+        }
+    }
+
+    /*
+     * The cache of the master layers for one call, depending on the scope. null if disabled
+     */
+    protected MasterLayerCache newMasterLayerCache() {
+
+        switch (masterLayerCacheScope) {
+        case NONE:
+            return null;
+        case SHARED:
+            return MasterLayerCache.getShared();
+        default:
+            return new MasterLayerCache(MasterLayerCache.getConfiguredMaxBytes());
+        }
+    }
+
+    /*
+     * Draws the slide band by band, streaming the rows to a PNG. Only one band is in memory. The PNG is always RGB
+     * (the palette would need the whole image). Returns the time spent in encoding, in ns
+     */
+    protected long writeBands(XSLFSlide slide, int width, int height, float scale, OutputStream out)
+            throws IOException {
+
+        ThumbnailRenderContext context = ThumbnailRenderContext.get();
+        long encodeNanos = 0;
+        long start = System.nanoTime();
+        PngStreamWriter png = encoder.newPngWriter(out, width, height, null);
+        encodeNanos += System.nanoTime() - start;
+        for (int y = 0; y < height; y += exportBandHeight) {
+            BufferedImage band = context.renderBand(slide, width, exportBandHeight, scale, y, renderingQuality);
+            start = System.nanoTime();
+            png.writeRows(band, Math.min(exportBandHeight, height - y));
+            encodeNanos += System.nanoTime() - start;
+        }
+        start = System.nanoTime();
+        png.finish();
+        encodeNanos += System.nanoTime() - start;
+
+        return encodeNanos;
+    }
+
+    /*
+     * format is "png" or "jpg" (see getThumbnailFormat())
+     */
+    protected Blob writeThumbnail(BufferedImage img, String format, String fileName) throws IOException {
+
+        Blob result = Blobs.createBlobWithExtension("." + format);
+        encoder.encode(img, format, result.getFile());
+        result.setMimeType("jpg".equals(format) ? "image/jpeg" : "image/png");
+        result.setFilename(fileName);
 
         return result;
     }
@@ -0,0 +1,545 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.poi.ooxml.util.DocumentHelper;
+import org.apache.poi.openxml4j.opc.PackageNamespaces;
+import org.apache.poi.openxml4j.opc.PackageRelationshipTypes;
+import org.apache.poi.openxml4j.opc.PackagingURIHelper;
+import org.apache.poi.xslf.usermodel.XSLFRelation;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * A read-only index of the OPC structure of a .pptx file: the parts, their content types, the relationships between
+ * them and the ordered list of slides.
+ * <p>
+ * The index is built from the zip central directory and the (small) <code>.rels</code>, <code>[Content_Types].xml</code>
+ * and <code>presentation.xml</code> parts only. No slide, layout or master is parsed, which is what makes package
+ * level operations (split, slide extraction, ...) independent of the size of the slides.
+ *
+ * @since 2023.2
+ */
+public class PresentationPackage {
+
+    public static final String CONTENT_TYPES_PART_NAME = "/[Content_Types].xml";
+
+    public static final String PACKAGE_ROOT = "/";
+
+    public static final String NS_PRESENTATIONML = "http://schemas.openxmlformats.org/presentationml/2006/main";
+
+    public static final String NS_RELATIONSHIPS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    // 10in x 7.5in, in EMUs
+    public static final long DEFAULT_SLIDE_WIDTH = 9144000;
+
+    public static final long DEFAULT_SLIDE_HEIGHT = 6858000;
+
+    // Not declared in XSLFRelation
+    public static final String HANDOUT_MASTER_RELATIONSHIP = "http://schemas.openxmlformats.org/officeDocument/2006/relationships/handoutMaster";
+
+    /**
+     * A relationship, with its target already resolved to an absolute part name (for internal targets)
+     */
+    public static class Relationship {
+
+        protected final String id;
+
+        protected final String type;
+
+        protected final String target;
+
+        protected final boolean external;
+
+        public Relationship(String id, String type, String target, boolean external) {
+            this.id = id;
+            this.type = type;
+            this.target = target;
+            this.external = external;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return the absolute part name of the target, or the raw target if the relationship is external
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        public boolean isExternal() {
+            return external;
+        }
+    }
+
+    /**
+     * A slide as listed in <code>p:sldIdLst</code>
+     */
+    public static class SlideRef {
+
+        protected final long sldId;
+
+        protected final String relationshipId;
+
+        protected final String partName;
+
+        public SlideRef(long sldId, String relationshipId, String partName) {
+            this.sldId = sldId;
+            this.relationshipId = relationshipId;
+            this.partName = partName;
+        }
+
+        public long getSldId() {
+            return sldId;
+        }
+
+        public String getRelationshipId() {
+            return relationshipId;
+        }
+
+        public String getPartName() {
+            return partName;
+        }
+    }
+
+    protected final Map<String, ZipArchiveEntry> entries;
+
+    // Names of the entries, ignoring the case
+    protected final Map<String, String> partNames;
+
+    protected final Map<String, String> defaultContentTypes;
+
+    protected final Map<String, String> overrideContentTypes;
+
+    protected final Map<String, List<Relationship>> relationships;
+
+    protected final String presentationPartName;
+
+    protected final List<SlideRef> slides;
+
+    // p:sldSz, in EMUs
+    protected final long slideWidth;
+
+    protected final long slideHeight;
+
+    protected PresentationPackage(Map<String, ZipArchiveEntry> entries, Map<String, String> defaultContentTypes,
+            Map<String, String> overrideContentTypes, Map<String, List<Relationship>> relationships,
+            String presentationPartName, List<SlideRef> slides, long slideWidth, long slideHeight) {
+        this.entries = Collections.unmodifiableMap(entries);
+        this.partNames = indexPartNames(entries);
+        this.defaultContentTypes = Collections.unmodifiableMap(defaultContentTypes);
+        this.overrideContentTypes = Collections.unmodifiableMap(overrideContentTypes);
+        this.relationships = Collections.unmodifiableMap(relationships);
+        this.presentationPartName = presentationPartName;
+        this.slides = Collections.unmodifiableList(slides);
+        this.slideWidth = slideWidth;
+        this.slideHeight = slideHeight;
+    }
+
+    /**
+     * Builds the index of the package stored in <code>zip</code>. Only the central directory and the relationships,
+     * content types and presentation parts are read.
+     *
+     * @param zip, the .pptx file
+     * @return the index
+     * @throws IOException
+     */
+    public static PresentationPackage read(ZipFile zip) throws IOException {
+
+        Map<String, ZipArchiveEntry> entries = readEntries(zip);
+        // OPC part names are case insensitive: the names read in the parts are resolved to the names of the entries
+        Map<String, String> partNames = indexPartNames(entries);
+
+        // Content types
+        Map<String, String> defaults = new HashMap<>();
+        Map<String, String> overrides = new HashMap<>();
+        Document contentTypes = readXml(zip, entries.get(partNames.get(CONTENT_TYPES_PART_NAME)));
+        if (contentTypes == null) {
+            throw new NuxeoException("Not a valid PowerPoint package: no " + CONTENT_TYPES_PART_NAME);
+        }
+        NodeList nodes = contentTypes.getElementsByTagNameNS(PackageNamespaces.CONTENT_TYPES, "Default");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Element e = (Element) nodes.item(i);
+            defaults.put(e.getAttribute("Extension").toLowerCase(), e.getAttribute("ContentType"));
+        }
+        nodes = contentTypes.getElementsByTagNameNS(PackageNamespaces.CONTENT_TYPES, "Override");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Element e = (Element) nodes.item(i);
+            String partName = e.getAttribute("PartName");
+            overrides.put(partNames.getOrDefault(partName, partName), e.getAttribute("ContentType"));
+        }
+
+        // Relationships of every part
+        Map<String, List<Relationship>> relationships = new HashMap<>();
+        for (String partName : entries.keySet()) {
+            if (isRelationshipPart(partName)) {
+                String source = getSourcePartName(partName);
+                source = partNames.getOrDefault(source, source);
+                List<Relationship> rels = readRelationships(source, readXml(zip, entries.get(partName)));
+                relationships.put(source, resolveTargets(rels, partNames));
+            }
+        }
+
+        // Main part and slides, in the presentation order
+        String presentationPartName = null;
+        for (Relationship rel : relationships.getOrDefault(PACKAGE_ROOT, Collections.emptyList())) {
+            if (PackageRelationshipTypes.CORE_DOCUMENT.equals(rel.getType())) {
+                presentationPartName = rel.getTarget();
+                break;
+            }
+        }
+        if (presentationPartName == null || !entries.containsKey(presentationPartName)) {
+            throw new NuxeoException("Not a valid PowerPoint package: no main presentation part");
+        }
+
+        Map<String, Relationship> presentationRels = new HashMap<>();
+        for (Relationship rel : relationships.getOrDefault(presentationPartName, Collections.emptyList())) {
+            presentationRels.put(rel.getId(), rel);
+        }
+        List<SlideRef> slides = new ArrayList<>();
+        Document presentation = readXml(zip, entries.get(presentationPartName));
+        NodeList sldIdLst = presentation.getElementsByTagNameNS(NS_PRESENTATIONML, "sldIdLst");
+        if (sldIdLst.getLength() > 0) {
+            nodes = ((Element) sldIdLst.item(0)).getElementsByTagNameNS(NS_PRESENTATIONML, "sldId");
+            for (int i = 0; i < nodes.getLength(); i++) {
+                Element e = (Element) nodes.item(i);
+                Relationship rel = presentationRels.get(e.getAttributeNS(NS_RELATIONSHIPS, "id"));
+                if (rel != null && !rel.isExternal()) {
+                    slides.add(new SlideRef(Long.parseLong(e.getAttribute("id")), rel.getId(), rel.getTarget()));
+                }
+            }
+        }
+
+        // Same default as POI (4:3)
+        long slideWidth = DEFAULT_SLIDE_WIDTH;
+        long slideHeight = DEFAULT_SLIDE_HEIGHT;
+        NodeList sldSz = presentation.getElementsByTagNameNS(NS_PRESENTATIONML, "sldSz");
+        if (sldSz.getLength() > 0) {
+            Element e = (Element) sldSz.item(0);
+            slideWidth = NumberUtils.toLong(e.getAttribute("cx"), slideWidth);
+            slideHeight = NumberUtils.toLong(e.getAttribute("cy"), slideHeight);
+        }
+
+        return new PresentationPackage(entries, defaults, overrides, relationships, presentationPartName, slides,
+                slideWidth, slideHeight);
+    }
+
+    /**
+     * Returns the same index for another copy of the package (same bytes, typically the same blob read again, see
+     * {@link ParsedDeck}): the entries are the ones of <code>zip</code>, nothing else is read.
+     *
+     * @param zip, a copy of the .pptx file this index was built from
+     * @return the index, to use with <code>zip</code>
+     * @since 2023.2
+     */
+    public PresentationPackage forZip(ZipFile zip) {
+
+        Map<String, ZipArchiveEntry> zipEntries = readEntries(zip);
+        if (!zipEntries.keySet().equals(entries.keySet())) {
+            throw new NuxeoException("The package does not match its index");
+        }
+        return new PresentationPackage(zipEntries, defaultContentTypes, overrideContentTypes, relationships,
+                presentationPartName, slides, slideWidth, slideHeight);
+    }
+
+    protected static Map<String, ZipArchiveEntry> readEntries(ZipFile zip) {
+
+        Map<String, ZipArchiveEntry> entries = new LinkedHashMap<>();
+        for (ZipArchiveEntry entry : Collections.list(zip.getEntries())) {
+            if (!entry.isDirectory()) {
+                entries.put(PACKAGE_ROOT + entry.getName(), entry);
+            }
+        }
+        return entries;
+    }
+
+    protected static Map<String, String> indexPartNames(Map<String, ZipArchiveEntry> entries) {
+
+        Map<String, String> partNames = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (String partName : entries.keySet()) {
+            partNames.putIfAbsent(partName, partName);
+        }
+        return partNames;
+    }
+
+    // ============================================================
+    // GETTERS
+    // ============================================================
+    public Set<String> getPartNames() {
+        return entries.keySet();
+    }
+
+    /**
+     * @return the entry of the part, the name being compared ignoring the case (as OPC part names), or null
+     */
+    public ZipArchiveEntry getEntry(String partName) {
+
+        ZipArchiveEntry entry = entries.get(partName);
+        return entry != null ? entry : entries.get(partNames.get(partName));
+    }
+
+    /**
+     * @return the name of the entry of the part (OPC part names are case insensitive), or partName if there is none
+     * @since 2023.2
+     */
+    public String resolvePartName(String partName) {
+        return partNames.getOrDefault(partName, partName);
+    }
+
+    public String getPresentationPartName() {
+        return presentationPartName;
+    }
+
+    public List<SlideRef> getSlides() {
+        return slides;
+    }
+
+    /**
+     * @return the width of the slides, in EMUs
+     * @since 2023.2
+     */
+    public long getSlideWidth() {
+        return slideWidth;
+    }
+
+    /**
+     * @return the height of the slides, in EMUs
+     * @since 2023.2
+     */
+    public long getSlideHeight() {
+        return slideHeight;
+    }
+
+    public int getSlidesCount() {
+        return slides.size();
+    }
+
+    /**
+     * @return the relationships whose source is <code>partName</code> (use {@link #PACKAGE_ROOT} for the package
+     *         relationships). Never null.
+     */
+    public List<Relationship> getRelationships(String partName) {
+        return relationships.getOrDefault(partName, Collections.emptyList());
+    }
+
+    /**
+     * @return the content type of the part, from the overrides first, then from the defaults (by extension)
+     */
+    public String getContentType(String partName) {
+
+        String contentType = overrideContentTypes.get(partName);
+        if (contentType == null) {
+            contentType = defaultContentTypes.get(FilenameUtils.getExtension(partName).toLowerCase());
+        }
+        return contentType;
+    }
+
+    public Map<String, String> getDefaultContentTypes() {
+        return defaultContentTypes;
+    }
+
+    /**
+     * Returns the parts a presentation containing only <code>slidePartName</code> needs: the slide and everything it
+     * depends on (layout, master, theme, media, charts, embeddings, notes, comments, ...), plus the presentation-level
+     * parts (document properties, presentation properties, table styles, embedded fonts, ...).
+     * <p>
+     * This is a walk of the relationships graph, starting at the package root, which never follows:
+     * <ul>
+     * <li>A relationship of type slide, except the one from the main presentation part to <code>slidePartName</code>
+     * (so other slides and their own dependencies are not reached, even through hyperlinks)</li>
+     * <li>A slide master, notes master or handout master relationship from the main presentation part: masters are
+     * only kept when reached from the slide itself (slide => layout => master, slide => notes => notes master)</li>
+     * <li>A slide layout relationship from a slide master: only the layout used by the slide is kept</li>
+     * </ul>
+     * The relationships parts are not included.
+     *
+     * @param slidePartName
+     * @return the part names to keep for a presentation containing only <code>slidePartName</code>
+     */
+    public Set<String> getPartsForSlide(String slidePartName) {
+
+        Set<String> result = new LinkedHashSet<>();
+        List<String> toVisit = new ArrayList<>();
+        toVisit.add(PACKAGE_ROOT);
+        while (!toVisit.isEmpty()) {
+            String source = toVisit.remove(toVisit.size() - 1);
+            for (Relationship rel : getRelationships(source)) {
+                if (rel.isExternal() || getEntry(rel.getTarget()) == null) {
+                    continue;
+                }
+                if (!shouldFollow(source, rel, slidePartName)) {
+                    continue;
+                }
+                if (result.add(rel.getTarget())) {
+                    toVisit.add(rel.getTarget());
+                }
+            }
+        }
+
+        return result;
+    }
+
+    protected boolean shouldFollow(String source, Relationship rel, String slidePartName) {
+
+        String type = rel.getType();
+        if (XSLFRelation.SLIDE.getRelation().equals(type)) {
+            return source.equals(presentationPartName) && rel.getTarget().equals(slidePartName);
+        }
+        if (source.equals(presentationPartName)) {
+            return !XSLFRelation.SLIDE_MASTER.getRelation().equals(type)
+                    && !XSLFRelation.NOTES_MASTER.getRelation().equals(type)
+                    && !HANDOUT_MASTER_RELATIONSHIP.equals(type);
+        }
+        if (XSLFRelation.SLIDE_LAYOUT.getRelation().equals(type)) {
+            return !XSLFRelation.SLIDE_MASTER.getContentType().equals(getContentType(source));
+        }
+        return true;
+    }
+
+    // ============================================================
+    // PART NAMES UTILITIES
+    // ============================================================
+    public static boolean isRelationshipPart(String partName) {
+        return partName.endsWith(PackagingURIHelper.RELATIONSHIP_PART_EXTENSION_NAME)
+                && partName.contains("/" + PackagingURIHelper.RELATIONSHIP_PART_SEGMENT_NAME + "/");
+    }
+
+    /**
+     * "/ppt/slides/slide1.xml" => "/ppt/slides/_rels/slide1.xml.rels", "/" => "/_rels/.rels"
+     */
+    public static String getRelationshipPartName(String partName) {
+
+        int idx = partName.lastIndexOf('/');
+        return partName.substring(0, idx + 1) + PackagingURIHelper.RELATIONSHIP_PART_SEGMENT_NAME + "/"
+                + partName.substring(idx + 1) + PackagingURIHelper.RELATIONSHIP_PART_EXTENSION_NAME;
+    }
+
+    /**
+     * "/ppt/slides/_rels/slide1.xml.rels" => "/ppt/slides/slide1.xml", "/_rels/.rels" => "/"
+     */
+    public static String getSourcePartName(String relationshipPartName) {
+
+        String folder = relationshipPartName.substring(0,
+                relationshipPartName.lastIndexOf("/" + PackagingURIHelper.RELATIONSHIP_PART_SEGMENT_NAME + "/"));
+        String fileName = FilenameUtils.getName(relationshipPartName);
+        fileName = fileName.substring(0, fileName.length() - PackagingURIHelper.RELATIONSHIP_PART_EXTENSION_NAME.length());
+        return folder + "/" + fileName;
+    }
+
+    protected static List<Relationship> readRelationships(String sourcePartName, Document doc) throws IOException {
+
+        List<Relationship> result = new ArrayList<>();
+        if (doc == null) {
+            return result;
+        }
+
+        NodeList nodes = doc.getElementsByTagNameNS(PackageNamespaces.RELATIONSHIPS, "Relationship");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Element e = (Element) nodes.item(i);
+            result.add(newRelationship(sourcePartName, e.getAttribute("Id"), e.getAttribute("Type"),
+                    e.getAttribute("Target"), e.getAttribute("TargetMode")));
+        }
+
+        return result;
+    }
+
+    /**
+     * @param sourcePartName, the part the relationship is read from
+     * @param id
+     * @param type
+     * @param target, as in the <code>.rels</code> part (relative to the source part, for internal targets)
+     * @param targetMode, "External", or empty/<code>null</code> for "Internal"
+     * @return the relationship, with an internal target resolved to an absolute part name
+     * @since 2023.2
+     */
+    public static Relationship newRelationship(String sourcePartName, String id, String type, String target,
+            String targetMode) {
+
+        boolean external = "External".equalsIgnoreCase(targetMode);
+        if (!external) {
+            try {
+                URI targetUri = PackagingURIHelper.toURI(target);
+                target = URI.create(sourcePartName).resolve(targetUri).normalize().getPath();
+            } catch (URISyntaxException | IllegalArgumentException ex) {
+                // Invalid target: keep it as external, it will never be resolved
+                external = true;
+            }
+        }
+        return new Relationship(id, type, target, external);
+    }
+
+    /*
+     * The relationships, their internal targets being replaced by the names of the entries (same names, ignoring the
+     * case)
+     */
+    protected static List<Relationship> resolveTargets(List<Relationship> relationships,
+            Map<String, String> partNames) {
+
+        List<Relationship> result = new ArrayList<>(relationships.size());
+        for (Relationship rel : relationships) {
+            String partName = rel.isExternal() ? null : partNames.get(rel.getTarget());
+            if (partName == null || partName.equals(rel.getTarget())) {
+                result.add(rel);
+            } else {
+                result.add(new Relationship(rel.getId(), rel.getType(), partName, false));
+            }
+        }
+        return result;
+    }
+
+    protected static Document readXml(ZipFile zip, ZipArchiveEntry entry) throws IOException {
+
+        if (entry == null) {
+            return null;
+        }
+
+        try (InputStream in = zip.getInputStream(entry)) {
+            return DocumentHelper.readDocument(in);
+        } catch (SAXException e) {
+            throw new IOException("Invalid XML in " + entry.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,998 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.poi.openxml4j.opc.PackageNamespaces;
+import org.apache.poi.openxml4j.opc.PackageProperties;
+import org.apache.poi.openxml4j.opc.PackageRelationshipTypes;
+import org.apache.poi.openxml4j.util.ZipSecureFile;
+import org.apache.poi.util.Units;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xslf.usermodel.XSLFRelation;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import nuxeo.powerpoint.utils.api.PowerPointUtils;
+import nuxeo.powerpoint.utils.apachepoi.PresentationPackage.Relationship;
+
+/**
+ * Reads the properties of a presentation (see {@link PowerPointUtils#getProperties(org.nuxeo.ecm.core.api.Blob)})
+ * without loading it in the POI user model: only the parts holding the properties are read, with StAX, straight from
+ * the zip. That is the document properties (<code>docProps/core.xml</code>, <code>docProps/app.xml</code>),
+ * <code>presentation.xml</code>, the themes, the beginning of the layouts (their name) and, for each slide, the shapes
+ * until the title. The relationships are read only for the presentation, the slides, the layouts and the masters.
+ * <p>
+ * The values are the ones POI returns for the same presentation (title of a slide, order of the layouts of a master,
+ * parsing of the dates, ...). Values missing from the presentation are not set in the result, when POI would fail.
+ * <p>
+ * Not thread safe.
+ *
+ * @since 2023.2
+ */
+public class PresentationPropertiesReader implements Closeable {
+
+    public static final String NS_EXTENDED_PROPERTIES = "http://schemas.openxmlformats.org/officeDocument/2006/extended-properties";
+
+    public static final String NS_DRAWINGML = "http://schemas.openxmlformats.org/drawingml/2006/main";
+
+    // Same as POI (PackagePropertiesPart)
+    protected static final String[] DATE_FORMATS = { "yyyy-MM-dd'T'HH:mm:ss'Z'", "yyyy-MM-dd'T'HH:mm:ss.SS'Z'",
+            "yyyy-MM-dd" };
+
+    protected static final String[] TZ_DATE_FORMATS = { "yyyy-MM-dd'T'HH:mm:ssz", "yyyy-MM-dd'T'HH:mm:ss.Sz",
+            "yyyy-MM-dd'T'HH:mm:ss.SSz", "yyyy-MM-dd'T'HH:mm:ss.SSSz" };
+
+    protected static final Pattern TIME_ZONE_PATTERN = Pattern.compile("([-+]\\d\\d):?(\\d\\d)");
+
+    // DrawingML elements holding a typeface
+    protected static final Set<String> FONT_ELEMENTS = new HashSet<>(
+            Arrays.asList("latin", "ea", "cs", "sym", "buFont"));
+
+    // Element of the font scheme of a theme => script of the font reference ("+mj-lt", "+mn-ea", ...)
+    protected static final Map<String, String> THEME_FONT_SCRIPTS = Map.of("latin", "lt", "ea", "ea", "cs", "cs");
+
+    protected static final XMLInputFactory XML_INPUT_FACTORY = XMLHelper.newXMLInputFactory();
+
+    protected final ZipFile zip;
+
+    // Part name => entry. Case insensitive, as the part names
+    protected final Map<String, ZipArchiveEntry> entries = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    // Source part name => relationships, sorted by id (the order POI uses)
+    protected final Map<String, List<Relationship>> relationships = new HashMap<>();
+
+    protected final Map<String, String> layoutNames = new HashMap<>();
+
+    protected final Map<String, Theme> themes = new HashMap<>();
+
+    /**
+     * Opens the presentation. Caller must {@link #close()} the reader.
+     *
+     * @param pptxFile
+     * @throws IOException
+     */
+    public PresentationPropertiesReader(File pptxFile) throws IOException {
+
+        zip = new ZipSecureFile(pptxFile);
+        for (ZipArchiveEntry entry : Collections.list(zip.getEntries())) {
+            if (!entry.isDirectory()) {
+                entries.put(PresentationPackage.PACKAGE_ROOT + entry.getName(), entry);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        zip.close();
+    }
+
+    /**
+     * @return the properties, with the same keys and values as the POI implementation of
+     *         {@link PowerPointUtils#getProperties(org.nuxeo.ecm.core.api.Blob)}
+     * @throws IOException
+     * @throws JSONException
+     */
+    public JSONObject getProperties() throws IOException, JSONException {
+
+        JSONObject obj = new JSONObject();
+
+        String presentationPartName = getTarget(PresentationPackage.PACKAGE_ROOT,
+                PackageRelationshipTypes.CORE_DOCUMENT, false);
+        if (presentationPartName == null) {
+            throw new NuxeoException("Not a valid PowerPoint package: no main presentation part");
+        }
+        Presentation presentation = readPresentation(presentationPartName);
+        if (presentation.width >= 0) {
+            obj.put("Width", (int) Units.toPoints(presentation.width));
+            obj.put("Height", (int) Units.toPoints(presentation.height));
+        }
+        obj.put("AutoCompressPictures", presentation.autoCompressPictures);
+        obj.put("CompatMode", presentation.compatMode);
+
+        // ================================== Properties
+        Map<String, String> coreProps = readCoreProperties();
+        obj.put("Category", getString(coreProps, PackageNamespaces.CORE_PROPERTIES, "category"));
+        obj.put("ContentStatus", getString(coreProps, PackageNamespaces.CORE_PROPERTIES, "contentStatus"));
+        obj.put("ContentType", getString(coreProps, PackageNamespaces.CORE_PROPERTIES, "contentType"));
+        obj.put("Created", getDate(coreProps, PackageProperties.NAMESPACE_DCTERMS, "created"));
+        obj.put("Creator", getString(coreProps, PackageProperties.NAMESPACE_DC, "creator"));
+        obj.put("Description", getString(coreProps, PackageProperties.NAMESPACE_DC, "description"));
+        obj.put("Identifier", getString(coreProps, PackageProperties.NAMESPACE_DC, "identifier"));
+        obj.put("Keywords", getString(coreProps, PackageNamespaces.CORE_PROPERTIES, "keywords"));
+        obj.put("LastModifiedByUser", getString(coreProps, PackageNamespaces.CORE_PROPERTIES, "lastModifiedBy"));
+        obj.put("LastPrinted", getDate(coreProps, PackageNamespaces.CORE_PROPERTIES, "lastPrinted"));
+        obj.put("Modified", getDate(coreProps, PackageProperties.NAMESPACE_DCTERMS, "modified"));
+        obj.put("Revision", getString(coreProps, PackageNamespaces.CORE_PROPERTIES, "revision"));
+        obj.put("Subject", getString(coreProps, PackageProperties.NAMESPACE_DC, "subject"));
+        obj.put("Title", getString(coreProps, PackageProperties.NAMESPACE_DC, "title"));
+
+        Map<String, String> extProps = readExtendedProperties();
+        obj.put("CountCharacters", getInt(extProps, "Characters"));
+        obj.put("CountHiddenSlides", getInt(extProps, "HiddenSlides"));
+        obj.put("CountLines", getInt(extProps, "Lines"));
+        obj.put("CountMMClips", getInt(extProps, "MMClips"));
+        obj.put("CountNotes", getInt(extProps, "Notes"));
+        obj.put("CountPages", getInt(extProps, "Pages"));
+        obj.put("CountParagraphs", getInt(extProps, "Paragraphs"));
+        obj.put("CountSlides", presentation.slides.size());
+        obj.put("CountTotalTime", getInt(extProps, "TotalTime"));
+        obj.put("CountWords", getInt(extProps, "Words"));
+        // ----------------------------
+        obj.put("Application", extProps.get("Application"));
+        obj.put("AppVersion", extProps.get("AppVersion"));
+        obj.put("Company", extProps.get("Company"));
+        obj.put("HyperlinkBase", extProps.get("HyperlinkBase"));
+        obj.put("Manager", extProps.get("Manager"));
+        obj.put("PresentationFormat", extProps.get("PresentationFormat"));
+        obj.put("Template", extProps.get("Template"));
+
+        // ================================== Objects and slides
+        // Fonts of the masters and layouts first, then each slide is read once, for its title and its fonts
+        Set<String> fonts = new LinkedHashSet<>();
+        scanMastersFonts(presentation, fonts);
+
+        JSONArray arr = new JSONArray();
+        for (int i = 0; i < presentation.slides.size(); i++) {
+            String slide = presentation.slides.get(i);
+            String layout = getTarget(slide, XSLFRelation.SLIDE_LAYOUT.getRelation(), true);
+            String master = layout == null ? null : getTarget(layout, XSLFRelation.SLIDE_MASTER.getRelation(), true);
+            Theme theme = getTheme(master);
+            String title = readSlideTitle(slide, theme, fonts);
+
+            JSONObject slideInfo = new JSONObject();
+            slideInfo.put("SlideNumber", i + 1);
+            slideInfo.put("Title", title == null ? "" : title);
+            slideInfo.put("Theme", theme == null ? null : theme.name);
+            slideInfo.put("Master", layout == null ? null : getLayoutName(layout));
+            arr.put(slideInfo);
+        }
+        obj.put("Slidesinfo", arr);
+
+        // Master slides (array of themes, for each them, list of layouts)
+        arr = new JSONArray();
+        for (String master : presentation.masters) {
+            Theme theme = getTheme(master);
+            // As POI (XSLFSlideMaster#getSlideLayouts): a HashMap by lower case name, filled in the relationships order
+            Map<String, String> layouts = new HashMap<>();
+            for (Relationship rel : getRelationships(master)) {
+                if (XSLFRelation.SLIDE_LAYOUT.getRelation().equals(rel.getType()) && exists(rel)) {
+                    String name = getLayoutName(rel.getTarget());
+                    layouts.put(name.toLowerCase(Locale.ROOT), name);
+                }
+            }
+            JSONArray arrLayouts = new JSONArray();
+            for (String name : layouts.values()) {
+                arrLayouts.put(name);
+            }
+            JSONObject oneTheme = new JSONObject();
+            oneTheme.put("Name", theme == null ? null : theme.name);
+            oneTheme.put("Layouts", arrLayouts);
+            oneTheme.put("MasterFont", theme == null ? null : theme.fonts.get("mj-lt"));
+            oneTheme.put("MinorFont", theme == null ? null : theme.fonts.get("mn-lt"));
+            arr.put(oneTheme);
+        }
+        obj.put("MasterSlides", arr);
+
+        arr = new JSONArray();
+        for (String font : presentation.embeddedFonts) {
+            arr.put(font);
+        }
+        obj.put("EmbeddedFonts", arr);
+
+        arr = new JSONArray();
+        for (String font : fonts) {
+            arr.put(font);
+        }
+        obj.put("Fonts", arr);
+
+        return obj;
+    }
+
+    // ============================================================
+    // PARTS
+    // ============================================================
+    /**
+     * What we need from <code>presentation.xml</code>
+     */
+    protected static class Presentation {
+
+        // EMUs, -1 if not set
+        protected long width = -1;
+
+        protected long height = -1;
+
+        protected boolean autoCompressPictures = true;
+
+        protected boolean compatMode = false;
+
+        // Part names, in the presentation order
+        protected final List<String> slides = new ArrayList<>();
+
+        protected final List<String> masters = new ArrayList<>();
+
+        protected final List<String> embeddedFonts = new ArrayList<>();
+    }
+
+    /**
+     * What we need from a theme
+     */
+    protected static class Theme {
+
+        protected String name = "";
+
+        // Theme font reference, without the "+" ("mj-lt", "mn-ea", ...) => typeface
+        protected final Map<String, String> fonts = new HashMap<>();
+    }
+
+    protected Presentation readPresentation(String partName) throws IOException {
+
+        Presentation presentation = new Presentation();
+        Map<String, Relationship> rels = new HashMap<>();
+        for (Relationship rel : getRelationships(partName)) {
+            rels.put(rel.getId(), rel);
+        }
+
+        XMLStreamReader reader = open(partName);
+        try {
+            if (reader == null || !nextElement(reader)) {
+                throw new NuxeoException("Not a valid PowerPoint package: no main presentation part");
+            }
+            presentation.autoCompressPictures = getBoolean(reader, "autoCompressPictures", true);
+            presentation.compatMode = getBoolean(reader, "compatMode", false);
+            while (nextElement(reader)) {
+                if (!PresentationPackage.NS_PRESENTATIONML.equals(reader.getNamespaceURI())) {
+                    continue;
+                }
+                switch (reader.getLocalName()) {
+                case "sldMasterId":
+                case "sldId":
+                    // As POI: ignored when the part does not exist
+                    Relationship rel = rels.get(reader.getAttributeValue(PresentationPackage.NS_RELATIONSHIPS, "id"));
+                    if (rel != null && exists(rel)) {
+                        List<String> list = "sldId".equals(reader.getLocalName()) ? presentation.slides
+                                : presentation.masters;
+                        list.add(rel.getTarget());
+                    }
+                    break;
+                case "sldSz":
+                    presentation.width = NumberUtils.toLong(reader.getAttributeValue(null, "cx"), -1);
+                    presentation.height = NumberUtils.toLong(reader.getAttributeValue(null, "cy"), -1);
+                    break;
+                case "font":
+                    // p:embeddedFontLst/p:embeddedFont/p:font
+                    presentation.embeddedFonts.add(reader.getAttributeValue(null, "typeface"));
+                    break;
+                default:
+                    break;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid XML in " + partName, e);
+        } finally {
+            close(reader);
+        }
+        return presentation;
+    }
+
+    /*
+     * Namespace + local name => text. As POI, the first element with this name, at any level
+     */
+    protected Map<String, String> readCoreProperties() throws IOException {
+
+        Map<String, String> props = new HashMap<>();
+        String partName = getTarget(PresentationPackage.PACKAGE_ROOT, PackageRelationshipTypes.CORE_PROPERTIES,
+                false);
+        if (partName == null) {
+            partName = getTarget(PresentationPackage.PACKAGE_ROOT, PackageRelationshipTypes.CORE_PROPERTIES_ECMA376,
+                    false);
+        }
+        XMLStreamReader reader = open(partName);
+        if (reader == null) {
+            return props;
+        }
+        try {
+            nextElement(reader);
+            while (nextElement(reader)) {
+                String key = reader.getNamespaceURI() + ":" + reader.getLocalName();
+                if (!props.containsKey(key)) {
+                    props.put(key, readTextContent(reader));
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid XML in " + partName, e);
+        } finally {
+            close(reader);
+        }
+        return props;
+    }
+
+    /*
+     * Local name => text, for the children of the root element
+     */
+    protected Map<String, String> readExtendedProperties() throws IOException {
+
+        Map<String, String> props = new HashMap<>();
+        String partName = getTarget(PresentationPackage.PACKAGE_ROOT, PackageRelationshipTypes.EXTENDED_PROPERTIES,
+                false);
+        XMLStreamReader reader = open(partName);
+        if (reader == null) {
+            return props;
+        }
+        try {
+            nextElement(reader);
+            while (nextChildElement(reader)) {
+                if (NS_EXTENDED_PROPERTIES.equals(reader.getNamespaceURI())) {
+                    props.putIfAbsent(reader.getLocalName(), readTextContent(reader));
+                } else {
+                    skipElement(reader);
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid XML in " + partName, e);
+        } finally {
+            close(reader);
+        }
+        return props;
+    }
+
+    /*
+     * As POI (XSLFSlide#getTitle): the text of the first shape of the tree which is a title placeholder (type
+     * "title"). null if none. If fonts is not null, the whole part is read and its fonts are added, else only the
+     * shapes before the title are read
+     */
+    protected String readSlideTitle(String partName, Theme theme, Set<String> fonts) throws IOException {
+
+        XMLStreamReader reader = open(partName);
+        if (reader == null) {
+            return null;
+        }
+        if (fonts != null) {
+            reader = new FontCollectingReader(reader, theme, fonts);
+        }
+        try {
+            String title = null;
+            if (nextElement(reader) && toChild(reader, PresentationPackage.NS_PRESENTATIONML, "cSld")
+                    && toChild(reader, PresentationPackage.NS_PRESENTATIONML, "spTree")) {
+                title = findTitle(reader);
+            }
+            if (fonts != null) {
+                skipToEnd(reader);
+            }
+            return title;
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid XML in " + partName, e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /*
+     * The reader is on the start of a shapes container. Returns null (the reader being on the end of the container)
+     * if there is no title in it
+     */
+    protected String findTitle(XMLStreamReader reader) throws XMLStreamException {
+
+        while (nextChildElement(reader)) {
+            String title = null;
+            if (isElement(reader, PresentationPackage.NS_PRESENTATIONML, "sp")) {
+                title = readTitle(reader);
+            } else if (isElement(reader, PackageNamespaces.MARKUP_COMPATIBILITY, "AlternateContent")) {
+                title = findTitleInAlternateContent(reader);
+            } else {
+                skipElement(reader);
+            }
+            if (title != null) {
+                return title;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * As POI (XSLFSheet#buildShapes): the children of the first element of the first mc:Choice are read as shapes
+     */
+    protected String findTitleInAlternateContent(XMLStreamReader reader) throws XMLStreamException {
+
+        if (toChild(reader, PackageNamespaces.MARKUP_COMPATIBILITY, "Choice")) {
+            if (nextChildElement(reader)) {
+                String title = findTitle(reader);
+                if (title != null) {
+                    return title;
+                }
+                skipRest(reader);
+            }
+            skipRest(reader);
+        }
+        return null;
+    }
+
+    /*
+     * The reader is on the start of a p:sp. Returns its text if it is a title placeholder, else null. The reader is
+     * then on the end of the p:sp
+     */
+    protected String readTitle(XMLStreamReader reader) throws XMLStreamException {
+
+        boolean title = false;
+        String text = "";
+        while (nextChildElement(reader)) {
+            if (isElement(reader, PresentationPackage.NS_PRESENTATIONML, "nvSpPr")) {
+                title = isTitlePlaceholder(reader);
+            } else if (title && isElement(reader, PresentationPackage.NS_PRESENTATIONML, "txBody")) {
+                text = readTextBody(reader);
+            } else {
+                skipElement(reader);
+            }
+        }
+        return title ? text : null;
+    }
+
+    /*
+     * The reader is on the start of p:nvSpPr
+     */
+    protected boolean isTitlePlaceholder(XMLStreamReader reader) throws XMLStreamException {
+
+        boolean title = false;
+        if (toChild(reader, PresentationPackage.NS_PRESENTATIONML, "nvPr")) {
+            if (toChild(reader, PresentationPackage.NS_PRESENTATIONML, "ph")) {
+                title = "title".equals(reader.getAttributeValue(null, "type"));
+                skipElement(reader);
+                skipRest(reader);
+            }
+            skipRest(reader);
+        }
+        return title;
+    }
+
+    /*
+     * As POI (XSLFTextShape#getText): the raw text of the runs, line breaks and fields, the paragraphs separated by a
+     * new line (but the empty first ones)
+     */
+    protected String readTextBody(XMLStreamReader reader) throws XMLStreamException {
+
+        StringBuilder out = new StringBuilder();
+        while (nextChildElement(reader)) {
+            if (!isElement(reader, NS_DRAWINGML, "p")) {
+                skipElement(reader);
+                continue;
+            }
+            if (out.length() > 0) {
+                out.append('\n');
+            }
+            while (nextChildElement(reader)) {
+                if (isElement(reader, NS_DRAWINGML, "br")) {
+                    out.append('\n');
+                    skipElement(reader);
+                } else if (isElement(reader, NS_DRAWINGML, "r") || isElement(reader, NS_DRAWINGML, "fld")) {
+                    // POI appends the missing text (getT() is null) as "null"
+                    String text = null;
+                    while (nextChildElement(reader)) {
+                        if (text == null && isElement(reader, NS_DRAWINGML, "t")) {
+                            text = readTextContent(reader);
+                        } else {
+                            skipElement(reader);
+                        }
+                    }
+                    out.append(text);
+                } else {
+                    skipElement(reader);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    /*
+     * The name of the layout, "" if not set. Only the beginning of the part is read
+     */
+    protected String getLayoutName(String partName) throws IOException {
+
+        String name = layoutNames.get(partName);
+        if (name != null) {
+            return name;
+        }
+        name = "";
+        XMLStreamReader reader = open(partName);
+        if (reader != null) {
+            try {
+                if (nextElement(reader) && toChild(reader, PresentationPackage.NS_PRESENTATIONML, "cSld")) {
+                    String value = reader.getAttributeValue(null, "name");
+                    name = value == null ? "" : value;
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Invalid XML in " + partName, e);
+            } finally {
+                close(reader);
+            }
+        }
+        layoutNames.put(partName, name);
+        return name;
+    }
+
+    /*
+     * As POI (XSLFSheet#getTheme): the first theme of the master. Only the beginning of the part is read (until the
+     * fonts)
+     */
+    protected Theme getTheme(String masterPartName) throws IOException {
+
+        String partName = masterPartName == null ? null
+                : getTarget(masterPartName, XSLFRelation.THEME.getRelation(), false);
+        if (partName == null) {
+            return null;
+        }
+        Theme theme = themes.get(partName);
+        if (theme != null) {
+            return theme;
+        }
+        theme = new Theme();
+        XMLStreamReader reader = open(partName);
+        if (reader != null) {
+            try {
+                if (nextElement(reader)) {
+                    String name = reader.getAttributeValue(null, "name");
+                    theme.name = name == null ? "" : name;
+                }
+                while (nextElement(reader)) {
+                    boolean major = isElement(reader, NS_DRAWINGML, "majorFont");
+                    if (major || isElement(reader, NS_DRAWINGML, "minorFont")) {
+                        String prefix = major ? "mj-" : "mn-";
+                        while (nextChildElement(reader)) {
+                            String script = THEME_FONT_SCRIPTS.get(reader.getLocalName());
+                            if (script != null && NS_DRAWINGML.equals(reader.getNamespaceURI())) {
+                                theme.fonts.put(prefix + script, reader.getAttributeValue(null, "typeface"));
+                            }
+                            skipElement(reader);
+                        }
+                        if (!major) {
+                            break;
+                        }
+                    }
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Invalid XML in " + partName, e);
+            } finally {
+                close(reader);
+            }
+        }
+        themes.put(partName, theme);
+        return theme;
+    }
+
+    // ============================================================
+    // FONTS
+    // ============================================================
+    /*
+     * Adds the typefaces used by the masters and their layouts, in the order they are found. The fonts of the slides
+     * are added when reading their title (see readSlideTitle)
+     */
+    protected void scanMastersFonts(Presentation presentation, Set<String> fonts) throws IOException {
+
+        Set<String> layouts = new LinkedHashSet<>();
+        for (String master : presentation.masters) {
+            scanFonts(master, getTheme(master), fonts);
+            for (Relationship rel : getRelationships(master)) {
+                if (XSLFRelation.SLIDE_LAYOUT.getRelation().equals(rel.getType()) && exists(rel)) {
+                    layouts.add(rel.getTarget());
+                }
+            }
+        }
+        for (String layout : layouts) {
+            scanFonts(layout, getTheme(getTarget(layout, XSLFRelation.SLIDE_MASTER.getRelation(), true)), fonts);
+        }
+    }
+
+    protected void scanFonts(String partName, Theme theme, Set<String> fonts) throws IOException {
+
+        XMLStreamReader reader = open(partName);
+        if (reader == null) {
+            return;
+        }
+        try {
+            skipToEnd(new FontCollectingReader(reader, theme, fonts));
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid XML in " + partName, e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /*
+     * Adds the typefaces of the text run properties (latin, east asian, complex script, symbol) and of the bullets
+     * found while the part is read, whatever reads it. The theme font references ("+mj-lt", ...) are resolved with the
+     * theme of the part
+     */
+    protected static class FontCollectingReader extends StreamReaderDelegate {
+
+        protected final Theme theme;
+
+        protected final Set<String> fonts;
+
+        public FontCollectingReader(XMLStreamReader reader, Theme theme, Set<String> fonts) {
+            super(reader);
+            this.theme = theme;
+            this.fonts = fonts;
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+
+            int event = super.next();
+            if (event == XMLStreamConstants.START_ELEMENT && FONT_ELEMENTS.contains(getLocalName())
+                    && NS_DRAWINGML.equals(getNamespaceURI())) {
+                String typeface = getAttributeValue(null, "typeface");
+                if (typeface != null && typeface.startsWith("+")) {
+                    typeface = theme == null ? null : theme.fonts.get(typeface.substring(1));
+                }
+                if (StringUtils.isNotBlank(typeface)) {
+                    fonts.add(typeface);
+                }
+            }
+            return event;
+        }
+    }
+
+    // ============================================================
+    // RELATIONSHIPS
+    // ============================================================
+    /*
+     * Sorted by id, as POI iterates them
+     */
+    protected List<Relationship> getRelationships(String partName) throws IOException {
+
+        List<Relationship> result = relationships.get(partName);
+        if (result != null) {
+            return result;
+        }
+        Map<String, Relationship> byId = new TreeMap<>();
+        String relsPartName = PresentationPackage.getRelationshipPartName(partName);
+        XMLStreamReader reader = open(relsPartName);
+        if (reader != null) {
+            try {
+                while (nextElement(reader)) {
+                    if (isElement(reader, PackageNamespaces.RELATIONSHIPS, "Relationship")) {
+                        String id = reader.getAttributeValue(null, "Id");
+                        String target = reader.getAttributeValue(null, "Target");
+                        byId.put(id, PresentationPackage.newRelationship(partName, id,
+                                reader.getAttributeValue(null, "Type"), target == null ? "" : target,
+                                reader.getAttributeValue(null, "TargetMode")));
+                    }
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Invalid XML in " + relsPartName, e);
+            } finally {
+                close(reader);
+            }
+        }
+        result = new ArrayList<>(byId.values());
+        relationships.put(partName, result);
+        return result;
+    }
+
+    /*
+     * The target of the first (or last) internal relationship of this type whose target exists, or null
+     */
+    protected String getTarget(String partName, String type, boolean last) throws IOException {
+
+        String result = null;
+        for (Relationship rel : getRelationships(partName)) {
+            if (type.equals(rel.getType()) && exists(rel)) {
+                result = rel.getTarget();
+                if (!last) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    protected boolean exists(Relationship rel) {
+        return !rel.isExternal() && entries.containsKey(rel.getTarget());
+    }
+
+    // ============================================================
+    // VALUES
+    // ============================================================
+    /*
+     * As POI: empty means not set
+     */
+    protected static String getString(Map<String, String> props, String namespace, String localName) {
+
+        String value = props.get(namespace + ":" + localName);
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    protected static String getDate(Map<String, String> props, String namespace, String localName) {
+
+        Date date = parseDate(getString(props, namespace, localName));
+        return date == null ? null : PowerPointUtils.DATE_FORMAT.format(date);
+    }
+
+    /*
+     * As POI (ExtendedProperties): -1 if not set
+     */
+    protected static int getInt(Map<String, String> props, String localName) {
+
+        String value = props.get(localName);
+        return value == null ? -1 : NumberUtils.toInt(value.trim(), -1);
+    }
+
+    protected static boolean getBoolean(XMLStreamReader reader, String attribute, boolean defaultValue) {
+
+        String value = reader.getAttributeValue(null, attribute);
+        if (value == null) {
+            return defaultValue;
+        }
+        value = value.trim();
+        return "true".equals(value) || "1".equals(value);
+    }
+
+    /*
+     * Same as POI (PackagePropertiesPart#parseDateValue), null if the date cannot be parsed
+     */
+    protected static Date parseDate(String value) {
+
+        if (value == null) {
+            return null;
+        }
+        Date date = null;
+        Matcher m = TIME_ZONE_PATTERN.matcher(value);
+        if (m.find()) {
+            date = parseDate(TZ_DATE_FORMATS, value.substring(0, m.start()) + m.group(1) + m.group(2));
+        }
+        if (date == null) {
+            date = parseDate(DATE_FORMATS, value.endsWith("Z") ? value : value + "Z");
+        }
+        return date;
+    }
+
+    protected static Date parseDate(String[] formats, String value) {
+
+        for (String format : formats) {
+            SimpleDateFormat df = new SimpleDateFormat(format, Locale.ROOT);
+            df.setTimeZone(TimeZone.getTimeZone("UTC"));
+            Date date = df.parse(value, new ParsePosition(0));
+            if (date != null) {
+                return date;
+            }
+        }
+        return null;
+    }
+
+    // ============================================================
+    // STAX
+    // ============================================================
+    /*
+     * null if the part does not exist
+     */
+    protected XMLStreamReader open(String partName) throws IOException {
+
+        ZipArchiveEntry entry = partName == null ? null : entries.get(partName);
+        if (entry == null) {
+            return null;
+        }
+        InputStream in = zip.getInputStream(entry);
+        try {
+            return new ClosingStreamReader(XML_INPUT_FACTORY.createXMLStreamReader(in), in);
+        } catch (XMLStreamException e) {
+            in.close();
+            throw new IOException("Invalid XML in " + partName, e);
+        }
+    }
+
+    /*
+     * Closing a StAX reader does not close its stream
+     */
+    protected static class ClosingStreamReader extends StreamReaderDelegate {
+
+        protected final InputStream in;
+
+        public ClosingStreamReader(XMLStreamReader reader, InputStream in) {
+            super(reader);
+            this.in = in;
+        }
+
+        @Override
+        public void close() throws XMLStreamException {
+            try {
+                super.close();
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    throw new XMLStreamException(e);
+                }
+            }
+        }
+    }
+
+    protected static void close(XMLStreamReader reader) throws IOException {
+
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    protected static boolean isElement(XMLStreamReader reader, String namespace, String localName) {
+        return localName.equals(reader.getLocalName()) && namespace.equals(reader.getNamespaceURI());
+    }
+
+    /*
+     * Moves to the next start element, at any level. false at the end of the document
+     */
+    protected static boolean nextElement(XMLStreamReader reader) throws XMLStreamException {
+
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * The reader is on a start element, or on the end of its previous child. Moves to the start of the next child, or
+     * to the end of the element (returns false)
+     */
+    protected static boolean nextChildElement(XMLStreamReader reader) throws XMLStreamException {
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            }
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Moves to the first child with this name. If none, the reader is on the end of the element (returns false)
+     */
+    protected static boolean toChild(XMLStreamReader reader, String namespace, String localName)
+            throws XMLStreamException {
+
+        while (nextChildElement(reader)) {
+            if (isElement(reader, namespace, localName)) {
+                return true;
+            }
+            skipElement(reader);
+        }
+        return false;
+    }
+
+    /*
+     * The reader is on a start element: moves to its end
+     */
+    protected static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    protected static void skipToEnd(XMLStreamReader reader) throws XMLStreamException {
+
+        while (reader.hasNext()) {
+            reader.next();
+        }
+    }
+
+    /*
+     * The reader is in an element (on its start, or on the end of a child): moves to its end
+     */
+    protected static void skipRest(XMLStreamReader reader) throws XMLStreamException {
+
+        while (nextChildElement(reader)) {
+            skipElement(reader);
+        }
+    }
+
+    /*
+     * As DOM getTextContent(): the text of the element and of its descendants. The reader is then on its end
+     */
+    protected static String readTextContent(XMLStreamReader reader) throws XMLStreamException {
+
+        StringBuilder text = new StringBuilder();
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+            case XMLStreamConstants.ENTITY_REFERENCE:
+                text.append(reader.getText());
+                break;
+            default:
+                break;
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.awt.RenderingHints;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * Quality profiles used when drawing slides:
+ * <ul>
+ * <li>HIGH (default): the best quality, for exports. Bicubic interpolation for the pictures, fractional metrics for
+ * the text.</li>
+ * <li>STANDARD: same, but bilinear interpolation, which is a lot faster for pictures and hard to distinguish on
+ * thumbnails.</li>
+ * <li>DRAFT: for small previews (grids, ...). Favors speed: nearest neighbor interpolation, no fractional metrics, and
+ * the expensive effects are skipped (shadows are not drawn, gradients are drawn as a solid color, see
+ * {@link DraftDrawFactory}), and the pictures are decoded at the size they are displayed (see
+ * {@link DraftImageRenderer}).</li>
+ * </ul>
+ *
+ * @since 2023.2
+ */
+public enum RenderingQuality {
+
+    DRAFT(RenderingHints.VALUE_RENDER_SPEED, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR,
+            RenderingHints.VALUE_FRACTIONALMETRICS_OFF, true),
+
+    STANDARD(RenderingHints.VALUE_RENDER_QUALITY, RenderingHints.VALUE_INTERPOLATION_BILINEAR,
+            RenderingHints.VALUE_FRACTIONALMETRICS_ON, false),
+
+    HIGH(RenderingHints.VALUE_RENDER_QUALITY, RenderingHints.VALUE_INTERPOLATION_BICUBIC,
+            RenderingHints.VALUE_FRACTIONALMETRICS_ON, false);
+
+    protected final RenderingHints hints;
+
+    protected final boolean draft;
+
+    private RenderingQuality(Object rendering, Object interpolation, Object fractionalMetrics, boolean draft) {
+
+        hints = new RenderingHints(null);
+        // Always antialiased, even in draft: without it, text is hardly readable in small thumbnails
+        hints.put(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        hints.put(RenderingHints.KEY_RENDERING, rendering);
+        hints.put(RenderingHints.KEY_INTERPOLATION, interpolation);
+        hints.put(RenderingHints.KEY_FRACTIONALMETRICS, fractionalMetrics);
+        this.draft = draft;
+    }
+
+    /**
+     * @return a copy of the rendering hints of this profile
+     */
+    public RenderingHints getHints() {
+        return (RenderingHints) hints.clone();
+    }
+
+    /**
+     * @return true if shadows and gradients must be skipped, and pictures decoded at their displayed size
+     */
+    public boolean isDraft() {
+        return draft;
+    }
+
+    /**
+     * @param value, case insensitive. Blank means HIGH
+     * @return the quality
+     */
+    public static RenderingQuality fromString(String value) {
+
+        if (StringUtils.isBlank(value)) {
+            return HIGH;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new NuxeoException(value + " is not a supported quality (only draft, standard or high)");
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.SharedMetricRegistries;
+
+/**
+ * Identical calls running at the same time (same presentation, operation and parameters, see
+ * {@link ResultCache#getKey}) are computed only once: the first one computes the result, the others wait for it and
+ * get their own copy. So 50 users opening the same deck at once do not load and render it 50 times.
+ * <p>
+ * The operations coalesce their calls before they are admitted (see {@link #coalesce}), so the calls waiting for
+ * another one take no slot and no memory in the {@link nuxeo.powerpoint.utils.service.AdmissionController}. The
+ * engine does not coalesce them again (each call is counted once), it coalesces the calls made with the Java API.
+ * <p>
+ * Nothing is kept once the computation is done (see {@link ResultCache} for this): a call starting after it computes
+ * the result again. If the computation fails, all the calls waiting for it fail with the same exception.
+ * <p>
+ * The calls computing a result and the calls getting the result of another one are counted, by operation, in the
+ * Nuxeo metrics ("nuxeo.powerpoint.requests.executed" and "nuxeo.powerpoint.requests.coalesced").
+ * <p>
+ * Thread safe.
+ *
+ * @since 2023.2
+ */
+public class RequestCoalescer {
+
+    /**
+     * Configuration property, "false" to compute each call, even when the same one is running. Default is true
+     */
+    public static final String ENABLED_PROPERTY = "nuxeo.powerpoint.coalescing.enabled";
+
+    protected static final MetricName EXECUTED_METRIC = MetricName.build("nuxeo", "powerpoint", "requests",
+            "executed");
+
+    protected static final MetricName COALESCED_METRIC = MetricName.build("nuxeo", "powerpoint", "requests",
+            "coalesced");
+
+    protected static RequestCoalescer shared;
+
+    protected final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    protected final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected final LongAdder executed = new LongAdder();
+
+    protected final LongAdder coalesced = new LongAdder();
+
+    protected final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * @return the coalescer of the node, or null if disabled in the configuration
+     */
+    public static synchronized RequestCoalescer getShared() {
+
+        if ("false".equalsIgnoreCase(Framework.getProperty(ENABLED_PROPERTY))) {
+            return null;
+        }
+        if (shared == null) {
+            shared = new RequestCoalescer();
+        }
+        return shared;
+    }
+
+    /**
+     * Same as {@link #execute(String, String, ResultCache.Computation, UnaryOperator)}, with the coalescer of the node.
+     * The result is computed by this call if coalescing is disabled
+     */
+    public static <T> T coalesce(String key, String operation, ResultCache.Computation<T> computation,
+            UnaryOperator<T> copy) throws IOException {
+
+        RequestCoalescer coalescer = getShared();
+        if (coalescer == null) {
+            return computation.compute();
+        }
+        return coalescer.execute(key, operation, computation, copy);
+    }
+
+    /**
+     * @param key, the call. If null, the result is computed by this call, whatever is running
+     * @param operation, for the metrics
+     * @param computation, computes the result
+     * @param copy, makes the copy of the result for a call waiting for it
+     * @return the result computed by this call, or a copy of the result computed by the same call running at the same
+     *         time
+     * @throws IOException
+     */
+    public <T> T execute(String key, String operation, ResultCache.Computation<T> computation, UnaryOperator<T> copy)
+            throws IOException {
+
+        if (key == null) {
+            return computation.compute();
+        }
+
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            coalesced.increment();
+            registry.counter(COALESCED_METRIC.tagged("operation", operation)).inc();
+            @SuppressWarnings("unchecked")
+            T result = (T) await(running);
+            return copy.apply(result);
+        }
+
+        executed.increment();
+        registry.counter(EXECUTED_METRIC.tagged("operation", operation)).inc();
+        try {
+            T result = computation.compute();
+            future.complete(result);
+            return result;
+        } catch (IOException | RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * @return a copy of the blobs, each in its own temporary file. Same file names, mime types and encodings
+     * @throws NuxeoException if a blob cannot be copied
+     */
+    public static List<Blob> copyBlobs(List<Blob> blobs) {
+
+        if (blobs == null) {
+            return null;
+        }
+        List<Blob> result = new ArrayList<>(blobs.size());
+        for (Blob blob : blobs) {
+            result.add(copyBlob(blob));
+        }
+        return result;
+    }
+
+    /**
+     * @return a copy of the blob in its own temporary file. Same file name, mime type and encoding
+     * @throws NuxeoException if the blob cannot be copied
+     */
+    public static Blob copyBlob(Blob blob) {
+
+        if (blob == null) {
+            return null;
+        }
+        try {
+            String extension = FilenameUtils.getExtension(blob.getFilename());
+            Blob copy = Blobs.createBlobWithExtension(StringUtils.isEmpty(extension) ? null : "." + extension);
+            blob.transferTo(copy.getFile());
+            copy.setFilename(blob.getFilename());
+            copy.setMimeType(blob.getMimeType());
+            copy.setEncoding(blob.getEncoding());
+            return copy;
+        } catch (IOException e) {
+            throw new NuxeoException("Failed to copy the result", e);
+        }
+    }
+
+    /**
+     * @return the number of results computed
+     */
+    public long getExecuted() {
+        return executed.sum();
+    }
+
+    /**
+     * @return the number of calls which got the result computed for another call
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the number of calls waiting for the result of another call
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * @return the number of results being computed
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * Blobs computed by a call, and the slides replaced by a placeholder, shared with the same calls running at the
+     * same time
+     */
+    public static class SharedResult {
+
+        protected final List<Blob> blobs;
+
+        protected final List<Integer> timedOutSlides;
+
+        public SharedResult(List<Blob> blobs, List<Integer> timedOutSlides) {
+            this.blobs = blobs;
+            this.timedOutSlides = timedOutSlides;
+        }
+
+        public List<Blob> getBlobs() {
+            return blobs;
+        }
+
+        /**
+         * @return the zero-based numbers of the slides replaced by a placeholder, null if unknown (not Apache POI)
+         */
+        public List<Integer> getTimedOutSlides() {
+            return timedOutSlides;
+        }
+
+        /**
+         * @return the result for a call waiting for it: a copy of the blobs, see {@link RequestCoalescer#copyBlobs}
+         */
+        public SharedResult copy() {
+            return new SharedResult(copyBlobs(blobs), timedOutSlides);
+        }
+    }
+
+    protected Object await(CompletableFuture<Object> running) throws IOException {
+
+        waiting.incrementAndGet();
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new NuxeoException(cause);
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.transientstore.api.TransientStore;
+import org.nuxeo.ecm.core.transientstore.api.TransientStoreService;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.SharedMetricRegistries;
+
+/**
+ * The results of the calls (thumbnails, slides, properties), by digest of the presentation, operation and parameters,
+ * stored in a {@link TransientStore}. With a store shared by the cluster (the default transient store class, on a
+ * shared key/value store and blob provider), a presentation already processed by a node is not processed again by
+ * another one.
+ * <p>
+ * The time to live and the maximum size are the ones of the store, see OSGI-INF/transientstore-contrib.xml and its
+ * configuration properties. Hits and misses are counted, by operation, in the Nuxeo metrics
+ * ("nuxeo.powerpoint.results.hit" and "nuxeo.powerpoint.results.miss").
+ * <p>
+ * Thread safe.
+ *
+ * @since 2023.2
+ */
+public class ResultCache {
+
+    /**
+     * Configuration property, "true" to cache the results. Default is false
+     */
+    public static final String ENABLED_PROPERTY = "nuxeo.powerpoint.resultCache.enabled";
+
+    /**
+     * Name of the transient store, see OSGI-INF/transientstore-contrib.xml
+     */
+    public static final String STORE_NAME = "powerpointResults";
+
+    protected static final String JSON_PARAMETER = "json";
+
+    protected static final MetricName HIT_METRIC = MetricName.build("nuxeo", "powerpoint", "results", "hit");
+
+    protected static final MetricName MISS_METRIC = MetricName.build("nuxeo", "powerpoint", "results", "miss");
+
+    protected final TransientStore store;
+
+    protected final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Computes a result on a miss, see {@link ResultCache#getBlobs(String, String, Computation)}
+     */
+    @FunctionalInterface
+    public interface Computation<T> {
+        T compute() throws IOException;
+    }
+
+    /**
+     * @param store, where the results are kept
+     */
+    public ResultCache(TransientStore store) {
+        this.store = store;
+    }
+
+    /**
+     * @return a cache on the {@link #STORE_NAME} store, or null if the cache is disabled (see
+     *         {@link #ENABLED_PROPERTY})
+     */
+    public static ResultCache fromConfiguration() {
+
+        if (!Framework.isBooleanPropertyTrue(ENABLED_PROPERTY)) {
+            return null;
+        }
+        return new ResultCache(Framework.getService(TransientStoreService.class).getStore(STORE_NAME));
+    }
+
+    /**
+     * @param blob, the presentation
+     * @param operation, the name of the operation
+     * @param parameters, everything the result depends on, besides the bytes of the presentation. Their
+     *            <code>toString()</code> is used
+     * @return the key of the result, or null if the blob is null or has no digest (its result cannot be cached)
+     */
+    public static String getKey(Blob blob, String operation, Object... parameters) {
+
+        String digest = blob != null ? blob.getDigest() : null;
+        if (StringUtils.isBlank(digest)) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(digest).append('\n').append(operation);
+        for (Object parameter : parameters) {
+            sb.append('\n').append(parameter);
+        }
+        // Bounded length, whatever the parameters
+        return "pptresult-" + DigestUtils.sha256Hex(sb.toString());
+    }
+
+    /**
+     * @param key, see {@link #getKey(Blob, String, Object...)}. If null, the result is computed and not cached
+     * @param operation, for the metrics
+     * @param computation, computes the result on a miss
+     * @return the blobs, from the store or just computed
+     * @throws IOException
+     */
+    public List<Blob> getBlobs(String key, String operation, Computation<List<Blob>> computation)
+            throws IOException {
+        return getBlobs(key, operation, computation, () -> true);
+    }
+
+    /**
+     * Same as {@link #getBlobs(String, String, Computation)}, the result being stored only if <code>cacheable</code>
+     * returns true once it is computed (a thumbnail drawn as a placeholder, for example, must not be kept)
+     */
+    public List<Blob> getBlobs(String key, String operation, Computation<List<Blob>> computation,
+            BooleanSupplier cacheable) throws IOException {
+
+        if (key == null) {
+            return computation.compute();
+        }
+        if (store.exists(key) && store.isCompleted(key)) {
+            List<Blob> blobs = store.getBlobs(key);
+            if (blobs != null) {
+                hit(operation);
+                return new ArrayList<>(blobs);
+            }
+        }
+        miss(operation);
+        List<Blob> blobs = computation.compute();
+        if (blobs != null && cacheable.getAsBoolean()) {
+            store.putBlobs(key, blobs);
+            store.setCompleted(key, true);
+        }
+        return blobs;
+    }
+
+    /**
+     * Same as {@link #getBlobs(String, String, Computation)}, for a JSON string
+     */
+    public String getJSON(String key, String operation, Computation<String> computation) throws IOException {
+
+        if (key == null) {
+            return computation.compute();
+        }
+        Serializable json = store.getParameter(key, JSON_PARAMETER);
+        if (json != null) {
+            hit(operation);
+            return json.toString();
+        }
+        miss(operation);
+        String result = computation.compute();
+        if (result != null) {
+            store.putParameter(key, JSON_PARAMETER, result);
+            store.setCompleted(key, true);
+        }
+        return result;
+    }
+
+    /**
+     * Removes a result from the store
+     */
+    public void remove(String key) {
+        store.remove(key);
+    }
+
+    public TransientStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return the hits of this instance (the metrics count the hits of all the instances)
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the misses of this instance (the metrics count the misses of all the instances)
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    protected void hit(String operation) {
+        hits.incrementAndGet();
+        registry.counter(HIT_METRIC.tagged("operation", operation)).inc();
+    }
+
+    protected void miss(String operation) {
+        misses.incrementAndGet();
+        registry.counter(MISS_METRIC.tagged("operation", operation)).inc();
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.poi.ooxml.util.DocumentHelper;
+import org.apache.poi.openxml4j.opc.PackageNamespaces;
+import org.apache.poi.openxml4j.util.ZipSecureFile;
+import org.apache.poi.util.XMLHelper;
+import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import nuxeo.powerpoint.utils.apachepoi.PresentationPackage.Relationship;
+import nuxeo.powerpoint.utils.apachepoi.PresentationPackage.SlideRef;
+import nuxeo.powerpoint.utils.service.AdmissionController;
+import nuxeo.powerpoint.utils.service.AdmissionController.Checkpoint;
+
+/**
+ * Builds one-slide presentations from a source presentation, working at the package level: the source is opened and
+ * indexed once (see {@link PresentationPackage}), then each output is written by copying the parts it needs. No
+ * slide is ever loaded in the POI user model, so splitting a presentation of N slides costs one read and N writes,
+ * instead of N full parse/remove/write cycles.
+ * <p>
+ * An output contains only the parts the slide depends on (see {@link PresentationPackage#getPartsForSlide(String)}):
+ * its layout, master, theme, media, charts, embeddings, notes, ... plus the presentation-level parts. The XML parts
+ * referencing dropped parts by relationship id (<code>presentation.xml</code> for the slides and masters lists, the
+ * slide master for its layouts list, ...) are rewritten accordingly, everything else is copied as is, still
+ * compressed (see {@link PackageWriter}). So the cost of extracting a slide is proportional to the few XML parts to
+ * rewrite, not to the whole presentation, nor even to the size of the media it uses.
+ *
+ * @since 2023.2
+ */
+public class SlidesExtractor implements Closeable {
+
+    // A blank slide, see writeSlideForRendering()
+    protected static final byte[] PLACEHOLDER_SLIDE = ("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+            + "<p:sld xmlns:a=\"http://schemas.openxmlformats.org/drawingml/2006/main\" xmlns:p=\""
+            + PresentationPackage.NS_PRESENTATIONML + "\"><p:cSld><p:spTree><p:nvGrpSpPr><p:cNvPr id=\"1\" name=\"\"/>"
+            + "<p:cNvGrpSpPr/><p:nvPr/></p:nvGrpSpPr><p:grpSpPr/></p:spTree></p:cSld></p:sld>").getBytes(
+                    StandardCharsets.UTF_8);
+
+    protected final ZipFile zip;
+
+    protected final PresentationPackage pkg;
+
+    // Parsed XML parts we had to rewrite at least once, so we parse them only once
+    protected final Map<String, Document> parsedParts = new HashMap<>();
+
+    /**
+     * Opens and indexes the presentation. Caller must {@link #close()} the extractor.
+     *
+     * @param pptxFile, the source presentation
+     * @throws IOException
+     */
+    public SlidesExtractor(File pptxFile) throws IOException {
+        this(pptxFile, null);
+    }
+
+    /**
+     * Same as {@link #SlidesExtractor(File)}, the index of the package being read only if <code>deck</code> does not
+     * have it yet.
+     *
+     * @param pptxFile, the source presentation
+     * @param deck, what was already read from the presentation. Can be null
+     * @throws IOException
+     * @since 2023.2
+     */
+    public SlidesExtractor(File pptxFile, ParsedDeck deck) throws IOException {
+
+        zip = new ZipSecureFile(pptxFile);
+        try {
+            pkg = deck == null ? PresentationPackage.read(zip) : deck.getPackage(zip);
+        } catch (IOException | RuntimeException e) {
+            zip.close();
+            throw e;
+        }
+    }
+
+    public PresentationPackage getPackage() {
+        return pkg;
+    }
+
+    public int getSlidesCount() {
+        return pkg.getSlidesCount();
+    }
+
+    /**
+     * Returns a list of blobs, one/slide, named "{fileNameBase}-{slideNumber + 1}.pptx"
+     *
+     * @param fileNameBase, the name of the source presentation
+     * @param mimeType, the mime type to set on each blob
+     * @return the list of one-slide presentations, in the slides order
+     * @throws IOException
+     */
+    public BlobList split(String fileNameBase, String mimeType) throws IOException {
+
+        BlobList result = new BlobList();
+        Checkpoint checkpoint = AdmissionController.getCheckpoint();
+        for (int i = 0; i < getSlidesCount(); i++) {
+            checkpoint.reached();
+            result.add(getSlide(i, fileNameBase, mimeType));
+        }
+        return result;
+    }
+
+    /**
+     * Returns a presentation containing only the slide. The file name of the blob is "{fileNameBase}-{slideNumber +
+     * 1}.pptx" (see {@link nuxeo.powerpoint.utils.api.PowerPointUtils#getSlide(Blob, int)})
+     *
+     * @param slideNumber, zero-based
+     * @param fileNameBase, the name of the source presentation
+     * @param mimeType, the mime type to set on the blob
+     * @return the one-slide presentation
+     * @throws IOException
+     */
+    public Blob getSlide(int slideNumber, String fileNameBase, String mimeType) throws IOException {
+
+        Blob result = Blobs.createBlobWithExtension(".pptx");
+        try (OutputStream out = new FileOutputStream(result.getFile())) {
+            writeSlide(slideNumber, out);
+        }
+
+        result.setMimeType(mimeType);
+        fileNameBase = FilenameUtils.getBaseName(fileNameBase);
+        fileNameBase = StringUtils.appendIfMissing(fileNameBase, "-");
+        // See interface: the file name must be 1-based, not zero-based
+        result.setFilename(fileNameBase + (slideNumber + 1) + ".pptx");
+
+        return result;
+    }
+
+    /**
+     * Writes a .pptx containing only the slide to <code>out</code>. Does not close <code>out</code>.
+     *
+     * @param slideNumber, zero-based
+     * @param out
+     * @throws IOException
+     */
+    public void writeSlide(int slideNumber, OutputStream out) throws IOException {
+        writeSlide(slideNumber, false, out);
+    }
+
+    /**
+     * Writes a .pptx to render the slide, without loading the others. Same as {@link #writeSlide(int, OutputStream)},
+     * but the slides before it are kept as blank placeholders: tiny parts, with no relationships, so parsing them costs
+     * nothing, but the slide keeps its number once loaded by POI (slide number fields, file name of the thumbnail,
+     * ...). In the result, the slide is at <code>slideNumber</code>. Does not close <code>out</code>.
+     *
+     * @param slideNumber, zero-based
+     * @param out
+     * @throws IOException
+     * @since 2023.2
+     */
+    public void writeSlideForRendering(int slideNumber, OutputStream out) throws IOException {
+        writeSlide(slideNumber, true, out);
+    }
+
+    protected void writeSlide(int slideNumber, boolean withPlaceholders, OutputStream out) throws IOException {
+
+        if (slideNumber < 0 || slideNumber >= getSlidesCount()) {
+            throw new NuxeoException("Invalid slide number: " + slideNumber);
+        }
+
+        SlideRef slide = pkg.getSlides().get(slideNumber);
+        Set<String> parts = pkg.getPartsForSlide(slide.getPartName());
+
+        Set<String> placeholders = new HashSet<>();
+        if (withPlaceholders) {
+            for (SlideRef previous : pkg.getSlides().subList(0, slideNumber)) {
+                placeholders.add(previous.getPartName());
+            }
+        }
+
+        // For every part we keep: the ids of its relationships to parts we drop
+        Map<String, Set<String>> droppedRelIds = new HashMap<>();
+        for (String partName : parts) {
+            Set<String> ids = new HashSet<>();
+            for (Relationship rel : pkg.getRelationships(partName)) {
+                String target = rel.getTarget();
+                if (!rel.isExternal() && pkg.getEntry(target) != null && !parts.contains(target)
+                        && !placeholders.contains(target)) {
+                    ids.add(rel.getId());
+                }
+            }
+            if (!ids.isEmpty()) {
+                droppedRelIds.put(partName, ids);
+            }
+        }
+        Set<String> droppedSldIds = new HashSet<>();
+        for (SlideRef other : pkg.getSlides()) {
+            if (other != slide && !placeholders.contains(other.getPartName())) {
+                droppedSldIds.add(String.valueOf(other.getSldId()));
+            }
+        }
+
+        Set<String> contentTypeParts = new LinkedHashSet<>(placeholders);
+        contentTypeParts.addAll(parts);
+
+        try (PackageWriter writer = new PackageWriter(out)) {
+            writer.writePart(PresentationPackage.CONTENT_TYPES_PART_NAME,
+                    o -> writeContentTypes(contentTypeParts, o));
+
+            for (String partName : pkg.getPartNames()) {
+                if (placeholders.contains(partName)) {
+                    writer.writePart(partName, o -> o.write(PLACEHOLDER_SLIDE));
+                    continue;
+                }
+
+                boolean isRels = PresentationPackage.isRelationshipPart(partName);
+                String sourcePartName = isRels
+                        ? pkg.resolvePartName(PresentationPackage.getSourcePartName(partName))
+                        : partName;
+                if (!PresentationPackage.PACKAGE_ROOT.equals(sourcePartName) && !parts.contains(sourcePartName)) {
+                    continue;
+                }
+
+                Set<String> ids = droppedRelIds.get(sourcePartName);
+                if (ids == null) {
+                    // Unchanged (media, layout, theme, ...): copied still compressed
+                    writer.copyRaw(zip, pkg.getEntry(partName));
+                } else if (isRels) {
+                    writer.writePart(partName, o -> writeRelationships(partName, ids, o));
+                } else {
+                    Set<String> sldIds = partName.equals(pkg.getPresentationPartName()) ? droppedSldIds
+                            : Collections.emptySet();
+                    writer.writePart(partName, o -> writePart(partName, ids, sldIds, o));
+                }
+            }
+
+            writer.finish();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        zip.close();
+    }
+
+    // ============================================================
+    // XML PARTS REWRITING
+    // ============================================================
+    protected void writeContentTypes(Set<String> parts, OutputStream out) throws IOException {
+
+        try {
+            XMLStreamWriter writer = XMLHelper.newXMLOutputFactory().createXMLStreamWriter(out, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement("Types");
+            writer.writeDefaultNamespace(PackageNamespaces.CONTENT_TYPES);
+            for (Map.Entry<String, String> entry : pkg.getDefaultContentTypes().entrySet()) {
+                writer.writeEmptyElement("Default");
+                writer.writeAttribute("Extension", entry.getKey());
+                writer.writeAttribute("ContentType", entry.getValue());
+            }
+            for (String partName : parts) {
+                String contentType = pkg.getContentType(partName);
+                if (contentType != null) {
+                    writer.writeEmptyElement("Override");
+                    writer.writeAttribute("PartName", partName);
+                    writer.writeAttribute("ContentType", contentType);
+                }
+            }
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /*
+     * Removes every element referencing a dropped relationship (r:id="..."): p:sldId, p:sldMasterId, p:notesMasterId
+     * and p:handoutMasterId (+ the custom shows, p:sld) in presentation.xml, p:sldLayoutId in a slide master,
+     * a:hlinkClick to another slide in the slide, ... For presentation.xml, also removes the other slides from the
+     * sections extension (p14:sldId id="..."), so PowerPoint does not have to "repair" the file.
+     */
+    protected void writePart(String partName, Set<String> droppedRelIds, Set<String> droppedSldIds, OutputStream out)
+            throws IOException {
+
+        Document doc = (Document) getParsedPart(partName).cloneNode(true);
+        List<Element> toRemove = new ArrayList<>();
+        NodeList nodes = doc.getElementsByTagNameNS("*", "*");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Element e = (Element) nodes.item(i);
+            if (droppedRelIds.contains(e.getAttributeNS(PresentationPackage.NS_RELATIONSHIPS, "id"))
+                    || ("sldId".equals(e.getLocalName()) && droppedSldIds.contains(e.getAttribute("id")))) {
+                toRemove.add(e);
+            }
+        }
+        Set<Node> parents = removeAll(toRemove);
+
+        // Do not leave an empty <p:handoutMasterIdLst/>, <p:notesMasterIdLst/>, ...
+        for (Node parent : parents) {
+            if (parent.getLocalName() != null && parent.getLocalName().endsWith("IdLst") && !hasChildElement(parent)
+                    && parent.getParentNode() != null) {
+                parent.getParentNode().removeChild(parent);
+            }
+        }
+
+        writeXml(doc, out);
+    }
+
+    protected void writeRelationships(String relsPartName, Set<String> droppedRelIds, OutputStream out)
+            throws IOException {
+
+        Document doc = (Document) getParsedPart(relsPartName).cloneNode(true);
+        List<Element> toRemove = new ArrayList<>();
+        NodeList nodes = doc.getElementsByTagNameNS(PackageNamespaces.RELATIONSHIPS, "Relationship");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Element e = (Element) nodes.item(i);
+            if (droppedRelIds.contains(e.getAttribute("Id"))) {
+                toRemove.add(e);
+            }
+        }
+        removeAll(toRemove);
+
+        writeXml(doc, out);
+    }
+
+    /*
+     * Returns the parents of the removed elements
+     */
+    protected static Set<Node> removeAll(List<Element> elements) {
+
+        Set<Node> parents = new HashSet<>();
+        for (Element e : elements) {
+            Node parent = e.getParentNode();
+            if (parent != null) {
+                parent.removeChild(e);
+                parents.add(parent);
+            }
+        }
+        return parents;
+    }
+
+    protected static boolean hasChildElement(Node node) {
+
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected Document getParsedPart(String partName) throws IOException {
+
+        Document doc = parsedParts.get(partName);
+        if (doc == null) {
+            doc = readXml(partName);
+            parsedParts.put(partName, doc);
+        }
+        return doc;
+    }
+
+    protected Document readXml(String partName) throws IOException {
+
+        ZipArchiveEntry entry = pkg.getEntry(partName);
+        if (entry == null) {
+            throw new NuxeoException("Not a valid PowerPoint package: no " + partName);
+        }
+        try (InputStream in = zip.getInputStream(entry)) {
+            return DocumentHelper.readDocument(in);
+        } catch (SAXException e) {
+            throw new IOException("Invalid XML in " + partName, e);
+        }
+    }
+
+    protected static void writeXml(Document doc, OutputStream out) throws IOException {
+
+        try {
+            XMLHelper.newTransformer().transform(new DOMSource(doc), new StreamResult(out));
+        } catch (TransformerException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.api.Framework;
+import org.w3c.dom.NodeList;
+
+import nuxeo.powerpoint.utils.apachepoi.PngStreamWriter.Filter;
+
+/**
+ * Encodes the thumbnails, with the settings of the JPEG and PNG encoders:
+ * <ul>
+ * <li>JPEG: quality (0-1) and chroma subsampling</li>
+ * <li>PNG: deflate level (0-9, -1 for the default level), filter, and palette quantization (see
+ * {@link ColorQuantizer}). An indexed PNG is usually 2 to 4 times smaller than an RGB one for a slide, at the price
+ * of the quantization (lossless when the image has 256 colors or less).</li>
+ * </ul>
+ * Default values are the ones of the JDK encoders.
+ * Use {@link #fromConfiguration()} to get an encoder set with the configuration properties.
+ * <p>
+ * The encoder counts the images, the time spent in encoding them and the bytes written, see {@link #getStats()}. It
+ * is thread safe once configured.
+ *
+ * @since 2023.2
+ */
+public class ThumbnailEncoder {
+
+    /**
+     * Configuration property, JPEG quality, between 0 and 1. Default is 0.75
+     */
+    public static final String JPEG_QUALITY_PROPERTY = "nuxeo.powerpoint.thumbnails.jpeg.quality";
+
+    /**
+     * Configuration property, JPEG chroma subsampling, "4:2:0" (default), "4:2:2" or "4:4:4"
+     */
+    public static final String JPEG_CHROMA_SUBSAMPLING_PROPERTY = "nuxeo.powerpoint.thumbnails.jpeg.chromaSubsampling";
+
+    /**
+     * Configuration property, PNG deflate level, 0 to 9 (-1 is the zlib default level, 6). Default is 4
+     */
+    public static final String PNG_COMPRESSION_LEVEL_PROPERTY = "nuxeo.powerpoint.thumbnails.png.compressionLevel";
+
+    /**
+     * Configuration property, PNG filter, "adaptive" (default), "none", "sub", "up", "average" or "paeth"
+     */
+    public static final String PNG_FILTER_PROPERTY = "nuxeo.powerpoint.thumbnails.png.filter";
+
+    /**
+     * Configuration property, true to write 8 bits indexed PNGs. Default is false
+     */
+    public static final String PNG_PALETTE_PROPERTY = "nuxeo.powerpoint.thumbnails.png.palette";
+
+    public static final float DEFAULT_JPEG_QUALITY = 0.75f;
+
+    // Same as the JDK encoder: much faster than 6 or 9, for a few % bigger files
+    public static final int DEFAULT_PNG_COMPRESSION_LEVEL = 4;
+
+    public enum ChromaSubsampling {
+        S420("4:2:0", 2, 2), S422("4:2:2", 2, 1), S444("4:4:4", 1, 1);
+
+        protected final String label;
+
+        // Sampling factors of the luma, the chroma being 1x1
+        protected final int horizontal;
+
+        protected final int vertical;
+
+        private ChromaSubsampling(String label, int horizontal, int vertical) {
+            this.label = label;
+            this.horizontal = horizontal;
+            this.vertical = vertical;
+        }
+
+        public static ChromaSubsampling fromString(String value) {
+
+            if (StringUtils.isBlank(value)) {
+                return S420;
+            }
+            for (ChromaSubsampling subsampling : values()) {
+                if (subsampling.label.equals(value.trim())) {
+                    return subsampling;
+                }
+            }
+            throw new NuxeoException(value + " is not a supported chroma subsampling (only 4:2:0, 4:2:2 or 4:4:4)");
+        }
+    }
+
+    protected float jpegQuality = DEFAULT_JPEG_QUALITY;
+
+    protected ChromaSubsampling jpegChromaSubsampling = ChromaSubsampling.S420;
+
+    protected int pngCompressionLevel = DEFAULT_PNG_COMPRESSION_LEVEL;
+
+    protected Filter pngFilter = Filter.ADAPTIVE;
+
+    protected boolean pngPalette = false;
+
+    protected final Stats stats = new Stats();
+
+    /**
+     * @return an encoder set with the configuration properties
+     */
+    public static ThumbnailEncoder fromConfiguration() {
+
+        ThumbnailEncoder encoder = new ThumbnailEncoder();
+        encoder.setJpegQuality(NumberUtils.toFloat(Framework.getProperty(JPEG_QUALITY_PROPERTY), DEFAULT_JPEG_QUALITY));
+        encoder.setJpegChromaSubsampling(
+                ChromaSubsampling.fromString(Framework.getProperty(JPEG_CHROMA_SUBSAMPLING_PROPERTY)));
+        encoder.setPngCompressionLevel(NumberUtils.toInt(Framework.getProperty(PNG_COMPRESSION_LEVEL_PROPERTY),
+                DEFAULT_PNG_COMPRESSION_LEVEL));
+        String filter = Framework.getProperty(PNG_FILTER_PROPERTY);
+        if (StringUtils.isNotBlank(filter)) {
+            try {
+                encoder.setPngFilter(Filter.valueOf(filter.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new NuxeoException(filter + " is not a supported PNG filter", e);
+            }
+        }
+        encoder.setPngPalette(Boolean.parseBoolean(Framework.getProperty(PNG_PALETTE_PROPERTY)));
+
+        return encoder;
+    }
+
+    /**
+     * Encodes the image to the file
+     *
+     * @param img, <code>TYPE_INT_RGB</code>
+     * @param format, "png" or "jpg"
+     * @param file
+     * @throws IOException
+     */
+    public void encode(BufferedImage img, String format, File file) throws IOException {
+
+        long start = System.nanoTime();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            if ("jpg".equals(format)) {
+                writeJpeg(img, out);
+            } else {
+                ColorQuantizer quantizer = pngPalette ? ColorQuantizer.create(img) : null;
+                PngStreamWriter png = newPngWriter(out, img.getWidth(), img.getHeight(), quantizer);
+                png.writeRows(img, img.getHeight());
+                png.finish();
+            }
+        }
+        stats.add(System.nanoTime() - start, file.length());
+    }
+
+    /**
+     * @param out
+     * @param width
+     * @param height
+     * @param quantizer, <code>null</code> for RGB
+     * @return a PNG writer with the deflate level and the filter of this encoder
+     * @throws IOException
+     */
+    public PngStreamWriter newPngWriter(OutputStream out, int width, int height, ColorQuantizer quantizer)
+            throws IOException {
+        return new PngStreamWriter(out, width, height, pngCompressionLevel, pngFilter, quantizer);
+    }
+
+    protected void writeJpeg(BufferedImage img, OutputStream out) throws IOException {
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new NuxeoException("No JPEG encoder available");
+        }
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+
+            IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(img), param);
+            if (jpegChromaSubsampling != ChromaSubsampling.S420) {
+                setChromaSubsampling(metadata);
+            }
+
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(img, null, metadata), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /*
+     * The sampling factors are in the SOF marker of the native JDK metadata. The first component is the luma
+     */
+    protected void setChromaSubsampling(IIOMetadata metadata) throws IOException {
+
+        String formatName = "javax_imageio_jpeg_image_1.0";
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(formatName);
+        NodeList sofs = root.getElementsByTagName("sof");
+        if (sofs.getLength() == 0) {
+            return;
+        }
+        IIOMetadataNode sof = (IIOMetadataNode) sofs.item(0);
+        IIOMetadataNode luma = (IIOMetadataNode) sof.getElementsByTagName("componentSpec").item(0);
+        luma.setAttribute("HsamplingFactor", Integer.toString(jpegChromaSubsampling.horizontal));
+        luma.setAttribute("VsamplingFactor", Integer.toString(jpegChromaSubsampling.vertical));
+        metadata.setFromTree(formatName, root);
+    }
+
+    // ============================================================
+    // GETTERS/SETTERS
+    // ============================================================
+    public float getJpegQuality() {
+        return jpegQuality;
+    }
+
+    /**
+     * @param jpegQuality, between 0 and 1
+     */
+    public void setJpegQuality(float jpegQuality) {
+
+        if (jpegQuality < 0 || jpegQuality > 1) {
+            throw new NuxeoException("JPEG quality must be between 0 and 1: " + jpegQuality);
+        }
+        this.jpegQuality = jpegQuality;
+    }
+
+    public ChromaSubsampling getJpegChromaSubsampling() {
+        return jpegChromaSubsampling;
+    }
+
+    public void setJpegChromaSubsampling(ChromaSubsampling jpegChromaSubsampling) {
+        this.jpegChromaSubsampling = jpegChromaSubsampling == null ? ChromaSubsampling.S420 : jpegChromaSubsampling;
+    }
+
+    public int getPngCompressionLevel() {
+        return pngCompressionLevel;
+    }
+
+    /**
+     * @param pngCompressionLevel, 0 to 9, or -1 for the default level
+     */
+    public void setPngCompressionLevel(int pngCompressionLevel) {
+
+        if (pngCompressionLevel < -1 || pngCompressionLevel > 9) {
+            throw new NuxeoException("PNG compression level must be between -1 and 9: " + pngCompressionLevel);
+        }
+        this.pngCompressionLevel = pngCompressionLevel;
+    }
+
+    public Filter getPngFilter() {
+        return pngFilter;
+    }
+
+    public void setPngFilter(Filter pngFilter) {
+        this.pngFilter = pngFilter == null ? Filter.ADAPTIVE : pngFilter;
+    }
+
+    public boolean isPngPalette() {
+        return pngPalette;
+    }
+
+    public void setPngPalette(boolean pngPalette) {
+        this.pngPalette = pngPalette;
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    // ============================================================
+    // STATS
+    // ============================================================
+    /**
+     * Counters of the images encoded, cumulated since the encoder was created (or reset)
+     */
+    public static class Stats {
+
+        protected final LongAdder count = new LongAdder();
+
+        protected final LongAdder nanos = new LongAdder();
+
+        protected final LongAdder bytes = new LongAdder();
+
+        public void add(long encodeNanos, long outputBytes) {
+            count.increment();
+            nanos.add(encodeNanos);
+            bytes.add(outputBytes);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getEncodeTimeMs() {
+            return nanos.sum() / 1000000;
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        public void reset() {
+            count.reset();
+            nanos.reset();
+            bytes.reset();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d images, %d ms, %d bytes", getCount(), getEncodeTimeMs(), getBytes());
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.apachepoi;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Paint;
+import java.awt.RenderingHints;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.lang.ref.SoftReference;
+
+import org.apache.poi.sl.draw.Drawable;
+import org.apache.poi.xslf.usermodel.XSLFSlide;
+
+/**
+ * The raster and the <code>Graphics2D</code> used to draw a slide, reused from one slide to the next by the same
+ * thread. A full HD thumbnail is an 8MB <code>int[]</code>: allocating one per slide when rendering a whole
+ * presentation puts a lot of pressure on the GC for nothing, since the image is encoded and forgotten right after
+ * being drawn.
+ * <p>
+ * When the requested dimensions are the ones of the current raster, it is cleared and reused, and the state of the
+ * <code>Graphics2D</code> (transform, clip, hints, paint, ...) is reset. Else, a new raster is allocated.
+ * <p>
+ * Use {@link #get()} to get the context of the current thread. The image returned by
+ * {@link #render(XSLFSlide, int, int, float)} is valid only until the next call on the same context: it must be
+ * encoded (or copied) before rendering another slide. The context is softly referenced, so idle threads don't pin
+ * their raster forever.
+ * <p>
+ * The hints depend on the {@link RenderingQuality}, HIGH by default. The fonts are resolved by the
+ * {@link CachingFontManager}.
+ * <p>
+ * A deadline can be set (see {@link #setDeadline(long)}): once passed, drawing the slide is stopped (see
+ * {@link CancellableDrawFactory}) and the image is a placeholder, a light gray slide crossed out, see
+ * {@link #isTimedOut()}.
+ *
+ * @since 2023.2
+ */
+public class ThumbnailRenderContext {
+
+    protected static final ThreadLocal<SoftReference<ThumbnailRenderContext>> CONTEXTS = new ThreadLocal<>();
+
+    protected static final Color PLACEHOLDER_BACKGROUND = new Color(0xEEEEEE);
+
+    protected static final Color PLACEHOLDER_LINES = new Color(0xBBBBBB);
+
+    protected BufferedImage image;
+
+    protected Graphics2D graphics;
+
+    // Initial state of graphics, restored before drawing a new slide
+    protected AffineTransform initialTransform;
+
+    protected Paint initialPaint;
+
+    protected Color initialBackground;
+
+    protected Composite initialComposite;
+
+    protected Stroke initialStroke;
+
+    protected Font initialFont;
+
+    // Stateful, one per context (so, per thread)
+    protected final CancellableDrawFactory drawFactory = new CancellableDrawFactory();
+
+    protected final DraftDrawFactory draftDrawFactory = new DraftDrawFactory();
+
+    protected DraftImageRenderer draftImageRenderer;
+
+    protected CachingImageRenderer cachingImageRenderer;
+
+    protected MasterLayerRenderer masterLayerRenderer;
+
+    // System.nanoTime() value, 0 for no deadline
+    protected long deadline;
+
+    // The last image is a placeholder
+    protected boolean timedOut;
+
+    /**
+     * @return the context of the current thread
+     */
+    public static ThumbnailRenderContext get() {
+
+        SoftReference<ThumbnailRenderContext> ref = CONTEXTS.get();
+        ThumbnailRenderContext context = ref == null ? null : ref.get();
+        if (context == null) {
+            context = new ThumbnailRenderContext();
+            CONTEXTS.set(new SoftReference<>(context));
+        }
+        return context;
+    }
+
+    /**
+     * Draws the slide in a <code>width</code> x <code>height</code> image, <code>TYPE_INT_RGB</code>.
+     *
+     * @param slide
+     * @param width
+     * @param height
+     * @param scale, applied to the slide before drawing it
+     * @return the image, valid until the next call to <code>render</code> on this context
+     */
+    public BufferedImage render(XSLFSlide slide, int width, int height, float scale) {
+        return render(slide, width, height, scale, RenderingQuality.HIGH);
+    }
+
+    /**
+     * Same as {@link #render(XSLFSlide, int, int, float)}, with the given quality profile
+     *
+     * @param slide
+     * @param width
+     * @param height
+     * @param scale, applied to the slide before drawing it
+     * @param quality
+     * @return the image, valid until the next call to <code>render</code> on this context
+     * @since 2023.2
+     */
+    public BufferedImage render(XSLFSlide slide, int width, int height, float scale, RenderingQuality quality) {
+
+        Graphics2D g = prepare(width, height, quality);
+        g.scale(scale, scale);
+        AffineTransform slideTransform = g.getTransform();
+        try {
+            getDrawFactory(quality).checkDeadline();
+            if (masterLayerRenderer != null) {
+                masterLayerRenderer.draw(slide, image, g, scale, quality);
+            } else {
+                slide.draw(g);
+            }
+        } catch (SlideRenderTimeoutException e) {
+            drawPlaceholder(slide, slideTransform);
+        }
+
+        return image;
+    }
+
+    /**
+     * Draws a horizontal band of the slide: the rows <code>y</code> to <code>y + bandHeight - 1</code> of the
+     * <code>width</code> x (slide height * scale) image. The whole slide is drawn, clipped to the band, so the pixels
+     * are the ones {@link #render(XSLFSlide, int, int, float)} would return for these rows. The master layer cache is
+     * not used: each band is a different layer.
+     *
+     * @param slide
+     * @param width
+     * @param bandHeight
+     * @param scale, applied to the slide before drawing it
+     * @param y, the first row of the band
+     * @param quality
+     * @return the band, valid until the next call to <code>render</code> or <code>renderBand</code> on this context
+     * @since 2023.2
+     */
+    public BufferedImage renderBand(XSLFSlide slide, int width, int bandHeight, float scale, int y,
+            RenderingQuality quality) {
+
+        Graphics2D g = prepare(width, bandHeight, quality);
+        g.translate(0, -y);
+        g.scale(scale, scale);
+        AffineTransform slideTransform = g.getTransform();
+        try {
+            getDrawFactory(quality).checkDeadline();
+            slide.draw(g);
+        } catch (SlideRenderTimeoutException e) {
+            drawPlaceholder(slide, slideTransform);
+        }
+
+        return image;
+    }
+
+    /**
+     * High quality downscaling: the image is halved (bilinear) until reaching the target size. Faster than a single
+     * bicubic pass for big ratios, with a better result (a single bilinear/bicubic pass ignores most of the pixels
+     * when the ratio is big).
+     *
+     * @param image
+     * @param width, smaller than or equal to the image width
+     * @param height, smaller than or equal to the image height
+     * @return a new image, <code>TYPE_INT_RGB</code>
+     * @since 2023.2
+     */
+    public static BufferedImage downscale(BufferedImage image, int width, int height) {
+
+        BufferedImage result = image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        do {
+            w = Math.max(w / 2, width);
+            h = Math.max(h / 2, height);
+
+            BufferedImage tmp = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = tmp.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(result, 0, 0, w, h, null);
+            g.dispose();
+
+            result = tmp;
+        } while (w != width || h != height);
+
+        return result;
+    }
+
+    /**
+     * Sets the cache of the decoded pictures used by the next calls to <code>render</code> and
+     * <code>renderBand</code> (see {@link CachingImageRenderer}). Callers must set it back to <code>null</code> once
+     * done, so the context does not keep the cache.
+     *
+     * @param pictureCache, <code>null</code> to decode the pictures every time
+     * @since 2023.2
+     */
+    public void setPictureCache(PictureCache pictureCache) {
+        cachingImageRenderer = pictureCache == null ? null : new CachingImageRenderer(pictureCache);
+    }
+
+    /**
+     * @return the cache of the decoded pictures, or <code>null</code>
+     * @since 2023.2
+     */
+    public PictureCache getPictureCache() {
+        return cachingImageRenderer == null ? null : cachingImageRenderer.getCache();
+    }
+
+    /**
+     * Sets the cache of the master layers (background, shapes of the master and of the layout) used by the next calls
+     * to <code>render</code> (see {@link MasterLayerRenderer}). Callers must set it back to <code>null</code> once
+     * done, so the context does not keep the cache.
+     *
+     * @param masterLayerCache, <code>null</code> to draw the whole slide every time
+     * @since 2023.2
+     */
+    public void setMasterLayerCache(MasterLayerCache masterLayerCache) {
+        masterLayerRenderer = masterLayerCache == null ? null : new MasterLayerRenderer(masterLayerCache);
+    }
+
+    /**
+     * @return the cache of the master layers, or <code>null</code>
+     * @since 2023.2
+     */
+    public MasterLayerCache getMasterLayerCache() {
+        return masterLayerRenderer == null ? null : masterLayerRenderer.getCache();
+    }
+
+    /**
+     * Sets the deadline of the next calls to <code>render</code> and <code>renderBand</code>. Once passed, the slide
+     * is not drawn (or no more drawn) and the image is a placeholder. Callers must set it back to 0 once done.
+     *
+     * @param deadline, a <code>System.nanoTime()</code> value, or 0 for no deadline
+     * @since 2023.2
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return the deadline, a <code>System.nanoTime()</code> value, or 0
+     * @since 2023.2
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return true if the image returned by the last call to <code>render</code> or <code>renderBand</code> is a
+     *         placeholder, the deadline being passed
+     * @since 2023.2
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Releases the raster and the graphics. The context can still be used after, it will allocate new ones.
+     */
+    public void dispose() {
+
+        if (graphics != null) {
+            graphics.dispose();
+        }
+        graphics = null;
+        image = null;
+    }
+
+    protected Graphics2D prepare(int width, int height, RenderingQuality quality) {
+
+        if (image == null || image.getWidth() != width || image.getHeight() != height) {
+            dispose();
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            graphics = image.createGraphics();
+            initialTransform = graphics.getTransform();
+            initialPaint = graphics.getPaint();
+            initialBackground = graphics.getBackground();
+            initialComposite = graphics.getComposite();
+            initialStroke = graphics.getStroke();
+            initialFont = graphics.getFont();
+        } else {
+            graphics.setTransform(initialTransform);
+            graphics.setClip(null);
+            // Same as a new TYPE_INT_RGB image: all black
+            graphics.setComposite(AlphaComposite.Src);
+            graphics.setColor(Color.BLACK);
+            graphics.fillRect(0, 0, width, height);
+            graphics.setPaint(initialPaint);
+            graphics.setBackground(initialBackground);
+            graphics.setComposite(initialComposite);
+            graphics.setStroke(initialStroke);
+            graphics.setFont(initialFont);
+        }
+        // Also removes the hints set by POI when drawing the previous slide
+        graphics.setRenderingHints(quality.hints);
+        graphics.setRenderingHint(Drawable.FONT_HANDLER, CachingFontManager.getInstance());
+        CancellableDrawFactory factory = getDrawFactory(quality);
+        factory.setDeadline(deadline);
+        graphics.setRenderingHint(Drawable.DRAW_FACTORY, factory);
+        timedOut = false;
+        if (cachingImageRenderer != null) {
+            cachingImageRenderer.setQuality(quality);
+            graphics.setRenderingHint(Drawable.IMAGE_RENDERER, cachingImageRenderer);
+        } else if (quality.isDraft()) {
+            if (draftImageRenderer == null) {
+                draftImageRenderer = new DraftImageRenderer();
+            }
+            graphics.setRenderingHint(Drawable.IMAGE_RENDERER, draftImageRenderer);
+        }
+
+        return graphics;
+    }
+
+    protected CancellableDrawFactory getDrawFactory(RenderingQuality quality) {
+        return quality.isDraft() ? draftDrawFactory : drawFactory;
+    }
+
+    /*
+     * Replaces whatever was drawn by a light gray slide crossed out. slideTransform is the transform of graphics before
+     * drawing the slide (POI may have changed it, as the clip or the composite, when it was stopped)
+     */
+    protected void drawPlaceholder(XSLFSlide slide, AffineTransform slideTransform) {
+
+        Dimension pgsize = slide.getSlideShow().getPageSize();
+        Graphics2D g = graphics;
+        g.setTransform(slideTransform);
+        g.setClip(null);
+        g.setComposite(AlphaComposite.Src);
+        g.setPaint(PLACEHOLDER_BACKGROUND);
+        g.fill(new Rectangle2D.Double(0, 0, pgsize.width, pgsize.height));
+        g.setPaint(PLACEHOLDER_LINES);
+        g.setStroke(new BasicStroke(Math.max(pgsize.width, pgsize.height) / 400f));
+        g.draw(new Line2D.Double(0, 0, pgsize.width, pgsize.height));
+        g.draw(new Line2D.Double(0, pgsize.height, pgsize.width, 0));
+        timedOut = true;
+    }
+}
@@ -21,6 +21,11 @@ package nuxeo.powerpoint.utils.api;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.lang3.StringUtils;
 import org.json.JSONObject;
@@ -43,6 +48,14 @@ public interface PowerPointUtils {
     // For example: <code>obj.put("Created", DATE_FORMAT.format(yourPre.getADate()));</code>
     public static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
 
+    /**
+     * The maximum number of slides in a selection, see {@link #parseSlideNumbers(String)}. Far more than any real
+     * presentation, small enough for the selection to be expanded right away
+     *
+     * @since 2023.2
+     */
+    public static final int MAX_SELECTED_SLIDES = 10000;
+
     /**
      * Returns a JSONObject with the presentation properties.
      * TODO: Use an interface, maybe, to harmonize the values when we add different providers (Apache POI, Aspose, ...)
@@ -212,6 +225,76 @@ public interface PowerPointUtils {
      */
     Blob getThumbnail(DocumentModel doc, String xpath, int slideNumber, int maxWidth, String format) throws IOException;
 
+    /**
+     * Returns the thumbnails of several slides of the presentation, reading the presentation only once. Same as
+     * calling {@link #getThumbnail(Blob, int, int, String)} for each slide, but in one call.
+     * - slideNumbers: zero-based values. The thumbnails are returned in this order. Use
+     * {@link #parseSlideNumbers(String)} to get them from a string like "0-4,8"
+     * - maxWidth, format: see {@link #getThumbnails(Blob, int, String, boolean)}
+     * Each blob's file name is "Slide {slideNumber + 1}.{format}" (number starts at 1 for better end user experience)
+     *
+     * @param blob, the PowerPoint presentation
+     * @param slideNumbers, zero-based
+     * @param maxWidth
+     * @param format, "jpg", "jpeg" or "png" only
+     * @return the thumbnails, in the order of slideNumbers
+     * @throws IOException
+     * @since 2023.2
+     */
+    BlobList getThumbnails(Blob blob, List<Integer> slideNumbers, int maxWidth, String format) throws IOException;
+
+    /**
+     * Same as {@link #getThumbnails(Blob, List, int, String)}, for the presentation stored in the document at xpath
+     * (if null or empty, defaults to "file:content")
+     *
+     * @param doc, document holding the presentation
+     * @param xpath, the field to use (default to "file:content")
+     * @param slideNumbers, zero-based
+     * @param maxWidth
+     * @param format, "jpg", "jpeg" or "png" only
+     * @return the thumbnails, in the order of slideNumbers
+     * @throws IOException
+     * @since 2023.2
+     */
+    BlobList getThumbnails(DocumentModel doc, String xpath, List<Integer> slideNumbers, int maxWidth, String format)
+            throws IOException;
+
+    /**
+     * Returns thumbnails of the slides in several sizes, drawing each slide only once (at the biggest size, the others
+     * are downscaled from it). Much faster than calling {@link #getThumbnails(Blob, int, String, boolean)} for each
+     * size.
+     * - maxWidths: the sizes, see maxWidth in {@link #getThumbnails(Blob, int, String, boolean)}
+     * - format, onlyVisible: see {@link #getThumbnails(Blob, int, String, boolean)}
+     * Each blob's file name is "Slide {slideNumber}-{width}.{format}", width being the actual width of the image.
+     * Number starts at 1 (for better end user experience)
+     *
+     * @param blob, the presentation
+     * @param maxWidths, at least one
+     * @param format, "jpg", "jpeg" or "png" only
+     * @param onlyVisible, if true, no thumbnail will be calculated for hidden slides
+     * @return the thumbnails, one list/value of maxWidths (in the same order), each list having one thumbnail/slide
+     * @throws IOException
+     * @since 2023.2
+     */
+    Map<Integer, BlobList> getMultiSizeThumbnails(Blob blob, List<Integer> maxWidths, String format,
+            boolean onlyVisible) throws IOException;
+
+    /**
+     * Same as {@link #getMultiSizeThumbnails(Blob, List, String, boolean)}, for the presentation stored in the
+     * document at xpath (if null or empty, defaults to "file:content")
+     *
+     * @param doc, document holding the presentation
+     * @param xpath, the field to use (default to "file:content")
+     * @param maxWidths, at least one
+     * @param format, "jpg", "jpeg" or "png" only
+     * @param onlyVisible, if true, no thumbnail will be calculated for hidden slides
+     * @return the thumbnails, one list/value of maxWidths (in the same order), each list having one thumbnail/slide
+     * @throws IOException
+     * @since 2023.2
+     */
+    Map<Integer, BlobList> getMultiSizeThumbnails(DocumentModel doc, String xpath, List<Integer> maxWidths,
+            String format, boolean onlyVisible) throws IOException;
+
     /**
      * Receives a document and a pptx template. processes the template, replaces freemarker tag with the values, return
      * a new pptx with the result.
@@ -317,4 +400,56 @@ public interface PowerPointUtils {
         return (Blob) doc.getPropertyValue(xpath);
     }
 
+    /**
+     * Parses a selection of slides, like "0-4,8,12". Numbers are zero-based (as slideNumber in
+     * {@link #getThumbnail(Blob, int, int, String)}), ranges are inclusive. The order of the selection is kept,
+     * duplicates are ignored. Checking the numbers against the number of slides is the responsibility of the caller.
+     *
+     * @param selection
+     * @return the list of slide numbers, empty if selection is blank
+     * @throws NuxeoException if the selection is invalid, or has more than {@link #MAX_SELECTED_SLIDES} slides
+     * @since 2023.2
+     */
+    public static List<Integer> parseSlideNumbers(String selection) {
+
+        Set<Integer> slideNumbers = new LinkedHashSet<>();
+        if (StringUtils.isBlank(selection)) {
+            return new ArrayList<>(slideNumbers);
+        }
+
+        for (String item : selection.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            try {
+                int dash = item.indexOf('-', 1);
+                if (dash < 0) {
+                    slideNumbers.add(Integer.valueOf(item));
+                } else {
+                    int from = Integer.parseInt(item.substring(0, dash).trim());
+                    int to = Integer.parseInt(item.substring(dash + 1).trim());
+                    if (from > to) {
+                        throw new NuxeoException("Invalid range of slides: " + item);
+                    }
+                    // Checked before expanding the range, in long: "0-2147483647" would never end
+                    if ((long) to - from + 1 > MAX_SELECTED_SLIDES) {
+                        throw new NuxeoException(
+                                "Too many slides in range " + item + " (more than " + MAX_SELECTED_SLIDES + ")");
+                    }
+                    for (long i = from; i <= to; i++) {
+                        slideNumbers.add((int) i);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new NuxeoException("Invalid selection of slides: " + selection, e);
+            }
+            if (slideNumbers.size() > MAX_SELECTED_SLIDES) {
+                throw new NuxeoException("Too many slides selected (more than " + MAX_SELECTED_SLIDES + ")");
+            }
+        }
+
+        return new ArrayList<>(slideNumbers);
+    }
+
 }
@@ -0,0 +1,46 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.aspose;
+
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import nuxeo.powerpoint.utils.service.PowerPointEngine;
+import nuxeo.powerpoint.utils.service.PowerPointService;
+
+/**
+ * The Aspose engine of the {@link nuxeo.powerpoint.utils.service.PowerPointService}. Aspose is not supported by this
+ * version (see {@link PowerPointUtilsWithAspose#PowerPointUtilsWithAspose()}): the engine is registered so a call
+ * using it fails right away with a clear error, see {@link #newInstance()}.
+ *
+ * @since 2023.2
+ */
+public class AsposeEngine implements PowerPointEngine {
+
+    public static final String UNSUPPORTED_MESSAGE = "The " + PowerPointService.ASPOSE_ENGINE
+            + " PowerPoint engine is not supported by version 2023.n of Nuxeo PowerPoint Utilities, use the "
+            + PowerPointService.APACHE_POI_ENGINE + " engine (useAspose=false)";
+
+    /**
+     * @throws NuxeoException always, the engine is not supported
+     */
+    @Override
+    public PowerPointUtilsWithAspose newInstance() {
+        throw new NuxeoException(UNSUPPORTED_MESSAGE);
+    }
+}
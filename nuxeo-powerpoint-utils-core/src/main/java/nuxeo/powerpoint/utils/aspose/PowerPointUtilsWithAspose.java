@@ -3,6 +3,9 @@ package nuxeo.powerpoint.utils.aspose;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -61,8 +64,8 @@ public class PowerPointUtilsWithAspose implements PowerPointUtils {
     /*
      * ApachePOI actually can get more info than Aspose, especially in the statistics part
      * (number of words, f paragraphs, ...), as displayed to a user when using PowerPoint.
-     * But ApacheOI (in the version we use, at least) does not have info on fonts.
-     * So, basically, we get the info from Apache POI and add whatever is missing
+     * So, basically, we get the info from Apache POI and add whatever is missing (the fonts, if
+     * none were found)
      */
     @Override
     public JSONObject getProperties(Blob blob) {
@@ -312,6 +315,92 @@ public class PowerPointUtilsWithAspose implements PowerPointUtils {
         return blobs;
     }
 
+    // The presentation is loaded once, but each size is rendered by Aspose
+    @Override
+    public Map<Integer, BlobList> getMultiSizeThumbnails(Blob blob, List<Integer> maxWidths, String format,
+            boolean onlyVisible) throws IOException {
+
+        Map<Integer, BlobList> result = new LinkedHashMap<>();
+
+        if (blob == null) {
+            return result;
+        }
+        if (maxWidths == null || maxWidths.isEmpty()) {
+            throw new NuxeoException("At least one width is required");
+        }
+        for (int maxWidth : maxWidths) {
+            result.put(maxWidth, new BlobList());
+        }
+
+        try {
+            Presentation pres = new Presentation(blob.getStream());
+            double slideWidth = pres.getSlideSize().getSize().getWidth();
+            int slidesCount = pres.getSlides().size();
+            for (int i = 0; i < slidesCount; i++) {
+                ISlide slide = pres.getSlides().get_Item(i);
+                if (onlyVisible && slide.getHidden()) {
+                    continue;
+                }
+
+                for (Map.Entry<Integer, BlobList> entry : result.entrySet()) {
+                    int maxWidth = entry.getKey();
+                    int width = maxWidth > 0 && maxWidth < slideWidth ? maxWidth : (int) slideWidth;
+                    Blob thumb = getThumbnail(slide, maxWidth, format);
+                    thumb.setFilename("Slide " + slide.getSlideNumber() + "-" + width + "."
+                            + FilenameUtils.getExtension(thumb.getFilename()));
+                    entry.getValue().add(thumb);
+                }
+            }
+
+        } catch (IOException e) {
+            throw new NuxeoException("Failed gerenate thumbnails.", e);
+        }
+
+        return result;
+    }
+
+    @Override
+    public Map<Integer, BlobList> getMultiSizeThumbnails(DocumentModel doc, String xpath, List<Integer> maxWidths,
+            String format, boolean onlyVisible) throws IOException {
+
+        return getMultiSizeThumbnails(PowerPointUtils.getBlob(doc, xpath), maxWidths, format, onlyVisible);
+    }
+
+    @Override
+    public BlobList getThumbnails(Blob blob, List<Integer> slideNumbers, int maxWidth, String format)
+            throws IOException {
+
+        BlobList result = new BlobList();
+
+        if (blob == null) {
+            return result;
+        }
+
+        try {
+            Presentation pres = new Presentation(blob.getStream());
+            int slidesCount = pres.getSlides().size();
+            for (int slideNumber : slideNumbers) {
+                if (slideNumber < 0 || slideNumber >= slidesCount) {
+                    throw new NuxeoException("Invalid slide number: " + slideNumber);
+                }
+                ISlide slide = pres.getSlides().get_Item(slideNumber);
+                result.add(getThumbnail(slide, maxWidth, format));
+            }
+
+        } catch (IOException e) {
+            throw new NuxeoException("Failed gerenate thumbnails.", e);
+        }
+
+        return result;
+    }
+
+    @Override
+    public BlobList getThumbnails(DocumentModel doc, String xpath, List<Integer> slideNumbers, int maxWidth,
+            String format) throws IOException {
+
+        return getThumbnails(PowerPointUtils.getBlob(doc, xpath), slideNumbers, maxWidth, format);
+    }
+
     @Override
     public Blob getThumbnail(Blob blob, int slideNumber, int maxWidth, String format) throws IOException {
 
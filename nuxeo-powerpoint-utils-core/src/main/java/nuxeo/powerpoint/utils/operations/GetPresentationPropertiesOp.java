@@ -9,9 +9,10 @@ import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
 import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.runtime.api.Framework;
 
-import nuxeo.powerpoint.utils.apachepoi.PowerPointUtilsWithApachePOI;
-import nuxeo.powerpoint.utils.aspose.PowerPointUtilsWithAspose;
+import nuxeo.powerpoint.utils.api.PowerPointUtils;
+import nuxeo.powerpoint.utils.service.PowerPointService;
 
 /**
  *
@@ -19,7 +20,8 @@ import nuxeo.powerpoint.utils.aspose.PowerPointUtilsWithAspose;
 @Operation(id = GetPresentationPropertiesOp.ID, category = Constants.CAT_CONVERSION, label = "PowerPoint: Get Properties", description = "returns a JSON string containing information about the presentation, blob or document."
         + " If the input is a document, xpath is used (default to file:content).<br/>"
         + " We recommand to first try the operation and log the result to explore all the possible values.<br/>"
-        + " When useAspose is true, the list of fonts is also returned.")
+        + " When useAspose is true, the list of fonts is also returned."
+        + " When useAspose is not set, the engine configured for the operation is used (Apache POI unless changed, see PowerPointService).")
 public class GetPresentationPropertiesOp {
 
     public static final String ID = "Conversion.PowerPointGetProperties";
@@ -28,7 +30,7 @@ public class GetPresentationPropertiesOp {
     protected String xpath = "file:content";
 
     @Param(name = "useAspose", required = false)
-    protected Boolean useAspose = false;
+    protected Boolean useAspose;
 
     @OperationMethod
     public String run(DocumentModel doc) throws IOException {
@@ -43,13 +45,13 @@ public class GetPresentationPropertiesOp {
 
     @OperationMethod
     public String run(Blob blob) throws IOException {
+        return newPowerPointUtils().getProperties(blob).toString();
+    }
 
-        if(useAspose) {
-            PowerPointUtilsWithAspose pptUtils = new PowerPointUtilsWithAspose();
-            return pptUtils.getProperties(blob).toString();
-        } else {
-            PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
-            return pptUtils.getProperties(blob).toString();
-        }
+    /*
+     * The engine of the call, see PowerPointService
+     */
+    protected PowerPointUtils newPowerPointUtils() {
+        return Framework.getService(PowerPointService.class).newPowerPointUtils(ID, useAspose);
     }
 }
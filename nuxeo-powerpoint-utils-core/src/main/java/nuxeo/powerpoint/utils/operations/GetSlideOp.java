@@ -8,9 +8,17 @@ import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
 import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.runtime.api.Framework;
 
+import nuxeo.powerpoint.utils.apachepoi.DeckEstimate;
+import nuxeo.powerpoint.utils.apachepoi.DeckEstimator;
 import nuxeo.powerpoint.utils.apachepoi.PowerPointUtilsWithApachePOI;
-import nuxeo.powerpoint.utils.aspose.PowerPointUtilsWithAspose;
+import nuxeo.powerpoint.utils.apachepoi.RequestCoalescer;
+import nuxeo.powerpoint.utils.apachepoi.ResultCache;
+import nuxeo.powerpoint.utils.api.PowerPointUtils;
+import nuxeo.powerpoint.utils.service.AdmissionController;
+import nuxeo.powerpoint.utils.service.Lane;
+import nuxeo.powerpoint.utils.service.PowerPointService;
 
 /**
  *
@@ -19,7 +27,8 @@ import nuxeo.powerpoint.utils.aspose.PowerPointUtilsWithAspose;
         + " The blob will be named {original presentation name}-{slideNumberStartAt1}.pptx"
         + " slideNumber is the number of the slide. WARNING: It is zero-based, even if the output title starts at 1 (for better end user experience)."
         + " input can be a blob of the presentation, or a document. In this case xpath tells the operation which blob to use (file:content by default)."
-        + " useAspose tells the operaiton to use Aspose for the rendition. Default is Apache POI. Slides rendered with Aspose have a better quality.")
+        + " useAspose tells the operaiton to use Aspose for the rendition. Default is the engine configured for the operation (Apache POI unless changed, see PowerPointService), false forces Apache POI. Slides rendered with Aspose have a better quality."
+        + " lane is \"interactive\" (a user is waiting for the result, runs first) or \"batch\" (bulk work, runs when no interactive call is waiting and gives way to them between two slides). Default is chosen from the pre-flight estimate of the presentation: \"interactive\" if it is light (nuxeo.powerpoint.estimate.lightMB), \"batch\" if it is heavy (nuxeo.powerpoint.estimate.heavyMB), else \"interactive\".")
 public class GetSlideOp {
 
     public static final String ID = "Conversion.PowerPointGetSlide";
@@ -31,36 +40,65 @@ public class GetSlideOp {
     protected Integer slideNumber;
 
     @Param(name = "useAspose", required = false)
-    protected Boolean useAspose = false;
+    protected Boolean useAspose;
+
+    @Param(name = "lane", widget = Constants.W_OPTION, required = false, values = { "interactive", "batch" })
+    protected String lane;
 
     @OperationMethod
     public Blob run(DocumentModel doc) throws IOException {
-
-        Blob result;
-        
-        if (useAspose) {
-            PowerPointUtilsWithAspose asposePptUtils = new PowerPointUtilsWithAspose();
-            result = asposePptUtils.getSlide(doc, xpath, slideNumber);
-        } else {
-            PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
-            result = pptUtils.getSlide(doc, xpath, slideNumber);
-        }
-
-        return result;
+        Blob blob = PowerPointUtils.getBlob(doc, xpath);
+        return coalesce(blob, () -> {
+            DeckEstimate estimate = estimate(blob);
+            return AdmissionController.admit(ID, getLane(estimate), blob, estimate, () -> getSlide(doc));
+        });
     }
 
     @OperationMethod
     public Blob run(Blob blob) throws IOException {
-        Blob result;
-        
-        if (useAspose) {
-            PowerPointUtilsWithAspose asposePptUtils = new PowerPointUtilsWithAspose();
-            result = asposePptUtils.getSlide(blob, slideNumber);
-        } else {
-            PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
-            result = pptUtils.getSlide(blob, slideNumber);
+        return coalesce(blob, () -> {
+            DeckEstimate estimate = estimate(blob);
+            return AdmissionController.admit(ID, getLane(estimate), blob, estimate, () -> getSlide(blob));
+        });
+    }
+
+    /*
+     * Computed once for the same calls running at the same time, before being admitted (see RequestCoalescer)
+     */
+    protected Blob coalesce(Blob blob, ResultCache.Computation<Blob> computation) throws IOException {
+        return RequestCoalescer.coalesce(ResultCache.getKey(blob, ID, slideNumber, useAspose), ID, computation,
+                RequestCoalescer::copyBlob);
+    }
+
+    protected Blob getSlide(DocumentModel doc) throws IOException {
+        return newPowerPointUtils().getSlide(doc, xpath, slideNumber);
+    }
+
+    protected Blob getSlide(Blob blob) throws IOException {
+        return newPowerPointUtils().getSlide(blob, slideNumber);
+    }
+
+    /*
+     * The engine of the call, see PowerPointService
+     */
+    protected PowerPointUtils newPowerPointUtils() {
+
+        PowerPointUtils pptUtils = Framework.getService(PowerPointService.class).newPowerPointUtils(ID, useAspose);
+        if (pptUtils instanceof PowerPointUtilsWithApachePOI) {
+            // Already coalesced by the operation (see coalesce()): each call is coalesced and counted once
+            ((PowerPointUtilsWithApachePOI) pptUtils).setCoalescer(null);
         }
+        return pptUtils;
+    }
+
+    /*
+     * Pre-flight of the call, see DeckEstimator
+     */
+    protected DeckEstimate estimate(Blob blob) {
+        return DeckEstimator.getShared().estimate(blob, slideNumber);
+    }
 
-        return result;
+    protected Lane getLane(DeckEstimate estimate) {
+        return Lane.fromString(lane, DeckEstimator.getShared().getLane(estimate, Lane.INTERACTIVE));
     }
 }
@@ -1,16 +1,31 @@
 package nuxeo.powerpoint.utils.operations;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.automation.OperationContext;
 import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
 import org.nuxeo.ecm.automation.core.annotations.Operation;
 import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
 import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.runtime.api.Framework;
 
+import nuxeo.powerpoint.utils.apachepoi.DeckEstimate;
+import nuxeo.powerpoint.utils.apachepoi.DeckEstimator;
 import nuxeo.powerpoint.utils.apachepoi.PowerPointUtilsWithApachePOI;
-import nuxeo.powerpoint.utils.aspose.PowerPointUtilsWithAspose;
+import nuxeo.powerpoint.utils.apachepoi.RenderingQuality;
+import nuxeo.powerpoint.utils.apachepoi.RequestCoalescer;
+import nuxeo.powerpoint.utils.apachepoi.RequestCoalescer.SharedResult;
+import nuxeo.powerpoint.utils.apachepoi.ResultCache;
+import nuxeo.powerpoint.utils.api.PowerPointUtils;
+import nuxeo.powerpoint.utils.service.AdmissionController;
+import nuxeo.powerpoint.utils.service.Lane;
+import nuxeo.powerpoint.utils.service.PowerPointService;
 
 /**
  *
@@ -20,11 +35,17 @@ import nuxeo.powerpoint.utils.aspose.PowerPointUtilsWithAspose;
         + " format can be \"jpg\" or \"png\"."
         + " maxWidth allows for returning smaller images. Any value <= 0 returns the images in the original dimension."
         + " If onlyVisible is true, thumbnails are returned only for visible slides."
-        + " useAspose tells the operaiton to use Aspose for the rendition. Default is Apache POI. Slides rendered with Aspose have a better quality.")
+        + " quality (Apache POI only) is the rendering profile: \"high\" (default), \"standard\" (faster, almost the same result for thumbnails) or \"draft\" (fastest, no shadows, gradients drawn as a solid color, for small previews)."
+        + " Apache POI only: when a time budget is configured (nuxeo.powerpoint.rendering.slideTimeoutMs), a slide not drawn in time is replaced by a placeholder, and its number is set in the \"pptTimedOutSlides\" context variable (an empty list if the slide was drawn)."
+        + " useAspose tells the operaiton to use Aspose for the rendition. Default is the engine configured for the operation (Apache POI unless changed, see PowerPointService), false forces Apache POI. Slides rendered with Aspose have a better quality."
+        + " lane is \"interactive\" (a user is waiting for the result, runs first) or \"batch\" (bulk work, runs when no interactive call is waiting and gives way to them between two slides). Default is chosen from the pre-flight estimate of the presentation: \"interactive\" if it is light (nuxeo.powerpoint.estimate.lightMB), \"batch\" if it is heavy (nuxeo.powerpoint.estimate.heavyMB), else \"interactive\".")
 public class GetThumbnailOp {
 
     public static final String ID = "Conversion.PowerPointGetOneThumbnail";
 
+    @Context
+    protected OperationContext ctx;
+
     @Param(name = "xpath", required = false, values = { "file:content" })
     protected String xpath;
 
@@ -38,37 +59,101 @@ public class GetThumbnailOp {
     protected String format = "png";
 
     @Param(name = "useAspose", required = false)
-    protected Boolean useAspose = false;
+    protected Boolean useAspose;
+
+    @Param(name = "quality", widget = Constants.W_OPTION, required = false, values = { "high", "standard", "draft" })
+    protected String quality;
+
+    @Param(name = "lane", widget = Constants.W_OPTION, required = false, values = { "interactive", "batch" })
+    protected String lane;
+
+    // Set by the engine of the call, see putTimedOutSlides()
+    protected List<Integer> timedOutSlides;
 
     @OperationMethod
     public Blob run(DocumentModel doc) throws IOException {
+        Blob blob = PowerPointUtils.getBlob(doc, xpath);
+        return coalesce(blob, () -> {
+            DeckEstimate estimate = estimate(blob);
+            return AdmissionController.admit(ID, getLane(estimate), blob, estimate, () -> getThumbnail(doc));
+        });
+    }
 
-        Blob result;
+    @OperationMethod
+    public Blob run(Blob blob) throws IOException {
+        return coalesce(blob, () -> {
+            DeckEstimate estimate = estimate(blob);
+            return AdmissionController.admit(ID, getLane(estimate), blob, estimate, () -> getThumbnail(blob));
+        });
+    }
 
-        if (useAspose) {
-            PowerPointUtilsWithAspose asposePptUtils = new PowerPointUtilsWithAspose();
-            result = asposePptUtils.getThumbnail(doc, xpath, slideNumber, maxWidth, format);
-        } else {
-            PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
-            result = pptUtils.getThumbnail(doc, xpath, slideNumber, maxWidth, format);
+    /*
+     * Same as GetThumbnailsOp#coalesce(): computed once for the same calls running at the same time, before being
+     * admitted
+     */
+    protected Blob coalesce(Blob blob, ResultCache.Computation<Blob> computation) throws IOException {
+
+        String key = ResultCache.getKey(blob, ID, slideNumber, useAspose, maxWidth, format, quality);
+        SharedResult result = RequestCoalescer.coalesce(key, ID, () -> {
+            Blob thumbnail = computation.compute();
+            return new SharedResult(Collections.singletonList(thumbnail), timedOutSlides);
+        }, SharedResult::copy);
+        if (result.getTimedOutSlides() != null) {
+            ctx.put(GetThumbnailsOp.TIMED_OUT_SLIDES_VAR, result.getTimedOutSlides());
         }
+        return result.getBlobs().get(0);
+    }
+
+    protected Blob getThumbnail(DocumentModel doc) throws IOException {
+
+        PowerPointUtils pptUtils = newPowerPointUtils();
+        Blob result = pptUtils.getThumbnail(doc, xpath, slideNumber, maxWidth, format);
+        putTimedOutSlides(pptUtils);
 
         return result;
     }
 
-    @OperationMethod
-    public Blob run(Blob blob) throws IOException {
+    protected Blob getThumbnail(Blob blob) throws IOException {
+
+        PowerPointUtils pptUtils = newPowerPointUtils();
+        Blob result = pptUtils.getThumbnail(blob, slideNumber, maxWidth, format);
+        putTimedOutSlides(pptUtils);
 
-        Blob result;
+        return result;
+    }
 
-        if (useAspose) {
-            PowerPointUtilsWithAspose asposePptUtils = new PowerPointUtilsWithAspose();
-            result = asposePptUtils.getThumbnail(blob, slideNumber, maxWidth, format);
-        } else {
-            PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
-            result = pptUtils.getThumbnail(blob, slideNumber, maxWidth, format);
+    /*
+     * The engine of the call, see PowerPointService
+     */
+    protected PowerPointUtils newPowerPointUtils() {
+
+        PowerPointUtils pptUtils = Framework.getService(PowerPointService.class).newPowerPointUtils(ID, useAspose);
+        if (pptUtils instanceof PowerPointUtilsWithApachePOI) {
+            PowerPointUtilsWithApachePOI poiUtils = (PowerPointUtilsWithApachePOI) pptUtils;
+            if (StringUtils.isNotBlank(quality)) {
+                poiUtils.setRenderingQuality(RenderingQuality.fromString(quality));
+            }
+            // Already coalesced by the operation (see coalesce()): each call is coalesced and counted once
+            poiUtils.setCoalescer(null);
         }
+        return pptUtils;
+    }
 
-        return result;
+    protected void putTimedOutSlides(PowerPointUtils pptUtils) {
+        if (pptUtils instanceof PowerPointUtilsWithApachePOI) {
+            timedOutSlides = ((PowerPointUtilsWithApachePOI) pptUtils).getTimedOutSlides();
+            ctx.put(GetThumbnailsOp.TIMED_OUT_SLIDES_VAR, timedOutSlides);
+        }
+    }
+
+    /*
+     * Pre-flight of the call, see DeckEstimator
+     */
+    protected DeckEstimate estimate(Blob blob) {
+        return DeckEstimator.getShared().estimate(blob, slideNumber);
+    }
+
+    protected Lane getLane(DeckEstimate estimate) {
+        return Lane.fromString(lane, DeckEstimator.getShared().getLane(estimate, Lane.INTERACTIVE));
     }
 }
@@ -1,17 +1,35 @@
 package nuxeo.powerpoint.utils.operations;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.nuxeo.ecm.automation.OperationContext;
 import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
 import org.nuxeo.ecm.automation.core.annotations.Operation;
 import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
 import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.automation.core.util.BlobList;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.api.Framework;
 
+import nuxeo.powerpoint.utils.apachepoi.DeckEstimate;
+import nuxeo.powerpoint.utils.apachepoi.DeckEstimator;
 import nuxeo.powerpoint.utils.apachepoi.PowerPointUtilsWithApachePOI;
-import nuxeo.powerpoint.utils.aspose.PowerPointUtilsWithAspose;
+import nuxeo.powerpoint.utils.apachepoi.RenderingQuality;
+import nuxeo.powerpoint.utils.apachepoi.RequestCoalescer;
+import nuxeo.powerpoint.utils.apachepoi.RequestCoalescer.SharedResult;
+import nuxeo.powerpoint.utils.apachepoi.ResultCache;
+import nuxeo.powerpoint.utils.api.PowerPointUtils;
+import nuxeo.powerpoint.utils.service.AdmissionController;
+import nuxeo.powerpoint.utils.service.Lane;
+import nuxeo.powerpoint.utils.service.PowerPointService;
 
 /**
  *
@@ -20,17 +38,33 @@ import nuxeo.powerpoint.utils.aspose.PowerPointUtilsWithAspose;
         + " format can be \"jpg\" or \"png\"."
         + " maxWidth allows for returning smaller images. Any value <= 0 returns the images in the original dimension."
         + " If onlyVisible is true, thumbnails are returned only for visible slides."
-        + " useAspose tells the operation to use Aspose for the rendition. Default is Apache POI. Slides rendered with Aspose usually have a better quality."
-        + " Each blob will be named {original-file-name}-{slideNumber + 1}.{format}. SO even if slideNumber is zeroBased, output will start at 1 for better end user experience.")
+        + " slides allows for returning only some slides, in the given order: a list of zero-based slide numbers and/or ranges, like \"0-4,8\". onlyVisible is ignored when slides is set."
+        + " widths allows for getting thumbnails in several sizes at once, each slide being rendered only once: a list of maxWidth values, like \"1920,800,200\". The result contains all the thumbnails for the first width, then all the thumbnails for the second width, etc. Each blob is then named Slide {slideNumber + 1}-{width}.{format}. maxWidth is ignored when widths is set, and widths cannot be used with slides."
+        + " quality (Apache POI only) is the rendering profile: \"high\" (default), \"standard\" (faster, almost the same result for thumbnails) or \"draft\" (fastest, no shadows, gradients drawn as a solid color, for small previews)."
+        + " Apache POI only: when a time budget is configured (nuxeo.powerpoint.rendering.slideTimeoutMs and requestTimeoutMs), a slide not drawn in time is replaced by a placeholder, and the zero-based numbers of these slides are set in the \"pptTimedOutSlides\" context variable (an empty list if all the slides were drawn)."
+        + " useAspose tells the operation to use Aspose for the rendition. Default is the engine configured for the operation (Apache POI unless changed, see PowerPointService), false forces Apache POI. Slides rendered with Aspose usually have a better quality."
+        + " Each blob will be named {original-file-name}-{slideNumber + 1}.{format}. SO even if slideNumber is zeroBased, output will start at 1 for better end user experience."
+        + " lane is \"interactive\" (a user is waiting for the result, runs first) or \"batch\" (bulk work, runs when no interactive call is waiting and gives way to them between two slides). Default is chosen from the pre-flight estimate of the presentation: \"interactive\" if it is light (nuxeo.powerpoint.estimate.lightMB), \"batch\" if it is heavy (nuxeo.powerpoint.estimate.heavyMB), else \"batch\".")
 public class GetThumbnailsOp {
 
     public static final String ID = "Conversion.PowerPointGetThumbnails";
 
+    /**
+     * Context variable set by the operation (Apache POI only): the zero-based numbers of the slides replaced by a
+     * placeholder, their time budget being spent
+     *
+     * @since 2023.2
+     */
+    public static final String TIMED_OUT_SLIDES_VAR = "pptTimedOutSlides";
+
+    @Context
+    protected OperationContext ctx;
+
     @Param(name = "xpath", required = false, values = { "file:content" })
     protected String xpath;
 
     @Param(name = "useAspose", required = false)
-    protected Boolean useAspose = false;
+    protected Boolean useAspose;
 
     @Param(name = "maxWidth", required = false)
     protected Integer maxWidth = 0;
@@ -41,35 +75,171 @@ public class GetThumbnailsOp {
     @Param(name = "onlyVisible", required = false)
     protected Boolean onlyVisible = false;
 
+    @Param(name = "slides", required = false)
+    protected String slides;
+
+    @Param(name = "widths", required = false)
+    protected String widths;
+
+    @Param(name = "quality", widget = Constants.W_OPTION, required = false, values = { "high", "standard", "draft" })
+    protected String quality;
+
+    @Param(name = "lane", widget = Constants.W_OPTION, required = false, values = { "interactive", "batch" })
+    protected String lane;
+
+    // Set by the engine of the call, see putTimedOutSlides()
+    protected List<Integer> timedOutSlides;
+
     @OperationMethod
     public BlobList run(DocumentModel doc) throws IOException {
+        Blob blob = PowerPointUtils.getBlob(doc, xpath);
+        return coalesce(blob, () -> {
+            DeckEstimate estimate = estimate(blob);
+            return AdmissionController.admit(ID, getLane(estimate), blob, estimate, getWorkers(estimate),
+                    () -> getThumbnails(doc));
+        });
+    }
+
+    @OperationMethod
+    public BlobList run(Blob blob) throws IOException {
+        return coalesce(blob, () -> {
+            DeckEstimate estimate = estimate(blob);
+            return AdmissionController.admit(ID, getLane(estimate), blob, estimate, getWorkers(estimate),
+                    () -> getThumbnails(blob));
+        });
+    }
+
+    /*
+     * The same calls running at the same time are computed once, before being admitted: the calls waiting for the
+     * result take no slot and no memory (see RequestCoalescer). Each of them gets its own copy of the thumbnails, and
+     * the timed out slides
+     */
+    protected BlobList coalesce(Blob blob, ResultCache.Computation<BlobList> computation) throws IOException {
+
+        String key = ResultCache.getKey(blob, ID, useAspose, maxWidth, format, onlyVisible, slides, widths, quality);
+        SharedResult result = RequestCoalescer.coalesce(key, ID, () -> {
+            BlobList blobs = computation.compute();
+            return new SharedResult(blobs, timedOutSlides);
+        }, SharedResult::copy);
+        if (result.getTimedOutSlides() != null) {
+            ctx.put(TIMED_OUT_SLIDES_VAR, result.getTimedOutSlides());
+        }
+        return new BlobList(result.getBlobs());
+    }
+
+    protected BlobList getThumbnails(DocumentModel doc) throws IOException {
 
         BlobList result;
 
-        if (useAspose) {
-            PowerPointUtilsWithAspose asposePptUtils = new PowerPointUtilsWithAspose();
-            result = asposePptUtils.getThumbnails(doc, xpath, maxWidth, format, onlyVisible);
-        } else {
-            PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
+        if (StringUtils.isNotBlank(widths)) {
+            return getThumbnails(PowerPointUtils.getBlob(doc, xpath));
+        }
+
+        PowerPointUtils pptUtils = newPowerPointUtils();
+        if (StringUtils.isBlank(slides)) {
             result = pptUtils.getThumbnails(doc, xpath, maxWidth, format, onlyVisible);
+        } else {
+            result = pptUtils.getThumbnails(doc, xpath, PowerPointUtils.parseSlideNumbers(slides), maxWidth, format);
         }
+        putTimedOutSlides(pptUtils);
 
         return result;
     }
 
-    @OperationMethod
-    public BlobList run(Blob blob) throws IOException {
+    protected BlobList getThumbnails(Blob blob) throws IOException {
 
         BlobList result;
 
-        if (useAspose) {
-            PowerPointUtilsWithAspose asposePptUtils = new PowerPointUtilsWithAspose();
-            result = asposePptUtils.getThumbnails(blob, maxWidth, format, onlyVisible);
-        } else {
-            PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
+        if (StringUtils.isNotBlank(widths)) {
+            return getMultiSizeThumbnails(blob);
+        }
+
+        PowerPointUtils pptUtils = newPowerPointUtils();
+        if (StringUtils.isBlank(slides)) {
             result = pptUtils.getThumbnails(blob, maxWidth, format, onlyVisible);
+        } else {
+            result = pptUtils.getThumbnails(blob, PowerPointUtils.parseSlideNumbers(slides), maxWidth, format);
         }
+        putTimedOutSlides(pptUtils);
 
         return result;
     }
+
+    protected BlobList getMultiSizeThumbnails(Blob blob) throws IOException {
+
+        if (StringUtils.isNotBlank(slides)) {
+            throw new NuxeoException("widths and slides cannot be used together");
+        }
+
+        List<Integer> maxWidths = new ArrayList<>();
+        for (String width : widths.split(",")) {
+            if (StringUtils.isNotBlank(width)) {
+                try {
+                    maxWidths.add(Integer.valueOf(width.trim()));
+                } catch (NumberFormatException e) {
+                    throw new NuxeoException("Invalid widths: " + widths, e);
+                }
+            }
+        }
+
+        PowerPointUtils pptUtils = newPowerPointUtils();
+        Map<Integer, BlobList> thumbs = pptUtils.getMultiSizeThumbnails(blob, maxWidths, format, onlyVisible);
+        putTimedOutSlides(pptUtils);
+
+        BlobList result = new BlobList();
+        for (BlobList blobs : thumbs.values()) {
+            result.addAll(blobs);
+        }
+
+        return result;
+    }
+
+    /*
+     * The engine of the call, see PowerPointService
+     */
+    protected PowerPointUtils newPowerPointUtils() {
+
+        PowerPointUtils pptUtils = Framework.getService(PowerPointService.class).newPowerPointUtils(ID, useAspose);
+        if (pptUtils instanceof PowerPointUtilsWithApachePOI) {
+            PowerPointUtilsWithApachePOI poiUtils = (PowerPointUtilsWithApachePOI) pptUtils;
+            if (StringUtils.isNotBlank(quality)) {
+                poiUtils.setRenderingQuality(RenderingQuality.fromString(quality));
+            }
+            // Already coalesced by the operation (see coalesce()): each call is coalesced and counted once
+            poiUtils.setCoalescer(null);
+        }
+        return pptUtils;
+    }
+
+    protected void putTimedOutSlides(PowerPointUtils pptUtils) {
+        if (pptUtils instanceof PowerPointUtilsWithApachePOI) {
+            timedOutSlides = ((PowerPointUtilsWithApachePOI) pptUtils).getTimedOutSlides();
+            ctx.put(TIMED_OUT_SLIDES_VAR, timedOutSlides);
+        }
+    }
+
+    /*
+     * Pre-flight of the call, see DeckEstimator
+     */
+    protected DeckEstimate estimate(Blob blob) {
+        return DeckEstimator.getShared().estimate(blob);
+    }
+
+    protected Lane getLane(DeckEstimate estimate) {
+        return Lane.fromString(lane, DeckEstimator.getShared().getLane(estimate, Lane.BATCH));
+    }
+
+    /*
+     * The workers rendering the slides in parallel (Apache POI), each one loading its own copy of the presentation:
+     * the memory of all the copies is reserved when admitting the call
+     */
+    protected int getWorkers(DeckEstimate estimate) {
+
+        int workers = NumberUtils.toInt(Framework.getProperty(PowerPointUtilsWithApachePOI.THUMBNAILS_WORKERS_PROPERTY),
+                1);
+        if (estimate != null) {
+            workers = Math.min(workers, estimate.getSlidesCount());
+        }
+        return DeckEstimator.getShared().getWorkers(estimate, workers);
+    }
 }
@@ -9,8 +9,12 @@ import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.automation.core.util.BlobList;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.runtime.api.Framework;
 
-import nuxeo.powerpoint.utils.aspose.PowerPointUtilsWithAspose;
+import nuxeo.powerpoint.utils.api.PowerPointUtils;
+import nuxeo.powerpoint.utils.service.AdmissionController;
+import nuxeo.powerpoint.utils.service.Lane;
+import nuxeo.powerpoint.utils.service.PowerPointService;
 
 /**
  *
@@ -21,7 +25,8 @@ import nuxeo.powerpoint.utils.aspose.PowerPointUtilsWithAspose;
         + " If fileName is empty, the result is named merged.pptx.<br/>"
         + " If reuseMasters is false, the whole set of master slides of each presentation to merge is copied to the destination."
         + " Else, they are copied only if the same masters (same theme, same layout) don't exist yet in the merged result.<br/>"
-        + " IMPORTANT: This operation uses Aspose (aspose.com), which requires a valid license. Without a license all slides are watermarked.")
+        + " IMPORTANT: This operation uses Aspose (aspose.com), which requires a valid license. Without a license all slides are watermarked. The engine can be changed, see PowerPointService."
+        + " lane is \"interactive\" (a user is waiting for the result, runs first) or \"batch\" (bulk work, runs when no interactive call is waiting and gives way to them between two slides). Default is \"batch\".")
 public class MergePresentationsOp {
 
     public static final String ID = "Conversion.PowerPointMerge";
@@ -35,25 +40,37 @@ public class MergePresentationsOp {
     @Param(name = "reuseMasters", required = false)
     protected Boolean reuseMasters = false;
 
+    @Param(name = "lane", widget = Constants.W_OPTION, required = false, values = { "interactive", "batch" })
+    protected String lane;
+
     @OperationMethod
     public Blob run(DocumentModelList docs) throws IOException {
 
-        Blob result;
-
-        PowerPointUtilsWithAspose asposePptUtils = new PowerPointUtilsWithAspose();
-        result = asposePptUtils.merge(docs, xpath, reuseMasters, fileName);
-
-        return result;
+        Blob[] blobs = docs.stream().map(doc -> PowerPointUtils.getBlob(doc, xpath)).toArray(Blob[]::new);
+        return AdmissionController.admit(ID, getLane(), blobs, () -> merge(docs));
     }
 
     @OperationMethod
     public Blob run(BlobList blobs) throws IOException {
-        
-        Blob result;
-        
-        PowerPointUtilsWithAspose asposePptUtils = new PowerPointUtilsWithAspose();
-        result = asposePptUtils.merge(blobs, reuseMasters, fileName);
+        return AdmissionController.admit(ID, getLane(), blobs.toArray(new Blob[0]), () -> merge(blobs));
+    }
+
+    protected Blob merge(DocumentModelList docs) throws IOException {
+        return newPowerPointUtils().merge(docs, xpath, reuseMasters, fileName);
+    }
+
+    protected Blob merge(BlobList blobs) throws IOException {
+        return newPowerPointUtils().merge(blobs, reuseMasters, fileName);
+    }
+
+    /*
+     * The engine of the call, see PowerPointService
+     */
+    protected PowerPointUtils newPowerPointUtils() {
+        return Framework.getService(PowerPointService.class).newPowerPointUtils(ID, null);
+    }
 
-        return result;
+    protected Lane getLane() {
+        return Lane.fromString(lane, Lane.BATCH);
     }
 }
@@ -6,10 +6,14 @@ import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
 import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.runtime.api.Framework;
 
-import nuxeo.powerpoint.utils.apachepoi.PowerPointUtilsWithApachePOI;
+import nuxeo.powerpoint.utils.apachepoi.DeckEstimate;
+import nuxeo.powerpoint.utils.apachepoi.DeckEstimator;
 import nuxeo.powerpoint.utils.api.PowerPointUtils;
-import nuxeo.powerpoint.utils.aspose.PowerPointUtilsWithAspose;
+import nuxeo.powerpoint.utils.service.AdmissionController;
+import nuxeo.powerpoint.utils.service.Lane;
+import nuxeo.powerpoint.utils.service.PowerPointService;
 
 /**
  *
@@ -22,7 +26,8 @@ import nuxeo.powerpoint.utils.aspose.PowerPointUtilsWithAspose;
         + " WARNING: An expression must be set on a single ligne. Create a new text block in PowerPoint if needed."
         + " (see documentation for existing limitations)"
         + " If fileName is empty, the returned blob will have the name of the template."
-        + " useAspose tells the operation to use Aspose for the rendition. Default is Apache POI.")
+        + " useAspose tells the operation to use Aspose for the rendition. Default is the engine configured for the operation (Apache POI unless changed, see PowerPointService), false forces Apache POI."
+        + " lane is \"interactive\" (a user is waiting for the result, runs first) or \"batch\" (bulk work, runs when no interactive call is waiting and gives way to them between two slides). Default is chosen from the pre-flight estimate of the presentation: \"interactive\" if it is light (nuxeo.powerpoint.estimate.lightMB), \"batch\" if it is heavy (nuxeo.powerpoint.estimate.heavyMB), else \"batch\".")
 public class RenderWithTemplateOp {
 
     public static final String ID = "Conversion.RenderDocumentWithPowerPointTemplate";
@@ -34,22 +39,36 @@ public class RenderWithTemplateOp {
     protected String fileName = null;
 
     @Param(name = "useAspose", required = false)
-    protected Boolean useAspose = false;
+    protected Boolean useAspose;
+
+    @Param(name = "lane", widget = Constants.W_OPTION, required = false, values = { "interactive", "batch" })
+    protected String lane;
 
     @OperationMethod
     public Blob run(DocumentModel doc) throws Exception {
+        DeckEstimate estimate = estimate(templateBlob);
+        return AdmissionController.admit(ID, getLane(estimate), templateBlob, estimate, () -> render(doc));
+    }
+
+    protected Blob render(DocumentModel doc) throws Exception {
+        return newPowerPointUtils().renderWithTemplate(doc, templateBlob, fileName);
+    }
 
-        Blob result;
-        
-        PowerPointUtils pptUtils;
+    /*
+     * The engine of the call, see PowerPointService
+     */
+    protected PowerPointUtils newPowerPointUtils() {
+        return Framework.getService(PowerPointService.class).newPowerPointUtils(ID, useAspose);
+    }
 
-        if(useAspose) {
-            pptUtils = new PowerPointUtilsWithAspose();
-        } else {
-            pptUtils = new PowerPointUtilsWithApachePOI();
-        }
-        result = pptUtils.renderWithTemplate(doc, templateBlob, fileName);
+    /*
+     * Pre-flight of the call, see DeckEstimator
+     */
+    protected DeckEstimate estimate(Blob blob) {
+        return DeckEstimator.getShared().estimate(blob);
+    }
 
-        return result;
+    protected Lane getLane(DeckEstimate estimate) {
+        return Lane.fromString(lane, DeckEstimator.getShared().getLane(estimate, Lane.BATCH));
     }
 }
@@ -9,9 +9,17 @@ import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.automation.core.util.BlobList;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.runtime.api.Framework;
 
+import nuxeo.powerpoint.utils.apachepoi.DeckEstimate;
+import nuxeo.powerpoint.utils.apachepoi.DeckEstimator;
 import nuxeo.powerpoint.utils.apachepoi.PowerPointUtilsWithApachePOI;
-import nuxeo.powerpoint.utils.aspose.PowerPointUtilsWithAspose;
+import nuxeo.powerpoint.utils.apachepoi.RequestCoalescer;
+import nuxeo.powerpoint.utils.apachepoi.ResultCache;
+import nuxeo.powerpoint.utils.api.PowerPointUtils;
+import nuxeo.powerpoint.utils.service.AdmissionController;
+import nuxeo.powerpoint.utils.service.Lane;
+import nuxeo.powerpoint.utils.service.PowerPointService;
 
 /**
  *
@@ -19,7 +27,8 @@ import nuxeo.powerpoint.utils.aspose.PowerPointUtilsWithAspose;
 @Operation(id = SplitPresentationOp.ID, category = Constants.CAT_CONVERSION, label = "PowerPoint: Split Presentation", description = "Split the input presentation"
         + " and returns an ordered list of blobs, one per slide."
         + " Each blob has a filename of {original presentation name}-{slideNumberStartAt1}.pptx (does not start at zero)"
-        + " input can be a blob of the presentation, or a document. In this case xpath tells the operation which blob to use (file:content by default)")
+        + " input can be a blob of the presentation, or a document. In this case xpath tells the operation which blob to use (file:content by default)"
+        + " lane is \"interactive\" (a user is waiting for the result, runs first) or \"batch\" (bulk work, runs when no interactive call is waiting and gives way to them between two slides). Default is chosen from the pre-flight estimate of the presentation: \"interactive\" if it is light (nuxeo.powerpoint.estimate.lightMB), \"batch\" if it is heavy (nuxeo.powerpoint.estimate.heavyMB), else \"batch\".")
 public class SplitPresentationOp {
 
     public static final String ID = "Conversion.PowerPointSplit";
@@ -28,35 +37,65 @@ public class SplitPresentationOp {
     protected String xpath;
 
     @Param(name = "useAspose", required = false)
-    protected Boolean useAspose = false;
+    protected Boolean useAspose;
+
+    @Param(name = "lane", widget = Constants.W_OPTION, required = false, values = { "interactive", "batch" })
+    protected String lane;
 
     @OperationMethod
     public BlobList run(DocumentModel doc) throws IOException {
-
-        BlobList result;
-        
-        if (useAspose) {
-            PowerPointUtilsWithAspose asposePptUtils = new PowerPointUtilsWithAspose();
-            result = asposePptUtils.splitPresentation(doc, xpath);
-        } else {
-            PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
-            result = pptUtils.splitPresentation(doc, xpath);
-        }
-
-        return result;
+        Blob blob = PowerPointUtils.getBlob(doc, xpath);
+        return coalesce(blob, () -> {
+            DeckEstimate estimate = estimate(blob);
+            return AdmissionController.admit(ID, getLane(estimate), blob, estimate, () -> split(doc));
+        });
     }
 
     @OperationMethod
     public BlobList run(Blob blob) throws IOException {
-        BlobList result;
-        if (useAspose) {
-            PowerPointUtilsWithAspose asposePptUtils = new PowerPointUtilsWithAspose();
-            result = asposePptUtils.splitPresentation(blob);
-        } else {
-            PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
-            result = pptUtils.splitPresentation(blob);
+        return coalesce(blob, () -> {
+            DeckEstimate estimate = estimate(blob);
+            return AdmissionController.admit(ID, getLane(estimate), blob, estimate, () -> split(blob));
+        });
+    }
+
+    /*
+     * Computed once for the same calls running at the same time, before being admitted (see RequestCoalescer)
+     */
+    protected BlobList coalesce(Blob blob, ResultCache.Computation<BlobList> computation) throws IOException {
+        return RequestCoalescer.coalesce(ResultCache.getKey(blob, ID, useAspose), ID, computation,
+                blobs -> new BlobList(RequestCoalescer.copyBlobs(blobs)));
+    }
+
+    protected BlobList split(DocumentModel doc) throws IOException {
+        return newPowerPointUtils().splitPresentation(doc, xpath);
+    }
+
+    protected BlobList split(Blob blob) throws IOException {
+        return newPowerPointUtils().splitPresentation(blob);
+    }
+
+    /*
+     * The engine of the call, see PowerPointService
+     */
+    protected PowerPointUtils newPowerPointUtils() {
+
+        PowerPointUtils pptUtils = Framework.getService(PowerPointService.class).newPowerPointUtils(ID, useAspose);
+        if (pptUtils instanceof PowerPointUtilsWithApachePOI) {
+            // Already coalesced by the operation (see coalesce()): each call is coalesced and counted once
+            ((PowerPointUtilsWithApachePOI) pptUtils).setCoalescer(null);
         }
+        return pptUtils;
+    }
+
+    /*
+     * Pre-flight of the call, see DeckEstimator
+     */
+    protected DeckEstimate estimate(Blob blob) {
+        return DeckEstimator.getShared().estimate(blob);
+    }
 
-        return result;
+    protected Lane getLane(DeckEstimate estimate) {
+        return Lane.fromString(lane, DeckEstimator.getShared().getLane(estimate, Lane.BATCH));
     }
 }
@@ -0,0 +1,57 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.service;
+
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.DefaultComponent;
+import org.nuxeo.runtime.model.Descriptor;
+
+/**
+ * Provides the {@link AdmissionController} of the node, configured with the "admission" extension point (see
+ * {@link AdmissionDescriptor}).
+ *
+ * @since 2023.2
+ */
+public class AdmissionComponent extends DefaultComponent {
+
+    public static final String XP_ADMISSION = "admission";
+
+    protected AdmissionController controller;
+
+    @Override
+    public void start(ComponentContext context) {
+
+        AdmissionDescriptor descriptor = getDescriptor(XP_ADMISSION, Descriptor.UNIQUE_DESCRIPTOR_ID);
+        controller = new AdmissionController(descriptor == null ? new AdmissionDescriptor() : descriptor);
+    }
+
+    @Override
+    public void stop(ComponentContext context) {
+        controller = null;
+    }
+
+    @Override
+    public <T> T getAdapter(Class<T> adapter) {
+
+        if (adapter.isAssignableFrom(AdmissionController.class)) {
+            return adapter.cast(controller);
+        }
+        return super.getAdapter(adapter);
+    }
+}
@@ -0,0 +1,538 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.SharedMetricRegistries;
+import nuxeo.powerpoint.utils.apachepoi.DeckEstimate;
+
+/**
+ * Admission of the PowerPoint calls (thumbnails, split, template rendering, ...) on the node: a burst of calls on big
+ * presentations must not exhaust the heap, and bulk work must not slow down the previews a user is waiting for.
+ * <p>
+ * A call runs when less than {@link AdmissionDescriptor#getConcurrency()} calls are running and the memory it is
+ * expected to use (the expected heap of its {@link DeckEstimate}, or {@link #estimateBytes(Blob...)} when the
+ * presentation could not be estimated) fits in what the running calls left of
+ * {@link AdmissionDescriptor#getMemoryBytes()}. A call bigger than the whole memory runs alone. Otherwise the call
+ * waits, in arrival order in its {@link Lane}, and is rejected with a {@link PowerPointOverloadedException} when the
+ * queues are full or when it waited more than {@link AdmissionDescriptor#getQueueTimeoutMs()}.
+ * <p>
+ * {@link Lane#INTERACTIVE} calls run first. A {@link Lane#BATCH} call runs only when no interactive call is waiting
+ * for a slot (one waiting for memory does not hold the batch calls that fit), and at most
+ * {@link AdmissionDescriptor#getBatchConcurrency()} of them run at the same time, so there is always a slot left for
+ * the interactive calls. A batch call is also preempted at slide granularity: the rendering and split
+ * loops reach a {@link Checkpoint} before each slide, where the call gives its slot to the interactive calls waiting
+ * for one, and gets it back once they are running (it keeps its memory, the deck is still loaded).
+ * <p>
+ * The time spent waiting is reported by lane in the Nuxeo metrics ("nuxeo.powerpoint.admission.wait").
+ * <p>
+ * The calls run on their own thread (the Automation thread, with its transaction and session): the controller only
+ * decides when. Configured with the "admission" extension point of the {@link AdmissionComponent}.
+ * <p>
+ * Thread safe.
+ *
+ * @since 2023.2
+ */
+public class AdmissionController {
+
+    public static final int DEFAULT_QUEUE_DEPTH = 100;
+
+    public static final long DEFAULT_QUEUE_TIMEOUT_MS = 30000;
+
+    public static final double DEFAULT_MEMORY_FACTOR = 10;
+
+    protected static final MetricName ADMITTED_METRIC = MetricName.build("nuxeo", "powerpoint", "admission",
+            "admitted");
+
+    protected static final MetricName REJECTED_METRIC = MetricName.build("nuxeo", "powerpoint", "admission",
+            "rejected");
+
+    protected static final MetricName WAIT_METRIC = MetricName.build("nuxeo", "powerpoint", "admission", "wait");
+
+    protected static final MetricName PREEMPTED_METRIC = MetricName.build("nuxeo", "powerpoint", "admission",
+            "preempted");
+
+    protected static final Checkpoint NO_CHECKPOINT = () -> {
+    };
+
+    // The call running on the thread, see getCheckpoint()
+    protected static final ThreadLocal<Ticket> CURRENT = new ThreadLocal<>();
+
+    protected final int concurrency;
+
+    protected final int batchConcurrency;
+
+    protected final int queueDepth;
+
+    protected final long queueTimeoutMs;
+
+    protected final long memoryBytes;
+
+    protected final double memoryFactor;
+
+    // Waiting calls, by lane, in arrival order
+    protected final Map<Lane, Deque<Ticket>> queues = new EnumMap<>(Lane.class);
+
+    protected int running = 0;
+
+    protected int runningBatch = 0;
+
+    protected long usedBytes = 0;
+
+    protected final Map<Lane, LongAdder> admitted = new EnumMap<>(Lane.class);
+
+    protected final Map<Lane, LongAdder> waitedMs = new EnumMap<>(Lane.class);
+
+    protected final LongAdder rejected = new LongAdder();
+
+    protected final LongAdder preempted = new LongAdder();
+
+    protected final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    /**
+     * A call to run, see {@link AdmissionController#run(String, Lane, long, Work)}
+     */
+    @FunctionalInterface
+    public interface Work<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /**
+     * Where a batch call can be preempted, see {@link AdmissionController#getCheckpoint()}
+     */
+    @FunctionalInterface
+    public interface Checkpoint {
+
+        /**
+         * Returns right away, unless the call gives its slot to interactive calls: then returns once it gets it back
+         *
+         * @throws NuxeoException if the thread is interrupted while waiting
+         */
+        void reached();
+    }
+
+    protected class Ticket implements Checkpoint {
+
+        protected final String operation;
+
+        protected final Lane lane;
+
+        protected final long bytes;
+
+        // Preempted: not counted in running. Guarded by the controller
+        protected boolean paused = false;
+
+        protected boolean released = false;
+
+        protected Ticket(String operation, Lane lane, long bytes) {
+            this.operation = operation;
+            this.lane = lane;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void reached() {
+            checkpoint(this);
+        }
+    }
+
+    public AdmissionController(AdmissionDescriptor descriptor) {
+        this(descriptor.getConcurrency(), descriptor.getBatchConcurrency(), descriptor.getQueueDepth(),
+                descriptor.getQueueTimeoutMs(), descriptor.getMemoryBytes(), descriptor.getMemoryFactor());
+    }
+
+    /**
+     * Same as {@link #AdmissionController(int, int, int, long, long, double)}, with the default batch concurrency (see
+     * {@link AdmissionDescriptor#getBatchConcurrency()})
+     */
+    public AdmissionController(int concurrency, int queueDepth, long queueTimeoutMs, long memoryBytes,
+            double memoryFactor) {
+        this(concurrency, AdmissionDescriptor.getDefaultBatchConcurrency(concurrency), queueDepth, queueTimeoutMs,
+                memoryBytes, memoryFactor);
+    }
+
+    public AdmissionController(int concurrency, int batchConcurrency, int queueDepth, long queueTimeoutMs,
+            long memoryBytes, double memoryFactor) {
+        this.concurrency = concurrency;
+        this.batchConcurrency = Math.max(1, Math.min(batchConcurrency, concurrency));
+        this.queueDepth = queueDepth;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.memoryBytes = memoryBytes;
+        this.memoryFactor = memoryFactor;
+        for (Lane lane : Lane.values()) {
+            queues.put(lane, new ArrayDeque<>());
+            admitted.put(lane, new LongAdder());
+            waitedMs.put(lane, new LongAdder());
+        }
+    }
+
+    /**
+     * Runs the call with the controller of the node, or right away if there is none (the component is not deployed)
+     *
+     * @param operation, the name of the call, for the errors and the metrics
+     * @param lane, the lane of the call
+     * @param blobs, the presentations of the call, to estimate the memory it uses
+     * @param work, the call
+     * @return the result of the call
+     * @throws PowerPointOverloadedException if the call is not admitted
+     */
+    public static <T, E extends Exception> T admit(String operation, Lane lane, Blob[] blobs, Work<T, E> work)
+            throws E {
+
+        AdmissionController controller = Framework.getService(AdmissionController.class);
+        if (controller == null) {
+            return work.run();
+        }
+        return controller.run(operation, lane, controller.estimateBytes(blobs), work);
+    }
+
+    /**
+     * Same as {@link #admit(String, Lane, Blob[], Work)}, for one presentation
+     */
+    public static <T, E extends Exception> T admit(String operation, Lane lane, Blob blob, Work<T, E> work)
+            throws E {
+        return admit(operation, lane, new Blob[] { blob }, work);
+    }
+
+    /**
+     * Same as {@link #admit(String, Lane, Blob, Work)}, the memory of the call being the expected heap of the estimate
+     *
+     * @param estimate, see {@link nuxeo.powerpoint.utils.apachepoi.DeckEstimator}. If null, the memory is estimated
+     *            from the size of the blob
+     */
+    public static <T, E extends Exception> T admit(String operation, Lane lane, Blob blob, DeckEstimate estimate,
+            Work<T, E> work) throws E {
+        return admit(operation, lane, blob, estimate, 1, work);
+    }
+
+    /**
+     * Same as {@link #admit(String, Lane, Blob, DeckEstimate, Work)}, for a call loading several copies of the
+     * presentation at the same time (one per worker rendering the slides): the memory of each copy is reserved
+     *
+     * @param copies, the copies loaded at the same time. The call must not load more, see {@link #getReservedBytes()}
+     */
+    public static <T, E extends Exception> T admit(String operation, Lane lane, Blob blob, DeckEstimate estimate,
+            int copies, Work<T, E> work) throws E {
+
+        AdmissionController controller = Framework.getService(AdmissionController.class);
+        if (controller == null) {
+            return work.run();
+        }
+        long bytes = estimate != null ? estimate.getExpectedHeapBytes() : controller.estimateBytes(blob);
+        return controller.run(operation, lane, bytes * Math.max(1, copies), work);
+    }
+
+    /**
+     * The checkpoint of the call running on this thread, to reach before processing each slide. When the slides are
+     * processed by other threads, get it on the calling thread and pass it to them.
+     *
+     * @return the checkpoint, doing nothing if no batch call is running on this thread
+     */
+    public static Checkpoint getCheckpoint() {
+
+        Ticket ticket = CURRENT.get();
+        return ticket != null && ticket.lane == Lane.BATCH ? ticket : NO_CHECKPOINT;
+    }
+
+    /**
+     * The memory reserved for the call running on this thread. It can be less than asked when the call is bigger than
+     * the whole memory (it runs alone).
+     *
+     * @return the memory in bytes, -1 if no call was admitted on this thread (no limit)
+     */
+    public static long getReservedBytes() {
+
+        Ticket ticket = CURRENT.get();
+        return ticket != null ? ticket.bytes : -1;
+    }
+
+    /**
+     * Waits for the call to be admitted, runs it, then lets the next calls run
+     *
+     * @param operation, the name of the call, for the errors and the metrics
+     * @param lane, the lane of the call
+     * @param bytes, the memory the call is expected to use
+     * @param work, the call
+     * @return the result of the call
+     * @throws PowerPointOverloadedException if the call is not admitted
+     */
+    public <T, E extends Exception> T run(String operation, Lane lane, long bytes, Work<T, E> work) throws E {
+
+        Ticket ticket = acquire(operation, lane, bytes);
+        Ticket previous = CURRENT.get();
+        CURRENT.set(ticket);
+        try {
+            return work.run();
+        } finally {
+            CURRENT.set(previous);
+            release(ticket);
+        }
+    }
+
+    /**
+     * @return the memory the calls on these presentations are expected to use: {@link #memoryFactor} * their size
+     */
+    public long estimateBytes(Blob... blobs) {
+
+        long length = 0;
+        for (Blob blob : blobs) {
+            if (blob != null && blob.getLength() > 0) {
+                length += blob.getLength();
+            }
+        }
+        return (long) (length * memoryFactor);
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getBatchConcurrency() {
+        return batchConcurrency;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getQueueTimeoutMs() {
+        return queueTimeoutMs;
+    }
+
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public double getMemoryFactor() {
+        return memoryFactor;
+    }
+
+    /**
+     * @return the calls running, preempted batch calls excluded
+     */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * @return the batch calls running, preempted ones excluded
+     */
+    public synchronized int getRunningBatch() {
+        return runningBatch;
+    }
+
+    public synchronized int getWaiting() {
+        return getWaitingCount();
+    }
+
+    public synchronized int getWaiting(Lane lane) {
+        return queues.get(lane).size();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getAdmitted() {
+        return admitted.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    public long getAdmitted(Lane lane) {
+        return admitted.get(lane).sum();
+    }
+
+    /**
+     * @return the total time the admitted calls of the lane waited to run, in milliseconds
+     */
+    public long getWaitedMs(Lane lane) {
+        return waitedMs.get(lane).sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of times a batch call gave its slot to interactive calls
+     */
+    public long getPreempted() {
+        return preempted.sum();
+    }
+
+    protected synchronized Ticket acquire(String operation, Lane lane, long bytes) {
+
+        // A call bigger than the memory runs alone
+        Ticket ticket = new Ticket(operation, lane, Math.max(0, Math.min(bytes, memoryBytes)));
+        long start = System.nanoTime();
+        Deque<Ticket> queue = queues.get(lane);
+        if (queue.isEmpty() && canStart(ticket)) {
+            start(ticket, start);
+            return ticket;
+        }
+        int waiting = getWaitingCount();
+        if (waiting >= queueDepth) {
+            throw reject(operation, "too many calls waiting (" + waiting + ")");
+        }
+
+        queue.addLast(ticket);
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs);
+        try {
+            while (queue.peekFirst() != ticket || !canStart(ticket)) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    queue.remove(ticket);
+                    notifyAll();
+                    throw reject(operation, "waited more than " + queueTimeoutMs + "ms");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+        } catch (InterruptedException e) {
+            queue.remove(ticket);
+            notifyAll();
+            Thread.currentThread().interrupt();
+            throw new NuxeoException(e);
+        }
+        queue.removeFirst();
+        start(ticket, start);
+        // The next one may fit too
+        notifyAll();
+        return ticket;
+    }
+
+    protected synchronized void release(Ticket ticket) {
+
+        // A batch call failing while another of its workers is preempted: its slot is already free
+        if (!ticket.paused) {
+            stop(ticket);
+        }
+        ticket.paused = false;
+        ticket.released = true;
+        usedBytes -= ticket.bytes;
+        notifyAll();
+    }
+
+    /*
+     * Called by the thread(s) of a batch call. Several workers of a call can reach the checkpoint at the same time:
+     * the first one pauses the call, all of them wait, the first one to wake up when there is room resumes it.
+     */
+    protected synchronized void checkpoint(Ticket ticket) {
+
+        if (ticket.released) {
+            return;
+        }
+        if (!ticket.paused && running >= concurrency && isInteractiveWaiting()) {
+            ticket.paused = true;
+            stop(ticket);
+            preempted.increment();
+            registry.counter(PREEMPTED_METRIC.tagged("operation", ticket.operation)).inc();
+            notifyAll();
+        }
+        try {
+            while (ticket.paused) {
+                if (canResume()) {
+                    ticket.paused = false;
+                    running += 1;
+                    runningBatch += 1;
+                    notifyAll();
+                    return;
+                }
+                wait();
+            }
+        } catch (InterruptedException e) {
+            if (ticket.paused) {
+                // Counted again, for release()
+                ticket.paused = false;
+                running += 1;
+                runningBatch += 1;
+            }
+            Thread.currentThread().interrupt();
+            throw new NuxeoException(e);
+        }
+    }
+
+    protected boolean canStart(Ticket ticket) {
+
+        if (running >= concurrency || usedBytes + ticket.bytes > memoryBytes) {
+            return false;
+        }
+        return ticket.lane == Lane.INTERACTIVE || (runningBatch < batchConcurrency && !isInteractiveWaiting());
+    }
+
+    protected boolean canResume() {
+        return running < concurrency && runningBatch < batchConcurrency && !isInteractiveWaiting();
+    }
+
+    /*
+     * An interactive call waits for a slot only: one waiting for memory would not run sooner if a batch call,
+     * keeping its memory, gave its slot
+     */
+    protected boolean isInteractiveWaiting() {
+
+        Ticket head = queues.get(Lane.INTERACTIVE).peekFirst();
+        return head != null && usedBytes + head.bytes <= memoryBytes;
+    }
+
+    protected int getWaitingCount() {
+        return queues.values().stream().mapToInt(Deque::size).sum();
+    }
+
+    protected void start(Ticket ticket, long waitStart) {
+
+        running += 1;
+        if (ticket.lane == Lane.BATCH) {
+            runningBatch += 1;
+        }
+        usedBytes += ticket.bytes;
+        long waited = System.nanoTime() - waitStart;
+        admitted.get(ticket.lane).increment();
+        waitedMs.get(ticket.lane).add(TimeUnit.NANOSECONDS.toMillis(waited));
+        String lane = ticket.lane.toString();
+        registry.counter(ADMITTED_METRIC.tagged("operation", ticket.operation, "lane", lane)).inc();
+        registry.timer(WAIT_METRIC.tagged("lane", lane)).update(waited, TimeUnit.NANOSECONDS);
+    }
+
+    protected void stop(Ticket ticket) {
+
+        running -= 1;
+        if (ticket.lane == Lane.BATCH) {
+            runningBatch -= 1;
+        }
+    }
+
+    protected PowerPointOverloadedException reject(String operation, String reason) {
+
+        rejected.increment();
+        registry.counter(REJECTED_METRIC.tagged("operation", operation)).inc();
+        return new PowerPointOverloadedException(
+                "The server is too busy to run " + operation + ": " + reason + ". Please try again later");
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.service;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+import org.nuxeo.runtime.model.Descriptor;
+
+/**
+ * Limits of the PowerPoint calls running on the node, see {@link AdmissionController}. A value not set keeps the
+ * previous contribution (or the default):
+ *
+ * <pre>
+ * &lt;extension target="nuxeo.powerpoint.utils.admission" point="admission"&gt;
+ *   &lt;admission&gt;
+ *     &lt;concurrency&gt;4&lt;/concurrency&gt;
+ *     &lt;batchConcurrency&gt;2&lt;/batchConcurrency&gt;
+ *     &lt;queueDepth&gt;50&lt;/queueDepth&gt;
+ *     &lt;queueTimeoutMs&gt;20000&lt;/queueTimeoutMs&gt;
+ *     &lt;memoryMB&gt;1024&lt;/memoryMB&gt;
+ *     &lt;memoryFactor&gt;10&lt;/memoryFactor&gt;
+ *   &lt;/admission&gt;
+ * &lt;/extension&gt;
+ * </pre>
+ *
+ * @since 2023.2
+ */
+@XObject("admission")
+public class AdmissionDescriptor implements Descriptor {
+
+    /**
+     * Calls running at the same time. Default is the number of processors
+     */
+    @XNode("concurrency")
+    protected Integer concurrency;
+
+    /**
+     * Batch calls running at the same time (see {@link Lane#BATCH}), at most {@link #concurrency}. Default is
+     * concurrency - 1, so an interactive call never waits for the batch calls to finish
+     */
+    @XNode("batchConcurrency")
+    protected Integer batchConcurrency;
+
+    /**
+     * Calls waiting to run, in all the lanes. A call arriving when the queue is full is rejected. Default is 100
+     */
+    @XNode("queueDepth")
+    protected Integer queueDepth;
+
+    /**
+     * Maximum time a call waits to run, in milliseconds. Default is 30000
+     */
+    @XNode("queueTimeoutMs")
+    protected Long queueTimeoutMs;
+
+    /**
+     * Memory the running calls can use, in MB (see {@link #memoryFactor}). Default is a quarter of the maximum heap
+     */
+    @XNode("memoryMB")
+    protected Long memoryMB;
+
+    /**
+     * Memory used by a call, estimated as this factor * size of the presentation(s). Default is 10
+     */
+    @XNode("memoryFactor")
+    protected Double memoryFactor;
+
+    @Override
+    public String getId() {
+        return UNIQUE_DESCRIPTOR_ID;
+    }
+
+    @Override
+    public Descriptor merge(Descriptor o) {
+
+        AdmissionDescriptor other = (AdmissionDescriptor) o;
+        AdmissionDescriptor merged = new AdmissionDescriptor();
+        merged.concurrency = other.concurrency != null ? other.concurrency : concurrency;
+        merged.batchConcurrency = other.batchConcurrency != null ? other.batchConcurrency : batchConcurrency;
+        merged.queueDepth = other.queueDepth != null ? other.queueDepth : queueDepth;
+        merged.queueTimeoutMs = other.queueTimeoutMs != null ? other.queueTimeoutMs : queueTimeoutMs;
+        merged.memoryMB = other.memoryMB != null ? other.memoryMB : memoryMB;
+        merged.memoryFactor = other.memoryFactor != null ? other.memoryFactor : memoryFactor;
+        return merged;
+    }
+
+    public int getConcurrency() {
+        return concurrency != null && concurrency > 0 ? concurrency : Runtime.getRuntime().availableProcessors();
+    }
+
+    public int getBatchConcurrency() {
+        int max = getConcurrency();
+        return batchConcurrency != null && batchConcurrency > 0 ? Math.min(batchConcurrency, max)
+                : getDefaultBatchConcurrency(max);
+    }
+
+    /**
+     * @return the default batch concurrency for this concurrency: one slot is kept for the interactive calls, if
+     *         there are more than one
+     */
+    public static int getDefaultBatchConcurrency(int concurrency) {
+        return Math.max(1, concurrency - 1);
+    }
+
+    public int getQueueDepth() {
+        return queueDepth != null && queueDepth >= 0 ? queueDepth : AdmissionController.DEFAULT_QUEUE_DEPTH;
+    }
+
+    public long getQueueTimeoutMs() {
+        return queueTimeoutMs != null && queueTimeoutMs >= 0 ? queueTimeoutMs
+                : AdmissionController.DEFAULT_QUEUE_TIMEOUT_MS;
+    }
+
+    /**
+     * @return the memory, in bytes
+     */
+    public long getMemoryBytes() {
+        return memoryMB != null && memoryMB > 0 ? memoryMB * 1024 * 1024 : Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    public double getMemoryFactor() {
+        return memoryFactor != null && memoryFactor > 0 ? memoryFactor : AdmissionController.DEFAULT_MEMORY_FACTOR;
+    }
+}
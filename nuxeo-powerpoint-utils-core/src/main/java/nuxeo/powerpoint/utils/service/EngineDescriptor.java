@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.service;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+import org.nuxeo.runtime.model.Descriptor;
+
+/**
+ * A {@link PowerPointEngine} of the {@link PowerPointService}. A contribution with the name of an engine already
+ * registered replaces its class, if set, and can disable it:
+ *
+ * <pre>
+ * &lt;extension target="nuxeo.powerpoint.utils.service" point="engines"&gt;
+ *   &lt;engine name="myengine" class="com.example.MyPowerPointEngine" /&gt;
+ *   &lt;engine name="aspose" enabled="false" /&gt;
+ * &lt;/extension&gt;
+ * </pre>
+ *
+ * @since 2023.2
+ */
+@XObject("engine")
+public class EngineDescriptor implements Descriptor {
+
+    @XNode("@name")
+    protected String name;
+
+    @XNode("@class")
+    protected Class<? extends PowerPointEngine> engineClass;
+
+    @XNode("@enabled")
+    protected Boolean enabled;
+
+    @Override
+    public String getId() {
+        return name;
+    }
+
+    @Override
+    public Descriptor merge(Descriptor o) {
+
+        EngineDescriptor other = (EngineDescriptor) o;
+        EngineDescriptor merged = new EngineDescriptor();
+        merged.name = name;
+        merged.engineClass = other.engineClass != null ? other.engineClass : engineClass;
+        merged.enabled = other.enabled != null ? other.enabled : enabled;
+        return merged;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<? extends PowerPointEngine> getEngineClass() {
+        return engineClass;
+    }
+
+    public boolean isEnabled() {
+        return enabled == null || enabled;
+    }
+}
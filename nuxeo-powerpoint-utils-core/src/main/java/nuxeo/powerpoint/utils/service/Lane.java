@@ -0,0 +1,66 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.service;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * The lanes of the PowerPoint calls, see {@link AdmissionController}.
+ *
+ * @since 2023.2
+ */
+public enum Lane {
+
+    /**
+     * A user is waiting for the result (a preview, one slide, ...): runs first
+     */
+    INTERACTIVE,
+
+    /**
+     * Bulk work (split, template rendering, all the thumbnails of a deck, ...): runs when no interactive call is
+     * waiting, and is paused between two slides when one is
+     */
+    BATCH;
+
+    /**
+     * @param value, case insensitive
+     * @param defaultLane, returned if value is blank
+     * @return the lane
+     */
+    public static Lane fromString(String value, Lane defaultLane) {
+
+        if (StringUtils.isBlank(value)) {
+            return defaultLane;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new NuxeoException(value + " is not a supported lane (only interactive or batch)");
+        }
+    }
+
+    /**
+     * @return the name of the lane in the metrics, "interactive" or "batch"
+     */
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.service;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+import org.nuxeo.runtime.model.Descriptor;
+
+/**
+ * The engine used by an operation when the call does not choose one (see
+ * {@link PowerPointService#newPowerPointUtils(String, Boolean)}). A later contribution for the same operation replaces
+ * the engine:
+ *
+ * <pre>
+ * &lt;extension target="nuxeo.powerpoint.utils.service" point="operations"&gt;
+ *   &lt;operation id="Conversion.PowerPointGetThumbnails" engine="aspose" /&gt;
+ * &lt;/extension&gt;
+ * </pre>
+ *
+ * @since 2023.2
+ */
+@XObject("operation")
+public class OperationEngineDescriptor implements Descriptor {
+
+    @XNode("@id")
+    protected String id;
+
+    @XNode("@engine")
+    protected String engine;
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+}
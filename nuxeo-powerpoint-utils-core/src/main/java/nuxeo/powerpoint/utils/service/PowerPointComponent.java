@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+import nuxeo.powerpoint.utils.api.PowerPointUtils;
+
+/**
+ * Implementation of the {@link PowerPointService}. The engines are created and started when the component starts,
+ * stopped when it stops.
+ *
+ * @since 2023.2
+ */
+public class PowerPointComponent extends DefaultComponent implements PowerPointService {
+
+    public static final String XP_ENGINES = "engines";
+
+    public static final String XP_OPERATIONS = "operations";
+
+    protected volatile Map<String, PowerPointEngine> engines = Collections.emptyMap();
+
+    @Override
+    public void start(ComponentContext context) {
+
+        Map<String, PowerPointEngine> started = new LinkedHashMap<>();
+        try {
+            for (EngineDescriptor descriptor : this.<EngineDescriptor> getDescriptors(XP_ENGINES)) {
+                if (descriptor.isEnabled()) {
+                    PowerPointEngine engine = newEngine(descriptor);
+                    engine.start();
+                    started.put(descriptor.getName(), engine);
+                }
+            }
+        } catch (RuntimeException e) {
+            started.values().forEach(PowerPointEngine::stop);
+            throw e;
+        }
+        engines = Collections.unmodifiableMap(started);
+    }
+
+    @Override
+    public void stop(ComponentContext context) {
+
+        Map<String, PowerPointEngine> stopped = engines;
+        engines = Collections.emptyMap();
+        stopped.values().forEach(PowerPointEngine::stop);
+    }
+
+    protected PowerPointEngine newEngine(EngineDescriptor descriptor) {
+
+        if (descriptor.getEngineClass() == null) {
+            throw new NuxeoException("No class for the PowerPoint engine " + descriptor.getName());
+        }
+        try {
+            return descriptor.getEngineClass().getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new NuxeoException("Cannot create the PowerPoint engine " + descriptor.getName(), e);
+        }
+    }
+
+    @Override
+    public Set<String> getEngineNames() {
+        return engines.keySet();
+    }
+
+    @Override
+    public PowerPointEngine getEngine(String name) {
+        return engines.get(name);
+    }
+
+    @Override
+    public String getEngineName(String operationId) {
+
+        OperationEngineDescriptor descriptor = getDescriptor(XP_OPERATIONS, operationId);
+        return descriptor != null && descriptor.getEngine() != null ? descriptor.getEngine() : DEFAULT_ENGINE;
+    }
+
+    @Override
+    public PowerPointUtils newPowerPointUtils(String name) {
+
+        PowerPointEngine engine = engines.get(name);
+        if (engine == null) {
+            throw new NuxeoException("Unknown or disabled PowerPoint engine: " + name);
+        }
+        return engine.newInstance();
+    }
+
+    @Override
+    public PowerPointUtils newPowerPointUtils(String operationId, Boolean useAspose) {
+
+        String name;
+        if (useAspose == null) {
+            name = getEngineName(operationId);
+        } else {
+            name = useAspose ? ASPOSE_ENGINE : APACHE_POI_ENGINE;
+        }
+        return newPowerPointUtils(name);
+    }
+}
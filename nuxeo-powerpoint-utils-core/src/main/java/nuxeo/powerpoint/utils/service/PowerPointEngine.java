@@ -0,0 +1,49 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.service;
+
+import nuxeo.powerpoint.utils.api.PowerPointUtils;
+
+/**
+ * An engine registered in the {@link PowerPointService} (see {@link EngineDescriptor}). It is created and started once
+ * by the service, and holds what the calls share (thread pools, caches, warmed up state). The {@link PowerPointUtils}
+ * instances it returns are used for one call only: they keep the state of their call (time budget, timed out slides,
+ * etc.).
+ *
+ * @since 2023.2
+ */
+public interface PowerPointEngine {
+
+    /**
+     * Called when the service starts, before any {@link #newInstance()}
+     */
+    default void start() {
+    }
+
+    /**
+     * Called when the service stops. Releases what {@link #start()} created
+     */
+    default void stop() {
+    }
+
+    /**
+     * @return a new PowerPointUtils, for one call
+     */
+    PowerPointUtils newInstance();
+}
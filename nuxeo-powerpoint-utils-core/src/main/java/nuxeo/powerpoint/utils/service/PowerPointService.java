@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.service;
+
+import java.util.Set;
+
+import nuxeo.powerpoint.utils.api.PowerPointUtils;
+
+/**
+ * The PowerPoint engines of the node, registered with the "engines" extension point (see {@link EngineDescriptor}),
+ * and the engine used by each operation, configured with the "operations" extension point (see
+ * {@link OperationEngineDescriptor}).
+ * <p>
+ * The engines are started with the service and hold what the calls share (thread pools, caches), each call getting
+ * its own {@link PowerPointUtils} (see {@link PowerPointEngine}).
+ *
+ * @since 2023.2
+ */
+public interface PowerPointService {
+
+    String APACHE_POI_ENGINE = "apachepoi";
+
+    String ASPOSE_ENGINE = "aspose";
+
+    /**
+     * Engine of the operations not configured
+     */
+    String DEFAULT_ENGINE = APACHE_POI_ENGINE;
+
+    /**
+     * @return the names of the engines started, in the order of their registration
+     */
+    Set<String> getEngineNames();
+
+    /**
+     * @return the engine started with this name, or null
+     */
+    PowerPointEngine getEngine(String name);
+
+    /**
+     * @return the name of the engine configured for the operation, {@link #DEFAULT_ENGINE} if none
+     */
+    String getEngineName(String operationId);
+
+    /**
+     * @param name, the name of the engine
+     * @return a new PowerPointUtils of the engine, for one call
+     * @throws org.nuxeo.ecm.core.api.NuxeoException if there is no such engine, or it is disabled
+     */
+    PowerPointUtils newPowerPointUtils(String name);
+
+    /**
+     * Same as {@link #newPowerPointUtils(String)}, for a call of the operation
+     *
+     * @param operationId, the id of the operation
+     * @param useAspose, the "useAspose" parameter of the call: true for {@link #ASPOSE_ENGINE}, false for
+     *            {@link #APACHE_POI_ENGINE}, null for the engine configured for the operation
+     */
+    PowerPointUtils newPowerPointUtils(String operationId, Boolean useAspose);
+}
@@ -0,0 +1,369 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+
+import nuxeo.powerpoint.utils.service.AdmissionController;
+import nuxeo.powerpoint.utils.service.AdmissionDescriptor;
+import nuxeo.powerpoint.utils.service.Lane;
+import nuxeo.powerpoint.utils.service.PowerPointOverloadedException;
+
+/**
+ * @since 2023.2
+ */
+public class TestAdmissionController {
+
+    protected static final long MB = 1024 * 1024;
+
+    protected ExecutorService executor;
+
+    protected final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void before() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void after() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldLimitConcurrency() throws Exception {
+
+        AdmissionController controller = new AdmissionController(2, 10, 10000, 100 * MB, 10);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            futures.add(executor.submit(() -> controller.run("test", Lane.INTERACTIVE, MB, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                await(release);
+                running.decrementAndGet();
+                return "done";
+            })));
+        }
+        waitFor(() -> controller.getRunning() == 2 && controller.getWaiting() == 4);
+        release.countDown();
+
+        for (Future<String> future : futures) {
+            assertEquals("done", future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(2, maxRunning.get());
+        assertEquals(6, controller.getAdmitted());
+        assertEquals(0, controller.getRejected());
+        assertEquals(0, controller.getRunning());
+        assertEquals(0, controller.getUsedBytes());
+    }
+
+    @Test
+    public void shouldRejectWhenTheQueueIsFull() throws Exception {
+
+        AdmissionController controller = new AdmissionController(1, 2, 10000, 100 * MB, 10);
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(executor.submit(() -> controller.run("test", Lane.INTERACTIVE, MB, () -> {
+                await(release);
+                return "done";
+            })));
+        }
+        waitFor(() -> controller.getRunning() == 1 && controller.getWaiting() == 2);
+
+        try {
+            controller.run("test", Lane.INTERACTIVE, MB, () -> "done");
+            fail("The queue is full");
+        } catch (PowerPointOverloadedException e) {
+            assertEquals(503, e.getStatusCode());
+            assertTrue(e.getMessage(), e.getMessage().contains("too many calls waiting"));
+        }
+        assertEquals(1, controller.getRejected());
+
+        release.countDown();
+        for (Future<String> future : futures) {
+            assertEquals("done", future.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void shouldRejectAfterTheQueueTimeout() throws Exception {
+
+        AdmissionController controller = new AdmissionController(1, 10, 200, 100 * MB, 10);
+        Future<String> running = executor.submit(() -> controller.run("test", Lane.INTERACTIVE, MB, () -> {
+            await(release);
+            return "done";
+        }));
+        waitFor(() -> controller.getRunning() == 1);
+
+        long start = System.nanoTime();
+        try {
+            controller.run("test", Lane.INTERACTIVE, MB, () -> "done");
+            fail("The call waited too long");
+        } catch (PowerPointOverloadedException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("waited more than 200ms"));
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+        // Not waiting anymore
+        assertEquals(0, controller.getWaiting());
+
+        release.countDown();
+        assertEquals("done", running.get(10, TimeUnit.SECONDS));
+        assertEquals("done", controller.run("test", Lane.INTERACTIVE, MB, () -> "done"));
+    }
+
+    @Test
+    public void shouldAdmitByMemory() throws Exception {
+
+        // Room for 10MB: a 6MB call waits for the running 6MB call, even with free slots
+        AdmissionController controller = new AdmissionController(4, 10, 10000, 10 * MB, 10);
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            futures.add(executor.submit(() -> controller.run("test", Lane.INTERACTIVE, 6 * MB, () -> {
+                await(release);
+                return "done";
+            })));
+        }
+        waitFor(() -> controller.getRunning() == 1 && controller.getWaiting() == 1);
+        assertEquals(6 * MB, controller.getUsedBytes());
+
+        // Calls wait in arrival order: a small one does not pass the big one waiting
+        futures.add(executor.submit(() -> controller.run("test", Lane.INTERACTIVE, MB, () -> "done")));
+        waitFor(() -> controller.getWaiting() == 2);
+
+        release.countDown();
+        for (Future<String> future : futures) {
+            assertEquals("done", future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(0, controller.getUsedBytes());
+    }
+
+    @Test
+    public void shouldRunACallBiggerThanTheMemoryAlone() throws Exception {
+
+        AdmissionController controller = new AdmissionController(4, 10, 10000, 10 * MB, 10);
+        assertEquals("done", controller.run("test", Lane.INTERACTIVE, 100 * MB, () -> {
+            assertEquals(10 * MB, controller.getUsedBytes());
+            return "done";
+        }));
+    }
+
+    @Test
+    public void shouldGiveTheReservedMemoryToTheCall() throws Exception {
+
+        AdmissionController controller = new AdmissionController(4, 10, 10000, 10 * MB, 10);
+        assertEquals(-1, AdmissionController.getReservedBytes());
+        assertEquals(Long.valueOf(3 * MB),
+                controller.run("test", Lane.INTERACTIVE, 3 * MB, AdmissionController::getReservedBytes));
+        // Running alone
+        assertEquals(Long.valueOf(10 * MB),
+                controller.run("test", Lane.INTERACTIVE, 100 * MB, AdmissionController::getReservedBytes));
+        assertEquals(-1, AdmissionController.getReservedBytes());
+    }
+
+    @Test
+    public void shouldReleaseWhenTheCallFails() throws Exception {
+
+        AdmissionController controller = new AdmissionController(1, 10, 10000, 10 * MB, 10);
+        try {
+            controller.run("test", Lane.INTERACTIVE, MB, () -> {
+                throw new IllegalStateException("Invalid deck");
+            });
+            fail("The call failed");
+        } catch (IllegalStateException e) {
+            assertEquals("Invalid deck", e.getMessage());
+        }
+        assertEquals(0, controller.getRunning());
+        assertEquals(0, controller.getUsedBytes());
+    }
+
+    @Test
+    public void shouldRunInteractiveCallsFirst() throws Exception {
+
+        AdmissionController controller = new AdmissionController(1, 10, 10000, 100 * MB, 10);
+        List<String> started = new CopyOnWriteArrayList<>();
+        Future<String> first = executor.submit(() -> controller.run("test", Lane.INTERACTIVE, MB, () -> {
+            await(release);
+            return "done";
+        }));
+        waitFor(() -> controller.getRunning() == 1);
+
+        // The batch call arrives first, but runs last
+        Future<Boolean> batch = executor.submit(
+                () -> controller.run("test", Lane.BATCH, MB, () -> started.add("batch")));
+        waitFor(() -> controller.getWaiting(Lane.BATCH) == 1);
+        Future<Boolean> interactive = executor.submit(
+                () -> controller.run("test", Lane.INTERACTIVE, MB, () -> started.add("interactive")));
+        waitFor(() -> controller.getWaiting(Lane.INTERACTIVE) == 1);
+
+        release.countDown();
+        assertEquals("done", first.get(10, TimeUnit.SECONDS));
+        assertTrue(batch.get(10, TimeUnit.SECONDS));
+        assertTrue(interactive.get(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("interactive", "batch"), started);
+        assertEquals(2, controller.getAdmitted(Lane.INTERACTIVE));
+        assertEquals(1, controller.getAdmitted(Lane.BATCH));
+        assertTrue(controller.getWaitedMs(Lane.BATCH) > 0);
+    }
+
+    @Test
+    public void shouldRunBatchCallsWhenTheInteractiveCallWaitsForMemory() throws Exception {
+
+        // Same rule as for resuming: the interactive call would not run sooner if the batch call waited
+        AdmissionController controller = new AdmissionController(4, 10, 10000, 10 * MB, 10);
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            futures.add(executor.submit(() -> controller.run("test", Lane.INTERACTIVE, 6 * MB, () -> {
+                await(release);
+                return "done";
+            })));
+        }
+        waitFor(() -> controller.getRunning() == 1 && controller.getWaiting(Lane.INTERACTIVE) == 1);
+
+        assertEquals("done", controller.run("test", Lane.BATCH, MB, () -> "done"));
+        assertEquals(1, controller.getWaiting(Lane.INTERACTIVE));
+
+        release.countDown();
+        for (Future<String> future : futures) {
+            assertEquals("done", future.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void shouldKeepASlotForInteractiveCalls() throws Exception {
+
+        // 1 batch call at a time: the second one waits, an interactive one runs right away
+        AdmissionController controller = new AdmissionController(2, 10, 10000, 100 * MB, 10);
+        assertEquals(1, controller.getBatchConcurrency());
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            futures.add(executor.submit(() -> controller.run("test", Lane.BATCH, MB, () -> {
+                await(release);
+                return "done";
+            })));
+        }
+        waitFor(() -> controller.getRunningBatch() == 1 && controller.getWaiting(Lane.BATCH) == 1);
+
+        assertEquals("done", controller.run("test", Lane.INTERACTIVE, MB, () -> "done"));
+        assertEquals(0, controller.getWaiting(Lane.INTERACTIVE));
+
+        release.countDown();
+        for (Future<String> future : futures) {
+            assertEquals("done", future.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void shouldPreemptBatchCallsBetweenSlides() throws Exception {
+
+        AdmissionController controller = new AdmissionController(1, 10, 10000, 100 * MB, 10);
+        List<String> events = new CopyOnWriteArrayList<>();
+        Future<String> batch = executor.submit(() -> controller.run("test", Lane.BATCH, MB, () -> {
+            AdmissionController.Checkpoint checkpoint = AdmissionController.getCheckpoint();
+            for (int i = 0; i < 3; i++) {
+                checkpoint.reached();
+                events.add("slide" + i);
+                if (i == 0) {
+                    await(release);
+                }
+            }
+            return "done";
+        }));
+        waitFor(() -> events.size() == 1);
+
+        Future<Boolean> interactive = executor.submit(() -> controller.run("test", Lane.INTERACTIVE, MB, () -> {
+            // The batch call gave its slot, and keeps its memory
+            assertEquals(0, controller.getRunningBatch());
+            assertEquals(2 * MB, controller.getUsedBytes());
+            return events.add("interactive");
+        }));
+        waitFor(() -> controller.getWaiting(Lane.INTERACTIVE) == 1);
+        release.countDown();
+
+        assertTrue(interactive.get(10, TimeUnit.SECONDS));
+        assertEquals("done", batch.get(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("slide0", "interactive", "slide1", "slide2"), events);
+        assertEquals(1, controller.getPreempted());
+        assertEquals(0, controller.getRunning());
+        assertEquals(0, controller.getUsedBytes());
+
+        // Nothing to do outside a batch call
+        AdmissionController.getCheckpoint().reached();
+        controller.run("test", Lane.INTERACTIVE, MB, () -> {
+            AdmissionController.getCheckpoint().reached();
+            return null;
+        });
+        assertEquals(1, controller.getPreempted());
+    }
+
+    @Test
+    public void shouldUseDefaultValues() {
+
+        AdmissionController controller = new AdmissionController(new AdmissionDescriptor());
+        int processors = Runtime.getRuntime().availableProcessors();
+        assertEquals(processors, controller.getConcurrency());
+        assertEquals(Math.max(1, processors - 1), controller.getBatchConcurrency());
+        assertEquals(AdmissionController.DEFAULT_QUEUE_DEPTH, controller.getQueueDepth());
+        assertEquals(AdmissionController.DEFAULT_QUEUE_TIMEOUT_MS, controller.getQueueTimeoutMs());
+        assertEquals(Runtime.getRuntime().maxMemory() / 4, controller.getMemoryBytes());
+        assertEquals(AdmissionController.DEFAULT_MEMORY_FACTOR, controller.getMemoryFactor(), 0);
+
+        Blob blob = TestUtils.getMainTestPresentationTest();
+        assertEquals(blob.getLength() * 10, controller.estimateBytes(blob));
+        assertEquals(blob.getLength() * 20, controller.estimateBytes(blob, null, blob));
+    }
+
+    protected static void await(CountDownLatch latch) throws InterruptedException, ExecutionException {
+        if (!latch.await(10, TimeUnit.SECONDS)) {
+            throw new ExecutionException("Timeout", null);
+        }
+    }
+
+    protected static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > end) {
+                fail("Timeout");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.nuxeo.common.utils.FileUtils;
+
+import nuxeo.powerpoint.utils.apachepoi.DeckCache;
+import nuxeo.powerpoint.utils.apachepoi.ParsedDeck;
+
+/**
+ * @since 2023.2
+ */
+public class TestDeckCache {
+
+    protected static final long MAX_BYTES = 16 * 1024 * 1024;
+
+    protected static final long TTL = 60000;
+
+    @Test
+    public void shouldFindDecksByDigest() throws Exception {
+
+        DeckCache cache = new DeckCache(MAX_BYTES, TTL);
+        File file = FileUtils.getResourceFileFromContext(TestUtils.MAIN_TEST_PRESENTATION);
+
+        ParsedDeck deck = cache.get("digest1");
+        JSONObject properties = deck.getProperties(file);
+        assertTrue(deck.getWeight() > 0);
+
+        assertSame(deck, cache.get("digest1"));
+        assertNotSame(deck, cache.get("digest2"));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        // Each caller gets its own copy
+        JSONObject again = deck.getProperties(file);
+        assertNotSame(properties, again);
+        assertTrue(properties.similar(again));
+        again.put("Creator", "Someone else");
+        assertEquals("Nuxeo Unit Testing", deck.getProperties(file).get("Creator"));
+    }
+
+    @Test
+    public void shouldListSlidesAsPOI() throws Exception {
+
+        File file = FileUtils.getResourceFileFromContext(TestUtils.MAIN_TEST_PRESENTATION);
+        ParsedDeck deck = new ParsedDeck();
+
+        assertEquals(TestUtils.MAIN_TEST_PRESENTATION_SLIDES_COUNT, deck.getSlidesCount(file));
+        assertEquals(TestUtils.MAIN_TEST_PRESENTATION_SLIDES_COUNT, deck.getSlideNumbers(file, false).size());
+        List<Integer> visible = deck.getSlideNumbers(file, true);
+        assertEquals(TestUtils.MAIN_TEST_PRESENTATION_SLIDES_COUNT - TestUtils.MAIN_TEST_PRESENTATION_HIDDEN_SLIDES,
+                visible.size());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedDecks() throws Exception {
+
+        File file = FileUtils.getResourceFileFromContext(TestUtils.MAIN_TEST_PRESENTATION);
+        ParsedDeck reference = new ParsedDeck();
+        reference.getSlideNumbers(file, true);
+        long weight = reference.getWeight();
+
+        // Room for 2 decks
+        DeckCache cache = new DeckCache(2 * weight + weight / 2, TTL);
+        for (String digest : Arrays.asList("a", "b")) {
+            cache.get(digest).getSlideNumbers(file, true);
+        }
+        assertEquals(2, cache.getCount());
+        assertEquals(2 * weight, cache.getBytes());
+
+        // "a" is now the most recently used
+        cache.get("a");
+        cache.get("c").getSlideNumbers(file, true);
+
+        assertEquals(2, cache.getCount());
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+    }
+
+    @Test
+    public void shouldExpireDecks() throws Exception {
+
+        DeckCache cache = new DeckCache(MAX_BYTES, 0);
+        ParsedDeck deck = cache.get("digest");
+        assertNotSame(deck, cache.get("digest"));
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void shouldShareDeckBetweenThreads() throws Exception {
+
+        File file = FileUtils.getResourceFileFromContext(TestUtils.MAIN_TEST_PRESENTATION);
+        DeckCache cache = new DeckCache(MAX_BYTES, TTL);
+        List<Integer> expected = new ParsedDeck().getSlideNumbers(file, true);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            Callable<List<Integer>> task = () -> cache.get("digest").getSlideNumbers(file, true);
+            List<Future<List<Integer>>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<List<Integer>> future : futures) {
+                assertEquals(expected, future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, cache.getMisses());
+        assertEquals(31, cache.getHits());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+
+import nuxeo.powerpoint.utils.apachepoi.DeckEstimate;
+import nuxeo.powerpoint.utils.apachepoi.DeckEstimator;
+import nuxeo.powerpoint.utils.apachepoi.ParsedDeck;
+import nuxeo.powerpoint.utils.service.Lane;
+
+/**
+ * @since 2023.2
+ */
+public class TestDeckEstimator {
+
+    protected static final long MB = 1024 * 1024;
+
+    @Test
+    public void shouldEstimateTheDeck() throws Exception {
+
+        File file = FileUtils.getResourceFileFromContext(TestUtils.MAIN_TEST_PRESENTATION);
+        ParsedDeck deck = new ParsedDeck();
+        DeckEstimate estimate = deck.getEstimate(file);
+
+        assertEquals(TestUtils.MAIN_TEST_PRESENTATION_SLIDES_COUNT, estimate.getSlidesCount());
+        assertEquals(17, estimate.getPictureCount());
+        assertEquals(1, estimate.getVectorImageCount());
+        assertEquals(1452, estimate.getLargestPictureWidth());
+        assertEquals(2500, estimate.getLargestPictureHeight());
+        assertTrue(estimate.getXmlBytes() > 0);
+        assertTrue(estimate.getMediaBytes() >= estimate.getPictureBytes());
+        // 16:9
+        assertEquals(960, estimate.getSlideWidth());
+        assertEquals(540, estimate.getSlideHeight());
+        assertTrue(estimate.getExpectedHeapBytes() > estimate.getXmlBytes() * DeckEstimate.XML_HEAP_FACTOR
+                + 4 * estimate.getLargestPicturePixels());
+
+        // Kept by the deck
+        assertSame(estimate, deck.getEstimate(file));
+    }
+
+    @Test
+    public void shouldEstimateOneSlide() throws Exception {
+
+        File file = FileUtils.getResourceFileFromContext(TestUtils.MAIN_TEST_PRESENTATION);
+        ParsedDeck deck = new ParsedDeck();
+        DeckEstimate whole = deck.getEstimate(file);
+        DeckEstimate slide = deck.getEstimate(file, 0);
+
+        assertEquals(1, slide.getSlidesCount());
+        assertTrue(slide.getXmlBytes() < whole.getXmlBytes());
+        assertTrue(slide.getPictureCount() < whole.getPictureCount());
+        assertTrue(slide.getExpectedHeapBytes() < whole.getExpectedHeapBytes());
+    }
+
+    @Test
+    public void shouldRouteByExpectedHeap() throws Exception {
+
+        Blob blob = TestUtils.getMainTestPresentationTest();
+        DeckEstimate estimate = new DeckEstimator(MB, 2 * MB).estimate(blob);
+        assertNotNull(estimate);
+        long heap = estimate.getExpectedHeapBytes();
+
+        // Light
+        DeckEstimator estimator = new DeckEstimator(heap, 4 * heap);
+        assertEquals(Lane.INTERACTIVE, estimator.getLane(estimate, Lane.BATCH));
+        assertEquals(4, estimator.getWorkers(estimate, 4));
+        // Neither light nor heavy: the lane of the operation
+        estimator = new DeckEstimator(heap - 1, heap + 1);
+        assertEquals(Lane.BATCH, estimator.getLane(estimate, Lane.BATCH));
+        assertEquals(Lane.INTERACTIVE, estimator.getLane(estimate, Lane.INTERACTIVE));
+        // Heavy: rendered by as many workers as copies of the deck fitting in the threshold
+        estimator = new DeckEstimator(heap / 4, 2 * heap);
+        assertEquals(Lane.INTERACTIVE, estimator.getLane(estimate, Lane.INTERACTIVE));
+        assertEquals(2, estimator.getWorkers(estimate, 4));
+        estimator = new DeckEstimator(heap / 4, heap);
+        assertTrue(estimator.isHeavy(estimate));
+        assertEquals(Lane.BATCH, estimator.getLane(estimate, Lane.INTERACTIVE));
+        assertEquals(1, estimator.getWorkers(estimate, 4));
+
+        // No estimate: nothing changes
+        assertEquals(Lane.INTERACTIVE, estimator.getLane(null, Lane.INTERACTIVE));
+        assertEquals(4, estimator.getWorkers(null, 4));
+    }
+
+    @Test
+    public void shouldNotEstimateOtherFormats() throws Exception {
+
+        DeckEstimator estimator = new DeckEstimator(MB, 2 * MB);
+        assertNull(estimator.estimate(Blobs.createBlob("Not a presentation")));
+        assertNull(estimator.estimate(null));
+        // Invalid slide number
+        assertNull(estimator.estimate(TestUtils.getMainTestPresentationTest(), 100));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.poi.common.usermodel.fonts.FontInfo;
+import org.apache.poi.xslf.usermodel.XMLSlideShow;
+import org.apache.poi.xslf.usermodel.XSLFSlide;
+import org.apache.poi.xslf.usermodel.XSLFTheme;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import nuxeo.powerpoint.utils.apachepoi.CachingFontManager;
+import nuxeo.powerpoint.utils.apachepoi.FontRegistry;
+import nuxeo.powerpoint.utils.apachepoi.ThumbnailRenderContext;
+
+/**
+ * @since 2023.2
+ */
+public class TestFontRegistry {
+
+    // Fonts of the theme of the test presentation, not installed
+    protected static final String MAJOR_FONT = "NeueHaasGroteskDisp Std Blk";
+
+    protected static final String MINOR_FONT = "NeueHaasGroteskDisp Std";
+
+    @Test
+    public void shouldSubstituteMissingThemeFonts() throws Exception {
+
+        Map<String, String> substitutions = new HashMap<>();
+        substitutions.put(MAJOR_FONT, "Serif");
+        substitutions.put(MINOR_FONT, "Serif");
+        FontRegistry registry = new FontRegistry(substitutions, false);
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        try (XMLSlideShow ppt = new XMLSlideShow(testFileBlob.getStream())) {
+            XSLFSlide slide = ppt.getSlides().get(2);
+            int[] before = render(ppt, slide);
+
+            assertEquals(2, registry.mapThemeFonts(ppt));
+            XSLFTheme theme = ppt.getSlideMasters().get(0).getTheme();
+            assertEquals("Serif", theme.getMajorFont());
+            assertEquals("Serif", theme.getMinorFont());
+
+            // The text is now drawn with the substitute
+            assertFalse(Arrays.equals(before, render(ppt, slide)));
+        }
+    }
+
+    @Test
+    public void shouldOnlySubstituteMissingFonts() {
+
+        Map<String, String> substitutions = new HashMap<>();
+        substitutions.put("Serif", "SansSerif");
+        substitutions.put(MINOR_FONT, "Not A Font");
+        FontRegistry registry = new FontRegistry(substitutions, false);
+
+        // Available font, unavailable substitute, no substitution
+        assertNull(registry.getSubstitute("Serif"));
+        assertNull(registry.getSubstitute(MINOR_FONT));
+        assertNull(registry.getSubstitute(MAJOR_FONT));
+    }
+
+    @Test
+    public void shouldParseSubstitutions() {
+
+        Map<String, String> substitutions = FontRegistry.parseSubstitutions("Calibri=Carlito, Calibri Light = Carlito");
+        assertEquals(2, substitutions.size());
+        assertEquals("Carlito", substitutions.get("Calibri"));
+        assertEquals("Carlito", substitutions.get("Calibri Light"));
+        assertTrue(FontRegistry.parseSubstitutions(null).isEmpty());
+
+        try {
+            FontRegistry.parseSubstitutions("Calibri");
+            assertTrue("Should have failed", false);
+        } catch (NuxeoException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void shouldDecodeEmbeddedFonts() {
+
+        byte[] font = { 0, 1, 0, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+        // A plain font file is used as is
+        assertSame(font, FontRegistry.decodeEmbeddedFont(font));
+
+        assertArrayEquals(font, FontRegistry.decodeEmbeddedFont(newEot(font, 0)));
+        // Obfuscated
+        byte[] xored = font.clone();
+        for (int i = 0; i < xored.length; i++) {
+            xored[i] ^= 0x50;
+        }
+        assertArrayEquals(font, FontRegistry.decodeEmbeddedFont(newEot(xored, 0x10000000)));
+        // Subset, compressed
+        assertNull(FontRegistry.decodeEmbeddedFont(newEot(font, 0x1)));
+        assertNull(FontRegistry.decodeEmbeddedFont(newEot(font, 0x4)));
+        // Not an EOT
+        assertNull(FontRegistry.decodeEmbeddedFont(new byte[] { 1, 2, 3 }));
+    }
+
+    @Test
+    public void shouldCacheAWTFonts() {
+
+        CachingFontManager fontManager = CachingFontManager.getInstance();
+        FontInfo serif = () -> "Serif";
+        Font font = fontManager.createAWTFont(null, serif, 10, true, false);
+        assertSame(font, fontManager.createAWTFont(null, () -> "Serif", 10, true, false));
+        assertEquals(Font.BOLD, font.getStyle());
+        assertEquals(10, font.getSize2D(), 0);
+    }
+
+    protected int[] render(XMLSlideShow ppt, XSLFSlide slide) {
+
+        Dimension pgsize = ppt.getPageSize();
+        float scale = 800f / pgsize.width;
+        BufferedImage image = new ThumbnailRenderContext().render(slide, 800, (int) (pgsize.height * scale), scale);
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    // EOT header (only the fields read by the registry are set), then the font data
+    protected byte[] newEot(byte[] fontData, int flags) {
+
+        int headerSize = 100;
+        ByteBuffer eot = ByteBuffer.allocate(headerSize + fontData.length).order(ByteOrder.LITTLE_ENDIAN);
+        eot.putInt(headerSize + fontData.length);
+        eot.putInt(fontData.length);
+        eot.putInt(0x00020001);
+        eot.putInt(flags);
+        eot.position(headerSize);
+        eot.put(fontData);
+        return eot.array();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+
+import org.apache.poi.xslf.usermodel.XMLSlideShow;
+import org.apache.poi.xslf.usermodel.XSLFSlide;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+import org.openxmlformats.schemas.presentationml.x2006.main.CTBackground;
+
+import nuxeo.powerpoint.utils.apachepoi.MasterLayerCache;
+import nuxeo.powerpoint.utils.apachepoi.RenderingQuality;
+import nuxeo.powerpoint.utils.apachepoi.ThumbnailRenderContext;
+
+/**
+ * The slides drawn with the master layer cache must be the same pixels as the slides drawn by POI.
+ *
+ * @since 2023.2
+ */
+public class TestMasterLayerCache {
+
+    protected static final int WIDTH = 800;
+
+    @Test
+    public void shouldDrawSamePixelsWithCachedLayers() throws Exception {
+
+        MasterLayerCache cache = new MasterLayerCache(256 * 1024 * 1024);
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        try (XMLSlideShow ppt = new XMLSlideShow(testFileBlob.getStream())) {
+            for (RenderingQuality quality : RenderingQuality.values()) {
+                for (XSLFSlide slide : ppt.getSlides()) {
+                    assertSamePixels(ppt, slide, quality, cache);
+                }
+            }
+            int slides = ppt.getSlides().size();
+            int misses = (int) cache.getMisses();
+            assertEquals(3 * slides, cache.getHits() + misses);
+            // Several slides use the same layout
+            assertTrue(misses < 3 * slides);
+            assertEquals(misses, cache.getCount());
+
+            // Same deck again: the layers are all in the cache
+            for (XSLFSlide slide : ppt.getSlides()) {
+                assertSamePixels(ppt, slide, RenderingQuality.HIGH, cache);
+            }
+            assertEquals(misses, cache.getMisses());
+        }
+    }
+
+    @Test
+    public void shouldDrawSlideWithOwnBackgroundWithoutCache() throws Exception {
+
+        MasterLayerCache cache = new MasterLayerCache(256 * 1024 * 1024);
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        try (XMLSlideShow ppt = new XMLSlideShow(testFileBlob.getStream())) {
+            XSLFSlide slide = ppt.getSlides().get(1);
+            CTBackground bg = slide.getXmlObject().getCSld().addNewBg();
+            bg.addNewBgPr().addNewSolidFill().addNewSrgbClr().setVal(new byte[] { 0, 101, (byte) 184 });
+            bg.getBgPr().addNewEffectLst();
+
+            assertSamePixels(ppt, slide, RenderingQuality.HIGH, cache);
+            assertEquals(0, cache.getHits() + cache.getMisses());
+        }
+    }
+
+    @Test
+    public void shouldDrawSamePixelsWhenLayersAreTooBig() throws Exception {
+
+        MasterLayerCache cache = new MasterLayerCache(1024);
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        try (XMLSlideShow ppt = new XMLSlideShow(testFileBlob.getStream())) {
+            for (XSLFSlide slide : ppt.getSlides()) {
+                assertSamePixels(ppt, slide, RenderingQuality.HIGH, cache);
+            }
+            assertEquals(0, cache.getCount());
+            assertEquals(0, cache.getBytes());
+        }
+    }
+
+    protected void assertSamePixels(XMLSlideShow ppt, XSLFSlide slide, RenderingQuality quality,
+            MasterLayerCache cache) {
+
+        Dimension pgsize = ppt.getPageSize();
+        float scale = (float) WIDTH / pgsize.width;
+        int height = (int) (pgsize.height * scale);
+
+        ThumbnailRenderContext context = new ThumbnailRenderContext();
+        int[] expected = getPixels(context.render(slide, WIDTH, height, scale, quality));
+        context.setMasterLayerCache(cache);
+        int[] actual = getPixels(context.render(slide, WIDTH, height, scale, quality));
+        context.setMasterLayerCache(null);
+
+        assertArrayEquals("Slide " + slide.getSlideNumber() + ", " + quality, expected, actual);
+    }
+
+    protected int[] getPixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+}
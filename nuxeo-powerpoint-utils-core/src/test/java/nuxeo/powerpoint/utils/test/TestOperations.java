@@ -19,16 +19,22 @@
 package nuxeo.powerpoint.utils.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.json.JSONObject;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -41,19 +47,29 @@ import org.nuxeo.ecm.automation.test.AutomationFeature;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
 import org.nuxeo.ecm.core.test.annotations.Granularity;
 import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
+import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
 
+import nuxeo.powerpoint.utils.apachepoi.ApachePOIEngine;
+import nuxeo.powerpoint.utils.apachepoi.PowerPointUtilsWithApachePOI;
+import nuxeo.powerpoint.utils.apachepoi.RequestCoalescer;
+import nuxeo.powerpoint.utils.aspose.AsposeEngine;
 import nuxeo.powerpoint.utils.operations.GetPresentationPropertiesOp;
 import nuxeo.powerpoint.utils.operations.GetSlideOp;
 import nuxeo.powerpoint.utils.operations.GetThumbnailsOp;
 import nuxeo.powerpoint.utils.operations.MergePresentationsOp;
 import nuxeo.powerpoint.utils.operations.SplitPresentationOp;
+import nuxeo.powerpoint.utils.service.AdmissionController;
+import nuxeo.powerpoint.utils.service.PowerPointOverloadedException;
+import nuxeo.powerpoint.utils.service.Lane;
+import nuxeo.powerpoint.utils.service.PowerPointService;
 
 /**
  * TODO: Not working since moving to LTS2023 a  nd Aspose 24.9,
@@ -243,6 +259,56 @@ public class TestOperations {
         assertEquals(TestUtils.MAIN_TEST_PRESENTATION_SLIDES_COUNT, blobs.size());
     }
     
+    @Test
+    public void shouldGetThumbnailsOfSomeSlides() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(testFileBlob);
+        Map<String, Object> params = new HashMap<>();
+        params.put("slides", "4, 0-1");
+
+        BlobList blobs = (BlobList) automationService.run(ctx, GetThumbnailsOp.ID, params);
+
+        assertNotNull(blobs);
+        assertEquals(3, blobs.size());
+        assertEquals("Slide 5.png", blobs.get(0).getFilename());
+        assertEquals("Slide 1.png", blobs.get(1).getFilename());
+        assertEquals("Slide 2.png", blobs.get(2).getFilename());
+    }
+
+    @Test
+    @Deploy("nuxeo.powerpoint.utils-core:OSGI-INF/test-admission-contrib.xml")
+    public void shouldRejectCallsWhenTheNodeIsBusy() throws Exception {
+
+        AdmissionController controller = Framework.getService(AdmissionController.class);
+        assertNotNull(controller);
+        assertEquals(1, controller.getConcurrency());
+        assertEquals(0, controller.getQueueDepth());
+        // Not contributed, default value
+        assertEquals(AdmissionController.DEFAULT_QUEUE_TIMEOUT_MS, controller.getQueueTimeoutMs());
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(testFileBlob);
+
+        // One call at a time, none waiting: the operation is rejected while another call runs
+        controller.run("test", Lane.INTERACTIVE, 0, () -> {
+            try {
+                automationService.run(ctx, SplitPresentationOp.ID, new HashMap<>());
+                fail("The node is busy");
+            } catch (Exception e) {
+                assertTrue(ExceptionUtils.indexOfThrowable(e, PowerPointOverloadedException.class) >= 0);
+            }
+            return null;
+        });
+        assertEquals(1, controller.getRejected());
+
+        BlobList blobs = (BlobList) automationService.run(ctx, SplitPresentationOp.ID, new HashMap<>());
+        assertEquals(TestUtils.MAIN_TEST_PRESENTATION_SLIDES_COUNT, blobs.size());
+    }
+
     @Test
     @Ignore
     public void shouldGetThumbnailsWithAspose() throws Exception {
@@ -260,4 +326,103 @@ public class TestOperations {
         assertEquals(TestUtils.MAIN_TEST_PRESENTATION_SLIDES_COUNT, blobs.size());
     }
 
+    @Test
+    public void shouldCoalesceEachCallOnce() throws Exception {
+
+        RequestCoalescer coalescer = RequestCoalescer.getShared();
+        assertNotNull(coalescer);
+        long executed = coalescer.getExecuted();
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        testFileBlob.setDigest("shouldCoalesceEachCallOnce");
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(testFileBlob);
+        Map<String, Object> params = new HashMap<>();
+        params.put("maxWidth", 100);
+        automationService.run(ctx, GetThumbnailsOp.ID, params);
+
+        // By the operation, not again by the engine
+        assertEquals(executed + 1, coalescer.getExecuted());
+    }
+
+    @Test
+    public void shouldUseTheEngineOfTheOperation() throws Exception {
+
+        PowerPointService service = Framework.getService(PowerPointService.class);
+        assertNotNull(service);
+        assertTrue(service.getEngineNames().contains(PowerPointService.APACHE_POI_ENGINE));
+        assertTrue(service.getEngineNames().contains(PowerPointService.ASPOSE_ENGINE));
+        assertEquals(PowerPointService.APACHE_POI_ENGINE, service.getEngineName(GetThumbnailsOp.ID));
+        assertEquals(PowerPointService.ASPOSE_ENGINE, service.getEngineName(MergePresentationsOp.ID));
+        assertEquals(PowerPointService.DEFAULT_ENGINE, service.getEngineName("NotAnOperation"));
+
+        // A new instance for each call, sharing the rendering pool of the engine
+        ApachePOIEngine engine = (ApachePOIEngine) service.getEngine(PowerPointService.APACHE_POI_ENGINE);
+        assertNotNull(engine.getRenderingExecutor());
+        PowerPointUtilsWithApachePOI pptUtils = (PowerPointUtilsWithApachePOI) service.newPowerPointUtils(
+                GetThumbnailsOp.ID, null);
+        assertSame(engine.getRenderingExecutor(), pptUtils.getRenderingExecutor());
+        assertNotSame(pptUtils, service.newPowerPointUtils(GetThumbnailsOp.ID, null));
+
+        try {
+            service.newPowerPointUtils("NotAnEngine");
+            fail("There is no such engine");
+        } catch (NuxeoException e) {
+            // Expected
+        }
+
+        // Registered, but not supported
+        try {
+            service.newPowerPointUtils(MergePresentationsOp.ID, null);
+            fail("Aspose is not supported");
+        } catch (NuxeoException e) {
+            assertEquals(AsposeEngine.UNSUPPORTED_MESSAGE, e.getMessage());
+        }
+    }
+
+    @Test
+    @Deploy("nuxeo.powerpoint.utils-core:OSGI-INF/test-engines-contrib.xml")
+    public void shouldUseAContributedEngine() throws Exception {
+
+        PowerPointService service = Framework.getService(PowerPointService.class);
+        assertFalse(service.getEngineNames().contains(PowerPointService.ASPOSE_ENGINE));
+        CountingEngine engine = (CountingEngine) service.getEngine("counting");
+        assertNotNull(engine);
+        assertTrue(engine.started);
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(testFileBlob);
+
+        automationService.run(ctx, GetPresentationPropertiesOp.ID);
+        assertEquals(1, engine.instances.get());
+
+        // useAspose set: the engine of the operation is not used
+        Map<String, Object> params = new HashMap<>();
+        params.put("useAspose", false);
+        automationService.run(ctx, GetPresentationPropertiesOp.ID, params);
+        assertEquals(1, engine.instances.get());
+    }
+
+    /**
+     * The Apache POI engine, counting its instances
+     */
+    public static class CountingEngine extends ApachePOIEngine {
+
+        protected boolean started;
+
+        protected final AtomicInteger instances = new AtomicInteger();
+
+        @Override
+        public void start() {
+            super.start();
+            started = true;
+        }
+
+        @Override
+        public PowerPointUtilsWithApachePOI newInstance() {
+            instances.incrementAndGet();
+            return super.newInstance();
+        }
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+import nuxeo.powerpoint.utils.apachepoi.PictureCache;
+import nuxeo.powerpoint.utils.apachepoi.RenderingQuality;
+
+/**
+ * @since 2023.2
+ */
+public class TestPictureCache {
+
+    // 100x100 ARGB
+    protected static final long IMAGE_SIZE = 4 * 100 * 100;
+
+    @Test
+    public void shouldFindPicturesByContent() {
+
+        PictureCache cache = new PictureCache(10 * IMAGE_SIZE);
+        BufferedImage image = newImage();
+        cache.put(new PictureCache.Key(new byte[] { 1, 2, 3 }, 100, 100, RenderingQuality.HIGH), image);
+
+        // Same bytes, another array
+        assertSame(image, cache.get(new PictureCache.Key(new byte[] { 1, 2, 3 }, 100, 100, RenderingQuality.HIGH)));
+        // Another size, another quality, another content
+        assertNull(cache.get(new PictureCache.Key(new byte[] { 1, 2, 3 }, 50, 50, RenderingQuality.HIGH)));
+        assertNull(cache.get(new PictureCache.Key(new byte[] { 1, 2, 3 }, 100, 100, RenderingQuality.DRAFT)));
+        assertNull(cache.get(new PictureCache.Key(new byte[] { 1, 2, 4 }, 100, 100, RenderingQuality.HIGH)));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedPictures() {
+
+        PictureCache cache = new PictureCache(3 * IMAGE_SIZE);
+        for (byte i = 0; i < 3; i++) {
+            cache.put(newKey(i), newImage());
+        }
+        assertEquals(3, cache.getCount());
+        assertEquals(3 * IMAGE_SIZE, cache.getBytes());
+
+        // 0 is now the most recently used
+        assertNotNull(cache.get(newKey((byte) 0)));
+        cache.put(newKey((byte) 3), newImage());
+
+        assertEquals(3, cache.getCount());
+        assertEquals(3 * IMAGE_SIZE, cache.getBytes());
+        assertNull(cache.get(newKey((byte) 1)));
+        assertNotNull(cache.get(newKey((byte) 0)));
+        assertNotNull(cache.get(newKey((byte) 2)));
+        assertNotNull(cache.get(newKey((byte) 3)));
+    }
+
+    @Test
+    public void shouldNotCachePicturesBiggerThanTheCache() {
+
+        PictureCache cache = new PictureCache(IMAGE_SIZE - 1);
+        cache.put(newKey((byte) 0), newImage());
+
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getBytes());
+    }
+
+    protected PictureCache.Key newKey(byte content) {
+        return new PictureCache.Key(new byte[] { content }, 100, 100, RenderingQuality.HIGH);
+    }
+
+    protected BufferedImage newImage() {
+        return new BufferedImage(100, 100, BufferedImage.TYPE_INT_ARGB_PRE);
+    }
+}
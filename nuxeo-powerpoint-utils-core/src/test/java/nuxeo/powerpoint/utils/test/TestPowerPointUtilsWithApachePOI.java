@@ -23,14 +23,32 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.awt.Dimension;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
 import javax.inject.Inject;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.poi.xslf.usermodel.XMLSlideShow;
 import org.apache.poi.xslf.usermodel.XSLFSlide;
 import org.json.JSONArray;
@@ -43,11 +61,13 @@ import org.nuxeo.ecm.automation.test.AutomationFeature;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
 import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.convert.api.ConversionService;
 import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
+import org.nuxeo.ecm.core.transientstore.api.TransientStoreService;
 import org.nuxeo.ecm.core.test.annotations.Granularity;
 import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
 import org.nuxeo.ecm.platform.picture.api.ImageInfo;
@@ -56,7 +76,13 @@ import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
 
+import nuxeo.powerpoint.utils.apachepoi.DeckCache;
+import nuxeo.powerpoint.utils.apachepoi.PictureCache;
 import nuxeo.powerpoint.utils.apachepoi.PowerPointUtilsWithApachePOI;
+import nuxeo.powerpoint.utils.apachepoi.RenderingQuality;
+import nuxeo.powerpoint.utils.apachepoi.RequestCoalescer;
+import nuxeo.powerpoint.utils.apachepoi.ResultCache;
+import nuxeo.powerpoint.utils.api.PowerPointUtils;
 
 /**
  * @since 10.10
@@ -70,7 +96,8 @@ import nuxeo.powerpoint.utils.apachepoi.PowerPointUtilsWithApachePOI;
 @RunWith(FeaturesRunner.class)
 @Features(AutomationFeature.class)
 @RepositoryConfig(init = DefaultRepositoryInit.class, cleanup = Granularity.METHOD)
-@Deploy({ "org.nuxeo.ecm.platform.picture.core", "org.nuxeo.ecm.platform.tag", "nuxeo.powerpoint.utils-core" })
+@Deploy({ "org.nuxeo.ecm.platform.picture.core", "org.nuxeo.ecm.platform.tag", "org.nuxeo.ecm.core.cache",
+        "nuxeo.powerpoint.utils-core" })
 public class TestPowerPointUtilsWithApachePOI {
 
     @Inject
@@ -82,6 +109,9 @@ public class TestPowerPointUtilsWithApachePOI {
     @Inject
     protected ConversionService conversionService;
 
+    @Inject
+    protected TransientStoreService transientStoreService;
+
     @Test
     public void shouldSplitABlobPresentation() throws Exception {
 
@@ -124,6 +154,35 @@ public class TestPowerPointUtilsWithApachePOI {
         }
     }
 
+    @Test
+    public void shouldCopyMediaWithoutRecompressingThem() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+
+        PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
+        BlobList blobs = pptUtils.splitPresentation(testFileBlob);
+
+        int mediaCount = 0;
+        try (ZipFile source = new ZipFile(testFileBlob.getFile())) {
+            for (Blob blob : blobs) {
+                try (ZipFile slide = new ZipFile(blob.getFile())) {
+                    for (ZipArchiveEntry entry : Collections.list(slide.getEntries())) {
+                        if (!entry.getName().startsWith("ppt/media/")) {
+                            continue;
+                        }
+                        mediaCount += 1;
+                        ZipArchiveEntry original = source.getEntry(entry.getName());
+                        assertNotNull(original);
+                        assertEquals(original.getMethod(), entry.getMethod());
+                        assertEquals(original.getCompressedSize(), entry.getCompressedSize());
+                        assertEquals(original.getCrc(), entry.getCrc());
+                    }
+                }
+            }
+        }
+        assertTrue(mediaCount > 0);
+    }
+
     // As of "today", merging works only with Aspose.
     @Test
     public void shouldFailMergingSlides() throws Exception {
@@ -179,6 +238,120 @@ public class TestPowerPointUtilsWithApachePOI {
         // System.out.println("\n" + result.toString(2));
     }
 
+    @Test
+    public void shouldReadPresentationOnceForAChainOfCalls() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        testFileBlob.setDigest("deck-cache-test");
+
+        PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
+        DeckCache cache = new DeckCache(16 * 1024 * 1024, TimeUnit.MINUTES.toMillis(1));
+        pptUtils.setDeckCache(cache);
+
+        PowerPointUtilsWithApachePOI noCache = new PowerPointUtilsWithApachePOI();
+        noCache.setDeckCache(null);
+
+        assertTrue(noCache.getProperties(testFileBlob).similar(pptUtils.getProperties(testFileBlob)));
+        assertEquals(TestUtils.MAIN_TEST_PRESENTATION_SLIDES_COUNT - TestUtils.MAIN_TEST_PRESENTATION_HIDDEN_SLIDES,
+                pptUtils.getThumbnails(testFileBlob, 100, "png", true).size());
+        assertEquals(TestUtils.MAIN_TEST_PRESENTATION_SLIDES_COUNT, pptUtils.splitPresentation(testFileBlob).size());
+        assertEquals("Slide 3.png", pptUtils.getThumbnail(testFileBlob, 2, 100, "png").getFilename());
+
+        assertEquals(1, cache.getCount());
+        assertEquals(1, cache.getMisses());
+        assertEquals(3, cache.getHits());
+    }
+
+    @Test
+    public void shouldReuseResultsComputedByAnotherEngine() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        testFileBlob.setDigest("result-cache-test");
+
+        PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
+        ResultCache cache = new ResultCache(transientStoreService.getStore(ResultCache.STORE_NAME));
+        pptUtils.setResultCache(cache);
+
+        JSONObject properties = pptUtils.getProperties(testFileBlob);
+        BlobList thumbs = pptUtils.getThumbnails(testFileBlob, 100, "png", true);
+        BlobList slides = pptUtils.splitPresentation(testFileBlob);
+        assertEquals(0, cache.getHits());
+        assertEquals(3, cache.getMisses());
+
+        // Same store, as another node of the cluster would
+        PowerPointUtilsWithApachePOI otherUtils = new PowerPointUtilsWithApachePOI();
+        ResultCache otherCache = new ResultCache(transientStoreService.getStore(ResultCache.STORE_NAME));
+        otherUtils.setResultCache(otherCache);
+
+        assertTrue(properties.similar(otherUtils.getProperties(testFileBlob)));
+        BlobList cachedThumbs = otherUtils.getThumbnails(testFileBlob, 100, "png", true);
+        assertEquals(thumbs.size(), cachedThumbs.size());
+        for (int i = 0; i < thumbs.size(); i++) {
+            assertEquals(thumbs.get(i).getFilename(), cachedThumbs.get(i).getFilename());
+            assertEquals(thumbs.get(i).getMimeType(), cachedThumbs.get(i).getMimeType());
+            assertTrue(Arrays.equals(thumbs.get(i).getByteArray(), cachedThumbs.get(i).getByteArray()));
+        }
+        BlobList cachedSlides = otherUtils.splitPresentation(testFileBlob);
+        assertEquals(slides.size(), cachedSlides.size());
+        assertEquals(slides.get(0).getFilename(), cachedSlides.get(0).getFilename());
+        assertEquals(3, otherCache.getHits());
+        assertEquals(0, otherCache.getMisses());
+
+        // Other parameters, other result
+        otherUtils.getThumbnails(testFileBlob, 200, "png", true);
+        assertEquals(1, otherCache.getMisses());
+
+        // No digest, no cache
+        Blob noDigest = TestUtils.getMainTestPresentationTest();
+        noDigest.setDigest(null);
+        otherUtils.getProperties(noDigest);
+        assertEquals(3, otherCache.getHits());
+        assertEquals(1, otherCache.getMisses());
+    }
+
+    @Test
+    public void shouldCoalesceIdenticalConcurrentCalls() throws Exception {
+
+        int calls = 8;
+        RequestCoalescer coalescer = new RequestCoalescer();
+        CyclicBarrier start = new CyclicBarrier(calls);
+        ExecutorService executor = Executors.newFixedThreadPool(calls);
+        List<BlobList> results = new ArrayList<>();
+        try {
+            List<Future<BlobList>> futures = new ArrayList<>();
+            for (int i = 0; i < calls; i++) {
+                futures.add(executor.submit(() -> {
+                    Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+                    testFileBlob.setDigest("coalescing-test");
+                    PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
+                    pptUtils.setCoalescer(coalescer);
+                    start.await();
+                    return pptUtils.getThumbnails(testFileBlob, 100, "png", true);
+                }));
+            }
+            for (Future<BlobList> future : futures) {
+                results.add(future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(calls, coalescer.getExecuted() + coalescer.getCoalesced());
+        assertEquals(0, coalescer.getInFlight());
+
+        // Same thumbnails, each call has its own files
+        Set<File> files = new HashSet<>();
+        BlobList expected = results.get(0);
+        for (BlobList thumbs : results) {
+            assertEquals(expected.size(), thumbs.size());
+            for (int i = 0; i < thumbs.size(); i++) {
+                assertEquals(expected.get(i).getFilename(), thumbs.get(i).getFilename());
+                assertTrue(Arrays.equals(expected.get(i).getByteArray(), thumbs.get(i).getByteArray()));
+                assertTrue(files.add(thumbs.get(i).getFile()));
+            }
+        }
+    }
+
     @Test
     public void testGetThumbnailsWithDefaultValues() throws Exception {
 
@@ -211,6 +384,207 @@ public class TestPowerPointUtilsWithApachePOI {
         }
     }
 
+    @Test
+    public void testGetThumbnailsInParallel() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+
+        PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
+        BlobList expected = pptUtils.getThumbnails(testFileBlob, 200, "png", true);
+
+        pptUtils.setThumbnailsWorkers(3);
+        BlobList blobs = pptUtils.getThumbnails(testFileBlob, 200, "png", true);
+
+        // Same slides, same order, same images
+        assertEquals(expected.size(), blobs.size());
+        for (int i = 0; i < blobs.size(); i++) {
+            assertEquals(expected.get(i).getFilename(), blobs.get(i).getFilename());
+            assertTrue(Arrays.equals(expected.get(i).getByteArray(), blobs.get(i).getByteArray()));
+        }
+    }
+
+    @Test
+    public void testGetThumbnailsInParallelWhenASlideFails() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+
+        // The first slide fails quickly, the others are slow
+        AtomicInteger rendering = new AtomicInteger();
+        PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI() {
+            @Override
+            protected Blob getThumbnail(XSLFSlide slide, int maxWidth, String format) throws IOException {
+                rendering.incrementAndGet();
+                try {
+                    Thread.sleep(slide.getSlideNumber() == 1 ? 50 : 500);
+                    if (slide.getSlideNumber() == 1) {
+                        throw new IOException("Invalid slide");
+                    }
+                    return super.getThumbnail(slide, maxWidth, format);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                } finally {
+                    rendering.decrementAndGet();
+                }
+            }
+        };
+        pptUtils.setThumbnailsWorkers(3);
+        try {
+            pptUtils.getThumbnails(testFileBlob, 200, "png", false);
+            fail("The first slide failed");
+        } catch (IOException e) {
+            assertEquals("Invalid slide", e.getMessage());
+        }
+        // No worker left rendering once the call failed
+        assertEquals(0, rendering.get());
+    }
+
+    @Test
+    public void testGetThumbnailsInDraftQuality() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+
+        PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
+        assertEquals(RenderingQuality.HIGH, pptUtils.getRenderingQuality());
+
+        pptUtils.setRenderingQuality(RenderingQuality.fromString("draft"));
+        BlobList blobs = pptUtils.getThumbnails(testFileBlob, 200, "png", false);
+
+        assertEquals(11, blobs.size());
+        for (Blob blob : blobs) {
+            assertEquals(200, imagingService.getImageInfo(blob).getWidth());
+        }
+    }
+
+    @Test
+    public void testGetThumbnailsWithSharedPictureCache() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+
+        PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
+        assertEquals(PictureCache.Scope.DECK, pptUtils.getPictureCacheScope());
+        BlobList expected = pptUtils.getThumbnails(testFileBlob, 200, "png", false);
+
+        pptUtils.setPictureCacheScope(PictureCache.Scope.SHARED);
+        PictureCache cache = PictureCache.getShared();
+        cache.clear();
+        pptUtils.getThumbnails(testFileBlob, 200, "png", false);
+        long misses = cache.getMisses();
+        assertTrue(cache.getCount() > 0);
+
+        // Second call: all the pictures are already decoded
+        long hits = cache.getHits();
+        BlobList blobs = pptUtils.getThumbnails(testFileBlob, 200, "png", false);
+        assertEquals(misses, cache.getMisses());
+        assertTrue(cache.getHits() > hits);
+
+        // Same images as with a cache/call
+        assertEquals(expected.size(), blobs.size());
+        for (int i = 0; i < blobs.size(); i++) {
+            assertTrue(Arrays.equals(expected.get(i).getByteArray(), blobs.get(i).getByteArray()));
+        }
+        cache.clear();
+    }
+
+    @Test
+    public void testGetThumbnailsWithTimeBudget() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+
+        PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
+        assertEquals(0, pptUtils.getSlideTimeoutMs());
+        assertEquals(0, pptUtils.getRequestTimeoutMs());
+        BlobList expected = pptUtils.getThumbnails(testFileBlob, 200, "png", false);
+        assertTrue(pptUtils.getTimedOutSlides().isEmpty());
+
+        // Budget already spent when the call starts, whatever the speed of the machine: all the slides are
+        // placeholders
+        PowerPointUtilsWithApachePOI expiredUtils = new PowerPointUtilsWithApachePOI() {
+            @Override
+            protected void startRendering() {
+                super.startRendering();
+                requestDeadline = System.nanoTime() - 1;
+            }
+        };
+        BlobList blobs = expiredUtils.getThumbnails(testFileBlob, 200, "png", false);
+        assertEquals(expected.size(), blobs.size());
+        List<Integer> timedOut = expiredUtils.getTimedOutSlides();
+        assertEquals(expected.size(), timedOut.size());
+        for (int i = 0; i < blobs.size(); i++) {
+            assertEquals(i, timedOut.get(i).intValue());
+            assertEquals(expected.get(i).getFilename(), blobs.get(i).getFilename());
+            assertEquals(200, imagingService.getImageInfo(blobs.get(i)).getWidth());
+            assertFalse(Arrays.equals(expected.get(i).getByteArray(), blobs.get(i).getByteArray()));
+        }
+
+        // A budget big enough changes nothing
+        pptUtils.setRequestTimeoutMs(TimeUnit.HOURS.toMillis(1));
+        pptUtils.setSlideTimeoutMs(TimeUnit.HOURS.toMillis(1));
+        blobs = pptUtils.getThumbnails(testFileBlob, 200, "png", false);
+        assertTrue(pptUtils.getTimedOutSlides().isEmpty());
+        for (int i = 0; i < blobs.size(); i++) {
+            assertTrue(Arrays.equals(expected.get(i).getByteArray(), blobs.get(i).getByteArray()));
+        }
+    }
+
+    @Test
+    public void testGetThumbnailsOfSomeSlides() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+
+        PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
+        List<Integer> slideNumbers = PowerPointUtils.parseSlideNumbers("6,1-3");
+        assertEquals(Arrays.asList(6, 1, 2, 3), slideNumbers);
+
+        BlobList blobs = pptUtils.getThumbnails(testFileBlob, slideNumbers, 200, "jpg");
+
+        assertEquals(4, blobs.size());
+        for (int i = 0; i < blobs.size(); i++) {
+            // First slide is numbered 1, not zero (see PowerPointUtils interface)
+            assertEquals("Slide " + (slideNumbers.get(i) + 1) + ".jpg", blobs.get(i).getFilename());
+            assertEquals(200, imagingService.getImageInfo(blobs.get(i)).getWidth());
+        }
+    }
+
+    @Test
+    public void testParseTooManySlideNumbers() throws Exception {
+
+        assertEquals(PowerPointUtils.MAX_SELECTED_SLIDES,
+                PowerPointUtils.parseSlideNumbers("0-" + (PowerPointUtils.MAX_SELECTED_SLIDES - 1)).size());
+        for (String selection : Arrays.asList("0-2147483647", "0-100000000", "0-9999,10000")) {
+            try {
+                PowerPointUtils.parseSlideNumbers(selection);
+                fail("Too many slides: " + selection);
+            } catch (NuxeoException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testGetMultiSizeThumbnails() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+
+        PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
+        Map<Integer, BlobList> thumbs = pptUtils.getMultiSizeThumbnails(testFileBlob, Arrays.asList(0, 400, 200),
+                "png", false);
+
+        assertEquals(Arrays.asList(0, 400, 200), new ArrayList<>(thumbs.keySet()));
+        try (XMLSlideShow fullPres = new XMLSlideShow(testFileBlob.getStream())) {
+            Dimension pgsize = fullPres.getPageSize();
+            for (Map.Entry<Integer, BlobList> entry : thumbs.entrySet()) {
+                int expectedWidth = entry.getKey() > 0 ? entry.getKey() : pgsize.width;
+                BlobList blobs = entry.getValue();
+                assertEquals(fullPres.getSlides().size(), blobs.size());
+                for (int i = 0; i < blobs.size(); i++) {
+                    assertEquals("Slide " + (i + 1) + "-" + expectedWidth + ".png", blobs.get(i).getFilename());
+                    assertEquals(expectedWidth, imagingService.getImageInfo(blobs.get(i)).getWidth());
+                }
+            }
+        }
+    }
+
     @Test
     public void testGetThumbnailsIgnoreHidden() throws Exception {
 
@@ -363,6 +737,35 @@ public class TestPowerPointUtilsWithApachePOI {
 
     }
     
+    @Test
+    public void shouldExportBigSlideInBands() throws Exception {
+
+        int SLIDE_NUMBER = 4;
+        int WIDTH = 2000;
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+
+        PowerPointUtilsWithApachePOI pptUtils = new PowerPointUtilsWithApachePOI();
+        pptUtils.setExportBandHeight(100);
+        Blob banded = pptUtils.exportSlide(testFileBlob, SLIDE_NUMBER, WIDTH, "png");
+        // No bands
+        pptUtils.setExportBandHeight(0);
+        Blob full = pptUtils.exportSlide(testFileBlob, SLIDE_NUMBER, WIDTH, "png");
+
+        assertEquals("image/png", banded.getMimeType());
+        assertEquals("Slide " + (SLIDE_NUMBER + 1) + ".png", banded.getFilename());
+
+        BufferedImage bandedImage = ImageIO.read(banded.getFile());
+        BufferedImage fullImage = ImageIO.read(full.getFile());
+        assertEquals(WIDTH, bandedImage.getWidth());
+        assertEquals(fullImage.getHeight(), bandedImage.getHeight());
+        for (int y = 0; y < fullImage.getHeight(); y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(fullImage.getRGB(x, y), bandedImage.getRGB(x, y));
+            }
+        }
+    }
+
     @Test
     public void shouldReplaceText() throws Exception {
         
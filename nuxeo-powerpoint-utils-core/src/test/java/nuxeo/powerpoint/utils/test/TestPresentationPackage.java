@@ -0,0 +1,117 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.poi.xslf.usermodel.XMLSlideShow;
+import org.apache.poi.xslf.usermodel.XSLFRelation;
+import org.junit.Test;
+import org.nuxeo.common.utils.FileUtils;
+
+import nuxeo.powerpoint.utils.apachepoi.PresentationPackage;
+import nuxeo.powerpoint.utils.apachepoi.SlidesExtractor;
+
+/**
+ * @since 2023.2
+ */
+public class TestPresentationPackage {
+
+    @Test
+    public void shouldIgnoreTheCaseOfThePartNames() throws Exception {
+
+        File original = FileUtils.getResourceFileFromContext(TestUtils.MAIN_TEST_PRESENTATION);
+        File renamed = File.createTempFile("renamed", ".pptx");
+        try {
+            checkRenamedPackage(original, renamed);
+        } finally {
+            renamed.delete();
+        }
+    }
+
+    protected void checkRenamedPackage(File original, File renamed) throws IOException {
+
+        // "ppt/slides/slide1.xml" => "ppt/slides/Slide1.xml", etc., the relationships and content types are unchanged
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(original));
+                ZipOutputStream out = new ZipOutputStream(new FileOutputStream(renamed))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                out.putNextEntry(new ZipEntry(capitalize(entry.getName())));
+                IOUtils.copy(in, out);
+                out.closeEntry();
+            }
+        }
+
+        Set<String> expectedParts;
+        try (ZipFile zip = new ZipFile(original)) {
+            PresentationPackage pkg = PresentationPackage.read(zip);
+            expectedParts = pkg.getPartsForSlide(pkg.getSlides().get(0).getPartName());
+        }
+
+        try (ZipFile zip = new ZipFile(renamed)) {
+            PresentationPackage pkg = PresentationPackage.read(zip);
+            assertEquals(TestUtils.MAIN_TEST_PRESENTATION_SLIDES_COUNT, pkg.getSlidesCount());
+            String slidePartName = pkg.getSlides().get(0).getPartName();
+            assertEquals("/ppt/slides/Slide1.xml", slidePartName);
+            assertEquals(XSLFRelation.SLIDE.getContentType(), pkg.getContentType(slidePartName));
+
+            Set<String> parts = pkg.getPartsForSlide(slidePartName);
+            assertEquals(expectedParts.size(), parts.size());
+            assertTrue(parts.contains("/ppt/slideLayouts/SlideLayout1.xml"));
+            assertNotNull(pkg.getEntry("/ppt/slides/slide1.xml"));
+        }
+
+        // The extracted slide keeps its layout
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (SlidesExtractor extractor = new SlidesExtractor(renamed)) {
+            extractor.writeSlide(0, bytes);
+        }
+        try (InputStream in = new ByteArrayInputStream(bytes.toByteArray());
+                XMLSlideShow ppt = new XMLSlideShow(in)) {
+            assertEquals(1, ppt.getSlides().size());
+            assertNotNull(ppt.getSlides().get(0).getSlideLayout());
+        }
+    }
+
+    protected static String capitalize(String name) {
+
+        if (!name.startsWith("ppt/slides/") && !name.startsWith("ppt/slideLayouts/")) {
+            return name;
+        }
+        String fileName = FilenameUtils.getName(name);
+        return FilenameUtils.getPath(name) + Character.toUpperCase(fileName.charAt(0)) + fileName.substring(1);
+    }
+}
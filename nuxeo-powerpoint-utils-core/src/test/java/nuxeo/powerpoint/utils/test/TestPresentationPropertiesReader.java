@@ -0,0 +1,218 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.poi.ooxml.POIXMLProperties.CoreProperties;
+import org.apache.poi.ooxml.POIXMLProperties.ExtendedProperties;
+import org.apache.poi.xslf.usermodel.XMLSlideShow;
+import org.apache.poi.xslf.usermodel.XSLFSlide;
+import org.apache.poi.xslf.usermodel.XSLFSlideLayout;
+import org.apache.poi.xslf.usermodel.XSLFSlideMaster;
+import org.apache.poi.xslf.usermodel.XSLFTheme;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.nuxeo.common.utils.FileUtils;
+import org.openxmlformats.schemas.presentationml.x2006.main.CTEmbeddedFontList;
+import org.openxmlformats.schemas.presentationml.x2006.main.CTEmbeddedFontListEntry;
+
+import nuxeo.powerpoint.utils.api.PowerPointUtils;
+import nuxeo.powerpoint.utils.apachepoi.PresentationPropertiesReader;
+
+/**
+ * The properties read from the package must be the ones POI returns when the presentation is loaded. The fonts (not
+ * available with POI) must be the ones Aspose returns.
+ *
+ * @since 2023.2
+ */
+public class TestPresentationPropertiesReader {
+
+    protected static final String[] FILES = { "files/2020-Nuxeo-Overview-abstract.pptx", "files/merge1.pptx",
+            "files/merge2.pptx", "files/merge3.pptx", "files/template.pptx", "files/template-2.pptx" };
+
+    @Test
+    public void shouldReadSamePropertiesAsPOI() throws Exception {
+
+        for (String path : FILES) {
+            File file = FileUtils.getResourceFileFromContext(path);
+            assertNotNull(file);
+
+            JSONObject expected = getPropertiesWithPOI(file);
+            JSONObject actual;
+            try (PresentationPropertiesReader reader = new PresentationPropertiesReader(file)) {
+                actual = reader.getProperties();
+            }
+            // Not available with POI
+            actual.remove("Fonts");
+            assertTrue(path + "\nExpected: " + expected + "\nActual: " + actual, expected.similar(actual));
+        }
+    }
+
+    @Test
+    public void shouldReadSlideTitles() throws Exception {
+
+        File file = FileUtils.getResourceFileFromContext(TestUtils.MAIN_TEST_PRESENTATION);
+        try (PresentationPropertiesReader reader = new PresentationPropertiesReader(file);
+                XMLSlideShow ppt = new XMLSlideShow(TestUtils.getMainTestPresentationTest().getStream())) {
+            JSONArray slides = reader.getProperties().getJSONArray("Slidesinfo");
+            assertEquals(TestUtils.MAIN_TEST_PRESENTATION_SLIDES_COUNT, slides.length());
+            for (XSLFSlide slide : ppt.getSlides()) {
+                JSONObject info = slides.getJSONObject(slide.getSlideNumber() - 1);
+                assertEquals(slide.getSlideNumber(), info.getInt("SlideNumber"));
+                assertEquals(slide.getTitle() == null ? "" : slide.getTitle(), info.getString("Title"));
+            }
+        }
+    }
+
+    @Test
+    public void shouldFindFonts() throws Exception {
+
+        // Same as Aspose (see the README)
+        Set<String> expected = new HashSet<>(Arrays.asList("Arial", "NeueHaasGroteskDisp Std Blk",
+                "NeueHaasGroteskDisp Std", "Wingdings", "Noto Sans Symbols", "Calibri Light", "Calibri",
+                "Open Sans Semibold", "Abadi MT Condensed Extra Bold", "Neue Haas Grotesk Display Std 9"));
+        assertEquals(expected, getFonts(TestUtils.MAIN_TEST_PRESENTATION));
+
+        // Theme fonts (+mj-lt, +mn-lt) are resolved
+        Set<String> fonts = getFonts("files/template.pptx");
+        assertTrue(fonts.contains("Calibri Light"));
+        assertTrue(fonts.contains("Calibri"));
+        for (String path : FILES) {
+            for (String font : getFonts(path)) {
+                assertFalse(path + ": " + font, font.startsWith("+"));
+            }
+        }
+    }
+
+    protected Set<String> getFonts(String path) throws Exception {
+
+        Set<String> fonts = new HashSet<>();
+        try (PresentationPropertiesReader reader = new PresentationPropertiesReader(
+                FileUtils.getResourceFileFromContext(path))) {
+            JSONArray arr = reader.getProperties().getJSONArray("Fonts");
+            for (int i = 0; i < arr.length(); i++) {
+                assertTrue(path + ": " + arr.get(i), fonts.add(arr.getString(i)));
+            }
+        }
+        return fonts;
+    }
+
+    /*
+     * The properties, as built from the POI user model. Missing dates are not set
+     */
+    protected JSONObject getPropertiesWithPOI(File file) throws Exception {
+
+        JSONObject obj = new JSONObject();
+        try (InputStream in = new FileInputStream(file); XMLSlideShow ppt = new XMLSlideShow(in)) {
+            obj.put("Width", ppt.getPageSize().width);
+            obj.put("Height", ppt.getPageSize().height);
+            obj.put("AutoCompressPictures", ppt.getCTPresentation().getAutoCompressPictures());
+            obj.put("CompatMode", ppt.getCTPresentation().getCompatMode());
+
+            CoreProperties coreProps = ppt.getProperties().getCoreProperties();
+            obj.put("Category", coreProps.getCategory());
+            obj.put("ContentStatus", coreProps.getContentStatus());
+            obj.put("ContentType", coreProps.getContentType());
+            obj.put("Created", format(coreProps.getCreated()));
+            obj.put("Creator", coreProps.getCreator());
+            obj.put("Description", coreProps.getDescription());
+            obj.put("Identifier", coreProps.getIdentifier());
+            obj.put("Keywords", coreProps.getKeywords());
+            obj.put("LastModifiedByUser", coreProps.getLastModifiedByUser());
+            obj.put("LastPrinted", format(coreProps.getLastPrinted()));
+            obj.put("Modified", format(coreProps.getModified()));
+            obj.put("Revision", coreProps.getRevision());
+            obj.put("Subject", coreProps.getSubject());
+            obj.put("Title", coreProps.getTitle());
+
+            ExtendedProperties extProps = ppt.getProperties().getExtendedProperties();
+            obj.put("CountCharacters", extProps.getCharacters());
+            obj.put("CountHiddenSlides", extProps.getHiddenSlides());
+            obj.put("CountLines", extProps.getLines());
+            obj.put("CountMMClips", extProps.getMMClips());
+            obj.put("CountNotes", extProps.getNotes());
+            obj.put("CountPages", extProps.getPages());
+            obj.put("CountParagraphs", extProps.getParagraphs());
+            obj.put("CountSlides", ppt.getSlides().size());
+            obj.put("CountTotalTime", extProps.getTotalTime());
+            obj.put("CountWords", extProps.getWords());
+            obj.put("Application", extProps.getApplication());
+            obj.put("AppVersion", extProps.getAppVersion());
+            obj.put("Company", extProps.getCompany());
+            obj.put("HyperlinkBase", extProps.getHyperlinkBase());
+            obj.put("Manager", extProps.getManager());
+            obj.put("PresentationFormat", extProps.getPresentationFormat());
+            obj.put("Template", extProps.getTemplate());
+
+            JSONArray arr = new JSONArray();
+            for (XSLFSlide slide : ppt.getSlides()) {
+                JSONObject slideInfo = new JSONObject();
+                slideInfo.put("SlideNumber", slide.getSlideNumber());
+                slideInfo.put("Title", slide.getTitle() == null ? "" : slide.getTitle());
+                slideInfo.put("Theme", slide.getTheme().getName());
+                slideInfo.put("Master", slide.getSlideLayout().getName());
+                arr.put(slideInfo);
+            }
+            obj.put("Slidesinfo", arr);
+
+            arr = new JSONArray();
+            for (XSLFSlideMaster master : ppt.getSlideMasters()) {
+                XSLFTheme theme = master.getTheme();
+                JSONArray arrLayouts = new JSONArray();
+                for (XSLFSlideLayout layout : master.getSlideLayouts()) {
+                    arrLayouts.put(layout.getName());
+                }
+                JSONObject oneTheme = new JSONObject();
+                oneTheme.put("Name", theme.getName());
+                oneTheme.put("Layouts", arrLayouts);
+                oneTheme.put("MasterFont", theme.getMajorFont());
+                oneTheme.put("MinorFont", theme.getMinorFont());
+                arr.put(oneTheme);
+            }
+            obj.put("MasterSlides", arr);
+
+            CTEmbeddedFontList fontList = ppt.getCTPresentation().getEmbeddedFontLst();
+            arr = new JSONArray();
+            if (fontList != null) {
+                for (CTEmbeddedFontListEntry entry : fontList.getEmbeddedFontList()) {
+                    arr.put(entry.getFont().getTypeface());
+                }
+            }
+            obj.put("EmbeddedFonts", arr);
+        }
+        return obj;
+    }
+
+    protected String format(Date date) {
+        return date == null ? null : PowerPointUtils.DATE_FORMAT.format(date);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.xslf.usermodel.XMLSlideShow;
+import org.apache.poi.xslf.usermodel.XSLFSlide;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+
+import nuxeo.powerpoint.utils.apachepoi.CancellableDrawFactory;
+import nuxeo.powerpoint.utils.apachepoi.RenderingQuality;
+import nuxeo.powerpoint.utils.apachepoi.SlideRenderTimeoutException;
+import nuxeo.powerpoint.utils.apachepoi.ThumbnailRenderContext;
+
+/**
+ * A deadline not reached must not change the thumbnails. Once passed, the slide is replaced by a placeholder.
+ *
+ * @since 2023.2
+ */
+public class TestRenderTimeBudget {
+
+    protected static final int WIDTH = 800;
+
+    protected static final int PLACEHOLDER_BACKGROUND = 0xEEEEEE;
+
+    @Test
+    public void shouldDrawSamePixelsBeforeTheDeadline() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        try (XMLSlideShow ppt = new XMLSlideShow(testFileBlob.getStream())) {
+            Dimension pgsize = ppt.getPageSize();
+            float scale = (float) WIDTH / pgsize.width;
+            int height = (int) (pgsize.height * scale);
+
+            ThumbnailRenderContext context = new ThumbnailRenderContext();
+            for (RenderingQuality quality : RenderingQuality.values()) {
+                for (XSLFSlide slide : ppt.getSlides()) {
+                    int[] expected = getPixels(context.render(slide, WIDTH, height, scale, quality));
+                    context.setDeadline(System.nanoTime() + TimeUnit.HOURS.toNanos(1));
+                    int[] actual = getPixels(context.render(slide, WIDTH, height, scale, quality));
+                    context.setDeadline(0);
+
+                    assertFalse(context.isTimedOut());
+                    assertArrayEquals("Slide " + slide.getSlideNumber() + ", " + quality, expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldDrawPlaceholderOnceTheDeadlineIsPassed() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        try (XMLSlideShow ppt = new XMLSlideShow(testFileBlob.getStream())) {
+            Dimension pgsize = ppt.getPageSize();
+            float scale = (float) WIDTH / pgsize.width;
+            int height = (int) (pgsize.height * scale);
+            XSLFSlide slide = ppt.getSlides().get(0);
+
+            ThumbnailRenderContext context = new ThumbnailRenderContext();
+            for (RenderingQuality quality : RenderingQuality.values()) {
+                context.setDeadline(System.nanoTime() - 1);
+                BufferedImage image = context.render(slide, WIDTH, height, scale, quality);
+                context.setDeadline(0);
+
+                assertTrue(context.isTimedOut());
+                assertEquals(WIDTH, image.getWidth());
+                // Top middle, away from the diagonals
+                assertEquals(PLACEHOLDER_BACKGROUND, image.getRGB(WIDTH / 2, 5) & 0xFFFFFF);
+            }
+
+            // No deadline anymore
+            BufferedImage image = context.render(slide, WIDTH, height, scale);
+            assertFalse(context.isTimedOut());
+            assertTrue((image.getRGB(WIDTH / 2, 5) & 0xFFFFFF) != PLACEHOLDER_BACKGROUND);
+        }
+    }
+
+    @Test
+    public void shouldStopDrawingOnceTheDeadlineIsPassed() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        try (XMLSlideShow ppt = new XMLSlideShow(testFileBlob.getStream())) {
+            CancellableDrawFactory factory = new CancellableDrawFactory();
+            XSLFSlide slide = ppt.getSlides().get(0);
+            factory.getDrawable(slide.getShapes().get(0));
+
+            factory.setDeadline(System.nanoTime() - 1);
+            try {
+                factory.getDrawable(slide.getShapes().get(0));
+                fail("The deadline is passed");
+            } catch (SlideRenderTimeoutException e) {
+                // Expected
+            }
+        }
+    }
+
+    protected int[] getPixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+}
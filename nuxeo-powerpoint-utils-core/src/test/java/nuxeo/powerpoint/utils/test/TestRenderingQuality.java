@@ -0,0 +1,152 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.apache.poi.xslf.usermodel.XMLSlideShow;
+import org.apache.poi.xslf.usermodel.XSLFSlide;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import nuxeo.powerpoint.utils.apachepoi.RenderingQuality;
+import nuxeo.powerpoint.utils.apachepoi.ThumbnailRenderContext;
+
+/**
+ * Checks the rendering profiles.
+ *
+ * @since 2023.2
+ */
+public class TestRenderingQuality {
+
+    // A typical thumbnail in a grid
+    protected static final int WIDTH = 400;
+
+    @Test
+    public void shouldParseQuality() {
+
+        assertEquals(RenderingQuality.HIGH, RenderingQuality.fromString(null));
+        assertEquals(RenderingQuality.HIGH, RenderingQuality.fromString(""));
+        assertEquals(RenderingQuality.DRAFT, RenderingQuality.fromString("draft"));
+        assertEquals(RenderingQuality.STANDARD, RenderingQuality.fromString(" Standard "));
+
+        try {
+            RenderingQuality.fromString("ultra");
+            fail("Should have thrown a NuxeoException");
+        } catch (NuxeoException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void shouldRenderInHighQualityByDefault() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        try (XMLSlideShow ppt = new XMLSlideShow(testFileBlob.getStream())) {
+            Dimension dim = getDimension(ppt);
+            float scale = (float) dim.width / ppt.getPageSize().width;
+
+            for (XSLFSlide slide : ppt.getSlides()) {
+                int[] expected = getPixels(
+                        new ThumbnailRenderContext().render(slide, dim.width, dim.height, scale));
+                int[] pixels = getPixels(new ThumbnailRenderContext().render(slide, dim.width, dim.height, scale,
+                        RenderingQuality.HIGH));
+                assertArrayEquals(expected, pixels);
+            }
+        }
+    }
+
+    @Test
+    public void shouldRenderAllSlidesInEveryQuality() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        try (XMLSlideShow ppt = new XMLSlideShow(testFileBlob.getStream())) {
+            Dimension dim = getDimension(ppt);
+            float scale = (float) dim.width / ppt.getPageSize().width;
+
+            // Same context for all the profiles: the draft hints must not leak to the next slide
+            ThumbnailRenderContext context = new ThumbnailRenderContext();
+            int differences = 0;
+            for (XSLFSlide slide : ppt.getSlides()) {
+                int[] high = getPixels(context.render(slide, dim.width, dim.height, scale, RenderingQuality.HIGH));
+                int[] draft = getPixels(context.render(slide, dim.width, dim.height, scale, RenderingQuality.DRAFT));
+                int[] highAgain = getPixels(
+                        context.render(slide, dim.width, dim.height, scale, RenderingQuality.HIGH));
+
+                assertArrayEquals(high, highAgain);
+                if (!Arrays.equals(high, draft)) {
+                    differences += 1;
+                }
+            }
+            assertTrue(differences > 0);
+        }
+    }
+
+    /*
+     * Draft skips the shadows and draws the gradients as a solid color: fewer distinct colors, so the encoded
+     * thumbnails are smaller. Unlike the times, the sizes do not depend on the load of the machine.
+     */
+    @Test
+    public void shouldRenderSmallerThumbnailsInDraft() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        try (XMLSlideShow ppt = new XMLSlideShow(testFileBlob.getStream())) {
+            Dimension dim = getDimension(ppt);
+            float scale = (float) dim.width / ppt.getPageSize().width;
+
+            ThumbnailRenderContext context = new ThumbnailRenderContext();
+            long draftSize = 0;
+            long highSize = 0;
+            for (XSLFSlide slide : ppt.getSlides()) {
+                draftSize += getPNGSize(context.render(slide, dim.width, dim.height, scale, RenderingQuality.DRAFT));
+                highSize += getPNGSize(context.render(slide, dim.width, dim.height, scale, RenderingQuality.HIGH));
+            }
+            assertTrue("draft: " + draftSize + " bytes, high: " + highSize + " bytes", draftSize < highSize);
+        }
+    }
+
+    protected Dimension getDimension(XMLSlideShow ppt) {
+
+        Dimension pgsize = ppt.getPageSize();
+        return new Dimension(WIDTH, (int) (pgsize.height * ((float) WIDTH / pgsize.width)));
+    }
+
+    protected long getPNGSize(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.size();
+    }
+
+    protected int[] getPixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nuxeo.powerpoint.utils.apachepoi.RequestCoalescer;
+
+/**
+ * @since 2023.2
+ */
+public class TestRequestCoalescer {
+
+    protected static final int CALLS = 16;
+
+    protected ExecutorService executor;
+
+    @Before
+    public void before() {
+        executor = Executors.newFixedThreadPool(CALLS);
+    }
+
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldComputeIdenticalCallsOnce() throws Exception {
+
+        RequestCoalescer coalescer = new RequestCoalescer();
+        AtomicInteger computations = new AtomicInteger();
+        AtomicInteger copies = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<StringBuilder>> futures = new ArrayList<>();
+        for (int i = 0; i < CALLS; i++) {
+            futures.add(executor.submit(() -> coalescer.execute("key", "test", () -> {
+                computations.incrementAndGet();
+                await(release);
+                return new StringBuilder("result");
+            }, sb -> {
+                copies.incrementAndGet();
+                return new StringBuilder(sb);
+            })));
+        }
+        // All the calls but the first one wait for it
+        waitFor(() -> coalescer.getWaiting() == CALLS - 1);
+        assertEquals(1, coalescer.getInFlight());
+        release.countDown();
+
+        List<StringBuilder> results = new ArrayList<>();
+        for (Future<StringBuilder> future : futures) {
+            results.add(future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, computations.get());
+        assertEquals(CALLS - 1, copies.get());
+        assertEquals(1, coalescer.getExecuted());
+        assertEquals(CALLS - 1, coalescer.getCoalesced());
+        assertEquals(0, coalescer.getInFlight());
+        assertEquals(0, coalescer.getWaiting());
+
+        // Each call has its own result
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals("result", results.get(i).toString());
+            for (int j = i + 1; j < results.size(); j++) {
+                assertNotSame(results.get(i), results.get(j));
+            }
+        }
+    }
+
+    @Test
+    public void shouldNotCoalesceDifferentCalls() throws Exception {
+
+        RequestCoalescer coalescer = new RequestCoalescer();
+        // Each call waits until all of them are running: would never end if they were coalesced
+        CountDownLatch allRunning = new CountDownLatch(CALLS);
+
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < CALLS; i++) {
+            String key = "key" + i;
+            futures.add(executor.submit(() -> coalescer.execute(key, "test", () -> {
+                allRunning.countDown();
+                await(allRunning);
+                return key;
+            }, s -> s)));
+        }
+        for (int i = 0; i < CALLS; i++) {
+            assertEquals("key" + i, futures.get(i).get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(CALLS, coalescer.getExecuted());
+        assertEquals(0, coalescer.getCoalesced());
+    }
+
+    @Test
+    public void shouldFailAllTheWaitingCalls() throws Exception {
+
+        RequestCoalescer coalescer = new RequestCoalescer();
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < CALLS; i++) {
+            futures.add(executor.submit(() -> coalescer.execute("key", "test", () -> {
+                await(release);
+                throw new IOException("Invalid deck");
+            }, s -> s)));
+        }
+        waitFor(() -> coalescer.getWaiting() == CALLS - 1);
+        release.countDown();
+
+        for (Future<String> future : futures) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail("The computation failed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+                assertEquals("Invalid deck", e.getCause().getMessage());
+            }
+        }
+
+        // Nothing is kept: the next call computes again
+        assertEquals(0, coalescer.getInFlight());
+        assertEquals("ok", coalescer.execute("key", "test", () -> "ok", s -> s));
+    }
+
+    @Test
+    public void shouldComputeAgainOnceDone() throws Exception {
+
+        RequestCoalescer coalescer = new RequestCoalescer();
+        Object first = coalescer.execute("key", "test", Object::new, o -> o);
+        Object second = coalescer.execute("key", "test", Object::new, o -> o);
+        assertNotSame(first, second);
+        assertEquals(2, coalescer.getExecuted());
+        assertEquals(0, coalescer.getCoalesced());
+
+        // No key, no coalescing
+        Object result = new Object();
+        assertSame(result, coalescer.execute(null, "test", () -> result, o -> o));
+        assertEquals(2, coalescer.getExecuted());
+    }
+
+    protected static void await(CountDownLatch latch) throws IOException {
+        try {
+            if (!latch.await(10, TimeUnit.SECONDS)) {
+                throw new IOException("Timeout");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    protected static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > end) {
+                fail("Timeout");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
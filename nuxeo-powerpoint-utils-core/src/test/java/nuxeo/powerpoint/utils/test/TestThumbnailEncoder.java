@@ -0,0 +1,187 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.apache.poi.xslf.usermodel.XMLSlideShow;
+import org.apache.poi.xslf.usermodel.XSLFSlide;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+
+import nuxeo.powerpoint.utils.apachepoi.PngStreamWriter.Filter;
+import nuxeo.powerpoint.utils.apachepoi.ThumbnailEncoder;
+import nuxeo.powerpoint.utils.apachepoi.ThumbnailEncoder.ChromaSubsampling;
+import nuxeo.powerpoint.utils.apachepoi.ThumbnailRenderContext;
+
+/**
+ * Checks the settings of the encoders (the output must still be readable, lossless when expected), and prints the
+ * sizes and encoding times of each setting.
+ *
+ * @since 2023.2
+ */
+public class TestThumbnailEncoder {
+
+    protected static final int WIDTH = 800;
+
+    protected List<BufferedImage> slides;
+
+    protected File file;
+
+    @Before
+    public void setup() throws Exception {
+
+        // Copies: the image of the render context is reused
+        slides = new ArrayList<>();
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        try (XMLSlideShow ppt = new XMLSlideShow(testFileBlob.getStream())) {
+            Dimension pgsize = ppt.getPageSize();
+            float scale = (float) WIDTH / pgsize.width;
+            int height = (int) (pgsize.height * scale);
+            ThumbnailRenderContext context = new ThumbnailRenderContext();
+            for (XSLFSlide slide : ppt.getSlides()) {
+                BufferedImage img = context.render(slide, WIDTH, height, scale);
+                BufferedImage copy = new BufferedImage(WIDTH, height, BufferedImage.TYPE_INT_RGB);
+                copy.setData(img.getRaster());
+                slides.add(copy);
+            }
+        }
+        file = File.createTempFile("thumb", ".img");
+    }
+
+    @After
+    public void cleanup() {
+        file.delete();
+    }
+
+    @Test
+    public void shouldWriteLosslessPngWithAnyFilter() throws Exception {
+
+        for (Filter filter : Filter.values()) {
+            ThumbnailEncoder encoder = new ThumbnailEncoder();
+            encoder.setPngFilter(filter);
+            encoder.setPngCompressionLevel(1);
+            for (BufferedImage slide : slides) {
+                encoder.encode(slide, "png", file);
+                assertArrayEquals(getPixels(slide), getPixels(ImageIO.read(file)));
+            }
+            assertEquals(slides.size(), encoder.getStats().getCount());
+        }
+    }
+
+    @Test
+    public void shouldWriteLosslessPaletteWhenFewColors() throws Exception {
+
+        BufferedImage img = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 300, 200);
+        g.setColor(new Color(0, 101, 184));
+        g.fillRect(20, 20, 100, 50);
+        g.setColor(Color.DARK_GRAY);
+        g.drawString("Nuxeo", 150, 100);
+        g.dispose();
+
+        ThumbnailEncoder encoder = new ThumbnailEncoder();
+        encoder.setPngPalette(true);
+        encoder.encode(img, "png", file);
+
+        BufferedImage read = ImageIO.read(file);
+        assertTrue(read.getColorModel() instanceof IndexColorModel);
+        assertArrayEquals(getPixels(img), getPixels(read));
+    }
+
+    @Test
+    public void shouldWriteSmallerPngWithPalette() throws Exception {
+
+        ThumbnailEncoder rgb = new ThumbnailEncoder();
+        ThumbnailEncoder palette = new ThumbnailEncoder();
+        palette.setPngPalette(true);
+
+        for (BufferedImage slide : slides) {
+            rgb.encode(slide, "png", file);
+            palette.encode(slide, "png", file);
+
+            // Quantized: not lossless, but close
+            BufferedImage read = ImageIO.read(file);
+            assertEquals(slide.getWidth(), read.getWidth());
+            assertTrue(getMeanError(slide, read) < 4);
+        }
+
+        assertEquals(slides.size(), rgb.getStats().getCount());
+        assertEquals(slides.size(), palette.getStats().getCount());
+        assertTrue("PNG RGB: " + rgb.getStats() + ". PNG palette: " + palette.getStats(),
+                palette.getStats().getBytes() < rgb.getStats().getBytes());
+    }
+
+    @Test
+    public void shouldApplyJpegSettings() throws Exception {
+
+        ThumbnailEncoder low = new ThumbnailEncoder();
+        low.setJpegQuality(0.5f);
+        ThumbnailEncoder high = new ThumbnailEncoder();
+        high.setJpegQuality(0.9f);
+        high.setJpegChromaSubsampling(ChromaSubsampling.fromString("4:4:4"));
+
+        for (BufferedImage slide : slides) {
+            low.encode(slide, "jpg", file);
+            assertEquals(slide.getWidth(), ImageIO.read(file).getWidth());
+            high.encode(slide, "jpg", file);
+            assertEquals(slide.getWidth(), ImageIO.read(file).getWidth());
+        }
+
+        assertEquals(slides.size(), low.getStats().getCount());
+        assertEquals(slides.size(), high.getStats().getCount());
+        assertTrue("JPEG 0.5 4:2:0: " + low.getStats() + ". JPEG 0.9 4:4:4: " + high.getStats(),
+                low.getStats().getBytes() < high.getStats().getBytes());
+    }
+
+    protected int[] getPixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    // Mean of the absolute differences, per channel
+    protected double getMeanError(BufferedImage expected, BufferedImage actual) {
+
+        int[] p1 = getPixels(expected);
+        int[] p2 = getPixels(actual);
+        long sum = 0;
+        for (int i = 0; i < p1.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                sum += Math.abs(((p1[i] >> shift) & 0xff) - ((p2[i] >> shift) & 0xff));
+            }
+        }
+        return (double) sum / (p1.length * 3);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * (C) Copyright 2023 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.powerpoint.utils.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+import org.apache.poi.xslf.usermodel.XMLSlideShow;
+import org.apache.poi.xslf.usermodel.XSLFSlide;
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+
+import nuxeo.powerpoint.utils.apachepoi.ThumbnailRenderContext;
+
+/**
+ * Checks the raster is reused from one slide to the next, and reusing it does not change the thumbnails.
+ *
+ * @since 2023.2
+ */
+public class TestThumbnailRenderContext {
+
+    // Full HD
+    protected static final int WIDTH = 1920;
+
+    @Test
+    public void shouldRenderTheSameImagesWhenReusingTheRaster() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        try (XMLSlideShow ppt = new XMLSlideShow(testFileBlob.getStream())) {
+            Dimension dim = getDimension(ppt);
+            float scale = (float) dim.width / ppt.getPageSize().width;
+
+            ThumbnailRenderContext reused = new ThumbnailRenderContext();
+            for (XSLFSlide slide : ppt.getSlides()) {
+                BufferedImage expected = new ThumbnailRenderContext().render(slide, dim.width, dim.height, scale);
+                BufferedImage image = reused.render(slide, dim.width, dim.height, scale);
+
+                assertEquals(expected.getWidth(), image.getWidth());
+                assertEquals(expected.getHeight(), image.getHeight());
+                assertArrayEquals(getPixels(expected), getPixels(image));
+            }
+        }
+    }
+
+    @Test
+    public void shouldReuseTheRasterForTheSameDimensions() throws Exception {
+
+        Blob testFileBlob = TestUtils.getMainTestPresentationTest();
+        try (XMLSlideShow ppt = new XMLSlideShow(testFileBlob.getStream())) {
+            Dimension dim = getDimension(ppt);
+            float scale = (float) dim.width / ppt.getPageSize().width;
+            List<XSLFSlide> slides = ppt.getSlides();
+
+            ThumbnailRenderContext context = new ThumbnailRenderContext();
+            BufferedImage first = context.render(slides.get(0), dim.width, dim.height, scale);
+            for (XSLFSlide slide : slides) {
+                assertSame(first, context.render(slide, dim.width, dim.height, scale));
+            }
+
+            // Other dimensions: a new raster, then reused
+            BufferedImage smaller = context.render(slides.get(0), dim.width / 2, dim.height / 2, scale / 2);
+            assertNotSame(first, smaller);
+            assertEquals(dim.width / 2, smaller.getWidth());
+            assertEquals(dim.height / 2, smaller.getHeight());
+            assertSame(smaller, context.render(slides.get(1), dim.width / 2, dim.height / 2, scale / 2));
+        }
+    }
+
+    protected Dimension getDimension(XMLSlideShow ppt) {
+
+        Dimension pgsize = ppt.getPageSize();
+        return new Dimension(WIDTH, (int) (pgsize.height * ((float) WIDTH / pgsize.width)));
+    }
+
+    protected int[] getPixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+}